@@ -46,6 +46,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
@@ -70,6 +72,9 @@ public final class Account {
 
     public static final String ACCOUNT_TABLE_NAME = "account";
 
+    /** Maximum number of accounts whose balances are selected with one query */
+    private static final int BULK_QUERY_SIZE = 1000;
+
     public static final class AccountAsset {
 
         private final long accountId;
@@ -424,11 +429,13 @@ public final class Account {
         }
 
         @Override
-        public void trim(int height) {
-            if (Metro.getBlockchain().getGuaranteedBalanceHeight(height) == 0) {
-                return;
-            }
-            VersionedEntityDbTable.trim(db, table, height, dbKeyFactory, 1);
+        protected int getTrimHeight(int height) {
+            return Metro.getBlockchain().getGuaranteedBalanceHeight(height) == 0 ? 0 : height;
+        }
+
+        @Override
+        protected int getTrimStartHeight() {
+            return 1;
         }
 
         @Override
@@ -541,8 +548,8 @@ public final class Account {
         }
 
         @Override
-        public void trim(int height) {
-            super.trim(Math.max(0, height - Constants.MAX_DIVIDEND_PAYMENT_ROLLBACK));
+        protected int getTrimHeight(int height) {
+            return Math.max(0, height - Constants.MAX_DIVIDEND_PAYMENT_ROLLBACK);
         }
 
         @Override
@@ -564,12 +571,25 @@ public final class Account {
 
     private static final DerivedDbTable accountGuaranteedBaseBalanceTable = new DerivedDbTable("account_guaranteed_balance") {
 
+        @Override
+        public void rollback(int height) {
+            super.rollback(height);
+            GuaranteedBalanceIndex.rollback(height);
+        }
+
+        @Override
+        public void truncate() {
+            super.truncate();
+            GuaranteedBalanceIndex.clear();
+        }
+
         @Override
         public void trim(int height) {
+            int guaranteedBalanceHeight = Metro.getBlockchain().getGuaranteedBalanceHeight(height);
             try (Connection con = db.getConnection();
                  PreparedStatement pstmtDelete = con.prepareStatement("DELETE FROM account_guaranteed_balance "
                          + "WHERE height < ? AND height >= 0 LIMIT " + Constants.BATCH_COMMIT_SIZE)) {
-                pstmtDelete.setInt(1, Metro.getBlockchain().getGuaranteedBalanceHeight(height));
+                pstmtDelete.setInt(1, guaranteedBalanceHeight);
                 int count;
                 do {
                     count = pstmtDelete.executeUpdate();
@@ -578,6 +598,7 @@ public final class Account {
             } catch (SQLException e) {
                 throw new RuntimeException(e.toString(), e);
             }
+            GuaranteedBalanceIndex.trim(guaranteedBalanceHeight);
         }
     };
 
@@ -902,6 +923,69 @@ public final class Account {
         return accountAsset == null ? 0 : accountAsset.quantityQNT;
     }
 
+    /**
+     * Balances of the accounts at the height, with one query for up to {@link #BULK_QUERY_SIZE} accounts
+     *
+     * @return balances in the order of the account ids, -1 for accounts not found or found more than once
+     */
+    static long[] getBalancesMQT(long[] ids, int height) {
+        long[] balances = new long[ids.length];
+        Arrays.fill(balances, -1);
+        Map<Long, Integer> indexes = indexes(ids);
+        for (int from = 0; from < ids.length; from += BULK_QUERY_SIZE) {
+            long[] chunk = Arrays.copyOfRange(ids, from, Math.min(from + BULK_QUERY_SIZE, ids.length));
+            Set<Long> found = new HashSet<>();
+            try (DbIterator<Account> accounts = accountTable.getManyBy(new DbClause.LongsClause("id", chunk), height, 0, -1)) {
+                for (Account account : accounts) {
+                    int index = indexes.get(account.getId());
+                    balances[index] = found.add(account.getId()) ? account.getBalanceMQT() : -1;
+                }
+            }
+        }
+        copyDuplicates(ids, indexes, balances);
+        return balances;
+    }
+
+    /**
+     * Asset balances of the accounts at the height, with one query for up to {@link #BULK_QUERY_SIZE} accounts
+     *
+     * @return balances in the order of the account ids
+     */
+    static long[] getAssetBalancesQNT(long[] accountIds, long assetId, int height) {
+        long[] balances = new long[accountIds.length];
+        Map<Long, Integer> indexes = indexes(accountIds);
+        for (int from = 0; from < accountIds.length; from += BULK_QUERY_SIZE) {
+            long[] chunk = Arrays.copyOfRange(accountIds, from, Math.min(from + BULK_QUERY_SIZE, accountIds.length));
+            DbClause dbClause = new DbClause.LongClause("asset_id", assetId).and(new DbClause.LongsClause("account_id", chunk));
+            try (DbIterator<AccountAsset> accountAssets = accountAssetTable.getManyBy(dbClause, height, 0, -1)) {
+                for (AccountAsset accountAsset : accountAssets) {
+                    balances[indexes.get(accountAsset.accountId)] = accountAsset.quantityQNT;
+                }
+            }
+        }
+        copyDuplicates(accountIds, indexes, balances);
+        return balances;
+    }
+
+    /**
+     * @return index of the first occurrence of each id
+     */
+    private static Map<Long, Integer> indexes(long[] ids) {
+        Map<Long, Integer> indexes = new HashMap<>(ids.length * 2);
+        for (int i = 0; i < ids.length; i++) {
+            indexes.putIfAbsent(ids[i], i);
+        }
+        return indexes;
+    }
+
+    private static void copyDuplicates(long[] ids, Map<Long, Integer> indexes, long[] values) {
+        if (indexes.size() < ids.length) {
+            for (int i = 0; i < ids.length; i++) {
+                values[i] = values[indexes.get(ids[i])];
+            }
+        }
+    }
+
     public static long getAssetBalanceQNT(long accountId, long assetId) {
         AccountAsset accountAsset = accountAssetTable.get(accountAssetDbKeyFactory.newKey(accountId, assetId));
         return accountAsset == null ? 0 : accountAsset.quantityQNT;
@@ -1154,21 +1238,8 @@ public final class Account {
         int currentHeight = Metro.getBlockchain().getHeight();
         int guaranteedBalanceHeight = Metro.getBlockchain().getAvailableBalanceHeight(currentHeight, COINBASE_MATURITY_PERIOD);
         long rawUnlockedBalance = Math.max(Math.subtractExact(unconfirmedBalanceMQT, getTimeLockedGenesisBalance()), 0);
-        try (Connection con = db.getConnection();
-             PreparedStatement pstmt = con.prepareStatement("SELECT SUM (additions) AS additions "
-                     + "FROM account_guaranteed_balance WHERE account_id = ? AND coinbase AND height > ? AND height <= ?")) {
-            pstmt.setLong(1, this.id);
-            pstmt.setInt(2, guaranteedBalanceHeight);
-            pstmt.setInt(3, currentHeight);
-            try (ResultSet rs = pstmt.executeQuery()) {
-                if (!rs.next()) {
-                    return rawUnlockedBalance;
-                }
-                return Math.max(Math.subtractExact(rawUnlockedBalance, rs.getLong("additions")), 0);
-            }
-        } catch (SQLException e) {
-            throw new RuntimeException(e.toString(), e);
-        }
+        long coinbaseAdditions = GuaranteedBalanceIndex.getAdditions(this.id, true, guaranteedBalanceHeight, currentHeight);
+        return Math.max(Math.subtractExact(rawUnlockedBalance, coinbaseAdditions), 0);
     }
 
     public static long getCirculationSupply() {
@@ -1235,7 +1306,7 @@ public final class Account {
         if (height - this.publicKey.height <= confirmations) {
             return 0; // Accounts with the public key revealed less than 30 block clusters ago are not allowed to generate blocks
         }
-        Metro.getBlockchain().readLock();
+        Metro.getBlockchain().snapshotReadLock();
         try {
             long effectiveBalanceMQT = getLessorsGuaranteedBalanceMQT(height, guaranteedBalanceHeight);
             if (activeLesseeId == 0) {
@@ -1243,7 +1314,7 @@ public final class Account {
             }
 	        return effectiveBalanceMQT < Constants.MIN_FORGING_BALANCE_MQT ? 0 : effectiveBalanceMQT / Constants.ONE_MTR;
         } finally {
-            Metro.getBlockchain().readUnlock();
+            Metro.getBlockchain().snapshotReadUnlock();
         }
     }
 
@@ -1254,43 +1325,14 @@ public final class Account {
                 lessors.add(iterator.next());
             }
         }
-        Long[] lessorIds = new Long[lessors.size()];
-        long[] balances = new long[lessors.size()];
-        for (int i = 0; i < lessors.size(); i++) {
-            lessorIds[i] = lessors.get(i).getId();
-            balances[i] = lessors.get(i).getBalanceMQT();
-        }
         int blockchainHeight = Metro.getBlockchain().getHeight();
-        try (Connection con = db.getConnection();
-             PreparedStatement pstmt = con.prepareStatement("SELECT account_id, SUM (additions) AS additions "
-                     + "FROM account_guaranteed_balance, TABLE (id BIGINT=?) T WHERE account_id = T.id AND NOT coinbase AND height > ? "
-                     + (height < blockchainHeight ? " AND height <= ? " : "")
-                     + " GROUP BY account_id ORDER BY account_id")) {
-            pstmt.setObject(1, lessorIds);
-            pstmt.setInt(2, guaranteedBalanceHeight);
-            if (height < blockchainHeight) {
-                pstmt.setInt(3, height);
-            }
-            long total = 0;
-            int i = 0;
-            try (ResultSet rs = pstmt.executeQuery()) {
-                while (rs.next()) {
-                    long accountId = rs.getLong("account_id");
-                    while (lessorIds[i] < accountId && i < lessorIds.length) {
-                        total += balances[i++];
-                    }
-                    if (lessorIds[i] == accountId) {
-                        total += Math.max(balances[i++] - rs.getLong("additions"), 0);
-                    }
-                }
-            }
-            while (i < balances.length) {
-                total += balances[i++];
-            }
-            return total;
-        } catch (SQLException e) {
-            throw new RuntimeException(e.toString(), e);
+        int toHeight = height < blockchainHeight || Metro.getBlockchain().isSnapshot() ? height : Integer.MAX_VALUE;
+        long total = 0;
+        for (Account lessor : lessors) {
+            long additions = GuaranteedBalanceIndex.getAdditions(lessor.getId(), false, guaranteedBalanceHeight, toHeight);
+            total += Math.max(lessor.getBalanceMQT() - additions, 0);
         }
+        return total;
     }
 
     public DbIterator<Account> getLessors() {
@@ -1307,30 +1349,17 @@ public final class Account {
     }
 
     public long getGuaranteedBalanceMQT(final int numberOfConfirmations, final int currentHeight) {
-        Metro.getBlockchain().readLock();
+        Metro.getBlockchain().snapshotReadLock();
         try {
             int height = currentHeight - numberOfConfirmations;
             if (currentHeight < Metro.getBlockchainProcessor().getLowestPossibleHeightForRollback()
                     || height > Metro.getBlockchain().getHeight()) {
                 throw new IllegalArgumentException("Height " + height + " not available for guaranteed balance calculation");
             }
-            try (Connection con = db.getConnection();
-                 PreparedStatement pstmt = con.prepareStatement("SELECT SUM (additions) AS additions "
-                         + "FROM account_guaranteed_balance WHERE account_id = ? AND NOT coinbase AND height > ? AND height <= ?")) {
-                pstmt.setLong(1, this.id);
-                pstmt.setInt(2, height);
-                pstmt.setInt(3, currentHeight);
-                try (ResultSet rs = pstmt.executeQuery()) {
-                    if (!rs.next()) {
-                        return balanceMQT;
-                    }
-                    return Math.max(Math.subtractExact(balanceMQT, rs.getLong("additions")), 0);
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException(e.toString(), e);
-            }
+            long additions = GuaranteedBalanceIndex.getAdditions(this.id, false, height, currentHeight);
+            return Math.max(Math.subtractExact(balanceMQT, additions), 0);
         } finally {
-            Metro.getBlockchain().readUnlock();
+            Metro.getBlockchain().snapshotReadUnlock();
         }
     }
 
@@ -1705,6 +1734,7 @@ public final class Account {
                 pstmtUpdate.setBoolean(4, isCoinbase);
                 pstmtUpdate.executeUpdate();
             }
+            GuaranteedBalanceIndex.add(this.id, isCoinbase, blockchainHeight, amountMQT);
         } catch (SQLException e) {
             throw new RuntimeException(e.toString(), e);
         }
@@ -97,6 +97,9 @@ public class AccountLedger {
      */
     private static class AccountLedgerTable extends DerivedDbTable {
 
+        /** Height up to which the rows are known to be trimmed, -1 if none */
+        private volatile int trimmedHeight = -1;
+
         /**
          * Create the account ledger table
          */
@@ -105,13 +108,29 @@ public class AccountLedger {
         }
 
         /**
-         * Insert an entry into the table
+         * Insert entries into the table in a single batch
          *
-         * @param   ledgerEntry             Ledger entry
+         * @param   ledgerEntries           Ledger entries
          */
-        public void insert(LedgerEntry ledgerEntry) {
-            try (Connection con = db.getConnection()) {
-                ledgerEntry.save(con);
+        public void insert(List<LedgerEntry> ledgerEntries) {
+            try (Connection con = db.getConnection();
+                 PreparedStatement stmt = con.prepareStatement("INSERT INTO account_ledger "
+                         + "(account_id, event_type, event_id, holding_type, holding_id, change, balance, "
+                         + "block_id, height, timestamp) "
+                         + "VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS)) {
+                for (LedgerEntry ledgerEntry : ledgerEntries) {
+                    ledgerEntry.setParameters(stmt);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                try (ResultSet rs = stmt.getGeneratedKeys()) {
+                    for (LedgerEntry ledgerEntry : ledgerEntries) {
+                        if (!rs.next()) {
+                            break;
+                        }
+                        ledgerEntry.ledgerId = rs.getLong(1);
+                    }
+                }
             } catch (SQLException e) {
                 throw new RuntimeException(e.toString(), e);
             }
@@ -128,16 +147,60 @@ public class AccountLedger {
                 return;
             try (Connection con = db.getConnection();
                  PreparedStatement pstmt = con.prepareStatement("DELETE FROM account_ledger WHERE height <= ? LIMIT " + Constants.BATCH_COMMIT_SIZE)) {
-                pstmt.setInt(1, Math.max(blockchain.getHeight() - trimKeep, 0));
+                int trimHeight = Math.max(blockchain.getHeight() - trimKeep, 0);
+                pstmt.setInt(1, trimHeight);
                 int trimmed;
                 do {
                     trimmed = pstmt.executeUpdate();
                     Db.db.commitTransaction();
                 } while (trimmed >= Constants.BATCH_COMMIT_SIZE);
+                trimmedHeight = trimHeight;
             } catch (SQLException e) {
                 throw new RuntimeException(e.toString(), e);
             }
         }
+
+        /**
+         * Trim a limited number of rows from the account ledger table
+         *
+         * @param   height                  Trim height
+         * @param   limit                   Maximum number of rows to delete
+         * @return                          Number of rows deleted
+         */
+        @Override
+        public int trimIncrementally(int height, int limit) {
+            if (trimKeep <= 0)
+                return 0;
+            try (Connection con = db.getConnection();
+                 PreparedStatement pstmt = con.prepareStatement("DELETE FROM account_ledger WHERE height <= ? LIMIT " + limit)) {
+                int trimHeight = Math.max(blockchain.getHeight() - trimKeep, 0);
+                pstmt.setInt(1, trimHeight);
+                int trimmed = pstmt.executeUpdate();
+                if (trimmed < limit) {
+                    trimmedHeight = trimHeight;
+                }
+                return trimmed;
+            } catch (SQLException e) {
+                throw new RuntimeException(e.toString(), e);
+            }
+        }
+
+        @Override
+        public boolean isTrimPending(int height) {
+            return trimKeep > 0 && Math.max(blockchain.getHeight() - trimKeep, 0) > trimmedHeight;
+        }
+
+        @Override
+        public void rollback(int height) {
+            super.rollback(height);
+            trimmedHeight = Math.min(trimmedHeight, height);
+        }
+
+        @Override
+        public void truncate() {
+            super.truncate();
+            trimmedHeight = -1;
+        }
     }
     private static final AccountLedgerTable accountLedgerTable = new AccountLedgerTable();
 
@@ -258,10 +321,11 @@ public class AccountLedger {
      * Commit pending ledger entries
      */
     static void commitEntries() {
-        int count = 0;
-        for (LedgerEntry ledgerEntry : pendingEntries) {
-            accountLedgerTable.insert(ledgerEntry);
-            listeners.notify(ledgerEntry, Event.ADD_ENTRY);
+        if (!pendingEntries.isEmpty()) {
+            accountLedgerTable.insert(pendingEntries);
+            for (LedgerEntry ledgerEntry : pendingEntries) {
+                listeners.notify(ledgerEntry, Event.ADD_ENTRY);
+            }
         }
         pendingEntries.clear();
     }
@@ -827,38 +891,27 @@ public class AccountLedger {
         }
 
         /**
-         * Save the ledger entry
+         * Set the parameters of the ledger entry insert statement
          *
-         * @param   con                     Database connection
+         * @param   stmt                    Insert statement
          * @throws  SQLException            Database error occurred
          */
-        private void save(Connection con) throws SQLException {
-            try (PreparedStatement stmt = con.prepareStatement("INSERT INTO account_ledger "
-                    + "(account_id, event_type, event_id, holding_type, holding_id, change, balance, "
-                    + "block_id, height, timestamp) "
-                    + "VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)", Statement.RETURN_GENERATED_KEYS)) {
-                int i=0;
-                stmt.setLong(++i, accountId);
-                stmt.setByte(++i, (byte) event.getCode());
-                stmt.setLong(++i, eventId);
-                if (holding != null) {
-                    stmt.setByte(++i, (byte)holding.getCode());
-                } else {
-                    stmt.setByte(++i, (byte)-1);
-                }
-                DbUtils.setLong(stmt, ++i, holdingId);
-                stmt.setLong(++i, change);
-                stmt.setLong(++i, balance);
-                stmt.setLong(++i, blockId);
-                stmt.setInt(++i, height);
-                stmt.setLong(++i, timestamp);
-                stmt.executeUpdate();
-                try (ResultSet rs = stmt.getGeneratedKeys()) {
-                    if (rs.next()) {
-                        ledgerId = rs.getLong(1);
-                    }
-                }
+        private void setParameters(PreparedStatement stmt) throws SQLException {
+            int i=0;
+            stmt.setLong(++i, accountId);
+            stmt.setByte(++i, (byte) event.getCode());
+            stmt.setLong(++i, eventId);
+            if (holding != null) {
+                stmt.setByte(++i, (byte)holding.getCode());
+            } else {
+                stmt.setByte(++i, (byte)-1);
             }
+            DbUtils.setLong(stmt, ++i, holdingId);
+            stmt.setLong(++i, change);
+            stmt.setLong(++i, balance);
+            stmt.setLong(++i, blockId);
+            stmt.setInt(++i, height);
+            stmt.setLong(++i, timestamp);
         }
     }
 }
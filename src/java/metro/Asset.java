@@ -51,8 +51,8 @@ public final class Asset {
         }
 
         @Override
-        public void trim(int height) {
-            super.trim(Math.max(0, height - Constants.MAX_DIVIDEND_PAYMENT_ROLLBACK));
+        protected int getTrimHeight(int height) {
+            return Math.max(0, height - Constants.MAX_DIVIDEND_PAYMENT_ROLLBACK);
         }
 
         @Override
@@ -87,6 +87,16 @@ public interface Block {
 
     JSONObject getJSONObject();
 
+    /**
+     * @return block JSON with the transactions in their byte representation, for peers accepting binary messages
+     */
+    JSONObject getBinaryJSONObject();
+
+    /**
+     * @return block JSON with only the ids of the transactions, for relaying to peers which already have most of them
+     */
+    JSONObject getCompactJSONObject();
+
     BigInteger getDifficultyTargetAsInteger();
 
     void sign(String secretPhrase);
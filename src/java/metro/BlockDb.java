@@ -18,6 +18,7 @@
 package metro;
 
 import metro.db.DbUtils;
+import metro.util.BoundedCache;
 import metro.util.Logger;
 
 import java.math.BigInteger;
@@ -27,91 +28,142 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
 import static metro.Consensus.GUARANTEED_BALANCE_KEYBLOCK_CONFIRMATIONS;
 
 final class BlockDb {
 
-    /** Block cache */
+    /**
+     * Recent blocks: the last {@link #POS_BLOCK_CACHE_SIZE} POS blocks and the last
+     * {@link Consensus#GUARANTEED_BALANCE_KEYBLOCK_CONFIRMATIONS} key blocks. All blocks from the oldest cached POS block
+     * up to the last block are present, so that blocks following a recent block can be served from the cache.
+     */
     static final int POS_BLOCK_CACHE_SIZE = 10;
     static final int BLOCK_CACHE_TOTAL_SIZE = POS_BLOCK_CACHE_SIZE + GUARANTEED_BALANCE_KEYBLOCK_CONFIRMATIONS;
-    static final Map<Long, BlockImpl> blockCache = new HashMap<>();
-    static final SortedMap<Integer, BlockImpl> heightMap = new TreeMap<>();
-    static final SortedMap<Integer, BlockImpl> posLocalHeightMap = new TreeMap<>();
-    static final SortedMap<Integer, BlockImpl> keyLocalHeightMap = new TreeMap<>();
-    static final Map<Long, TransactionImpl> transactionCache = new HashMap<>();
+    private static final Map<Long, BlockImpl> recentBlocks = new ConcurrentHashMap<>();
+    static final NavigableMap<Integer, BlockImpl> heightMap = new ConcurrentSkipListMap<>();
+    private static final NavigableMap<Integer, BlockImpl> posLocalHeightMap = new ConcurrentSkipListMap<>();
+    private static final NavigableMap<Integer, BlockImpl> keyLocalHeightMap = new ConcurrentSkipListMap<>();
+
+    /** Any blocks and transactions recently pushed or loaded from the database, evicted when least recently used */
+    static final BoundedCache<Long, BlockImpl> blockCache = new BoundedCache<>("block", Metro.getIntProperty("metro.blockCacheSize"));
+    static final BoundedCache<Integer, BlockImpl> blockHeightCache = new BoundedCache<>("blockHeight", Metro.getIntProperty("metro.blockCacheSize"));
+    static final BoundedCache<Long, TransactionImpl> transactionCache = new BoundedCache<>("transaction", Metro.getIntProperty("metro.transactionCacheSize"));
+    /**
+     * Incremented when the caches are cleared after blocks were deleted, so that blocks and transactions read from the
+     * database before are not cached after, guarded by cacheLock for updates
+     */
+    private static volatile long cacheGeneration;
+    private static final Object cacheLock = new Object();
+
     static final Blockchain blockchain = Metro.getBlockchain();
     static {
         Metro.getBlockchainProcessor().addListener((block) -> {
-            synchronized (blockCache) {
-                int height = block.getHeight();
-                int localHeight = block.getLocalHeight();
-                Iterator<BlockImpl> it = blockCache.values().iterator();
-                while (it.hasNext()) {
-                    boolean remove = false;
-                    Block cacheBlock = it.next();
-                    if (cacheBlock.isKeyBlock()) {
-                        int cacheKeyHeight = cacheBlock.getLocalHeight();
-                        if (cacheKeyHeight <= localHeight - GUARANTEED_BALANCE_KEYBLOCK_CONFIRMATIONS || cacheKeyHeight >= localHeight) {
-                            cacheBlock.getTransactions().forEach((tx) -> transactionCache.remove(tx.getId()));
-                            heightMap.remove(cacheBlock.getHeight());
-                            keyLocalHeightMap.remove(cacheKeyHeight);
-                            remove = true;
-                        }
-                    } else {
-                        int cachePOSHeight = cacheBlock.getLocalHeight();
-                        if (cachePOSHeight <= localHeight - POS_BLOCK_CACHE_SIZE || cachePOSHeight >= localHeight) {
-                            cacheBlock.getTransactions().forEach((tx) -> transactionCache.remove(tx.getId()));
-                            heightMap.remove(cacheBlock.getHeight());
-                            posLocalHeightMap.remove(cachePOSHeight);
-                            remove = true;
-                        }
-                    }
-                    if (remove) {
-                        it.remove();
-                    }
-                }
-                block.getTransactions().forEach((tx) -> transactionCache.put(tx.getId(), (TransactionImpl)tx));
-                heightMap.put(height, (BlockImpl)block);
-                if (block.isKeyBlock()) {
-                    keyLocalHeightMap.put(localHeight, (BlockImpl) block);
-                } else {
-                    posLocalHeightMap.put(localHeight, (BlockImpl) block);
-                }
-                blockCache.put(block.getId(), (BlockImpl)block);
-                if (blockCache.size() > BLOCK_CACHE_TOTAL_SIZE + 1) {
-                    Logger.logErrorMessage("BLOCK CACHE OVERFLOW: size=" + blockCache.size());
-                }
+            int localHeight = block.getLocalHeight();
+            BlockImpl evicted = block.isKeyBlock() ? keyLocalHeightMap.remove(localHeight - GUARANTEED_BALANCE_KEYBLOCK_CONFIRMATIONS)
+                    : posLocalHeightMap.remove(localHeight - POS_BLOCK_CACHE_SIZE);
+            if (evicted != null) {
+                heightMap.remove(evicted.getHeight());
+                recentBlocks.remove(evicted.getId());
+            }
+            recentBlocks.put(block.getId(), (BlockImpl) block);
+            heightMap.put(block.getHeight(), (BlockImpl) block);
+            (block.isKeyBlock() ? keyLocalHeightMap : posLocalHeightMap).put(localHeight, (BlockImpl) block);
+            blockCache.put(block.getId(), (BlockImpl) block);
+            blockHeightCache.put(block.getHeight(), (BlockImpl) block);
+            block.getTransactions().forEach((tx) -> transactionCache.put(tx.getId(), (TransactionImpl) tx));
+            if (recentBlocks.size() > BLOCK_CACHE_TOTAL_SIZE + 1) {
+                Logger.logErrorMessage("BLOCK CACHE OVERFLOW: size=" + recentBlocks.size());
             }
         }, BlockchainProcessor.Event.BLOCK_PUSHED);
     }
 
     static private void clearBlockCache() {
-        synchronized (blockCache) {
-            blockCache.clear();
+        synchronized (cacheLock) {
+            cacheGeneration++;
+            recentBlocks.clear();
             heightMap.clear();
             keyLocalHeightMap.clear();
             posLocalHeightMap.clear();
+            blockCache.clear();
+            blockHeightCache.clear();
             transactionCache.clear();
         }
     }
 
-    static BlockImpl findBlock(long blockId) {
-        // Check the block cache
-        synchronized (blockCache) {
-            BlockImpl block = blockCache.get(blockId);
-            if (block != null) {
+    /**
+     * @return the recent block with this id, if all the blocks following it are cached
+     */
+    static BlockImpl findRecentBlock(long blockId) {
+        BlockImpl block = recentBlocks.get(blockId);
+        if (block != null) {
+            Map.Entry<Integer, BlockImpl> oldestPosBlock = posLocalHeightMap.firstEntry();
+            if (oldestPosBlock != null && block.getHeight() >= oldestPosBlock.getValue().getHeight()) {
                 return block;
             }
         }
+        return null;
+    }
+
+    /**
+     * @return generation of the caches, to be obtained before reading the blocks or transactions to cache
+     */
+    static long getCacheGeneration() {
+        return cacheGeneration;
+    }
+
+    /**
+     * Blocks read inside a database transaction may still be rolled back, so only committed ones are cached. Blocks
+     * read before the caches were cleared may have been deleted meanwhile, so are not cached either.
+     *
+     * @param generation cache generation obtained before reading the block
+     */
+    private static void cacheBlock(BlockImpl block, long generation) {
+        if (block != null && !Db.db.isInTransaction()) {
+            synchronized (cacheLock) {
+                if (generation == cacheGeneration) {
+                    blockCache.put(block.getId(), block);
+                    blockHeightCache.put(block.getHeight(), block);
+                }
+            }
+        }
+    }
+
+    /**
+     * Transactions are cached like blocks, see {@link #cacheBlock}
+     *
+     * @param generation cache generation obtained before reading the transaction
+     */
+    static void cacheTransaction(TransactionImpl transaction, long generation) {
+        if (!Db.db.isInTransaction()) {
+            synchronized (cacheLock) {
+                if (generation == cacheGeneration) {
+                    transactionCache.put(transaction.getId(), transaction);
+                }
+            }
+        }
+    }
+
+    static List<BoundedCache<?, ?>> getCaches() {
+        return Arrays.asList(blockCache, blockHeightCache, transactionCache);
+    }
+
+    static BlockImpl findBlock(long blockId) {
+        // Check the block cache
+        BlockImpl cachedBlock = blockCache.get(blockId);
+        if (cachedBlock != null) {
+            return cachedBlock;
+        }
         // Search the database
+        long generation = cacheGeneration;
         try (Connection con = Db.db.getConnection();
              PreparedStatement pstmt = con.prepareStatement("SELECT * FROM block WHERE id = ?")) {
             pstmt.setLong(1, blockId);
@@ -119,6 +171,7 @@ final class BlockDb {
                 BlockImpl block = null;
                 if (rs.next()) {
                     block = loadBlock(con, rs);
+                    cacheBlock(block, generation);
                 }
                 return block;
             }
@@ -133,11 +186,9 @@ final class BlockDb {
 
     static boolean hasBlock(long blockId, int height) {
         // Check the block cache
-        synchronized(blockCache) {
-            BlockImpl block = blockCache.get(blockId);
-            if (block != null) {
-                return block.getHeight() <= height;
-            }
+        BlockImpl block = blockCache.get(blockId);
+        if (block != null) {
+            return block.getHeight() <= height;
         }
         // Search the database
         try (Connection con = Db.db.getConnection();
@@ -153,11 +204,9 @@ final class BlockDb {
 
     static long findBlockIdAtHeight(int height) {
         // Check the cache
-        synchronized(blockCache) {
-            BlockImpl block = heightMap.get(height);
-            if (block != null) {
-                return block.getId();
-            }
+        BlockImpl block = blockHeightCache.get(height);
+        if (block != null) {
+            return block.getId();
         }
         // Search the database
         try (Connection con = Db.db.getConnection();
@@ -176,13 +225,12 @@ final class BlockDb {
 
     static BlockImpl findBlockAtHeight(int height) {
         // Check the cache
-        synchronized(blockCache) {
-            BlockImpl block = heightMap.get(height);
-            if (block != null) {
-                return block;
-            }
+        BlockImpl cachedBlock = blockHeightCache.get(height);
+        if (cachedBlock != null) {
+            return cachedBlock;
         }
         // Search the database
+        long generation = cacheGeneration;
         try (Connection con = Db.db.getConnection();
              PreparedStatement pstmt = con.prepareStatement("SELECT * FROM block WHERE height = ?")) {
             pstmt.setInt(1, height);
@@ -190,6 +238,7 @@ final class BlockDb {
                 BlockImpl block;
                 if (rs.next()) {
                     block = loadBlock(con, rs);
+                    cacheBlock(block, generation);
                 } else {
                     throw new RuntimeException("Block at height " + height + " not found in database!");
                 }
@@ -202,11 +251,9 @@ final class BlockDb {
 
     static BlockImpl findBlockAtLocalHeight(int height, boolean isKeyBlock) {
         // Check the cache
-        synchronized(blockCache) {
-            BlockImpl block = isKeyBlock ? keyLocalHeightMap.get(height) : posLocalHeightMap.get(height);
-            if (block != null) {
-                return block;
-            }
+        BlockImpl cachedBlock = isKeyBlock ? keyLocalHeightMap.get(height) : posLocalHeightMap.get(height);
+        if (cachedBlock != null) {
+            return cachedBlock;
         }
         // Search the database
         try (Connection con = Db.db.getConnection();
@@ -407,10 +454,11 @@ final class BlockDb {
                     pstmt.setLong(2, block.getPreviousBlockId());
                     pstmt.executeUpdate();
                 }
-                BlockImpl previousBlock;
-                synchronized (blockCache) {
-                    previousBlock = blockCache.get(block.getPreviousBlockId());
+                BlockImpl previousBlock = recentBlocks.get(block.getPreviousBlockId());
+                if (previousBlock != null) {
+                    previousBlock.setNextBlockId(block.getId());
                 }
+                previousBlock = blockCache.get(block.getPreviousBlockId());
                 if (previousBlock != null) {
                     previousBlock.setNextBlockId(block.getId());
                 }
@@ -519,15 +567,20 @@ final class BlockDb {
                 stmt.executeUpdate("SET REFERENTIAL_INTEGRITY FALSE");
                 stmt.executeUpdate("TRUNCATE TABLE transaction");
                 stmt.executeUpdate("TRUNCATE TABLE block");
+                // truncated by the tables, which also clear their in-memory state
                 BlockchainProcessorImpl.getInstance().getDerivedTables().forEach(table -> {
                     try {
-                        stmt.executeUpdate("TRUNCATE TABLE " + table.toString());
-                    } catch (SQLException ignore) {}
+                        table.truncate();
+                    } catch (RuntimeException e) {
+                        Logger.logErrorMessage("Failed to truncate table " + table, e);
+                        throw e;
+                    }
                 });
                 stmt.executeUpdate("SET REFERENTIAL_INTEGRITY TRUE");
                 Db.db.commitTransaction();
-            } catch (SQLException e) {
+            } catch (SQLException | RuntimeException e) {
                 Db.db.rollbackTransaction();
+                stmt.executeUpdate("SET REFERENTIAL_INTEGRITY TRUE");
                 throw e;
             }
         } catch (SQLException e) {
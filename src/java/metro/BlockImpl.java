@@ -30,6 +30,7 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
@@ -374,6 +375,45 @@ public final class BlockImpl implements Block {
 
     @Override
     public JSONObject getJSONObject() {
+        JSONObject json = getHeaderJSONObject();
+        JSONArray transactionsData = new JSONArray();
+        getTransactions().forEach(transaction -> transactionsData.add(transaction.getJSONObject()));
+        json.put("transactions", transactionsData);
+        return json;
+    }
+
+    @Override
+    public JSONObject getBinaryJSONObject() {
+        JSONObject json = getHeaderJSONObject();
+        TransactionImpl.putTransactionBytes(json, getTransactions());
+        return json;
+    }
+
+    /**
+     * Coinbase transactions are never in the unconfirmed pool of the receiver, so they are sent in full
+     */
+    @Override
+    public JSONObject getCompactJSONObject() {
+        JSONObject json = getHeaderJSONObject();
+        List<TransactionImpl> transactions = getTransactions();
+        ByteBuffer transactionIds = ByteBuffer.allocate(transactions.size() * 8);
+        List<TransactionImpl> prefilledTransactions = new ArrayList<>();
+        JSONArray prefilledIndexes = new JSONArray();
+        for (int i = 0; i < transactions.size(); i++) {
+            TransactionImpl transaction = transactions.get(i);
+            transactionIds.putLong(transaction.getId());
+            if (transaction.getType().isCoinbase()) {
+                prefilledTransactions.add(transaction);
+                prefilledIndexes.add(i);
+            }
+        }
+        json.put("transactionIds", Base64.getEncoder().encodeToString(transactionIds.array()));
+        TransactionImpl.putTransactionBytes(json, prefilledTransactions);
+        json.put("prefilledIndexes", prefilledIndexes);
+        return json;
+    }
+
+    private JSONObject getHeaderJSONObject() {
         JSONObject json = new JSONObject();
         json.put("version", version);
         json.put("timestamp", timestamp);
@@ -395,13 +435,23 @@ public final class BlockImpl implements Block {
             json.put("blockSignature", Convert.toHexString(blockSignature));
         }
         json.put("txMerkleRoot", Convert.toHexString(txMerkleRoot));
-
-        JSONArray transactionsData = new JSONArray();
-        getTransactions().forEach(transaction -> transactionsData.add(transaction.getJSONObject()));
-        json.put("transactions", transactionsData);
         return json;
     }
 
+    /**
+     * Transaction ids of a block relayed by {@link #getCompactJSONObject()}
+     *
+     * @return ids in block order
+     */
+    static long[] parseTransactionIds(JSONObject blockData) {
+        ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode((String) blockData.get("transactionIds")));
+        long[] transactionIds = new long[buffer.remaining() / 8];
+        for (int i = 0; i < transactionIds.length; i++) {
+            transactionIds[i] = buffer.getLong();
+        }
+        return transactionIds;
+    }
+
     /**
      * There is only one place outside of Unit tests where reparse can be set to true:
      *
@@ -411,6 +461,21 @@ public final class BlockImpl implements Block {
      * @throws MetroException.NotValidException
      */
     static BlockImpl parseBlock(JSONObject blockData, boolean reparse) throws MetroException.NotValidException {
+        return parseBlock(blockData, reparse, true);
+    }
+
+    /**
+     * @param verifySignatures set to false to leave block and transaction signatures to {@link #verifyBlockSignature()}
+     *                         and {@link TransactionImpl#verifySignature()}, e.g. to check them in parallel later
+     */
+    static BlockImpl parseBlock(JSONObject blockData, boolean reparse, boolean verifySignatures) throws MetroException.NotValidException {
+        return parseBlock(blockData, null, reparse, verifySignatures);
+    }
+
+    /**
+     * @param transactions already parsed transactions of the block, or null to parse them from the block JSON
+     */
+    static BlockImpl parseBlock(JSONObject blockData, List<TransactionImpl> transactions, boolean reparse, boolean verifySignatures) throws MetroException.NotValidException {
         try {
             short version = ((Number) blockData.get("version")).shortValue();
             boolean keyBlock = isKeyBlockVersion(version);
@@ -448,13 +513,13 @@ public final class BlockImpl implements Block {
             }
             byte[] txMerkleRoot = Convert.parseHexString((String) blockData.get("txMerkleRoot"));
 
-            List<TransactionImpl> blockTransactions = new ArrayList<>();
-            for (Object transactionData : (JSONArray) blockData.get("transactions")) {
-                blockTransactions.add(TransactionImpl.parseTransaction((JSONObject) transactionData));
+            List<TransactionImpl> blockTransactions = transactions != null ? transactions : TransactionImpl.parseTransactions(blockData, verifySignatures);
+            if (blockTransactions == null) {
+                throw new MetroException.NotValidException("Missing block transactions");
             }
             BlockImpl block = new BlockImpl(version, timestamp, baseTarget, previousBlock, previousKeyBlock, nonce, payloadLength, txMerkleRoot, generatorPublicKey,
                     generationSequence, blockSignature, previousBlockHash, forgersMerkleBranches, blockTransactions);
-            if (!(keyBlock || block.checkSignature()) && !reparse) {
+            if (verifySignatures && !(keyBlock || block.checkSignature()) && !reparse) {
                 throw new MetroException.NotValidException("Invalid block signature");
             }
             return block;
@@ -543,7 +608,7 @@ public final class BlockImpl implements Block {
 
     private volatile boolean hasValidSignature = false;
 
-    private boolean checkSignature() {
+    boolean checkSignature() {
         if (! hasValidSignature) {
             byte[] data = Arrays.copyOf(bytes(), bytes.length - (isKeyBlock() ? 0 : 64));
             hasValidSignature = blockSignature != null && Crypto.verify(blockSignature, data, getGeneratorPublicKey());
@@ -551,6 +616,21 @@ public final class BlockImpl implements Block {
         return hasValidSignature;
     }
 
+    private volatile boolean hasSufficientWork = false;
+
+    /**
+     * @return true if the key block hash does not exceed its own difficulty target, whether the target is the right one
+     * for its height is checked by the blockchain processor
+     */
+    boolean checkWork() {
+        if (!hasSufficientWork) {
+            byte[] hashBytes = HASH_FUNCTION.hash(bytes());
+            ArrayUtils.reverse(hashBytes);
+            hasSufficientWork = isKeyBlock() && new BigInteger(1, hashBytes).compareTo(getDifficultyTargetAsInteger()) <= 0;
+        }
+        return hasSufficientWork;
+    }
+
     boolean verifyGenerationSequence() throws BlockchainProcessor.BlockOutOfOrderException {
         try {
             BlockImpl previousBlock = BlockchainImpl.getInstance().getBlock(getPreviousBlockId());
@@ -31,6 +31,10 @@ public interface Blockchain {
 
     void readUnlock();
 
+    void snapshotReadLock();
+
+    void snapshotReadUnlock();
+
     void updateLock();
 
     void updateUnlock();
@@ -45,6 +49,14 @@ public interface Blockchain {
 
     void forgetLastKeyBlock();
 
+    void beginSnapshot();
+
+    void endSnapshot();
+
+    boolean isSnapshot();
+
+    int getSnapshotHeight();
+
     Block getLastPosBlock();
 
     int getHeight();
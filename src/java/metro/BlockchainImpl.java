@@ -19,7 +19,9 @@ package metro;
 
 import metro.db.DbIterator;
 import metro.db.DbUtils;
+import metro.db.TransactionalDb;
 import metro.util.BitcoinJUtils;
+import metro.util.BoundedCache;
 import metro.util.Convert;
 import metro.util.Filter;
 import metro.util.ReadWriteUpdateLock;
@@ -49,9 +51,25 @@ public final class BlockchainImpl implements Blockchain {
 
     private BlockchainImpl() {}
 
-    private final ReadWriteUpdateLock lock = new ReadWriteUpdateLock();
+    private final ReadWriteUpdateLock lock = new ReadWriteUpdateLock("blockchain",
+            Metro.getBooleanProperty("metro.blockchainLockWriterPreference"), Metro.getBooleanProperty("metro.lockCallSiteMetrics"));
     private final AtomicReference<BlockImpl> lastBlock = new AtomicReference<>();
     private final AtomicReference<BlockImpl> lastKeyBlock = new AtomicReference<>();
+    /** Last block as of the last database commit, the newest block a snapshot can be pinned to */
+    private volatile BlockImpl committedBlock;
+    /** Block the snapshot read by the current thread is pinned to, if any */
+    private final ThreadLocal<BlockImpl> snapshotBlock = new ThreadLocal<>();
+
+    private final TransactionalDb.TransactionCallback updateCommittedBlock = new TransactionalDb.TransactionCallback() {
+        @Override
+        public void commit() {
+            committedBlock = lastBlock.get();
+        }
+
+        @Override
+        public void rollback() {
+        }
+    };
 
     @Override
     public void readLock() {
@@ -63,6 +81,24 @@ public final class BlockchainImpl implements Blockchain {
         lock.readLock().unlock();
     }
 
+    /**
+     * Read lock for reads of the database and of in memory state kept by height, which threads reading a snapshot
+     * do without
+     */
+    @Override
+    public void snapshotReadLock() {
+        if (snapshotBlock.get() == null) {
+            lock.readLock().lock();
+        }
+    }
+
+    @Override
+    public void snapshotReadUnlock() {
+        if (snapshotBlock.get() == null) {
+            lock.readLock().unlock();
+        }
+    }
+
     @Override
     public void updateLock() {
         lock.updateLock().lock();
@@ -83,7 +119,8 @@ public final class BlockchainImpl implements Blockchain {
 
     @Override
     public BlockImpl getLastBlock() {
-        return lastBlock.get();
+        BlockImpl snapshot = snapshotBlock.get();
+        return snapshot != null ? snapshot : lastBlock.get();
     }
 
     void setLastBlock(BlockImpl block) {
@@ -91,6 +128,42 @@ public final class BlockchainImpl implements Blockchain {
         if (block.isKeyBlock()) {
             lastKeyBlock.set(block);
         }
+        if (Db.db.isInTransaction()) {
+            Db.db.registerCallback(updateCommittedBlock);
+        } else {
+            committedBlock = block;
+        }
+    }
+
+    /**
+     * Pin the view of the blockchain of the current thread to the last committed block. Until {@link #endSnapshot},
+     * the last block and height seen by the thread do not change, and multiversion tables are read as of that height
+     * once newer blocks have been committed, so that the thread can read without taking the blockchain lock.
+     */
+    @Override
+    public void beginSnapshot() {
+        BlockImpl committed = committedBlock;
+        snapshotBlock.set(committed != null ? committed : lastBlock.get());
+    }
+
+    @Override
+    public void endSnapshot() {
+        snapshotBlock.remove();
+    }
+
+    @Override
+    public boolean isSnapshot() {
+        return snapshotBlock.get() != null;
+    }
+
+    @Override
+    public int getSnapshotHeight() {
+        BlockImpl snapshot = snapshotBlock.get();
+        if (snapshot == null) {
+            return -1;
+        }
+        BlockImpl committed = committedBlock;
+        return committed != null && committed.getHeight() > snapshot.getHeight() ? snapshot.getHeight() : -1;
     }
 
     @Override
@@ -100,7 +173,7 @@ public final class BlockchainImpl implements Blockchain {
 
     @Override
     public int getHeight() {
-        BlockImpl last = lastBlock.get();
+        BlockImpl last = getLastBlock();
         return last == null ? 0 : last.getHeight();
     }
 
@@ -127,13 +200,13 @@ public final class BlockchainImpl implements Blockchain {
 
     @Override
     public long getLastBlockTimestamp() {
-        BlockImpl last = lastBlock.get();
+        BlockImpl last = getLastBlock();
         return last == null ? 0 : last.getTimestamp();
     }
 
     @Override
     public BlockImpl getLastBlock(long timestamp) {
-        BlockImpl block = lastBlock.get();
+        BlockImpl block = getLastBlock();
         if (timestamp >= block.getTimestamp()) {
             return block;
         }
@@ -142,6 +215,15 @@ public final class BlockchainImpl implements Blockchain {
 
     @Override
     public BlockImpl getLastKeyBlock() {
+        BlockImpl snapshot = snapshotBlock.get();
+        if (snapshot != null) {
+            if (snapshot.isKeyBlock()) {
+                return snapshot;
+            }
+            BlockImpl keyBlock = lastKeyBlock.get();
+            return keyBlock != null && keyBlock.getHeight() <= snapshot.getHeight() ? keyBlock
+                    : BlockDb.findLastKeyBlock(snapshot.getHeight());
+        }
         if (lastKeyBlock.get() == null) {
             lastKeyBlock.set(BlockDb.findLastKeyBlock(lastBlock.get().getHeight()));
         }
@@ -177,6 +259,10 @@ public final class BlockchainImpl implements Blockchain {
 
     @Override
     public boolean hasBlock(long blockId) {
+        BlockImpl snapshot = snapshotBlock.get();
+        if (snapshot != null) {
+            return snapshot.getId() == blockId || BlockDb.hasBlock(blockId, snapshot.getHeight());
+        }
         return lastBlock.get().getId() == blockId || BlockDb.hasBlock(blockId);
     }
 
@@ -292,22 +378,30 @@ public final class BlockchainImpl implements Blockchain {
         return new DbIterator<>(con, pstmt, BlockDb::loadBlock);
     }
 
+    /**
+     * @return block, transaction and other in memory caches, for monitoring
+     */
+    public List<BoundedCache<?, ?>> getCaches() {
+        List<BoundedCache<?, ?>> caches = new ArrayList<>(BlockDb.getCaches());
+        caches.add(GuaranteedBalanceIndex.getCache());
+        caches.addAll(Order.getCaches());
+        return caches;
+    }
+
     @Override
     public List<Long> getBlockIdsAfter(long blockId, int limit) {
         // Check the block cache
         List<Long> result = new ArrayList<>(BlockDb.BLOCK_CACHE_TOTAL_SIZE);
-        synchronized(BlockDb.blockCache) {
-            BlockImpl block = BlockDb.blockCache.get(blockId);
-            if (block != null) {
-                Collection<BlockImpl> cacheMap = BlockDb.heightMap.tailMap(block.getHeight() + 1).values();
-                for (BlockImpl cacheBlock : cacheMap) {
-                    if (result.size() >= limit) {
-                        break;
-                    }
-                    result.add(cacheBlock.getId());
+        BlockImpl recentBlock = BlockDb.findRecentBlock(blockId);
+        if (recentBlock != null) {
+            Collection<BlockImpl> cacheMap = BlockDb.heightMap.tailMap(recentBlock.getHeight() + 1).values();
+            for (BlockImpl cacheBlock : cacheMap) {
+                if (result.size() >= limit) {
+                    break;
                 }
-                return result;
+                result.add(cacheBlock.getId());
             }
+            return result;
         }
         // Search the database
         try (Connection con = Db.db.getConnection();
@@ -334,18 +428,16 @@ public final class BlockchainImpl implements Blockchain {
         }
         // Check the block cache
         List<BlockImpl> result = new ArrayList<>(BlockDb.BLOCK_CACHE_TOTAL_SIZE);
-        synchronized(BlockDb.blockCache) {
-            BlockImpl block = BlockDb.blockCache.get(blockId);
-            if (block != null) {
-                Collection<BlockImpl> cacheMap = BlockDb.heightMap.tailMap(block.getHeight() + 1).values();
-                for (BlockImpl cacheBlock : cacheMap) {
-                    if (result.size() >= limit) {
-                        break;
-                    }
-                    result.add(cacheBlock);
+        BlockImpl recentBlock = BlockDb.findRecentBlock(blockId);
+        if (recentBlock != null) {
+            Collection<BlockImpl> cacheMap = BlockDb.heightMap.tailMap(recentBlock.getHeight() + 1).values();
+            for (BlockImpl cacheBlock : cacheMap) {
+                if (result.size() >= limit) {
+                    break;
                 }
-                return result;
+                result.add(cacheBlock);
             }
+            return result;
         }
         // Search the database
         try (Connection con = Db.db.getConnection();
@@ -372,19 +464,17 @@ public final class BlockchainImpl implements Blockchain {
         }
         // Check the block cache
         List<BlockImpl> result = new ArrayList<>(BlockDb.BLOCK_CACHE_TOTAL_SIZE);
-        synchronized(BlockDb.blockCache) {
-            BlockImpl block = BlockDb.blockCache.get(blockId);
-            if (block != null) {
-                Collection<BlockImpl> cacheMap = BlockDb.heightMap.tailMap(block.getHeight() + 1).values();
-                int index = 0;
-                for (BlockImpl cacheBlock : cacheMap) {
-                    if (result.size() >= blockList.size() || cacheBlock.getId() != blockList.get(index++)) {
-                        break;
-                    }
-                    result.add(cacheBlock);
+        BlockImpl recentBlock = BlockDb.findRecentBlock(blockId);
+        if (recentBlock != null) {
+            Collection<BlockImpl> cacheMap = BlockDb.heightMap.tailMap(recentBlock.getHeight() + 1).values();
+            int index = 0;
+            for (BlockImpl cacheBlock : cacheMap) {
+                if (result.size() >= blockList.size() || cacheBlock.getId() != blockList.get(index++)) {
+                    break;
                 }
-                return result;
+                result.add(cacheBlock);
             }
+            return result;
         }
         // Search the database
         try (Connection con = Db.db.getConnection();
@@ -411,7 +501,7 @@ public final class BlockchainImpl implements Blockchain {
 
     @Override
     public long getBlockIdAtHeight(int height) {
-        Block block = lastBlock.get();
+        Block block = getLastBlock();
         if (height > block.getHeight()) {
             throw new IllegalArgumentException("Invalid height " + height + ", current blockchain is at " + block.getHeight());
         }
@@ -423,7 +513,7 @@ public final class BlockchainImpl implements Blockchain {
 
     @Override
     public BlockImpl getBlockAtHeight(int height) {
-        BlockImpl block = lastBlock.get();
+        BlockImpl block = getLastBlock();
         if (height > block.getHeight()) {
             throw new IllegalArgumentException("Invalid height " + height + ", current blockchain is at " + block.getHeight());
         }
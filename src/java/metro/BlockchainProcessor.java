@@ -78,6 +78,8 @@ public interface BlockchainProcessor extends Observable<Block,BlockchainProcesso
 
     BlockImpl prepareKeyBlockTemplate(List<TransactionImpl> transactions);
 
+    BlockImpl prepareKeyBlockTemplate(List<TransactionImpl> transactions, Long coinbaseNonce);
+
     Block composeKeyBlock(byte[] headerData, List<TransactionImpl> transactions);
 
     byte[] getLastKeyBlockForgersMerkleBranches();
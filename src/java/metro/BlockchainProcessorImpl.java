@@ -31,6 +31,7 @@ import metro.util.JSON;
 import metro.util.Listener;
 import metro.util.Listeners;
 import metro.util.Logger;
+import metro.util.Metrics;
 import metro.util.ThreadPool;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
@@ -66,8 +67,10 @@ import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.IntStream;
 
 import static metro.Consensus.HASH_FUNCTION;
 import static metro.Consensus.STRATUM_COMPATIBILITY_BLOCK;
@@ -87,8 +90,7 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
     public static final String SELECT_FORGERS_SQL = "SELECT S.super_id, PK.public_key, S.effective FROM (" +
             "SELECT IFNULL(A.active_lessee_id,A.id) super_id, SUM(CASEWHEN(A.active_lessee_id IS NULL, 1, 0)) generator, SUM(A.balance) - SUM(IFNULL(B.additions,0)) effective FROM Account A " +
             "LEFT JOIN (SELECT account_id, SUM (additions) AS additions FROM account_guaranteed_balance WHERE height > ? AND height <= ? AND NOT coinbase GROUP BY account_id) B " +
-            "on (A.id = B.account_id) LEFT JOIN (SELECT active_lessee_id id, SUM(balance) balance FROM account " +
-            "WHERE latest GROUP BY active_lessee_id) L ON (L.id = A.id) " +
+            "on (A.id = B.account_id) " +
             "WHERE A.latest AND ((A.last_forged_height > ? AND A.last_forged_height <= ?) OR A.active_lessee_id IS NOT NULL) GROUP BY super_id HAVING generator > 0 ORDER BY effective, super_id) S " +
             "JOIN public_key PK ON PK.account_id = S.super_id WHERE PK.latest";
 
@@ -99,11 +101,16 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
     private final BlockchainImpl blockchain = BlockchainImpl.getInstance();
 
     private final ExecutorService networkService = Executors.newCachedThreadPool();
+    private final ForkJoinPool verificationPool = new ForkJoinPool(Metro.getIntProperty("metro.numberOfVerificationThreads") > 0
+            ? Metro.getIntProperty("metro.numberOfVerificationThreads") : Runtime.getRuntime().availableProcessors());
     private final List<DerivedDbTable> derivedTables = new CopyOnWriteArrayList<>();
     private final boolean trimDerivedTables = Metro.getBooleanProperty("metro.trimDerivedTables");
+    private final boolean trimIncrementally = trimDerivedTables && Metro.getBooleanProperty("metro.trimIncrementally");
+    private final int trimBatchSize = Math.max(Metro.getIntProperty("metro.trimBatchSize"), 1);
     private final int defaultNumberOfForkConfirmations = Metro.getIntProperty(Constants.isTestnet
             ? "metro.testnetNumberOfForkConfirmations" : "metro.numberOfForkConfirmations");
     private final boolean simulateEndlessDownload = Metro.getBooleanProperty("metro.simulateEndlessDownload");
+    private final int scanBatchSize = Math.max(Metro.getIntProperty("metro.scanBatchSize", 1000), 1);
 
     private int initialScanHeight;
     private volatile int lastTrimHeight;
@@ -111,11 +118,14 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
     private final Set<Long> prunableTransactions = new HashSet<>();
 
     private final Listeners<Block, Event> blockListeners = new Listeners<>();
+    private final Metrics.Family pushBlockTimes = Metrics.family("block_push_seconds", "phase",
+            "Time spent pushing a block, by phase");
     private volatile Peer lastBlockchainFeeder;
     private volatile int lastBlockchainFeederHeight;
     private volatile boolean getMoreBlocks = true;
 
     private volatile byte[] lastKeyBlockForgersMerkleBranches;
+    private final ForgerSet forgerSet = new ForgerSet();
 
     public byte[] getLastKeyBlockForgersMerkleBranches() {
         return lastKeyBlockForgersMerkleBranches;
@@ -441,7 +451,7 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
             int segSize = 36;
             int stop = chainBlockIds.size() - 1;
             for (int start = 0; start < stop; start += segSize) {
-                getList.add(new GetNextBlocks(chainBlockIds, start, Math.min(start + segSize, stop)));
+                getList.add(new GetNextBlocks(chainBlockIds, start, Math.min(start + segSize, stop), verificationPool));
             }
             int nextPeerIndex = ThreadLocalRandom.current().nextInt(connectedPublicPeers.size());
             long maxResponseTime = 0;
@@ -644,18 +654,23 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
         /** Time it took to return getNextBlocks */
         private long responseTime;
 
+        /** Pool verifying the signatures and proof of work of the parsed blocks */
+        private final ForkJoinPool verificationPool;
+
         /**
          * Create the callable future
          *
          * @param   blockIds            Block identifier list
          * @param   start               Start index within the list
          * @param   stop                Stop index within the list
+         * @param   verificationPool    Pool verifying the parsed blocks
          */
-        public GetNextBlocks(List<Long> blockIds, int start, int stop) {
+        public GetNextBlocks(List<Long> blockIds, int start, int stop, ForkJoinPool verificationPool) {
             this.blockIds = blockIds;
             this.start = start;
             this.stop = stop;
             this.requestCount = 0;
+            this.verificationPool = verificationPool;
         }
 
         /**
@@ -677,6 +692,9 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
             request.put("requestType", "getNextBlocks");
             request.put("blockIds", idList);
             request.put("blockId", Long.toUnsignedString(blockIds.get(start)));
+            if (peer.providesService(Peer.Service.BINARY)) {
+                request.put("binary", true);
+            }
             long startTime = System.currentTimeMillis();
             JSONObject response = peer.send(JSON.prepareRequest(request), 10 * 1024 * 1024);
             responseTime = System.currentTimeMillis() - startTime;
@@ -700,7 +718,7 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
             try {
                 int count = stop - start;
                 for (JSONObject blockData : nextBlocks) {
-                    blockList.add(BlockImpl.parseBlock(blockData, false));
+                    blockList.add(BlockImpl.parseBlock(blockData, false, false));
                     if (--count <= 0)
                         break;
                 }
@@ -709,9 +727,44 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
                 peer.blacklist(e);
                 stop = start + blockList.size();
             }
+            //
+            // Verify the signatures and proof of work on all cores, so that only the checks
+            // depending on the blockchain state are left for pushBlock under the write lock.
+            // The results are cached in the blocks and transactions.  Blocks starting from
+            // the first invalid one are dropped the same way as blocks which failed to parse.
+            //
+            int verified;
+            try {
+                verified = verificationPool.submit(() -> verifyBlocks(blockList)).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getMessage(), e);
+            }
+            if (verified < blockList.size()) {
+                Logger.logDebugMessage("Block " + blockList.get(verified).getStringId() + " failed verification");
+                peer.blacklist("Invalid block signature or proof of work");
+                stop = start + verified;
+                return new ArrayList<>(blockList.subList(0, verified));
+            }
             return blockList;
         }
 
+        /**
+         * Verify block and transaction signatures and key block proof of work in parallel
+         *
+         * @param   blockList           Parsed blocks
+         * @return                      Index of the first invalid block or the list size if all blocks are valid
+         */
+        private static int verifyBlocks(List<BlockImpl> blockList) {
+            return IntStream.range(0, blockList.size()).parallel().filter(i -> {
+                BlockImpl block = blockList.get(i);
+                return !(block.isKeyBlock() ? block.checkWork() : block.checkSignature())
+                        || !block.getTransactions().parallelStream().allMatch(transaction -> transaction.getSignature() == null || transaction.checkSignature());
+            }).min().orElse(blockList.size());
+        }
+
         /**
          * Return the callable future
          *
@@ -989,22 +1042,7 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
             } else if (Metro.getBooleanProperty("metro.forceScan")) {
                 scan(0, Metro.getBooleanProperty("metro.forceValidate"));
             } else {
-                boolean rescan;
-                boolean validate;
-                int height;
-                try (Connection con = Db.db.getConnection();
-                     Statement stmt = con.createStatement();
-                     ResultSet rs = stmt.executeQuery("SELECT * FROM scan")) {
-                    rs.next();
-                    rescan = rs.getBoolean("rescan");
-                    validate = rs.getBoolean("validate");
-                    height = rs.getInt("height");
-                } catch (SQLException e) {
-                    throw new RuntimeException(e.toString(), e);
-                }
-                if (rescan) {
-                    scan(height, validate);
-                }
+                resumeScan();
             }
             // find last key block with ANY timestamp
             Block lastKeyBlock = BlockDb.findLastKeyBlock(Long.MAX_VALUE);
@@ -1019,6 +1057,9 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
         if (!Constants.isLightClient && !Constants.isOffline) {
             ThreadPool.scheduleThread("GetMoreBlocks", getMoreBlocksThread, 1);
         }
+        if (trimIncrementally) {
+            ThreadPool.scheduleThread("TrimDerivedTables", trimDerivedTablesThread, 1);
+        }
     }
 
     @Override
@@ -1054,6 +1095,56 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
         }
     }
 
+    /**
+     * Trims up to metro.trimBatchSize keys or rows of each derived table every second, in a transaction of its own
+     * per table, holding the blockchain read lock only for that transaction. Tables with nothing to trim are skipped
+     * without a transaction. Stops while a block is processed, the blockchain is scanned or a full trim is running.
+     */
+    private final Runnable trimDerivedTablesThread = () -> {
+        try {
+            try {
+                for (DerivedDbTable table : derivedTables) {
+                    if (isProcessingBlock || isScanning || isTrimming) {
+                        return;
+                    }
+                    trimIncrementally(table);
+                }
+            } catch (Exception e) {
+                Logger.logMessage("Error trimming derived tables", e);
+            }
+        } catch (Throwable t) {
+            Logger.logErrorMessage("CRITICAL ERROR. PLEASE REPORT TO THE DEVELOPERS.\n" + t.toString(), t);
+            System.exit(1);
+        }
+    };
+
+    /**
+     * @return number of keys or rows trimmed
+     */
+    int trimIncrementally(DerivedDbTable table) {
+        blockchain.readLock();
+        try {
+            int height = blockchain.getGuaranteedBalanceHeight(blockchain.getHeight());
+            if (height <= 0 || !table.isTrimPending(height)) {
+                return 0;
+            }
+            try {
+                Db.db.beginTransaction();
+                lastTrimHeight = Math.max(lastTrimHeight, height);
+                int trimmed = table.trimIncrementally(height, trimBatchSize);
+                Db.db.commitTransaction();
+                return trimmed;
+            } catch (Exception e) {
+                Db.db.rollbackTransaction();
+                throw e;
+            } finally {
+                Db.db.endTransaction();
+            }
+        } finally {
+            blockchain.readUnlock();
+        }
+    }
+
     private void doTrimDerivedTables() {
         lastTrimHeight = blockchain.getGuaranteedBalanceHeight(blockchain.getHeight());
         if (lastTrimHeight > 0) {
@@ -1192,7 +1283,23 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
      */
     @Override
     public void processPeerBlock(JSONObject request, Peer peer) throws MetroException {
-        BlockImpl block = BlockImpl.parseBlock(request, false);
+        List<TransactionImpl> transactions = null;
+        if (request.containsKey("transactionIds")) {
+            // the missing transactions are requested from the peer while this thread waits, so only for a block that
+            // continues the blockchain or replaces the last fast block, any other block would be ignored below
+            long previousBlockId = Convert.parseUnsignedLong((String) request.get("previousBlock"));
+            BlockImpl lastBlock = blockchain.getLastBlock();
+            if (previousBlockId != lastBlock.getId()
+                    && (lastBlock.isKeyBlock() || previousBlockId != lastBlock.getPreviousBlockId())) {
+                return;
+            }
+            transactions = getCompactBlockTransactions(request, peer);
+            if (transactions == null) {
+                // will be downloaded with the next blocks
+                return;
+            }
+        }
+        BlockImpl block = BlockImpl.parseBlock(request, transactions, false, true);
         blockchain.writeLock();
         try {
             if (block.isKeyBlock()) {
@@ -1205,7 +1312,7 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
                     }
                     byte[] generationSequenceHash = BlockImpl.advanceGenerationSequenceInKeyBlock(previousBlock);
                     request.put("generationSequence", Convert.toHexString(generationSequenceHash));
-                    block = BlockImpl.parseBlock(request, true);
+                    block = BlockImpl.parseBlock(request, block.getTransactions(), true, true);
                 }
                 processKeyBlockInternal(block, peer);
                 return;
@@ -1240,6 +1347,71 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
         }
     }
 
+    /**
+     * Rebuild the transactions of a block relayed by {@link Block#getCompactJSONObject()} from the unconfirmed pool,
+     * requesting only the missing ones from the peer
+     *
+     * @return transactions in block order, or null if the peer could not provide the missing ones
+     */
+    private List<TransactionImpl> getCompactBlockTransactions(JSONObject request, Peer peer) throws MetroException.NotValidException {
+        long[] transactionIds = BlockImpl.parseTransactionIds(request);
+        if (transactionIds.length > Consensus.POSBLOCK_MAX_NUMBER_OF_TRANSACTIONS + 1) {
+            throw new MetroException.NotValidException("Too many transactions in compact block: " + transactionIds.length);
+        }
+        TransactionImpl[] transactions = new TransactionImpl[transactionIds.length];
+        List<TransactionImpl> prefilledTransactions = TransactionImpl.parseTransactions(request, true);
+        JSONArray prefilledIndexes = (JSONArray) request.get("prefilledIndexes");
+        if (prefilledTransactions == null || prefilledIndexes == null || prefilledIndexes.size() != prefilledTransactions.size()) {
+            throw new MetroException.NotValidException("Invalid prefilled transactions in compact block");
+        }
+        for (int i = 0; i < prefilledIndexes.size(); i++) {
+            int index = ((Number) prefilledIndexes.get(i)).intValue();
+            TransactionImpl transaction = prefilledTransactions.get(i);
+            if (index < 0 || index >= transactions.length || transactionIds[index] != transaction.getId()) {
+                throw new MetroException.NotValidException("Prefilled transaction " + transaction.getStringId() + " does not match the compact block");
+            }
+            transactions[index] = transaction;
+        }
+        TransactionProcessorImpl transactionProcessor = TransactionProcessorImpl.getInstance();
+        JSONArray missingIds = new JSONArray();
+        for (int i = 0; i < transactions.length; i++) {
+            if (transactions[i] == null) {
+                Transaction transaction = transactionProcessor.getUnconfirmedTransaction(transactionIds[i]);
+                if (transaction instanceof UnconfirmedTransaction) {
+                    transactions[i] = ((UnconfirmedTransaction) transaction).getTransaction();
+                } else if (transaction != null) {
+                    transactions[i] = (TransactionImpl) transaction;
+                } else {
+                    missingIds.add(Long.toUnsignedString(transactionIds[i]));
+                }
+            }
+        }
+        if (!missingIds.isEmpty()) {
+            JSONObject missingRequest = new JSONObject();
+            missingRequest.put("requestType", "getCompactBlockTransactions");
+            missingRequest.put("transactionIds", missingIds);
+            JSONObject response = peer.send(JSON.prepareRequest(missingRequest));
+            List<TransactionImpl> missingTransactions = response != null ? TransactionImpl.parseTransactions(response, true) : null;
+            if (missingTransactions == null) {
+                Logger.logDebugMessage("Peer " + peer.getHost() + " did not return the " + missingIds.size() + " missing transactions of a compact block");
+                return null;
+            }
+            Map<Long, TransactionImpl> missingById = new HashMap<>();
+            missingTransactions.forEach(transaction -> missingById.put(transaction.getId(), transaction));
+            for (int i = 0; i < transactions.length; i++) {
+                if (transactions[i] == null) {
+                    transactions[i] = missingById.get(transactionIds[i]);
+                    if (transactions[i] == null) {
+                        Logger.logDebugMessage("Peer " + peer.getHost() + " did not return transaction "
+                                + Long.toUnsignedString(transactionIds[i]) + " of a compact block");
+                        return null;
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(Arrays.asList(transactions));
+    }
+
     @Override
     public List<BlockImpl> popOffTo(int height) {
         if (height <= 0) {
@@ -1368,6 +1540,7 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
 
     void shutdown() {
         ThreadPool.shutdownExecutor("networkService", networkService, 5);
+        ThreadPool.shutdownExecutor("verificationPool", verificationPool, 5);
     }
 
     private void addBlock(BlockImpl block) {
@@ -1400,6 +1573,7 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
             for (DerivedDbTable table : derivedTables) {
                 table.createSearchIndex(con);
             }
+            FullTextTrigger.reindex(con);
             BlockDb.commit(genesisBlock);
             Db.db.commitTransaction();
         } catch (SQLException e) {
@@ -1414,6 +1588,7 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
     private void pushBlock(final BlockImpl block) throws BlockNotAcceptedException {
 
         long curTime = Metro.getEpochTime();
+        long startNanos = System.nanoTime();
 
         blockchain.writeLock();
 
@@ -1452,6 +1627,7 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
                     previousPosBlock = blockchain.getLastPosBlock();
                 }
                 block.setPrevious(previousPosBlock, previousKeyBlock);
+                long validateStart = System.nanoTime();
                 validate(block, previousBlock, previousKeyBlock, curTime);
 
                 long nextHitTime = Generator.getNextHitTime(previousBlock.getId(), curTime);
@@ -1470,16 +1646,22 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
                 validatePhasedTransactions(previousBlock.getHeight(), validPhasedTransactions, invalidPhasedTransactions, duplicates);
                 validateTransactions(block, previousBlock, curTime, duplicates, previousBlock.getHeight() >= Constants.LAST_CHECKSUM_BLOCK);
 
+                long acceptStart = System.nanoTime();
+                pushBlockTimes.get("validate").record(acceptStart - validateStart);
                 block.setPreceding();
                 blockListeners.notify(block, Event.BEFORE_BLOCK_ACCEPT);
                 TransactionProcessorImpl.getInstance().requeueAllUnconfirmedTransactions();
                 Logger.logInfoMessage("adding/storing/accepting new block=" + Convert.toHexString(block.getBytes()));
                 addBlock(block);
                 accept(block, validPhasedTransactions, invalidPhasedTransactions, duplicates);
+                long commitStart = System.nanoTime();
+                pushBlockTimes.get("accept").record(commitStart - acceptStart);
                 BlockDb.commit(block);
                 Db.db.commitTransaction();
+                pushBlockTimes.get("commit").recordSince(commitStart);
             } catch (Exception e) {
                 Db.db.rollbackTransaction();
+                forgerSet.invalidate();
                 popOffTo(previousBlock);
                 blockchain.setLastBlock(previousBlock);
                 Logger.logErrorMessage("Block have not accepted", e);
@@ -1487,7 +1669,9 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
             } finally {
                 Db.db.endTransaction();
             }
+            long notifyStart = System.nanoTime();
             blockListeners.notify(block, Event.AFTER_BLOCK_ACCEPT);
+            pushBlockTimes.get("notify_accepted").recordSince(notifyStart);
         } finally {
             blockchain.writeUnlock();
         }
@@ -1496,7 +1680,10 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
             Peers.sendToSomePeers(block);
         }
 
+        long notifyStart = System.nanoTime();
         blockListeners.notify(block, Event.BLOCK_PUSHED);
+        pushBlockTimes.get("notify_pushed").recordSince(notifyStart);
+        pushBlockTimes.get("total").recordSince(startNanos);
 
     }
 
@@ -1597,7 +1784,7 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
         }
     }
 
-    private Block.ValidationResult validateKeyBlock(Block keyBlock) {
+    private Block.ValidationResult validateKeyBlock(BlockImpl keyBlock) {
         if (keyBlock.getLocalHeight() >= Consensus.FORGERS_FIXATION_BLOCK && !Arrays.equals(keyBlock.getForgersMerkleBranches(), lastKeyBlockForgersMerkleBranches)) {
             return Block.ValidationResult.FORGERS_MERKLE_ROOT_DISCREPANCY;
         }
@@ -1606,10 +1793,7 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
         if (target.signum() <= 0 || target.compareTo(Consensus.MAX_WORK_TARGET) > 0) {
             return Block.ValidationResult.DIFFICULTY_TARGET_OUT_OF_RANGE;
         }
-        byte[] hashBytes = HASH_FUNCTION.hash(keyBlock.getBytes());
-        ArrayUtils.reverse(hashBytes);
-        BigInteger hash = new BigInteger(1, hashBytes);
-        if (hash.compareTo(target) > 0) {
+        if (!keyBlock.checkWork()) {
             return Block.ValidationResult.INSUFFICIENT_WORK;
         }
         try {
@@ -1822,9 +2006,10 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
             AccountLedger.commitEntries();
             // Account records are all updated by now, so we can recalculate the forgersMerkle here
             if (block.isKeyBlock()) {
+                byte[] forgersMerkleBranches = getCurrentForgersMerkleBranches();
                 Logger.logInfoMessage(String.format("LastKeyBlockForgersMerkleBranches changed from %s to %s",
-                        Convert.toHexString(lastKeyBlockForgersMerkleBranches), Convert.toHexString(getCurrentForgersMerkleBranches())));
-                lastKeyBlockForgersMerkleBranches = getCurrentForgersMerkleBranches();
+                        Convert.toHexString(lastKeyBlockForgersMerkleBranches), Convert.toHexString(forgersMerkleBranches)));
+                lastKeyBlockForgersMerkleBranches = forgersMerkleBranches;
             }
         } finally {
             isProcessingBlock = false;
@@ -1888,6 +2073,7 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
 
     private BlockImpl popLastBlock() {
         blockchain.forgetLastKeyBlock();
+        forgerSet.invalidate();
         BlockImpl block = blockchain.getLastBlock();
         if (block.getHeight() == 0) {
             throw new RuntimeException("Cannot pop off genesis block");
@@ -1921,6 +2107,7 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
     }
 
     private void resetForgersMerkle() {
+        forgerSet.invalidate();
         Logger.logInfoMessage(String.format("LastKeyBlockForgersMerkleBranches changed from %s to %s",
                 Convert.toHexString(lastKeyBlockForgersMerkleBranches), Convert.toHexString(Constants.TWO_BRANCHES_EMPTY_MERKLE_ROOT)));
         lastKeyBlockForgersMerkleBranches = Constants.TWO_BRANCHES_EMPTY_MERKLE_ROOT;
@@ -2148,9 +2335,67 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
                 && hasAllReferencedTransactions(referencedTransaction, timestamp, count + 1);
     }
 
+    private static final class ScanBatch {
+
+        private final List<BlockImpl> blocks = new ArrayList<>();
+        private long nextDbId;
+    }
+
+    private ScanBatch loadScanBatch(int height, long fromDbId) throws SQLException {
+        ScanBatch batch = new ScanBatch();
+        try (Connection con = Db.db.getConnection();
+             PreparedStatement pstmt = con.prepareStatement("SELECT * FROM block WHERE " + (height > 0 ? "height >= ? AND " : "")
+                     + " db_id >= ? ORDER BY db_id ASC LIMIT ?")) {
+            int i = 0;
+            if (height > 0) {
+                pstmt.setInt(++i, height);
+            }
+            pstmt.setLong(++i, fromDbId);
+            pstmt.setInt(++i, scanBatchSize);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    batch.nextDbId = rs.getLong("db_id") + 1;
+                    BlockImpl block = BlockDb.loadBlock(con, rs, true);
+                    if (block.getHeight() > 0) {
+                        block.loadTransactions();
+                    }
+                    batch.blocks.add(block);
+                }
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Run the scan scheduled or interrupted by a restart, if any
+     */
+    void resumeScan() {
+        boolean rescan;
+        boolean validate;
+        int height;
+        int checkpoint;
+        try (Connection con = Db.db.getConnection();
+             Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT * FROM scan")) {
+            rs.next();
+            rescan = rs.getBoolean("rescan");
+            validate = rs.getBoolean("validate");
+            height = rs.getInt("height");
+            checkpoint = rs.getInt("checkpoint");
+        } catch (SQLException e) {
+            throw new RuntimeException(e.toString(), e);
+        }
+        if (rescan) {
+            if (checkpoint > 0 && checkpoint > height) {
+                Logger.logMessage("Resuming interrupted scan from height " + height + " at checkpoint " + checkpoint);
+            }
+            scan(height, validate, false, checkpoint);
+        }
+    }
+
     void scheduleScan(int height, boolean validate) {
         try (Connection con = Db.db.getConnection();
-             PreparedStatement pstmt = con.prepareStatement("UPDATE scan SET rescan = TRUE, height = ?, validate = ?")) {
+             PreparedStatement pstmt = con.prepareStatement("UPDATE scan SET rescan = TRUE, height = ?, validate = ?, checkpoint = 0")) {
             pstmt.setInt(1, height);
             pstmt.setBoolean(2, validate);
             pstmt.executeUpdate();
@@ -2162,15 +2407,23 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
 
     @Override
     public void scan(int height, boolean validate) {
-        scan(height, validate, false);
+        scan(height, validate, false, 0);
     }
 
     @Override
     public void fullScanWithShutdown() {
-        scan(0, true, true);
+        scan(0, true, true, 0);
     }
 
-    private void scan(int height, boolean validate, boolean shutdown) {
+    /**
+     * Re-applies all blocks starting from height, committing after each block.
+     * <p>
+     * The height following each scanned key block is saved as the scan checkpoint, together with that block. A scan
+     * interrupted by a restart is resumed from its last checkpoint instead of from the start.
+     *
+     * @param checkpoint height at which a scan from height was interrupted, 0 to start a new scan
+     */
+    private void scan(int height, boolean validate, boolean shutdown, int checkpoint) {
         blockchain.writeLock();
         try {
             if (!Db.db.isInTransaction()) {
@@ -2179,7 +2432,7 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
                     if (validate) {
                         blockListeners.addListener(checksumListener, Event.BLOCK_SCANNED);
                     }
-                    scan(height, validate, shutdown);
+                    scan(height, validate, shutdown, checkpoint);
                     Db.db.commitTransaction();
                 } catch (Exception e) {
                     Db.db.rollbackTransaction();
@@ -2190,13 +2443,22 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
                 }
                 return;
             }
-            scheduleScan(height, validate);
-            if (height > 0 && height < getLowestPossibleHeightForRollback()) {
-                Logger.logMessage("Rollback to height less than " + getLowestPossibleHeightForRollback() + " not supported, will do a full scan");
-                height = 0;
-            }
-            if (height < 0) {
-                height = 0;
+            boolean fullScan;
+            if (checkpoint > 0 && checkpoint > height) {
+                // derived tables are only trimmed well below the last scanned key block, so can be rolled back to it
+                fullScan = height == 0;
+                height = checkpoint;
+            } else {
+                if (height > 0 && height < getLowestPossibleHeightForRollback()) {
+                    Logger.logMessage("Rollback to height less than " + getLowestPossibleHeightForRollback() + " not supported, will do a full scan");
+                    height = 0;
+                }
+                if (height < 0) {
+                    height = 0;
+                }
+                // saved after the downgrade to a full scan, so that a resumed scan is a full scan too
+                scheduleScan(height, validate);
+                fullScan = height == 0;
             }
             Logger.logMessage("Scanning blockchain starting from height " + height + "...");
             boolean doValidate = validate;
@@ -2225,10 +2487,10 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
                     }
                 }
             }
+            Future<ScanBatch> nextBatch = null;
             try (Connection con = Db.db.getConnection();
-                 PreparedStatement pstmtSelect = con.prepareStatement("SELECT * FROM block WHERE " + (height > 0 ? "height >= ? AND " : "")
-                         + " db_id >= ? ORDER BY db_id ASC LIMIT 50000");
-                 PreparedStatement pstmtDone = con.prepareStatement("UPDATE scan SET rescan = FALSE, height = 0, validate = FALSE")) {
+                 PreparedStatement pstmtCheckpoint = con.prepareStatement("UPDATE scan SET checkpoint = ?");
+                 PreparedStatement pstmtDone = con.prepareStatement("UPDATE scan SET rescan = FALSE, height = 0, validate = FALSE, checkpoint = 0")) {
                 isScanning = true;
                 initialScanHeight = blockchain.getHeight();
                 if (height > blockchain.getHeight() + 1) {
@@ -2250,6 +2512,7 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
                 }
                 Db.db.clearCache();
                 Db.db.commitTransaction();
+                forgerSet.invalidate();
                 Logger.logDebugMessage("Rolled back derived tables");
                 BlockImpl currentBlock = BlockDb.findBlockAtHeight(height);
                 blockListeners.notify(currentBlock, Event.RESCAN_BEGIN);
@@ -2267,96 +2530,98 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
                     new Thread(() -> System.exit(0)).start();
                     return;
                 }
-                int pstmtSelectIndex = 1;
-                if (height > 0) {
-                    pstmtSelect.setInt(pstmtSelectIndex++, height);
-                }
-                long dbId = Long.MIN_VALUE;
-                boolean hasMore = true;
+                final int fromHeight = height;
+                nextBatch = networkService.submit(() -> loadScanBatch(fromHeight, Long.MIN_VALUE));
                 outer:
-                while (hasMore) {
-                    hasMore = false;
-                    pstmtSelect.setLong(pstmtSelectIndex, dbId);
-                    try (ResultSet rs = pstmtSelect.executeQuery()) {
-                        while (rs.next()) {
-                            try {
-                                dbId = rs.getLong("db_id");
-                                currentBlock = BlockDb.loadBlock(con, rs, true);
-                                int curHeight = currentBlock.getHeight();
-                                if (scanAfter2ndClusterFromHeight > 0 && curHeight >= scanAfter2ndClusterFromHeight) {
-                                    doValidate = true;
+                while (nextBatch != null) {
+                    ScanBatch batch = nextBatch.get();
+                    // blocks are read and parsed in the background while the current batch is applied
+                    nextBatch = batch.blocks.size() < scanBatchSize ? null : networkService.submit(() -> loadScanBatch(fromHeight, batch.nextDbId));
+                    for (BlockImpl block : batch.blocks) {
+                        currentBlock = block;
+                        try {
+                            int curHeight = currentBlock.getHeight();
+                            if (scanAfter2ndClusterFromHeight > 0 && curHeight >= scanAfter2ndClusterFromHeight) {
+                                doValidate = true;
+                            }
+                            if (curHeight > 0) {
+                                if (currentBlock.getId() != currentBlockId || curHeight > blockchain.getHeight() + 1) {
+                                    throw new MetroException.NotValidException("Database blocks in the wrong order!");
                                 }
-                                if (curHeight > 0) {
-                                    currentBlock.loadTransactions();
-                                    if (currentBlock.getId() != currentBlockId || curHeight > blockchain.getHeight() + 1) {
-                                        throw new MetroException.NotValidException("Database blocks in the wrong order!");
+                                Map<TransactionType, Map<String, Integer>> duplicates = new HashMap<>();
+                                List<TransactionImpl> validPhasedTransactions = new ArrayList<>();
+                                List<TransactionImpl> invalidPhasedTransactions = new ArrayList<>();
+                                validatePhasedTransactions(blockchain.getHeight(), validPhasedTransactions, invalidPhasedTransactions, duplicates);
+                                if (doValidate && curHeight > 0) {
+                                    long curTime = Metro.getEpochTime();
+                                    validate(currentBlock, blockchain.getLastBlock(), blockchain.getLastKeyBlock(), curTime);
+                                    byte[] blockBytes = currentBlock.bytes();
+                                    JSONObject blockJSON = (JSONObject) JSONValue.parse(currentBlock.getJSONObject().toJSONString());
+                                    if (!Arrays.equals(blockBytes, BlockImpl.parseBlock(blockJSON, false).bytes())) {
+                                        throw new MetroException.NotValidException("Block JSON cannot be parsed back to the same block");
                                     }
-                                    Map<TransactionType, Map<String, Integer>> duplicates = new HashMap<>();
-                                    List<TransactionImpl> validPhasedTransactions = new ArrayList<>();
-                                    List<TransactionImpl> invalidPhasedTransactions = new ArrayList<>();
-                                    validatePhasedTransactions(blockchain.getHeight(), validPhasedTransactions, invalidPhasedTransactions, duplicates);
-                                    if (doValidate && curHeight > 0) {
-                                        long curTime = Metro.getEpochTime();
-                                        validate(currentBlock, blockchain.getLastBlock(), blockchain.getLastKeyBlock(), curTime);
-                                        byte[] blockBytes = currentBlock.bytes();
-                                        JSONObject blockJSON = (JSONObject) JSONValue.parse(currentBlock.getJSONObject().toJSONString());
-                                        if (!Arrays.equals(blockBytes, BlockImpl.parseBlock(blockJSON, false).bytes())) {
-                                            throw new MetroException.NotValidException("Block JSON cannot be parsed back to the same block");
+                                    validateTransactions(currentBlock, blockchain.getLastBlock(), curTime, duplicates, true);
+                                    for (TransactionImpl transaction : currentBlock.getTransactions()) {
+                                        byte[] transactionBytes = transaction.bytes();
+                                        if (!Arrays.equals(transactionBytes, TransactionImpl.newTransactionBuilder(transactionBytes).build().bytes())) {
+                                            throw new MetroException.NotValidException("Transaction bytes cannot be parsed back to the same transaction: "
+                                                    + transaction.getJSONObject().toJSONString());
                                         }
-                                        validateTransactions(currentBlock, blockchain.getLastBlock(), curTime, duplicates, true);
-                                        for (TransactionImpl transaction : currentBlock.getTransactions()) {
-                                            byte[] transactionBytes = transaction.bytes();
-                                            if (!Arrays.equals(transactionBytes, TransactionImpl.newTransactionBuilder(transactionBytes).build().bytes())) {
-                                                throw new MetroException.NotValidException("Transaction bytes cannot be parsed back to the same transaction: "
-                                                        + transaction.getJSONObject().toJSONString());
-                                            }
-                                            JSONObject transactionJSON = (JSONObject) JSONValue.parse(transaction.getJSONObject().toJSONString());
-                                            if (!Arrays.equals(transactionBytes, TransactionImpl.newTransactionBuilder(transactionJSON).build().bytes())) {
-                                                throw new MetroException.NotValidException("Transaction JSON cannot be parsed back to the same transaction: "
-                                                        + transaction.getJSONObject().toJSONString());
-                                            }
+                                        JSONObject transactionJSON = (JSONObject) JSONValue.parse(transaction.getJSONObject().toJSONString());
+                                        if (!Arrays.equals(transactionBytes, TransactionImpl.newTransactionBuilder(transactionJSON).build().bytes())) {
+                                            throw new MetroException.NotValidException("Transaction JSON cannot be parsed back to the same transaction: "
+                                                    + transaction.getJSONObject().toJSONString());
                                         }
                                     }
-                                    blockListeners.notify(currentBlock, Event.BEFORE_BLOCK_ACCEPT);
-                                    blockchain.setLastBlock(currentBlock);
-                                    accept(currentBlock, validPhasedTransactions, invalidPhasedTransactions, duplicates);
-                                    Db.db.clearCache();
-                                    Db.db.commitTransaction();
-                                    blockListeners.notify(currentBlock, Event.AFTER_BLOCK_ACCEPT);
                                 }
-                                currentBlockId = currentBlock.getNextBlockId();
-                            } catch (MetroException | RuntimeException e) {
-                                Db.db.rollbackTransaction();
-                                Logger.logDebugMessage(e.toString(), e);
-                                Logger.logDebugMessage("Applying block " + Long.toUnsignedString(currentBlockId) + " at height "
-                                        + (currentBlock == null ? 0 : currentBlock.getHeight()) + " failed, deleting from database");
-                                BlockImpl lastBlock = BlockDb.deleteBlocksFrom(currentBlockId);
-                                blockchain.setLastBlock(lastBlock);
-                                popOffTo(lastBlock);
-                                break outer;
+                                blockListeners.notify(currentBlock, Event.BEFORE_BLOCK_ACCEPT);
+                                blockchain.setLastBlock(currentBlock);
+                                accept(currentBlock, validPhasedTransactions, invalidPhasedTransactions, duplicates);
+                                if (currentBlock.isKeyBlock()) {
+                                    pstmtCheckpoint.setInt(1, curHeight + 1);
+                                    pstmtCheckpoint.executeUpdate();
+                                }
+                                Db.db.clearCache();
+                                Db.db.commitTransaction();
+                                blockListeners.notify(currentBlock, Event.AFTER_BLOCK_ACCEPT);
                             }
-                            blockListeners.notify(currentBlock, Event.BLOCK_SCANNED);
-                            hasMore = true;
+                            currentBlockId = currentBlock.getNextBlockId();
+                        } catch (MetroException | RuntimeException e) {
+                            Db.db.rollbackTransaction();
+                            Logger.logDebugMessage(e.toString(), e);
+                            Logger.logDebugMessage("Applying block " + Long.toUnsignedString(currentBlockId) + " at height "
+                                    + (currentBlock == null ? 0 : currentBlock.getHeight()) + " failed, deleting from database");
+                            BlockImpl lastBlock = BlockDb.deleteBlocksFrom(currentBlockId);
+                            blockchain.setLastBlock(lastBlock);
+                            popOffTo(lastBlock);
+                            break outer;
                         }
-                        dbId = dbId + 1;
+                        blockListeners.notify(currentBlock, Event.BLOCK_SCANNED);
                     }
                 }
-                if (height == 0) {
+                if (fullScan) {
                     for (DerivedDbTable table : derivedTables) {
                         table.createSearchIndex(con);
                     }
+                    FullTextTrigger.reindex(con);
                 }
                 pstmtDone.executeUpdate();
                 Db.db.commitTransaction();
                 blockListeners.notify(currentBlock, Event.RESCAN_END);
                 Logger.logMessage("...done at height " + blockchain.getHeight());
-                if (height == 0 && validate) {
+                if (fullScan && validate) {
                     Logger.logMessage("SUCCESSFULLY PERFORMED FULL RESCAN WITH VALIDATION");
                 }
                 lastRestoreTime = 0;
-            } catch (SQLException e) {
+            } catch (SQLException | ExecutionException e) {
+                throw new RuntimeException(e.toString(), e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
                 throw new RuntimeException(e.toString(), e);
             } finally {
+                if (nextBatch != null) {
+                    nextBatch.cancel(true);
+                }
                 isScanning = false;
             }
         } finally {
@@ -2377,6 +2642,11 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
     }
 
     public BlockImpl prepareKeyBlockTemplate(List<TransactionImpl> transactions) {
+        return prepareKeyBlockTemplate(transactions, null);
+    }
+
+    @Override
+    public BlockImpl prepareKeyBlockTemplate(List<TransactionImpl> transactions, Long coinbaseNonce) {
         blockchain.readLock();
         try {
             BlockImpl previousBlock = blockchain.getLastBlock();
@@ -2397,7 +2667,7 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
             } else {
                 blockTransactions.addAll(prepareKeyBlockTransactions(previousBlock));
             }
-            TransactionImpl coinbase = buildCoinbase(generatorPublicKey, blockTimestamp, blockTransactions, true, keyHeight, null);
+            TransactionImpl coinbase = buildCoinbase(generatorPublicKey, blockTimestamp, blockTransactions, true, keyHeight, coinbaseNonce);
             blockTransactions.set(0, coinbase);
 
             List<byte[]> txids = new ArrayList<>();
@@ -2530,53 +2800,12 @@ public final class BlockchainProcessorImpl implements BlockchainProcessor {
     private byte[] getCurrentForgersMerkleBranches() {
         Metro.getBlockchain().readLock();
         try {
-            MessageDigest mdg = HASH_FUNCTION.messageDigest();
-            byte[] forgersMerkle = new byte[HASH_SIZE * 2];
-            byte[] forgersMerkleVotersBranch = new byte[0];
-            // TODO #211
-            List<byte[]> outfeeders = new ArrayList<>();
-            try (Connection con = Db.db.getConnection();
-                 PreparedStatement pstmt = con.prepareStatement(SELECT_FORGERS_SQL)) {
-                Block lastBlock = Metro.getBlockchain().getLastBlock();
-                if (!lastBlock.isKeyBlock()) {
-                    throw new IllegalStateException("On fast blocks forgersMerkle is not defined, call me when you are at key block!");
-                }
-                int height = lastBlock.getHeight();
-                pstmt.setInt(1, Metro.getBlockchain().getGuaranteedBalanceHeight(height));
-                pstmt.setInt(2, height);
-                pstmt.setInt(3, Math.max(0, height - Consensus.FORGER_ACTIVITY_SNAPSHOT_INTERVAL));
-                pstmt.setInt(4, height);
-
-                try (ResultSet rs = pstmt.executeQuery()) {
-                    while (rs.next()) {
-                        int amountMTR = (int)(rs.getLong("effective")/Constants.ONE_MTR);
-                        if (amountMTR >= Consensus.MIN_FORKVOTING_AMOUNT_MTR) {
-                            byte[] publicKey = rs.getBytes("public_key");
-                            mdg.update(forgersMerkleVotersBranch);
-                            mdg.update(publicKey);
-                            forgersMerkleVotersBranch = mdg.digest(new byte[] {
-                                    (byte)(amountMTR >> 24),
-                                    (byte)(amountMTR >> 16),
-                                    (byte)(amountMTR >> 8),
-                                    (byte)amountMTR,
-                            });
-                            // TODO #211
-                            outfeeders.add(publicKey);
-                        }
-                    }
-                }
-            } catch (SQLException e) {
-                throw new RuntimeException(e.toString(), e);
-            }
-
-            if (forgersMerkleVotersBranch.length > 0) {
-                // TODO #211 these should be not just available in effective balance, they need to be frozen!
-                List<byte[]> tree = BitcoinJUtils.buildMerkleTree(outfeeders);
-                byte[] forgersMerkleOutfeedersBranch = tree.get(tree.size() - 1);
-                System.arraycopy(forgersMerkleVotersBranch, 0, forgersMerkle, 0, HASH_SIZE);
-                System.arraycopy(forgersMerkleOutfeedersBranch, 0, forgersMerkle, HASH_SIZE, HASH_SIZE);
+            Block lastBlock = Metro.getBlockchain().getLastBlock();
+            if (!lastBlock.isKeyBlock()) {
+                throw new IllegalStateException("On fast blocks forgersMerkle is not defined, call me when you are at key block!");
             }
-            return forgersMerkle;
+            // TODO #211 these should be not just available in effective balance, they need to be frozen!
+            return forgerSet.getMerkleBranches(lastBlock.getHeight());
         } finally {
             Metro.getBlockchain().readUnlock();
         }
@@ -35,6 +35,7 @@ public final class Db {
             .loginTimeout(Metro.getIntProperty("metro.dbLoginTimeout"))
             .defaultLockTimeout(Metro.getIntProperty("metro.dbDefaultLockTimeout") * 1000)
             .maxMemoryRows(Metro.getIntProperty("metro.dbMaxMemoryRows"))
+            .statementCacheSize(Metro.getIntProperty("metro.dbStatementCacheSize"))
     );
 
     public static void init() {
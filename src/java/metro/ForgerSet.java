@@ -0,0 +1,293 @@
+package metro;
+
+import metro.util.BitcoinJUtils;
+import metro.util.Convert;
+import metro.util.Logger;
+
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static metro.Consensus.HASH_FUNCTION;
+import static metro.util.Convert.HASH_SIZE;
+
+/**
+ * Forgers of the last key block, as selected by {@link BlockchainProcessorImpl#SELECT_FORGERS_SQL}, kept in memory.
+ * <p>
+ * On each key block only the forgers affected by changes since the previous key block are selected again: accounts
+ * updated or given a public key, guaranteed balance additions leaving the window and forging activity leaving the
+ * {@link Consensus#FORGER_ACTIVITY_SNAPSHOT_INTERVAL}. The voters branch hash chain is recomputed from the first
+ * changed forger only. All forgers are selected again after a pop off or rescan, and every
+ * {@code metro.forgersFullCheckInterval} key blocks, when the result is compared to the incrementally maintained one.
+ */
+final class ForgerSet {
+
+    private static final String SELECT_SQL = "SELECT S.super_id, PK.public_key, S.effective, S.forged_height FROM (" +
+            "SELECT IFNULL(A.active_lessee_id,A.id) super_id, SUM(CASEWHEN(A.active_lessee_id IS NULL, 1, 0)) generator, " +
+            "SUM(A.balance) - SUM(IFNULL(B.additions,0)) effective, MAX(CASEWHEN(A.active_lessee_id IS NULL, A.last_forged_height, 0)) forged_height FROM %s " +
+            "LEFT JOIN (SELECT account_id, SUM (additions) AS additions FROM account_guaranteed_balance WHERE height > ? AND height <= ? AND NOT coinbase GROUP BY account_id) B " +
+            "on (A.id = B.account_id) " +
+            "WHERE A.latest AND ((A.last_forged_height > ? AND A.last_forged_height <= ?) OR A.active_lessee_id IS NOT NULL) GROUP BY super_id HAVING generator > 0) S " +
+            "JOIN public_key PK ON PK.account_id = S.super_id WHERE PK.latest";
+    static final String SELECT_ALL_SQL = String.format(SELECT_SQL, "account A");
+    static final String SELECT_SOME_SQL = String.format(SELECT_SQL, "(SELECT A.* FROM account A, TABLE (id BIGINT=?) T " +
+            "WHERE A.id = T.id AND A.latest AND A.active_lessee_id IS NULL " +
+            "UNION ALL SELECT A.* FROM account A, TABLE (id BIGINT=?) T WHERE A.active_lessee_id = T.id AND A.latest) A");
+
+    private static final Comparator<Forger> FORGER_ORDER = Comparator.comparingLong((Forger forger) -> forger.effective)
+            .thenComparingLong(forger -> forger.superId);
+
+    private static final class Forger {
+
+        private final long superId;
+        private final byte[] publicKey;
+        private final long effective;
+        private final int forgedHeight;
+
+        private Forger(ResultSet rs) throws SQLException {
+            this.superId = rs.getLong("super_id");
+            this.publicKey = rs.getBytes("public_key");
+            this.effective = rs.getLong("effective");
+            this.forgedHeight = rs.getInt("forged_height");
+        }
+
+        private int getAmountMTR() {
+            return (int) (effective / Constants.ONE_MTR);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Forger)) {
+                return false;
+            }
+            Forger forger = (Forger) o;
+            return superId == forger.superId && effective == forger.effective && forgedHeight == forger.forgedHeight
+                    && Arrays.equals(publicKey, forger.publicKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(superId);
+        }
+    }
+
+    private final int fullCheckInterval = Metro.getIntProperty("metro.forgersFullCheckInterval");
+
+    private final Map<Long, Forger> forgers = new HashMap<>();
+    /** Active lessee of each leasing account */
+    private final Map<Long, Long> lessees = new HashMap<>();
+    /** Height of the key block the forgers were selected at, -1 if they have to be selected again */
+    private int height = -1;
+    private int guaranteedBalanceHeight;
+    private int activityHeight;
+    private int updatesSinceCheck;
+
+    /** Voters sorted by effective balance and the voters branch after each of them */
+    private List<Forger> voters = new ArrayList<>();
+    private List<byte[]> votersBranches = new ArrayList<>();
+    private byte[] outfeedersBranch;
+
+    /**
+     * Must be called when the derived tables are rolled back
+     */
+    synchronized void invalidate() {
+        height = -1;
+    }
+
+    /**
+     * @param keyBlockHeight height of the last block, which must be a key block
+     * @return voters branch and outfeeders branch of the forgers merkle
+     */
+    synchronized byte[] getMerkleBranches(int keyBlockHeight) {
+        int newGuaranteedBalanceHeight = Metro.getBlockchain().getGuaranteedBalanceHeight(keyBlockHeight);
+        boolean reload = height < 0 || height >= keyBlockHeight || height < Metro.getBlockchainProcessor().getLowestPossibleHeightForRollback();
+        try (Connection con = Db.db.getConnection()) {
+            update(con, keyBlockHeight, newGuaranteedBalanceHeight, reload);
+        } catch (SQLException e) {
+            height = -1;
+            throw new RuntimeException(e.toString(), e);
+        }
+        return computeBranches();
+    }
+
+    private void update(Connection con, int keyBlockHeight, int newGuaranteedBalanceHeight, boolean reload) throws SQLException {
+        int newActivityHeight = Math.max(0, keyBlockHeight - Consensus.FORGER_ACTIVITY_SNAPSHOT_INTERVAL);
+        if (reload) {
+            selectAll(con, keyBlockHeight, newGuaranteedBalanceHeight, newActivityHeight, forgers);
+            updatesSinceCheck = 0;
+        } else {
+            selectChanged(con, keyBlockHeight, newGuaranteedBalanceHeight, newActivityHeight);
+            if (fullCheckInterval > 0 && ++updatesSinceCheck >= fullCheckInterval) {
+                updatesSinceCheck = 0;
+                Map<Long, Forger> expected = new HashMap<>();
+                selectAll(con, keyBlockHeight, newGuaranteedBalanceHeight, newActivityHeight, expected);
+                if (!expected.equals(forgers)) {
+                    Logger.logErrorMessage("Incrementally updated forgers differ from selected at height " + keyBlockHeight);
+                    forgers.clear();
+                    forgers.putAll(expected);
+                }
+            }
+        }
+        height = keyBlockHeight;
+        guaranteedBalanceHeight = newGuaranteedBalanceHeight;
+        activityHeight = newActivityHeight;
+    }
+
+    private void selectAll(Connection con, int keyBlockHeight, int newGuaranteedBalanceHeight, int newActivityHeight, Map<Long, Forger> result) throws SQLException {
+        result.clear();
+        try (PreparedStatement pstmt = con.prepareStatement(SELECT_ALL_SQL)) {
+            setHeights(pstmt, 0, keyBlockHeight, newGuaranteedBalanceHeight, newActivityHeight);
+            select(pstmt, result);
+        }
+        lessees.clear();
+        try (PreparedStatement pstmt = con.prepareStatement("SELECT id, active_lessee_id FROM account WHERE latest AND active_lessee_id IS NOT NULL");
+             ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                lessees.put(rs.getLong("id"), rs.getLong("active_lessee_id"));
+            }
+        }
+    }
+
+    private void selectChanged(Connection con, int keyBlockHeight, int newGuaranteedBalanceHeight, int newActivityHeight) throws SQLException {
+        Set<Long> accounts = new HashSet<>();
+        selectIds(con, "SELECT id FROM account WHERE height > ? AND height <= ?", height, keyBlockHeight, accounts);
+        selectIds(con, "SELECT account_id FROM public_key WHERE height > ? AND height <= ?", height, keyBlockHeight, accounts);
+        // additions leaving and entering the guaranteed balance window
+        selectIds(con, "SELECT account_id FROM account_guaranteed_balance WHERE height > ? AND height <= ? AND NOT coinbase",
+                guaranteedBalanceHeight, newGuaranteedBalanceHeight, accounts);
+        selectIds(con, "SELECT account_id FROM account_guaranteed_balance WHERE height > ? AND height <= ? AND NOT coinbase",
+                Math.max(height, newGuaranteedBalanceHeight), keyBlockHeight, accounts);
+        Set<Long> superIds = new HashSet<>(accounts);
+        for (Forger forger : forgers.values()) {
+            if (forger.forgedHeight <= newActivityHeight && forger.forgedHeight > activityHeight) {
+                superIds.add(forger.superId);
+            }
+        }
+        if (superIds.isEmpty()) {
+            return;
+        }
+        // a changed lessor changes the forgers it leased to before and now
+        for (Long accountId : accounts) {
+            Long lesseeId = lessees.remove(accountId);
+            if (lesseeId != null) {
+                superIds.add(lesseeId);
+            }
+        }
+        if (!accounts.isEmpty()) {
+            try (PreparedStatement pstmt = con.prepareStatement("SELECT A.id, A.active_lessee_id FROM account A, TABLE (id BIGINT=?) T "
+                    + "WHERE A.id = T.id AND A.latest AND A.active_lessee_id IS NOT NULL")) {
+                pstmt.setObject(1, accounts.toArray(new Long[0]));
+                try (ResultSet rs = pstmt.executeQuery()) {
+                    while (rs.next()) {
+                        long lesseeId = rs.getLong("active_lessee_id");
+                        lessees.put(rs.getLong("id"), lesseeId);
+                        superIds.add(lesseeId);
+                    }
+                }
+            }
+        }
+        forgers.keySet().removeAll(superIds);
+        try (PreparedStatement pstmt = con.prepareStatement(SELECT_SOME_SQL)) {
+            Long[] ids = superIds.toArray(new Long[0]);
+            pstmt.setObject(1, ids);
+            pstmt.setObject(2, ids);
+            setHeights(pstmt, 2, keyBlockHeight, newGuaranteedBalanceHeight, newActivityHeight);
+            select(pstmt, forgers);
+        }
+    }
+
+    private static void setHeights(PreparedStatement pstmt, int index, int keyBlockHeight, int newGuaranteedBalanceHeight,
+                                   int newActivityHeight) throws SQLException {
+        pstmt.setInt(++index, newGuaranteedBalanceHeight);
+        pstmt.setInt(++index, keyBlockHeight);
+        pstmt.setInt(++index, newActivityHeight);
+        pstmt.setInt(++index, keyBlockHeight);
+    }
+
+    private static void select(PreparedStatement pstmt, Map<Long, Forger> result) throws SQLException {
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                Forger forger = new Forger(rs);
+                result.put(forger.superId, forger);
+            }
+        }
+    }
+
+    private static void selectIds(Connection con, String sql, int fromHeight, int toHeight, Set<Long> result) throws SQLException {
+        try (PreparedStatement pstmt = con.prepareStatement(sql)) {
+            pstmt.setInt(1, fromHeight);
+            pstmt.setInt(2, toHeight);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    result.add(rs.getLong(1));
+                }
+            }
+        }
+    }
+
+    private byte[] computeBranches() {
+        List<Forger> newVoters = new ArrayList<>();
+        for (Forger forger : forgers.values()) {
+            if (forger.getAmountMTR() >= Consensus.MIN_FORKVOTING_AMOUNT_MTR) {
+                newVoters.add(forger);
+            }
+        }
+        newVoters.sort(FORGER_ORDER);
+        int unchanged = 0;
+        while (unchanged < Math.min(voters.size(), newVoters.size()) && voters.get(unchanged).equals(newVoters.get(unchanged))) {
+            unchanged++;
+        }
+        if (unchanged < voters.size() || unchanged < newVoters.size() || outfeedersBranch == null) {
+            List<byte[]> newVotersBranches = new ArrayList<>(votersBranches.subList(0, unchanged));
+            MessageDigest mdg = HASH_FUNCTION.messageDigest();
+            byte[] votersBranch = unchanged == 0 ? new byte[0] : newVotersBranches.get(unchanged - 1);
+            List<byte[]> outfeeders = new ArrayList<>();
+            for (int i = 0; i < newVoters.size(); i++) {
+                Forger voter = newVoters.get(i);
+                if (i >= unchanged) {
+                    int amountMTR = voter.getAmountMTR();
+                    mdg.update(votersBranch);
+                    mdg.update(voter.publicKey);
+                    votersBranch = mdg.digest(new byte[] {
+                            (byte)(amountMTR >> 24),
+                            (byte)(amountMTR >> 16),
+                            (byte)(amountMTR >> 8),
+                            (byte)amountMTR,
+                    });
+                    newVotersBranches.add(votersBranch);
+                }
+                outfeeders.add(voter.publicKey);
+            }
+            voters = newVoters;
+            votersBranches = newVotersBranches;
+            if (outfeeders.isEmpty()) {
+                outfeedersBranch = new byte[0];
+            } else {
+                List<byte[]> tree = BitcoinJUtils.buildMerkleTree(outfeeders);
+                outfeedersBranch = tree.get(tree.size() - 1);
+            }
+        }
+        byte[] forgersMerkle = new byte[HASH_SIZE * 2];
+        if (!voters.isEmpty()) {
+            System.arraycopy(votersBranches.get(voters.size() - 1), 0, forgersMerkle, 0, HASH_SIZE);
+            System.arraycopy(outfeedersBranch, 0, forgersMerkle, HASH_SIZE, HASH_SIZE);
+        }
+        return forgersMerkle;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ForgerSet at height " + height + ", " + forgers.size() + " forgers, " + voters.size() + " voters, voters branch "
+                + (voters.isEmpty() ? "" : Convert.toHexString(votersBranches.get(voters.size() - 1)));
+    }
+}
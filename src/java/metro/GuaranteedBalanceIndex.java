@@ -0,0 +1,239 @@
+package metro;
+
+import metro.db.TransactionalDb;
+import metro.util.BoundedCache;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In memory copy of the account_guaranteed_balance rows of recently used accounts, as running sums by height, so
+ * that the additions to an account balance in a range of heights are found by binary search instead of a SUM query.
+ * <p>
+ * Accounts are loaded from the database on first use and then kept up to date by {@link #add}, {@link #rollback}
+ * and {@link #trim}, called together with the corresponding changes of the table. If a database transaction which
+ * changed the index is rolled back, the whole index is cleared and reloaded on demand.
+ * <p>
+ * Threads reading a snapshot do not take the blockchain lock, so they only keep an account they loaded if no block
+ * was being applied or rolled back meanwhile, as the database does not show them the uncommitted additions.
+ */
+final class GuaranteedBalanceIndex {
+
+    /**
+     * Additions to the balance of one account at increasing heights
+     */
+    private static final class Series {
+
+        private int[] heights = new int[4];
+        /** Running sum of the additions up to and including each height */
+        private long[] sums = new long[4];
+        private int size;
+
+        private boolean add(int height, long amountMQT) {
+            if (size > 0 && heights[size - 1] == height) {
+                sums[size - 1] = Math.addExact(sums[size - 1], amountMQT);
+                return true;
+            }
+            if (size > 0 && heights[size - 1] > height) {
+                return false;
+            }
+            if (size == heights.length) {
+                heights = Arrays.copyOf(heights, size * 2);
+                sums = Arrays.copyOf(sums, size * 2);
+            }
+            heights[size] = height;
+            sums[size] = Math.addExact(size > 0 ? sums[size - 1] : 0, amountMQT);
+            size++;
+            return true;
+        }
+
+        /**
+         * @return number of additions at heights up to and including this one
+         */
+        private int countTo(int height) {
+            int index = Arrays.binarySearch(heights, 0, size, height);
+            return index >= 0 ? index + 1 : -index - 1;
+        }
+
+        private long sumTo(int height) {
+            int count = countTo(height);
+            return count > 0 ? sums[count - 1] : 0;
+        }
+
+        private void rollback(int height) {
+            size = countTo(height);
+        }
+
+        /**
+         * Remove the additions at heights from 0 to height - 1, additions at negative heights are never trimmed
+         */
+        private void trim(int height) {
+            int from = countTo(-1);
+            int to = countTo(height - 1);
+            if (to <= from) {
+                return;
+            }
+            long previous = from > 0 ? sums[from - 1] : 0;
+            long removed = sums[to - 1] - previous;
+            for (int i = to; i < size; i++) {
+                sums[i] -= removed;
+            }
+            System.arraycopy(heights, to, heights, from, size - to);
+            System.arraycopy(sums, to, sums, from, size - to);
+            size -= to - from;
+        }
+    }
+
+    private static final class AccountAdditions {
+
+        private final Series additions = new Series();
+        private final Series coinbaseAdditions = new Series();
+
+        private Series get(boolean coinbase) {
+            return coinbase ? coinbaseAdditions : additions;
+        }
+    }
+
+    private static final TransactionalDb db = Db.db;
+
+    private static final BoundedCache<Long, AccountAdditions> cache = new BoundedCache<>("guaranteedBalance",
+            Metro.getIntProperty("metro.guaranteedBalanceCacheSize"));
+
+    /** Incremented on each change of the index and at the end of the transaction of the changes */
+    private static final AtomicLong changes = new AtomicLong();
+    /** Whether the index has changes which are not committed to the database yet */
+    private static volatile boolean uncommitted;
+
+    private static final TransactionalDb.TransactionCallback clearOnRollback = new TransactionalDb.TransactionCallback() {
+        @Override
+        public void commit() {
+            uncommitted = false;
+            changes.incrementAndGet();
+        }
+
+        @Override
+        public void rollback() {
+            cache.clear();
+            uncommitted = false;
+            changes.incrementAndGet();
+        }
+    };
+
+    /**
+     * @return sum of the additions to the account balance at heights greater than fromHeight and up to toHeight
+     */
+    static long getAdditions(long accountId, boolean coinbase, int fromHeight, int toHeight) {
+        if (toHeight <= fromHeight) {
+            return 0;
+        }
+        Metro.getBlockchain().snapshotReadLock();
+        try {
+            AccountAdditions accountAdditions = cache.get(accountId);
+            if (accountAdditions == null) {
+                if (Metro.getBlockchain().isSnapshot()) {
+                    long changeCount = changes.get();
+                    boolean committed = !uncommitted;
+                    accountAdditions = load(accountId);
+                    if (committed) {
+                        cache.put(accountId, accountAdditions);
+                        if (changes.get() != changeCount) {
+                            cache.remove(accountId);
+                        }
+                    }
+                } else {
+                    accountAdditions = load(accountId);
+                    cache.put(accountId, accountAdditions);
+                }
+            }
+            synchronized (accountAdditions) {
+                Series series = accountAdditions.get(coinbase);
+                return series.sumTo(toHeight) - series.sumTo(fromHeight);
+            }
+        } finally {
+            Metro.getBlockchain().snapshotReadUnlock();
+        }
+    }
+
+    static void add(long accountId, boolean coinbase, int height, long amountMQT) {
+        changed();
+        AccountAdditions accountAdditions = cache.get(accountId);
+        if (accountAdditions == null) {
+            return;
+        }
+        synchronized (accountAdditions) {
+            if (!accountAdditions.get(coinbase).add(height, amountMQT)) {
+                cache.remove(accountId);
+            }
+        }
+    }
+
+    static void rollback(int height) {
+        changed();
+        cache.forEachValue(accountAdditions -> {
+            synchronized (accountAdditions) {
+                accountAdditions.additions.rollback(height);
+                accountAdditions.coinbaseAdditions.rollback(height);
+            }
+        });
+    }
+
+    /**
+     * Drop the additions below this height, as deleted from the table
+     */
+    static void trim(int height) {
+        changed();
+        cache.forEachValue(accountAdditions -> {
+            synchronized (accountAdditions) {
+                accountAdditions.additions.trim(height);
+                accountAdditions.coinbaseAdditions.trim(height);
+            }
+        });
+    }
+
+    static void clear() {
+        cache.clear();
+    }
+
+    static BoundedCache<?, ?> getCache() {
+        return cache;
+    }
+
+    private static void changed() {
+        if (db.isInTransaction()) {
+            uncommitted = true;
+            db.registerCallback(clearOnRollback);
+        }
+        changes.incrementAndGet();
+    }
+
+    private static void registerCallback() {
+        if (db.isInTransaction()) {
+            db.registerCallback(clearOnRollback);
+        }
+    }
+
+    private static AccountAdditions load(long accountId) {
+        registerCallback();
+        AccountAdditions accountAdditions = new AccountAdditions();
+        try (Connection con = db.getConnection();
+             PreparedStatement pstmt = con.prepareStatement("SELECT height, additions, coinbase FROM account_guaranteed_balance "
+                     + "WHERE account_id = ? ORDER BY height")) {
+            pstmt.setLong(1, accountId);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    accountAdditions.get(rs.getBoolean("coinbase")).add(rs.getInt("height"), rs.getLong("additions"));
+                }
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e.toString(), e);
+        }
+        return accountAdditions;
+    }
+
+    private GuaranteedBalanceIndex() {}
+
+}
@@ -335,6 +335,7 @@ public final class Metro {
         Logger.logShutdownMessage("Shutting down...");
         AddOns.shutdown();
         API.shutdown();
+        Daemon.shutdown();
         FundingMonitor.shutdown();
         ThreadPool.shutdown();
         BlockchainProcessorImpl.getInstance().shutdown();
@@ -451,6 +451,8 @@ class MetroDbVersion extends DbVersion {
             case 160:
                 apply("DROP INDEX IF EXISTS block_timestamp_idx");
             case 161:
+                apply("ALTER TABLE scan ADD COLUMN IF NOT EXISTS checkpoint INT NOT NULL DEFAULT 0");
+            case 162:
                 return;
             default:
                 throw new RuntimeException("Blockchain database inconsistent with code, at update " + nextUpdate
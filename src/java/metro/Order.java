@@ -22,11 +22,15 @@ import metro.db.DbClause;
 import metro.db.DbIterator;
 import metro.db.DbKey;
 import metro.db.VersionedEntityDbTable;
+import metro.util.BoundedCache;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
 
 public abstract class Order {
 
@@ -67,6 +71,16 @@ public abstract class Order {
         Bid.init();
     }
 
+    /**
+     * @return order book caches, for monitoring
+     */
+    static List<BoundedCache<?, ?>> getCaches() {
+        List<BoundedCache<?, ?>> caches = new ArrayList<>();
+        caches.add(Ask.askOrderBook.getCache());
+        caches.add(Bid.bidOrderBook.getCache());
+        return caches;
+    }
+
 
     private final long id;
     private final long accountId;
@@ -100,6 +114,17 @@ public abstract class Order {
         this.transactionHeight = rs.getInt("transaction_height");
     }
 
+    private Order(Order order) {
+        this.id = order.id;
+        this.accountId = order.accountId;
+        this.assetId = order.assetId;
+        this.priceMQT = order.priceMQT;
+        this.quantityQNT = order.quantityQNT;
+        this.creationHeight = order.creationHeight;
+        this.transactionIndex = order.transactionIndex;
+        this.transactionHeight = order.transactionHeight;
+    }
+
     private void save(Connection con, String table) throws SQLException {
         try (PreparedStatement pstmt = con.prepareStatement("MERGE INTO " + table + " (id, account_id, asset_id, "
                 + "price, quantity, creation_height, transaction_index, transaction_height, height, latest) KEY (id, height) VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, TRUE)")) {
@@ -160,24 +185,12 @@ public abstract class Order {
         this.quantityQNT = quantityQNT;
     }
 
-    /*
-    private int compareTo(Order o) {
-        if (height < o.height) {
-            return -1;
-        } else if (height > o.height) {
-            return 1;
-        } else {
-            if (id < o.id) {
-                return -1;
-            } else if (id > o.id) {
-                return 1;
-            } else {
-                return 0;
-            }
-        }
-
-    }
-    */
+    /**
+     * Priority of orders at the same price, same as the order of the sorted order queries
+     */
+    private static final Comparator<Order> timeComparator = Comparator.comparingInt(Order::getHeight)
+            .thenComparingInt(Order::getTransactionHeight).thenComparingInt(Order::getTransactionIndex)
+            .thenComparingLong(Order::getId);
 
     public static final class Ask extends Order {
 
@@ -201,6 +214,18 @@ public abstract class Order {
                 ask.save(con, table);
             }
 
+            @Override
+            public void rollback(int height) {
+                super.rollback(height);
+                askOrderBook.clear();
+            }
+
+            @Override
+            public void truncate() {
+                super.truncate();
+                askOrderBook.clear();
+            }
+
             @Override
             protected String defaultSort() {
                 return " ORDER BY creation_height DESC ";
@@ -208,6 +233,10 @@ public abstract class Order {
 
         };
 
+        private static final OrderBook<Ask> askOrderBook = new OrderBook<>("ask_order",
+                Comparator.comparingLong(Order::getPriceMQT).thenComparing(timeComparator), Ask::new,
+                (con, rs) -> new Ask(rs, askOrderDbKeyFactory.newKey(rs)));
+
         public static int getCount() {
             return askOrderTable.getCount();
         }
@@ -238,7 +267,25 @@ public abstract class Order {
                     " ORDER BY price ASC, creation_height ASC, transaction_height ASC, transaction_index ASC ");
         }
 
+        /**
+         * Same as {@link #getSortedOrders}, from the order book in memory if possible
+         */
+        public static List<Ask> getOrderBook(long assetId, int from, int to) {
+            List<Ask> orders = askOrderBook.getOrders(assetId, from, to);
+            if (orders == null) {
+                orders = new ArrayList<>();
+                try (DbIterator<Ask> iterator = getSortedOrders(assetId, from, to)) {
+                    iterator.forEach(orders::add);
+                }
+            }
+            return orders;
+        }
+
         private static Ask getNextOrder(long assetId) {
+            if (OrderBook.isEnabled()) {
+                long orderId = askOrderBook.getBestOrderId(assetId);
+                return orderId == 0 ? null : askOrderTable.get(askOrderDbKeyFactory.newKey(orderId));
+            }
             try (Connection con = Db.db.getConnection();
                  PreparedStatement pstmt = con.prepareStatement("SELECT * FROM ask_order WHERE asset_id = ? "
                          + "AND latest = TRUE ORDER BY price ASC, creation_height ASC, transaction_height ASC, transaction_index ASC LIMIT 1")) {
@@ -254,11 +301,15 @@ public abstract class Order {
         static void addOrder(Transaction transaction, Attachment.ColoredCoinsAskOrderPlacement attachment) {
             Ask order = new Ask(transaction, attachment);
             askOrderTable.insert(order);
+            askOrderBook.put(order);
             matchOrders(attachment.getAssetId());
         }
 
         static void removeOrder(long orderId) {
-            askOrderTable.delete(getAskOrder(orderId));
+            Ask order = getAskOrder(orderId);
+            if (askOrderTable.delete(order)) {
+                askOrderBook.remove(order);
+            }
         }
 
         static void init() {}
@@ -276,6 +327,11 @@ public abstract class Order {
             this.dbKey = dbKey;
         }
 
+        private Ask(Ask ask) {
+            super(ask);
+            this.dbKey = ask.dbKey;
+        }
+
         private void save(Connection con, String table) throws SQLException {
             super.save(con, table);
         }
@@ -284,27 +340,16 @@ public abstract class Order {
             super.setQuantityQNT(quantityQNT);
             if (quantityQNT > 0) {
                 askOrderTable.insert(this);
+                askOrderBook.put(this);
             } else if (quantityQNT == 0) {
                 askOrderTable.delete(this);
+                askOrderBook.remove(this);
             } else {
                 throw new IllegalArgumentException("Negative quantity: " + quantityQNT
                         + " for order: " + Long.toUnsignedString(getId()));
             }
         }
 
-        /*
-        @Override
-        public int compareTo(Ask o) {
-            if (this.getPriceMQT() < o.getPriceMQT()) {
-                return -1;
-            } else if (this.getPriceMQT() > o.getPriceMQT()) {
-                return 1;
-            } else {
-                return super.compareTo(o);
-            }
-        }
-        */
-
     }
 
     public static final class Bid extends Order {
@@ -330,6 +375,18 @@ public abstract class Order {
                 bid.save(con, table);
             }
 
+            @Override
+            public void rollback(int height) {
+                super.rollback(height);
+                bidOrderBook.clear();
+            }
+
+            @Override
+            public void truncate() {
+                super.truncate();
+                bidOrderBook.clear();
+            }
+
             @Override
             protected String defaultSort() {
                 return " ORDER BY creation_height DESC ";
@@ -337,6 +394,10 @@ public abstract class Order {
 
         };
 
+        private static final OrderBook<Bid> bidOrderBook = new OrderBook<>("bid_order",
+                Comparator.comparingLong(Order::getPriceMQT).reversed().thenComparing(timeComparator), Bid::new,
+                (con, rs) -> new Bid(rs, bidOrderDbKeyFactory.newKey(rs)));
+
         public static int getCount() {
             return bidOrderTable.getCount();
         }
@@ -367,7 +428,25 @@ public abstract class Order {
                     " ORDER BY price DESC, creation_height ASC, transaction_height ASC, transaction_index ASC ");
         }
 
+        /**
+         * Same as {@link #getSortedOrders}, from the order book in memory if possible
+         */
+        public static List<Bid> getOrderBook(long assetId, int from, int to) {
+            List<Bid> orders = bidOrderBook.getOrders(assetId, from, to);
+            if (orders == null) {
+                orders = new ArrayList<>();
+                try (DbIterator<Bid> iterator = getSortedOrders(assetId, from, to)) {
+                    iterator.forEach(orders::add);
+                }
+            }
+            return orders;
+        }
+
         private static Bid getNextOrder(long assetId) {
+            if (OrderBook.isEnabled()) {
+                long orderId = bidOrderBook.getBestOrderId(assetId);
+                return orderId == 0 ? null : bidOrderTable.get(bidOrderDbKeyFactory.newKey(orderId));
+            }
             try (Connection con = Db.db.getConnection();
                  PreparedStatement pstmt = con.prepareStatement("SELECT * FROM bid_order WHERE asset_id = ? "
                          + "AND latest = TRUE ORDER BY price DESC, creation_height ASC, transaction_height ASC, transaction_index ASC LIMIT 1")) {
@@ -383,11 +462,15 @@ public abstract class Order {
         static void addOrder(Transaction transaction, Attachment.ColoredCoinsBidOrderPlacement attachment) {
             Bid order = new Bid(transaction, attachment);
             bidOrderTable.insert(order);
+            bidOrderBook.put(order);
             matchOrders(attachment.getAssetId());
         }
 
         static void removeOrder(long orderId) {
-            bidOrderTable.delete(getBidOrder(orderId));
+            Bid order = getBidOrder(orderId);
+            if (bidOrderTable.delete(order)) {
+                bidOrderBook.remove(order);
+            }
         }
 
         static void init() {}
@@ -405,6 +488,11 @@ public abstract class Order {
             this.dbKey = dbKey;
         }
 
+        private Bid(Bid bid) {
+            super(bid);
+            this.dbKey = bid.dbKey;
+        }
+
         private void save(Connection con, String table) throws SQLException {
             super.save(con, table);
         }
@@ -413,25 +501,15 @@ public abstract class Order {
             super.setQuantityQNT(quantityQNT);
             if (quantityQNT > 0) {
                 bidOrderTable.insert(this);
+                bidOrderBook.put(this);
             } else if (quantityQNT == 0) {
                 bidOrderTable.delete(this);
+                bidOrderBook.remove(this);
             } else {
                 throw new IllegalArgumentException("Negative quantity: " + quantityQNT
                         + " for order: " + Long.toUnsignedString(getId()));
             }
         }
 
-        /*
-        @Override
-        public int compareTo(Bid o) {
-            if (this.getPriceMQT() > o.getPriceMQT()) {
-                return -1;
-            } else if (this.getPriceMQT() < o.getPriceMQT()) {
-                return 1;
-            } else {
-                return super.compareTo(o);
-            }
-        }
-        */
     }
 }
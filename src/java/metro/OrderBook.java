@@ -0,0 +1,243 @@
+package metro;
+
+import metro.db.DbIterator;
+import metro.db.DbUtils;
+import metro.db.TransactionalDb;
+import metro.util.BoundedCache;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * In memory copy of the open orders of one side of the asset exchange, for recently used assets, sorted by price
+ * and then by time of placement, so that order matching and the order book API find the best orders without
+ * sorting the order table.
+ * <p>
+ * The orders of an asset are loaded from the database on first use and then kept up to date by {@link #put} and
+ * {@link #remove}, called together with the corresponding changes of the table. On a rollback of the table, or if a
+ * database transaction which changed the book is rolled back, all books are cleared and reloaded on demand.
+ * <p>
+ * Threads reading a snapshot do not take the blockchain lock, so they only use and keep the books if no block was
+ * being applied or rolled back meanwhile, and otherwise query the table.
+ */
+final class OrderBook<T extends Order> {
+
+    private static final int cacheSize = Metro.getIntProperty("metro.orderBookCacheSize");
+
+    private static final TransactionalDb db = Db.db;
+
+    /**
+     * Open orders of one asset, copies of the table rows
+     */
+    private final class Book {
+
+        private final TreeSet<T> orders = new TreeSet<>(comparator);
+        private final Map<Long, T> ordersById = new HashMap<>();
+
+        private void put(T order) {
+            T previous = ordersById.put(order.getId(), order);
+            if (previous != null) {
+                orders.remove(previous);
+            }
+            orders.add(order);
+        }
+
+        private void remove(long orderId) {
+            T previous = ordersById.remove(orderId);
+            if (previous != null) {
+                orders.remove(previous);
+            }
+        }
+    }
+
+    private final String table;
+    private final Comparator<Order> comparator;
+    private final Function<T, T> copier;
+    private final DbIterator.ResultSetReader<T> reader;
+    private final BoundedCache<Long, Book> cache;
+
+    /** Incremented on each change of the books and at the end of the transaction of the changes */
+    private final AtomicLong changes = new AtomicLong();
+    /** Whether the books have changes which are not committed to the database yet */
+    private volatile boolean uncommitted;
+
+    private final TransactionalDb.TransactionCallback clearOnRollback = new TransactionalDb.TransactionCallback() {
+        @Override
+        public void commit() {
+            uncommitted = false;
+            changes.incrementAndGet();
+        }
+
+        @Override
+        public void rollback() {
+            cache.clear();
+            uncommitted = false;
+            changes.incrementAndGet();
+        }
+    };
+
+    /**
+     * @param table      order table
+     * @param comparator priority of the orders, best first
+     * @param copier     copy of an order, as the orders of the table are changed by the matching
+     * @param reader     order of a row of the table
+     */
+    OrderBook(String table, Comparator<Order> comparator, Function<T, T> copier, DbIterator.ResultSetReader<T> reader) {
+        this.table = table;
+        this.comparator = comparator;
+        this.copier = copier;
+        this.reader = reader;
+        this.cache = new BoundedCache<>(table + "Book", cacheSize);
+    }
+
+    static boolean isEnabled() {
+        return cacheSize > 0;
+    }
+
+    /**
+     * Called by the thread applying a block only
+     *
+     * @return id of the best order for the asset, 0 if there are no orders
+     */
+    long getBestOrderId(long assetId) {
+        Book book = getBook(assetId);
+        synchronized (book) {
+            return book.orders.isEmpty() ? 0 : book.orders.first().getId();
+        }
+    }
+
+    /**
+     * @return orders for the asset, best first, from and to as for the table queries, or null if the table must be
+     * queried instead
+     */
+    List<T> getOrders(long assetId, int from, int to) {
+        if (!isEnabled()) {
+            return null;
+        }
+        Metro.getBlockchain().snapshotReadLock();
+        try {
+            boolean snapshot = Metro.getBlockchain().isSnapshot();
+            long changeCount = changes.get();
+            if (snapshot && (uncommitted || Metro.getBlockchain().getSnapshotHeight() >= 0)) {
+                return null;
+            }
+            Book book = getBook(assetId);
+            List<T> result = new ArrayList<>();
+            int limit = to >= 0 && to >= from && to < Integer.MAX_VALUE ? to - from + 1 : Integer.MAX_VALUE;
+            synchronized (book) {
+                Iterator<T> iterator = book.orders.iterator();
+                for (int i = 0; i < from && iterator.hasNext(); i++) {
+                    iterator.next();
+                }
+                while (iterator.hasNext() && result.size() < limit) {
+                    result.add(iterator.next());
+                }
+            }
+            if (snapshot && changes.get() != changeCount) {
+                return null;
+            }
+            return Collections.unmodifiableList(result);
+        } finally {
+            Metro.getBlockchain().snapshotReadUnlock();
+        }
+    }
+
+    /**
+     * Add an order, or update its quantity
+     */
+    void put(T order) {
+        changed();
+        Book book = cache.get(order.getAssetId());
+        if (book == null) {
+            return;
+        }
+        T copy = copier.apply(order);
+        synchronized (book) {
+            book.put(copy);
+        }
+    }
+
+    void remove(T order) {
+        changed();
+        Book book = cache.get(order.getAssetId());
+        if (book == null) {
+            return;
+        }
+        synchronized (book) {
+            book.remove(order.getId());
+        }
+    }
+
+    /**
+     * Called when the table is rolled back or truncated
+     */
+    void clear() {
+        changed();
+        cache.clear();
+    }
+
+    BoundedCache<?, ?> getCache() {
+        return cache;
+    }
+
+    private Book getBook(long assetId) {
+        Book book = cache.get(assetId);
+        if (book == null) {
+            if (Metro.getBlockchain().isSnapshot()) {
+                long changeCount = changes.get();
+                boolean committed = !uncommitted;
+                book = load(assetId);
+                if (committed) {
+                    cache.put(assetId, book);
+                    if (changes.get() != changeCount) {
+                        cache.remove(assetId);
+                    }
+                }
+            } else {
+                book = load(assetId);
+                cache.put(assetId, book);
+            }
+        }
+        return book;
+    }
+
+    private void changed() {
+        if (db.isInTransaction()) {
+            uncommitted = true;
+            db.registerCallback(clearOnRollback);
+        }
+        changes.incrementAndGet();
+    }
+
+    private Book load(long assetId) {
+        if (db.isInTransaction()) {
+            db.registerCallback(clearOnRollback);
+        }
+        Book book = new Book();
+        Connection con = null;
+        try {
+            con = db.getConnection();
+            PreparedStatement pstmt = con.prepareStatement("SELECT * FROM " + table + " WHERE asset_id = ? AND latest = TRUE");
+            pstmt.setLong(1, assetId);
+            try (DbIterator<T> orders = new DbIterator<>(con, pstmt, reader)) {
+                orders.forEach(book::put);
+            }
+        } catch (SQLException e) {
+            DbUtils.close(con);
+            throw new RuntimeException(e.toString(), e);
+        }
+        return book;
+    }
+
+}
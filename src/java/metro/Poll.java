@@ -30,6 +30,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
@@ -314,40 +315,41 @@ public final class Poll extends AbstractPoll {
     }
 
     private List<OptionResult> countResults(VoteWeighting voteWeighting, int height) {
-        final OptionResult[] result = new OptionResult[options.length];
-        VoteWeighting.VotingModel votingModel = voteWeighting.getVotingModel();
-        try (DbIterator<Vote> votes = Vote.getVotes(this.getId(), 0, -1)) {
-            for (Vote vote : votes) {
-                long weight = votingModel.calcWeight(voteWeighting, vote.getVoterId(), height);
-                if (weight <= 0) {
+        List<Vote> votes = new ArrayList<>();
+        try (DbIterator<Vote> iterator = Vote.getVotes(this.getId(), 0, -1)) {
+            iterator.forEach(votes::add);
+        }
+        long[] voterIds = new long[votes.size()];
+        for (int i = 0; i < voterIds.length; i++) {
+            voterIds[i] = votes.get(i).getVoterId();
+        }
+        long[] weights = voterIds.length == 0 ? voterIds
+                : voteWeighting.getVotingModel().calcWeights(voteWeighting, voterIds, height);
+        final long[] results = new long[options.length];
+        final long[] resultWeights = new long[options.length];
+        final boolean[] counted = new boolean[options.length];
+        for (int v = 0; v < voterIds.length; v++) {
+            long weight = weights[v];
+            if (weight <= 0) {
+                continue;
+            }
+            final byte[] optionValues = votes.get(v).getVoteBytes();
+            for (int i = 0; i < options.length; i++) {
+                if (i < optionValues.length && optionValues[i] == Constants.NO_VOTE_VALUE) {
                     continue;
                 }
-                long[] partialResult = countVote(vote, weight);
-                for (int i = 0; i < partialResult.length; i++) {
-                    if (partialResult[i] != Long.MIN_VALUE) {
-                        if (result[i] == null) {
-                            result[i] = new OptionResult(partialResult[i], weight);
-                        } else {
-                            result[i].add(partialResult[i], weight);
-                        }
-                    }
-                }
+                results[i] += i < optionValues.length ? (long) optionValues[i] * weight : 0;
+                resultWeights[i] += weight;
+                counted[i] = true;
             }
         }
-        return Arrays.asList(result);
-    }
-
-    private long[] countVote(Vote vote, long weight) {
-        final long[] partialResult = new long[options.length];
-        final byte[] optionValues = vote.getVoteBytes();
-        for (int i = 0; i < optionValues.length; i++) {
-            if (optionValues[i] != Constants.NO_VOTE_VALUE) {
-                partialResult[i] = (long) optionValues[i] * weight;
-            } else {
-                partialResult[i] = Long.MIN_VALUE;
+        final OptionResult[] result = new OptionResult[options.length];
+        for (int i = 0; i < options.length; i++) {
+            if (counted[i]) {
+                result[i] = new OptionResult(results[i], resultWeights[i]);
             }
         }
-        return partialResult;
+        return Arrays.asList(result);
     }
 
 }
\ No newline at end of file
@@ -39,19 +39,20 @@ final class TransactionDb {
 
     static TransactionImpl findTransaction(long transactionId, int height) {
         // Check the block cache
-        synchronized (BlockDb.blockCache) {
-            TransactionImpl transaction = BlockDb.transactionCache.get(transactionId);
-            if (transaction != null) {
-                return transaction.getHeight() <= height ? transaction : null;
-            }
+        TransactionImpl transaction = BlockDb.transactionCache.get(transactionId);
+        if (transaction != null) {
+            return transaction.getHeight() <= height ? transaction : null;
         }
         // Search the database
+        long generation = BlockDb.getCacheGeneration();
         try (Connection con = Db.db.getConnection();
              PreparedStatement pstmt = con.prepareStatement("SELECT * FROM transaction WHERE id = ?")) {
             pstmt.setLong(1, transactionId);
             try (ResultSet rs = pstmt.executeQuery()) {
                 if (rs.next() && rs.getInt("height") <= height) {
-                    return loadTransaction(con, rs);
+                    transaction = loadTransaction(con, rs);
+                    BlockDb.cacheTransaction(transaction, generation);
+                    return transaction;
                 }
                 return null;
             }
@@ -69,20 +70,21 @@ final class TransactionDb {
     static TransactionImpl findTransactionByFullHash(byte[] fullHash, int height) {
         long transactionId = Convert.fullHashToId(fullHash);
         // Check the cache
-        synchronized(BlockDb.blockCache) {
-            TransactionImpl transaction = BlockDb.transactionCache.get(transactionId);
-            if (transaction != null) {
-                return (transaction.getHeight() <= height &&
-                        Arrays.equals(transaction.fullHash(), fullHash) ? transaction : null);
-            }
+        TransactionImpl transaction = BlockDb.transactionCache.get(transactionId);
+        if (transaction != null) {
+            return (transaction.getHeight() <= height &&
+                    Arrays.equals(transaction.fullHash(), fullHash) ? transaction : null);
         }
         // Search the database
+        long generation = BlockDb.getCacheGeneration();
         try (Connection con = Db.db.getConnection();
              PreparedStatement pstmt = con.prepareStatement("SELECT * FROM transaction WHERE id = ?")) {
             pstmt.setLong(1, transactionId);
             try (ResultSet rs = pstmt.executeQuery()) {
                 if (rs.next() && Arrays.equals(rs.getBytes("full_hash"), fullHash) && rs.getInt("height") <= height) {
-                    return loadTransaction(con, rs);
+                    transaction = loadTransaction(con, rs);
+                    BlockDb.cacheTransaction(transaction, generation);
+                    return transaction;
                 }
                 return null;
             }
@@ -100,11 +102,9 @@ final class TransactionDb {
 
     static boolean hasTransaction(long transactionId, int height) {
         // Check the block cache
-        synchronized(BlockDb.blockCache) {
-            TransactionImpl transaction = BlockDb.transactionCache.get(transactionId);
-            if (transaction != null) {
-                return (transaction.getHeight() <= height);
-            }
+        TransactionImpl transaction = BlockDb.transactionCache.get(transactionId);
+        if (transaction != null) {
+            return (transaction.getHeight() <= height);
         }
         // Search the database
         try (Connection con = Db.db.getConnection();
@@ -125,12 +125,10 @@ final class TransactionDb {
     static boolean hasTransactionByFullHash(byte[] fullHash, int height) {
         long transactionId = Convert.fullHashToId(fullHash);
         // Check the block cache
-        synchronized(BlockDb.blockCache) {
-            TransactionImpl transaction = BlockDb.transactionCache.get(transactionId);
-            if (transaction != null) {
-                return (transaction.getHeight() <= height &&
-                        Arrays.equals(transaction.fullHash(), fullHash));
-            }
+        TransactionImpl transaction = BlockDb.transactionCache.get(transactionId);
+        if (transaction != null) {
+            return (transaction.getHeight() <= height &&
+                    Arrays.equals(transaction.fullHash(), fullHash));
         }
         // Search the database
         try (Connection con = Db.db.getConnection();
@@ -146,11 +144,9 @@ final class TransactionDb {
 
     static byte[] getFullHash(long transactionId) {
         // Check the block cache
-        synchronized(BlockDb.blockCache) {
-            TransactionImpl transaction = BlockDb.transactionCache.get(transactionId);
-            if (transaction != null) {
-                return transaction.fullHash();
-            }
+        TransactionImpl transaction = BlockDb.transactionCache.get(transactionId);
+        if (transaction != null) {
+            return transaction.fullHash();
         }
         // Search the database
         try (Connection con = Db.db.getConnection();
@@ -248,11 +244,9 @@ final class TransactionDb {
 
     static List<TransactionImpl> findBlockTransactions(long blockId) {
         // Check the block cache
-        synchronized(BlockDb.blockCache) {
-            BlockImpl block = BlockDb.blockCache.get(blockId);
-            if (block != null) {
-                return block.getTransactions();
-            }
+        BlockImpl block = BlockDb.findRecentBlock(blockId);
+        if (block != null) {
+            return block.getTransactions();
         }
         // Search the database
         try (Connection con = Db.db.getConnection()) {
@@ -18,24 +18,43 @@
 package metro;
 
 import metro.crypto.Crypto;
+import metro.crypto.KNV25;
 import metro.db.DbKey;
 import metro.util.Convert;
 import metro.util.Filter;
 import metro.util.Logger;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 
 import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 public final class TransactionImpl implements Transaction {
 
+    public static final int SIGNATURE_OFFSET = 1 + 1 + 8 + 2 + 32 + 12 + 8 + 8 + 32;
+
+    private static final int verifiedSignaturesCacheSize = Metro.getIntProperty("metro.verifiedSignaturesCacheSize");
+
+    /**
+     * Full hashes of the transactions with verified signatures, so that transactions relayed by several peers
+     * and then included in a block are verified only once; looked up with get, so that the least recently used are evicted
+     */
+    private static final Map<ByteBuffer, Boolean> verifiedSignatures = Collections.synchronizedMap(
+            new LinkedHashMap<ByteBuffer, Boolean>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Boolean> eldest) {
+                    return size() > verifiedSignaturesCacheSize;
+                }
+            });
+
     public static final class BuilderImpl implements Builder {
 
         private final short deadline;
@@ -534,17 +553,17 @@ public final class TransactionImpl implements Transaction {
             if (signature == null && !getType().isCoinbase()) {
                 throw new IllegalStateException("Transaction is not signed yet");
             }
-            MessageDigest digest = Consensus.HASH_FUNCTION.messageDigest();
+            KNV25.Hasher hasher = Consensus.HASH_FUNCTION.hasher();
             byte[] data = getBytes();
             int start = signatureOffset(), end = data.length - 64;
-            digest.update(data, 0, start);
-            digest.update(data, start + 64, end - start);
+            hasher.update(data, 0, start);
+            hasher.update(data, start + 64, end - start);
 
             if (getType().isCoinbase()) {
-                fullHash = digest.digest();
+                fullHash = hasher.digest();
             } else {
                 byte[] signatureHash = Consensus.HASH_FUNCTION.hash(signature);
-                fullHash = digest.digest(signatureHash);
+                fullHash = hasher.update(signatureHash).digest();
             }
 
             BigInteger bigInteger = Convert.fullHashToBigInteger(fullHash);
@@ -883,8 +902,72 @@ public final class TransactionImpl implements Transaction {
     }
 
     static TransactionImpl parseTransaction(JSONObject transactionData) throws MetroException.NotValidException {
+        return parseTransaction(transactionData, true);
+    }
+
+    static TransactionImpl parseTransaction(JSONObject transactionData, boolean verifySignature) throws MetroException.NotValidException {
         TransactionImpl transaction = newTransactionBuilder(transactionData).build();
-        if (transaction.getSignature() != null && !transaction.checkSignature()) {
+        if (verifySignature && transaction.getSignature() != null && !transaction.checkSignature()) {
+            throw new MetroException.NotValidException("Invalid transaction signature for transaction " + transaction.getJSONObject().toJSONString());
+        }
+        return transaction;
+    }
+
+    /**
+     * Add the transactions to a peer message in their byte representation: a "transactionBytes" array of base64
+     * encoded bytes, and a "prunableAttachments" object by transaction index for the ones with prunable parts
+     *
+     * @param json peer message
+     * @param transactions transactions to add
+     */
+    public static void putTransactionBytes(JSONObject json, List<? extends Transaction> transactions) {
+        JSONArray transactionBytes = new JSONArray();
+        JSONObject prunableAttachments = new JSONObject();
+        Base64.Encoder encoder = Base64.getEncoder();
+        for (Transaction transaction : transactions) {
+            JSONObject prunableJSON = transaction.getPrunableAttachmentJSON();
+            if (prunableJSON != null) {
+                prunableAttachments.put(String.valueOf(transactionBytes.size()), prunableJSON);
+            }
+            transactionBytes.add(encoder.encodeToString(transaction.getBytes()));
+        }
+        json.put("transactionBytes", transactionBytes);
+        if (!prunableAttachments.isEmpty()) {
+            json.put("prunableAttachments", prunableAttachments);
+        }
+    }
+
+    /**
+     * Parse the transactions of a peer message, either from "transactionBytes" (see {@link #putTransactionBytes})
+     * or from the "transactions" JSON array
+     *
+     * @return transactions in message order, or null if the message has neither
+     */
+    static List<TransactionImpl> parseTransactions(JSONObject json, boolean verifySignatures) throws MetroException.NotValidException {
+        JSONArray transactionBytes = (JSONArray) json.get("transactionBytes");
+        if (transactionBytes == null) {
+            JSONArray transactionsData = (JSONArray) json.get("transactions");
+            if (transactionsData == null) {
+                return null;
+            }
+            List<TransactionImpl> transactions = new ArrayList<>(transactionsData.size());
+            for (Object transactionData : transactionsData) {
+                transactions.add(parseTransaction((JSONObject) transactionData, verifySignatures));
+            }
+            return transactions;
+        }
+        JSONObject prunableAttachments = (JSONObject) json.get("prunableAttachments");
+        List<TransactionImpl> transactions = new ArrayList<>(transactionBytes.size());
+        for (int i = 0; i < transactionBytes.size(); i++) {
+            transactions.add(parseTransaction(Base64.getDecoder().decode((String) transactionBytes.get(i)),
+                    prunableAttachments != null ? (JSONObject) prunableAttachments.get(String.valueOf(i)) : null, verifySignatures));
+        }
+        return transactions;
+    }
+
+    static TransactionImpl parseTransaction(byte[] bytes, JSONObject prunableAttachments, boolean verifySignature) throws MetroException.NotValidException {
+        TransactionImpl transaction = newTransactionBuilder(bytes, prunableAttachments).build();
+        if (verifySignature && transaction.getSignature() != null && !transaction.checkSignature()) {
             throw new MetroException.NotValidException("Invalid transaction signature for transaction " + transaction.getJSONObject().toJSONString());
         }
         return transaction;
@@ -972,9 +1055,18 @@ public final class TransactionImpl implements Transaction {
 
     private volatile boolean hasValidSignature = false;
 
-    private boolean checkSignature() {
-        if (!hasValidSignature) {
-            hasValidSignature = signature != null && Crypto.verify(signature, zeroSignature(getBytes()), getSenderPublicKey());
+    boolean checkSignature() {
+        if (!hasValidSignature && signature != null) {
+            // the full hash covers the signature except for coinbase, which cannot use the cache
+            ByteBuffer key = getType().isCoinbase() ? null : ByteBuffer.wrap(fullHash());
+            if (key != null && verifiedSignatures.get(key) != null) {
+                hasValidSignature = true;
+            } else if (Crypto.verify(signature, zeroSignature(getBytes()), getSenderPublicKey())) {
+                hasValidSignature = true;
+                if (key != null) {
+                    verifiedSignatures.put(key, Boolean.TRUE);
+                }
+            }
         }
         return hasValidSignature;
     }
@@ -993,7 +1085,7 @@ public final class TransactionImpl implements Transaction {
     }
 
     private int signatureOffset() {
-        return 1 + 1 + 8 + 2 + 32 + 12 + 8 + 8 + 32;
+        return SIGNATURE_OFFSET;
     }
 
     private byte[] zeroSignature(byte[] data) {
@@ -38,6 +38,7 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
@@ -463,8 +464,13 @@ public final class TransactionProcessorImpl implements TransactionProcessor {
 
     @Override
     public void processPeerTransactions(JSONObject request) throws MetroException.ValidationException {
-        JSONArray transactionsData = (JSONArray)request.get("transactions");
-        processPeerTransactions(transactionsData);
+        JSONArray transactionBytes = (JSONArray)request.get("transactionBytes");
+        if (transactionBytes != null) {
+            processPeerTransactions(transactionBytes, (JSONObject)request.get("prunableAttachments"));
+        } else {
+            JSONArray transactionsData = (JSONArray)request.get("transactions");
+            processPeerTransactions(transactionsData);
+        }
     }
 
     @Override
@@ -647,14 +653,58 @@ public final class TransactionProcessorImpl implements TransactionProcessor {
         if (transactionsData == null || transactionsData.isEmpty()) {
             return;
         }
+        List<Exception> exceptions = new ArrayList<>();
+        List<TransactionImpl> transactions = new ArrayList<>(transactionsData.size());
+        for (Object transactionData : transactionsData) {
+            try {
+                transactions.add(TransactionImpl.parseTransaction((JSONObject) transactionData, false));
+            } catch (MetroException.NotValidException|RuntimeException e) {
+                Logger.logDebugMessage(String.format("Invalid transaction from peer: %s", ((JSONObject) transactionData).toJSONString()), e);
+                exceptions.add(e);
+            }
+        }
+        processPeerTransactions(transactions, exceptions);
+    }
+
+    /**
+     * Process transactions sent in their byte representation, see {@link TransactionImpl#putTransactionBytes}
+     */
+    private void processPeerTransactions(JSONArray transactionBytes, JSONObject prunableAttachments) throws MetroException.NotValidException {
+        if (Metro.getBlockchain().getHeight() <= Constants.LAST_KNOWN_BLOCK && !testUnconfirmedTransactions) {
+            return;
+        }
+        if (transactionBytes.isEmpty()) {
+            return;
+        }
+        List<Exception> exceptions = new ArrayList<>();
+        List<TransactionImpl> transactions = new ArrayList<>(transactionBytes.size());
+        for (int i = 0; i < transactionBytes.size(); i++) {
+            try {
+                transactions.add(TransactionImpl.parseTransaction(Base64.getDecoder().decode((String) transactionBytes.get(i)),
+                        prunableAttachments != null ? (JSONObject) prunableAttachments.get(String.valueOf(i)) : null, false));
+            } catch (MetroException.NotValidException|RuntimeException e) {
+                Logger.logDebugMessage(String.format("Invalid transaction from peer: %s", transactionBytes.get(i)), e);
+                exceptions.add(e);
+            }
+        }
+        processPeerTransactions(transactions, exceptions);
+    }
+
+    private void processPeerTransactions(List<TransactionImpl> transactions, List<Exception> exceptions) throws MetroException.NotValidException {
         long arrivalTimestamp = System.currentTimeMillis();
         List<TransactionImpl> receivedTransactions = new ArrayList<>();
         List<TransactionImpl> sendToPeersTransactions = new ArrayList<>();
         List<TransactionImpl> addedUnconfirmedTransactions = new ArrayList<>();
-        List<Exception> exceptions = new ArrayList<>();
-        for (Object transactionData : transactionsData) {
+        //
+        // Verify the signatures of the whole batch in parallel before taking the blockchain lock,
+        // the results are cached by TransactionImpl.checkSignature()
+        //
+        transactions.parallelStream().filter(transaction -> transaction.getSignature() != null).forEach(TransactionImpl::checkSignature);
+        for (TransactionImpl transaction : transactions) {
             try {
-                TransactionImpl transaction = TransactionImpl.parseTransaction((JSONObject) transactionData);
+                if (transaction.getSignature() != null && !transaction.checkSignature()) {
+                    throw new MetroException.NotValidException("Invalid transaction signature for transaction " + transaction.getJSONObject().toJSONString());
+                }
                 receivedTransactions.add(transaction);
                 if (getUnconfirmedTransaction(transaction.getDbKey()) != null || TransactionDb.hasTransaction(transaction.getId())) {
                     continue;
@@ -672,7 +722,7 @@ public final class TransactionProcessorImpl implements TransactionProcessor {
 
             } catch (MetroException.NotCurrentlyValidException ignore) {
             } catch (MetroException.ValidationException|RuntimeException e) {
-                Logger.logDebugMessage(String.format("Invalid transaction from peer: %s", ((JSONObject) transactionData).toJSONString()), e);
+                Logger.logDebugMessage(String.format("Invalid transaction from peer: %s", transaction.getJSONObject().toJSONString()), e);
                 exceptions.add(e);
             }
         }
@@ -17,6 +17,8 @@
 
 package metro;
 
+import java.util.Arrays;
+
 public final class VoteWeighting {
 
     public enum VotingModel {
@@ -40,6 +42,19 @@ public final class VoteWeighting {
                 return (voteWeighting.minBalance == 0 || voteWeighting.minBalanceModel.getBalance(voteWeighting, voterId, height) >= voteWeighting.minBalance) ? 1 : 0;
             }
             @Override
+            public final long[] calcWeights(VoteWeighting voteWeighting, long[] voterIds, int height) {
+                long[] weights = new long[voterIds.length];
+                if (voteWeighting.minBalance == 0) {
+                    Arrays.fill(weights, 1);
+                    return weights;
+                }
+                long[] balances = voteWeighting.minBalanceModel.getBalances(voteWeighting, voterIds, height);
+                for (int i = 0; i < voterIds.length; i++) {
+                    weights[i] = balances[i] >= voteWeighting.minBalance ? 1 : 0;
+                }
+                return weights;
+            }
+            @Override
             public final MinBalanceModel getMinBalanceModel() {
                 return MinBalanceModel.NONE;
             }
@@ -51,6 +66,10 @@ public final class VoteWeighting {
                 return mqtBalance >= voteWeighting.minBalance ? mqtBalance : 0;
             }
             @Override
+            public final long[] calcWeights(VoteWeighting voteWeighting, long[] voterIds, int height) {
+                return balanceWeights(voteWeighting, MinBalanceModel.MQT.getBalances(voteWeighting, voterIds, height));
+            }
+            @Override
             public final MinBalanceModel getMinBalanceModel() {
                 return MinBalanceModel.MQT;
             }
@@ -62,6 +81,10 @@ public final class VoteWeighting {
                 return qntBalance >= voteWeighting.minBalance ? qntBalance : 0;
             }
             @Override
+            public final long[] calcWeights(VoteWeighting voteWeighting, long[] voterIds, int height) {
+                return balanceWeights(voteWeighting, MinBalanceModel.ASSET.getBalances(voteWeighting, voterIds, height));
+            }
+            @Override
             public final MinBalanceModel getMinBalanceModel() {
                 return MinBalanceModel.ASSET;
             }
@@ -103,6 +126,28 @@ public final class VoteWeighting {
 
         public abstract long calcWeight(VoteWeighting voteWeighting, long voterId, int height);
 
+        /**
+         * Same as {@link #calcWeight} for each voter, the balance based models find the balances of all voters at once
+         *
+         * @param voterIds voter ids
+         * @return weights in the order of the voter ids
+         */
+        public long[] calcWeights(VoteWeighting voteWeighting, long[] voterIds, int height) {
+            long[] weights = new long[voterIds.length];
+            for (int i = 0; i < voterIds.length; i++) {
+                weights[i] = calcWeight(voteWeighting, voterIds[i], height);
+            }
+            return weights;
+        }
+
+        private static long[] balanceWeights(VoteWeighting voteWeighting, long[] balances) {
+            long[] weights = new long[balances.length];
+            for (int i = 0; i < balances.length; i++) {
+                weights[i] = balances[i] >= voteWeighting.minBalance ? balances[i] : 0;
+            }
+            return weights;
+        }
+
         public abstract MinBalanceModel getMinBalanceModel();
 
         public boolean acceptsVotes() {
@@ -131,12 +176,26 @@ public final class VoteWeighting {
             public final long getBalance(VoteWeighting voteWeighting, long voterId, int height) {
                 return Account.getAccount(voterId, height).getBalanceMQT();
             }
+            @Override
+            public final long[] getBalances(VoteWeighting voteWeighting, long[] voterIds, int height) {
+                long[] balances = Account.getBalancesMQT(voterIds, height);
+                for (int i = 0; i < voterIds.length; i++) {
+                    if (balances[i] < 0) {
+                        balances[i] = getBalance(voteWeighting, voterIds[i], height);
+                    }
+                }
+                return balances;
+            }
         },
         ASSET(2) {
             @Override
             public final long getBalance(VoteWeighting voteWeighting, long voterId, int height) {
                 return Account.getAssetBalanceQNT(voterId, voteWeighting.holdingId, height);
             }
+            @Override
+            public final long[] getBalances(VoteWeighting voteWeighting, long[] voterIds, int height) {
+                return Account.getAssetBalancesQNT(voterIds, voteWeighting.holdingId, height);
+            }
         };
 
         private final byte code;
@@ -151,6 +210,20 @@ public final class VoteWeighting {
 
         public abstract long getBalance(VoteWeighting voteWeighting, long voterId, int height);
 
+        /**
+         * Same as {@link #getBalance} for each voter, with one query for all of them
+         *
+         * @param voterIds voter ids
+         * @return balances in the order of the voter ids
+         */
+        public long[] getBalances(VoteWeighting voteWeighting, long[] voterIds, int height) {
+            long[] balances = new long[voterIds.length];
+            for (int i = 0; i < voterIds.length; i++) {
+                balances[i] = getBalance(voteWeighting, voterIds[i], height);
+            }
+            return balances;
+        }
+
         public static MinBalanceModel get(byte code) {
             for (MinBalanceModel minBalanceModel : values()) {
                 if (minBalanceModel.getCode() == code) {
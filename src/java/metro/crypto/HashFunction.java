@@ -39,13 +39,18 @@ public enum HashFunction {
      */
     SHA3((byte)3) {
         public byte[] hash(byte[] input) {
-            return Crypto.sha3().digest(input);
+            return threadLocalKeccak.get().update(input).digest();
         }
 
         @Override
         public MessageDigest messageDigest() {
             return Crypto.sha3();
         }
+
+        @Override
+        public KNV25.Hasher hasher() {
+            return threadLocalKeccakHasher.get().reset();
+        }
     },
     /**
      * Use Java implementation of Scrypt
@@ -60,7 +65,12 @@ public enum HashFunction {
      */
     Keccak25((byte)25) {
         public byte[] hash(byte[] input) {
-            return KNV25.hash(input);
+            return threadLocalKNV25.get().update(input).digest();
+        }
+
+        @Override
+        public KNV25.Hasher hasher() {
+            return threadLocalKNV25Hasher.get().reset();
         }
     },
     RIPEMD160((byte)6) {
@@ -86,6 +96,15 @@ public enum HashFunction {
         }
     };
 
+    private static final ThreadLocal<KNV25.Hasher> threadLocalKeccak = ThreadLocal.withInitial(() -> new KNV25.Hasher(KNV25.KECCAK_ROUNDS));
+
+    private static final ThreadLocal<KNV25.Hasher> threadLocalKNV25 = ThreadLocal.withInitial(() -> new KNV25.Hasher(KNV25.ROUNDS));
+
+    // separate from the hashers of hash(), which may be called while a hasher() is in use
+    private static final ThreadLocal<KNV25.Hasher> threadLocalKeccakHasher = ThreadLocal.withInitial(() -> new KNV25.Hasher(KNV25.KECCAK_ROUNDS));
+
+    private static final ThreadLocal<KNV25.Hasher> threadLocalKNV25Hasher = ThreadLocal.withInitial(() -> new KNV25.Hasher(KNV25.ROUNDS));
+
     private final byte id;
 
     HashFunction(byte id) {
@@ -110,4 +129,13 @@ public enum HashFunction {
     public MessageDigest messageDigest() {
         throw new IllegalArgumentException(String.format("messageDigest() not supported for algorithm %d", id));
     }
+
+    /**
+     * Streaming hasher with reusable state, supported for the Keccak based algorithms only.
+     * The hasher is reset and reused by each call in the same thread, so it must not be kept across calls which may
+     * use another hasher of the same algorithm.
+     */
+    public KNV25.Hasher hasher() {
+        throw new IllegalArgumentException(String.format("hasher() not supported for algorithm %d", id));
+    }
 }
@@ -17,8 +17,14 @@
 
 package metro.crypto;
 
+import java.util.Arrays;
+
 public final class KNV25 {
 
+    public static final int ROUNDS = 25;
+    public static final int KECCAK_ROUNDS = 24;
+    public static final int RATE_LANES = 17;
+
     private static final long[] constants = {
                 1L, 32898L, -9223372036854742902L, -9223372034707259392L, 32907L,
                 2147483649L, -9223372034707259263L, -9223372036854743031L, 138L, 136L,
@@ -27,97 +33,189 @@ public final class KNV25 {
                 -9223372034707259263L, -9223372036854742912L, 2147483649L, -9223372034707259384L, 1L
             };
 
-    @SuppressWarnings("ShiftOutOfRange")
+    public static final int DIGEST_LENGTH = 32;
+
+    private static final int RATE = RATE_LANES * 8;
+
     public static byte[] hash(final byte input[]) {
-        int inputOffset = 0;
-        int inputLength = input.length;
-        if (inputLength % 8 != 0) {
-            throw new IllegalArgumentException(String.format("input length %d must be a multiple of 8", inputLength));
+        return new Hasher(ROUNDS).update(input).digest();
+    }
+
+    /**
+     * Resettable Keccak sponge with 256 bit output.
+     * Input of any length is xor-ed directly into the state, so the absorbed state of a common prefix can be
+     * saved with {@link #snapshot()} and reused with {@link #restore(Hasher)} without rehashing the prefix.
+     * Not thread safe.
+     */
+    public static final class Hasher {
+
+        private final int rounds;
+        private final long[] state = new long[25];
+        private int position;
+
+        public Hasher(int rounds) {
+            if (rounds < 1 || rounds > ROUNDS) {
+                throw new IllegalArgumentException(String.format("illegal number of rounds %d", rounds));
+            }
+            this.rounds = rounds;
+        }
+
+        public Hasher reset() {
+            Arrays.fill(state, 0);
+            position = 0;
+            return this;
+        }
+
+        public Hasher update(byte[] input) {
+            return update(input, 0, input.length);
         }
-        byte[] output = new byte[32];
-        long[] state = new long[25];
-        while (inputOffset <= inputLength) {
-            int i = 0;
-            while (inputOffset < inputLength && i < 17) {
-                state[i++] ^= ((long)(input[inputOffset++] & 0xFF)) | (((long)(input[inputOffset++] & 0xFF)) << 8) | (((long)(input[inputOffset++] & 0xFF)) << 16) | (((long)(input[inputOffset++] & 0xFF)) << 24) | (((long)(input[inputOffset++] & 0xFF)) << 32) | (((long)(input[inputOffset++] & 0xFF)) << 40) | (((long)(input[inputOffset++] & 0xFF)) << 48) | (((long)(input[inputOffset++] & 0xFF)) << 56);
+
+        public Hasher update(byte[] input, int offset, int length) {
+            if (offset < 0 || length < 0 || offset > input.length - length) {
+                throw new IndexOutOfBoundsException(String.format("offset %d length %d input length %d", offset, length, input.length));
             }
-            if (inputOffset == inputLength && i < 17) {
-                state[i] ^= 1;
-                state[16] ^= -9223372036854775808L;
-                inputOffset++;
+            final long[] state = this.state;
+            final int end = offset + length;
+            int position = this.position;
+            while (offset < end) {
+                if ((position & 7) == 0 && end - offset >= 8) {
+                    state[position >> 3] ^= (input[offset] & 0xFFL) | (input[offset + 1] & 0xFFL) << 8 | (input[offset + 2] & 0xFFL) << 16
+                            | (input[offset + 3] & 0xFFL) << 24 | (input[offset + 4] & 0xFFL) << 32 | (input[offset + 5] & 0xFFL) << 40
+                            | (input[offset + 6] & 0xFFL) << 48 | (input[offset + 7] & 0xFFL) << 56;
+                    offset += 8;
+                    position += 8;
+                } else {
+                    state[position >> 3] ^= (input[offset++] & 0xFFL) << ((position & 7) << 3);
+                    position++;
+                }
+                if (position == RATE) {
+                    permute(state, rounds);
+                    position = 0;
+                }
             }
-            long state0 = state[0], state1 = state[1], state2 = state[2], state3 = state[3], state4 = state[4], state5 = state[5], state6 = state[6], state7 = state[7], state8 = state[8], state9 = state[9], state10 = state[10], state11 = state[11], state12 = state[12], state13 = state[13], state14 = state[14], state15 = state[15], state16 = state[16], state17 = state[17], state18 = state[18], state19 = state[19], state20 = state[20], state21 = state[21], state22 = state[22], state23 = state[23], state24 = state[24];
-            for (i = 0; i < 25; ) {
-                long t1, t2, t3, t4, t5, t6, t7, t8, t9, t10, t11, t12, t13, t14, t15, t16, t17, t18, t19;
-                t12 = state1 ^ (t3 = (t1 = state0 ^ state5 ^ state10 ^ state15 ^ state20) ^ (((t2 = state2 ^ state7 ^ state12 ^ state17 ^ state22) << 1) | (t2 >>> -1)));
-                t13 = state2 ^ (t6 = (t4 = state1 ^ state6 ^ state11 ^ state16 ^ state21) ^ (((t5 = state3 ^ state8 ^ state13 ^ state18 ^ state23) << 1) | (t5 >>> -1)));
-                state0 = (t9 = state0 ^ (t8 = ((t4 << 1) | (t4 >>> -1)) ^ (t7 = state4 ^ state9 ^ state14 ^ state19 ^ state24))) ^ ((~(t16 = ((t16 = state6 ^ t3) << 44) | (t16 >>> -44))) & (state2 = ((state2 = state12 ^ t6) << 43) | (state2 >>> -43))) ^ constants[i++];
-                t14 = state3 ^ (t10 = ((t7 << 1) | (t7 >>> -1)) ^ t2);
-                state1 = t16 ^ ((~state2) & (state3 = ((state3 = state18 ^ t10) << 21) | (state3 >>> -21)));
-                t15 = state4 ^ (t11 = ((t1 << 1) | (t1 >>> -1)) ^ t5);
-                state2 ^= (~state3) & (state4 = ((state4 = state24 ^ t11) << 14) | (state4 >>> -14));
-                state3 ^= (~state4) & t9;
-                state4 ^= (~t9) & t16;
-                t16 = state5 ^ t8;
-                t17 = state7 ^ t6;
-                state5 = (t14 = (t14 << 28) | (t14 >>> -28)) ^ ((~(t19 = ((t19 = state9 ^ t11) << 20) | (t19 >>> -20))) & (state7 = ((state7 = state10 ^ t8) << 3) | (state7 >>> -3)));
-                t18 = state8 ^ t10;
-                state6 = t19 ^ ((~state7) & (state8 = ((state8 = state16 ^ t3) << 45) | (state8 >>> -45)));
-                state7 ^= (~state8) & (state9 = ((state9 = state22 ^ t6) << 61) | (state9 >>> -61));
-                state8 ^= (~state9) & t14;
-                state9 ^= (~t14) & t19;
-                t19 = state11 ^ t3;
-                state10 = (t12 = (t12 << 1) | (t12 >>> -1)) ^ ((~(t17 = (t17 << 6) | (t17 >>> -6))) & (state12 = ((state12 = state13 ^ t10) << 25) | (state12 >>> -25)));
-                state11 = t17 ^ ((~state12) & (state13 = ((state13 = state19 ^ t11) << 8) | (state13 >>> -8)));
-                t14 = state14 ^ t11;
-                state12 ^= (~state13) & (state14 = ((state14 = state20 ^ t8) << 18) | (state14 >>> -18));
-                state13 ^= (~state14) & t12;
-                state14 ^= (~t12) & t17;
-                t12 = state15 ^ t8;
-                t17 = state17 ^ t6;
-                state15 = (t15 = (t15 << 27) | (t15 >>> -27)) ^ ((~(t16 = (t16 << 36) | (t16 >>> -36))) & (state17 = (t19 << 10) | (t19 >>> -10)));
-                state16 = t16 ^ ((~state17) & (state18 = (t17 << 15) | (t17 >>> -15)));
-                state17 ^= (~state18) & (state19 = ((state19 = state23 ^ t10) << 56) | (state19 >>> -56));
-                state18 ^= (~state19) & t15;
-                state19 ^= (~t15) & t16;
-                t19 = state21 ^ t3;
-                state20 = (t13 = (t13 << 62) | (t13 >>> -62)) ^ ((~(t18 = (t18 << 55) | (t18 >>> -55))) & (state22 = (t14 << 39) | (t14 >>> -39)));
-                state21 = t18 ^ ((~state22) & (state23 = (t12 << 41) | (t12 >>> -41)));
-                state22 ^= (~state23) & (state24 = (t19 << 2) | (t19 >>> -2));
-                state23 ^= (~state24) & t13;
-                state24 ^= (~t13) & t18;
+            this.position = position;
+            return this;
+        }
+
+        /**
+         * @return copy of the absorbed state, to be passed to {@link #restore(Hasher)}
+         */
+        public Hasher snapshot() {
+            Hasher snapshot = new Hasher(rounds);
+            snapshot.restore(this);
+            return snapshot;
+        }
+
+        /**
+         * Continue from the absorbed state of the snapshot, without allocation.
+         */
+        public Hasher restore(Hasher snapshot) {
+            if (snapshot.rounds != rounds) {
+                throw new IllegalArgumentException(String.format("snapshot rounds %d do not match %d", snapshot.rounds, rounds));
             }
-            state[0] = state0;
-            state[1] = state1;
-            state[2] = state2;
-            state[3] = state3;
-            state[4] = state4;
-            state[5] = state5;
-            state[6] = state6;
-            state[7] = state7;
-            state[8] = state8;
-            state[9] = state9;
-            state[10] = state10;
-            state[11] = state11;
-            state[12] = state12;
-            state[13] = state13;
-            state[14] = state14;
-            state[15] = state15;
-            state[16] = state16;
-            state[17] = state17;
-            state[18] = state18;
-            state[19] = state19;
-            state[20] = state20;
-            state[21] = state21;
-            state[22] = state22;
-            state[23] = state23;
-            state[24] = state24;
+            System.arraycopy(snapshot.state, 0, state, 0, state.length);
+            position = snapshot.position;
+            return this;
+        }
+
+        public byte[] digest() {
+            byte[] output = new byte[DIGEST_LENGTH];
+            digestInto(output, 0);
+            return output;
         }
 
-        for (int i = 0; i < 32; i++) {
-            output[i] = (byte)(state[i >> 3] >> ((i & 7) << 3));
+        /**
+         * Pad, write the {@link #DIGEST_LENGTH} bytes digest into out at offset and reset the hasher.
+         */
+        public void digestInto(byte[] out, int offset) {
+            if (offset < 0 || offset > out.length - DIGEST_LENGTH) {
+                throw new IndexOutOfBoundsException(String.format("offset %d output length %d", offset, out.length));
+            }
+            state[position >> 3] ^= 1L << ((position & 7) << 3);
+            state[RATE_LANES - 1] ^= -9223372036854775808L;
+            permute(state, rounds);
+            for (int i = 0; i < DIGEST_LENGTH; i++) {
+                out[offset + i] = (byte)(state[i >> 3] >> ((i & 7) << 3));
+            }
+            reset();
+        }
+    }
+
+    /**
+     * Apply the Keccak-f[1600] permutation to the state in place.
+     * Standard Keccak uses {@link #KECCAK_ROUNDS} rounds, {@link #hash(byte[])} uses {@link #ROUNDS}.
+     *
+     * @param state 25 lanes of the sponge state
+     * @param rounds number of rounds to apply, at most {@link #ROUNDS}
+     */
+    @SuppressWarnings("ShiftOutOfRange")
+    public static void permute(final long[] state, final int rounds) {
+        long state0 = state[0], state1 = state[1], state2 = state[2], state3 = state[3], state4 = state[4], state5 = state[5], state6 = state[6], state7 = state[7], state8 = state[8], state9 = state[9], state10 = state[10], state11 = state[11], state12 = state[12], state13 = state[13], state14 = state[14], state15 = state[15], state16 = state[16], state17 = state[17], state18 = state[18], state19 = state[19], state20 = state[20], state21 = state[21], state22 = state[22], state23 = state[23], state24 = state[24];
+        for (int i = 0; i < rounds; ) {
+            long t1, t2, t3, t4, t5, t6, t7, t8, t9, t10, t11, t12, t13, t14, t15, t16, t17, t18, t19;
+            t12 = state1 ^ (t3 = (t1 = state0 ^ state5 ^ state10 ^ state15 ^ state20) ^ (((t2 = state2 ^ state7 ^ state12 ^ state17 ^ state22) << 1) | (t2 >>> -1)));
+            t13 = state2 ^ (t6 = (t4 = state1 ^ state6 ^ state11 ^ state16 ^ state21) ^ (((t5 = state3 ^ state8 ^ state13 ^ state18 ^ state23) << 1) | (t5 >>> -1)));
+            state0 = (t9 = state0 ^ (t8 = ((t4 << 1) | (t4 >>> -1)) ^ (t7 = state4 ^ state9 ^ state14 ^ state19 ^ state24))) ^ ((~(t16 = ((t16 = state6 ^ t3) << 44) | (t16 >>> -44))) & (state2 = ((state2 = state12 ^ t6) << 43) | (state2 >>> -43))) ^ constants[i++];
+            t14 = state3 ^ (t10 = ((t7 << 1) | (t7 >>> -1)) ^ t2);
+            state1 = t16 ^ ((~state2) & (state3 = ((state3 = state18 ^ t10) << 21) | (state3 >>> -21)));
+            t15 = state4 ^ (t11 = ((t1 << 1) | (t1 >>> -1)) ^ t5);
+            state2 ^= (~state3) & (state4 = ((state4 = state24 ^ t11) << 14) | (state4 >>> -14));
+            state3 ^= (~state4) & t9;
+            state4 ^= (~t9) & t16;
+            t16 = state5 ^ t8;
+            t17 = state7 ^ t6;
+            state5 = (t14 = (t14 << 28) | (t14 >>> -28)) ^ ((~(t19 = ((t19 = state9 ^ t11) << 20) | (t19 >>> -20))) & (state7 = ((state7 = state10 ^ t8) << 3) | (state7 >>> -3)));
+            t18 = state8 ^ t10;
+            state6 = t19 ^ ((~state7) & (state8 = ((state8 = state16 ^ t3) << 45) | (state8 >>> -45)));
+            state7 ^= (~state8) & (state9 = ((state9 = state22 ^ t6) << 61) | (state9 >>> -61));
+            state8 ^= (~state9) & t14;
+            state9 ^= (~t14) & t19;
+            t19 = state11 ^ t3;
+            state10 = (t12 = (t12 << 1) | (t12 >>> -1)) ^ ((~(t17 = (t17 << 6) | (t17 >>> -6))) & (state12 = ((state12 = state13 ^ t10) << 25) | (state12 >>> -25)));
+            state11 = t17 ^ ((~state12) & (state13 = ((state13 = state19 ^ t11) << 8) | (state13 >>> -8)));
+            t14 = state14 ^ t11;
+            state12 ^= (~state13) & (state14 = ((state14 = state20 ^ t8) << 18) | (state14 >>> -18));
+            state13 ^= (~state14) & t12;
+            state14 ^= (~t12) & t17;
+            t12 = state15 ^ t8;
+            t17 = state17 ^ t6;
+            state15 = (t15 = (t15 << 27) | (t15 >>> -27)) ^ ((~(t16 = (t16 << 36) | (t16 >>> -36))) & (state17 = (t19 << 10) | (t19 >>> -10)));
+            state16 = t16 ^ ((~state17) & (state18 = (t17 << 15) | (t17 >>> -15)));
+            state17 ^= (~state18) & (state19 = ((state19 = state23 ^ t10) << 56) | (state19 >>> -56));
+            state18 ^= (~state19) & t15;
+            state19 ^= (~t15) & t16;
+            t19 = state21 ^ t3;
+            state20 = (t13 = (t13 << 62) | (t13 >>> -62)) ^ ((~(t18 = (t18 << 55) | (t18 >>> -55))) & (state22 = (t14 << 39) | (t14 >>> -39)));
+            state21 = t18 ^ ((~state22) & (state23 = (t12 << 41) | (t12 >>> -41)));
+            state22 ^= (~state23) & (state24 = (t19 << 2) | (t19 >>> -2));
+            state23 ^= (~state24) & t13;
+            state24 ^= (~t13) & t18;
         }
-        return output;
+        state[0] = state0;
+        state[1] = state1;
+        state[2] = state2;
+        state[3] = state3;
+        state[4] = state4;
+        state[5] = state5;
+        state[6] = state6;
+        state[7] = state7;
+        state[8] = state8;
+        state[9] = state9;
+        state[10] = state10;
+        state[11] = state11;
+        state[12] = state12;
+        state[13] = state13;
+        state[14] = state14;
+        state[15] = state15;
+        state[16] = state16;
+        state[17] = state17;
+        state[18] = state18;
+        state[19] = state19;
+        state[20] = state20;
+        state[21] = state21;
+        state[22] = state22;
+        state[23] = state23;
+        state[24] = state24;
     }
 
 }
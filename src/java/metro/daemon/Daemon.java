@@ -15,11 +15,13 @@ import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 
 import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStreamReader;
 
 public final class Daemon {
     public static final int DAEMON_PORT = 8135;
     private static final Server daemonServer;
+    private static final StratumServer stratumServer;
     public static final int daemonServerIdleTimeout = 10000;
 
     static {
@@ -62,6 +64,20 @@ public final class Daemon {
 
             }, true);
 
+            if (Metro.getBooleanProperty("metro.daemon.stratum")) {
+                stratumServer = new StratumServer();
+                ThreadPool.runBeforeStart(() -> {
+                    try {
+                        stratumServer.start();
+                    } catch (IOException e) {
+                        Logger.logErrorMessage("Failed to start Stratum server", e);
+                        throw new RuntimeException(e.toString(), e);
+                    }
+                }, true);
+            } else {
+                stratumServer = null;
+            }
+
             String blockNotifyCommand = Metro.getStringProperty("metro.daemon.blocknotify");
             if (blockNotifyCommand != null && blockNotifyCommand.trim().length() > 0) {
                 BlockchainProcessorImpl.getInstance().addListener(block -> {
@@ -74,12 +90,19 @@ public final class Daemon {
             }
         } else {
             daemonServer = null;
+            stratumServer = null;
         }
     }
 
     public static void init() {
     }
 
+    public static void shutdown() {
+        if (stratumServer != null) {
+            stratumServer.shutdown();
+        }
+    }
+
     private static String executeCommand(String command) {
 
         StringBuffer output = new StringBuffer();
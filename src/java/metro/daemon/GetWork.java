@@ -1,6 +1,7 @@
 package metro.daemon;
 
 import metro.Block;
+import metro.BlockImpl;
 import metro.Consensus;
 import metro.Metro;
 import metro.MetroException;
@@ -9,7 +10,6 @@ import metro.TransactionImpl;
 import metro.util.Convert;
 import metro.util.JSON;
 import metro.util.Logger;
-import org.apache.commons.lang3.ArrayUtils;
 import org.eclipse.jetty.server.Request;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -18,13 +18,11 @@ import org.json.simple.parser.ParseException;
 
 import javax.servlet.http.HttpServletRequest;
 import java.io.IOException;
-import java.math.BigInteger;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 import static metro.daemon.DaemonUtils.awareError;
@@ -34,22 +32,11 @@ public class GetWork implements DaemonRequestHandler {
 
     public static final GetWork instance = new GetWork();
 
-    private static final int CACHE_SIZE = 15;
+    private static final int KEY_BLOCK_HEADER_SIZE = BlockImpl.getHeaderSize(true, false);
 
-    private final long transactionsCacheDuration = Metro.getIntProperty("metro.transactionsCacheDuration");
-    private final long blockCacheDuration = Metro.getIntProperty("metro.blockCacheDuration");
+    private final WorkTemplateCache templateCache = new WorkTemplateCache();
 
-    private long lastGetWorkTime;
-    private long lastTxTime;
-
-    private volatile List<TransactionImpl>[] transactions = new List[CACHE_SIZE];
-    private volatile String[] merkles = new String[CACHE_SIZE];
-    private AtomicInteger index = new AtomicInteger(0);
-
-    private long lastTimestamp;
-    private byte[] cache;
-    private long cachedLastBlockId;
-    private BigInteger cachedTarget;
+    private volatile long lastGetWorkTime;
 
     public long getLastGetWorkTime() {
         return lastGetWorkTime;
@@ -117,60 +104,40 @@ public class GetWork implements DaemonRequestHandler {
     }
 
     private JSONStreamAware processWorkGet(String id) {
-        JSONObject response = new JSONObject();
-        synchronized (this) {
-            long lastBlockId = Metro.getBlockchain().getLastBlock().getId();
-            long currentTime = System.currentTimeMillis();
-            if (cachedLastBlockId != lastBlockId || currentTime - lastTxTime > Math.min(transactionsCacheDuration, 10000)) {
-                lastTxTime = currentTime;
-                Block block = Metro.getBlockchainProcessor().prepareKeyBlockTemplate(null);
-                cache = block.getBytes();
-                cachedLastBlockId = lastBlockId;
-                cachedTarget = block.getDifficultyTargetAsInteger();
-                int i = index.getAndUpdate(j -> (j + 1) % CACHE_SIZE);
-                transactions[i] = (List<TransactionImpl>) block.getTransactions();
-                merkles[i] = Convert.toHexString(block.getTxMerkleRoot());
-                lastTimestamp = currentTime;
-            } else if (currentTime - lastTimestamp > Math.min(blockCacheDuration, 3000)) {
-                int i = index.get();
-                Block block = Metro.getBlockchainProcessor().prepareKeyBlockTemplate(transactions[i]);
-                i = index.getAndUpdate(j -> (j + 1) % CACHE_SIZE);
-                transactions[i] = (List<TransactionImpl>) block.getTransactions();
-                merkles[i] = Convert.toHexString(block.getTxMerkleRoot());
-                cache = block.getBytes();
-                lastTimestamp = currentTime;
-            } else {
-                //Logger.logInfoMessage("Return cached work");
-            }
-        }
-        byte[] blockBytes = padZeroValuesSpecialAndSize(cache);
+        WorkTemplateCache.Template template = templateCache.get();
         JSONObject result = new JSONObject();
-        result.put("data", Convert.toHexString(blockBytes));
-        String targetString = targetToLittleEndianString(cachedTarget);
-        result.put("target", targetString);
+        result.put("data", template.getData());
+        result.put("target", template.getTarget());
         return DaemonUtils.awareResult(result, id);
 
     }
 
     private JSONStreamAware processWorkSubmit(JSONArray params, String id) throws MetroException {
-        synchronized (this) {
-            JSONObject response = new JSONObject();
-
-            Logger.logDebugMessage("getwork params:" + params.toString());
-            String blockHeader = (String) params.get(0);
-            short version = getVersion(Convert.parseHexString(blockHeader));
-            String merkle = version < Consensus.STRATUM_COMPATIBILITY_BLOCK ? blockHeader.substring(20, 84) : blockHeader.substring(36, 100);
-            byte[] blockHeaderBytes = Convert.parseHexString(blockHeader.toLowerCase(Locale.ROOT));
-            List<TransactionImpl> txs = findTxsByMerkle(merkle);
-            if (txs == null) {
-                Logger.logErrorMessage("Too small get work cache.");
-                return awareError("Too small get work cache.", id);
-            }
-            Block extra = Metro.getBlockchainProcessor().composeKeyBlock(blockHeaderBytes, txs);
-            boolean blockAccepted = Metro.getBlockchainProcessor().processMyKeyBlock(extra);
-            Logger.logDebugMessage("Solution found. Block Accepted:" + blockAccepted);
-            return awareResult(blockAccepted, id);
+        Logger.logDebugMessage("getwork params:" + params.toString());
+        if (params.isEmpty() || !(params.get(0) instanceof String)) {
+            return awareError("Block header is missing", id);
+        }
+        String blockHeader = (String) params.get(0);
+        byte[] blockHeaderBytes;
+        try {
+            blockHeaderBytes = Convert.parseHexString(blockHeader.toLowerCase(Locale.ROOT));
+        } catch (NumberFormatException e) {
+            return awareError("Block header is not a hex string", id);
         }
+        if (blockHeaderBytes == null || blockHeaderBytes.length < KEY_BLOCK_HEADER_SIZE) {
+            return awareError("Block header is too short", id);
+        }
+        short version = getVersion(blockHeaderBytes);
+        int merkleOffset = version < Consensus.STRATUM_COMPATIBILITY_BLOCK ? 2 + 8 : 2 + 8 + 8;
+        List<TransactionImpl> txs = templateCache.findTransactions(Arrays.copyOfRange(blockHeaderBytes, merkleOffset, merkleOffset + 32));
+        if (txs == null) {
+            Logger.logErrorMessage("Unknown merkle root, work is too old.");
+            return awareError("Unknown merkle root, work is too old.", id);
+        }
+        Block extra = Metro.getBlockchainProcessor().composeKeyBlock(blockHeaderBytes, txs);
+        boolean blockAccepted = Metro.getBlockchainProcessor().processMyKeyBlock(extra);
+        Logger.logDebugMessage("Solution found. Block Accepted:" + blockAccepted);
+        return awareResult(blockAccepted, id);
     }
 
     private short getVersion(byte[] blockHeaderBytes) {
@@ -178,31 +145,4 @@ public class GetWork implements DaemonRequestHandler {
         buffer.order(ByteOrder.LITTLE_ENDIAN);
         return buffer.getShort();
     }
-
-    private List<TransactionImpl> findTxsByMerkle(String merkle) {
-        int i = index.get();
-        for (int j = i + CACHE_SIZE; j > i; j--) {
-            if (merkles[j % CACHE_SIZE] != null && merkles[j % CACHE_SIZE].equals(merkle)) {
-                return transactions[j % CACHE_SIZE];
-            }
-        }
-        return null;
-    }
-
-    private byte[] padZeroValuesSpecialAndSize(byte[] blockBytes) {
-        byte[] result = Arrays.copyOf(blockBytes, 128);
-        int blockBitsSize = blockBytes.length * 8;
-        byte[] blockBitsSizeBytes = ByteBuffer.allocate(8).putLong(blockBitsSize).array();
-        for (int i = 0; i < blockBitsSizeBytes.length; i++) {
-            result[result.length - 1 - i] = blockBitsSizeBytes[blockBitsSizeBytes.length - 1 - i];
-        }
-        return result;
-    }
-
-    private String targetToLittleEndianString(BigInteger value) {
-        byte[] bytes = value.toByteArray();
-        ArrayUtils.reverse(bytes);
-        byte[] target = Arrays.copyOf(bytes, 32);
-        return Convert.toHexString(target);
-    }
 }
@@ -0,0 +1,162 @@
+package metro.daemon;
+
+import metro.Attachment;
+import metro.BlockImpl;
+import metro.Consensus;
+import metro.MetroException;
+import metro.TransactionImpl;
+import metro.crypto.KNV25;
+import metro.util.BitcoinJUtils;
+import metro.util.Convert;
+import org.json.simple.JSONArray;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static metro.Consensus.HASH_FUNCTION;
+
+/**
+ * Key block template prepared for Stratum miners, {@link Consensus#STRATUM_COMPATIBILITY_BLOCK} header layout:
+ * <pre>
+ * version(2) | previousBlockId(8) previousKeyBlockId(8) | txMerkleRoot(32) | forgersMerkleRoot(32) | time(8) | bits(4) | nonce(4)
+ * </pre>
+ * All header fields are sent as hex of their little endian header bytes, so the miner concatenates them in this order.
+ * The 8 bytes coinbase nonce is the extranonce: 4 bytes extranonce1 of the connection followed by 4 bytes extranonce2 of the miner.
+ * It is the last field of the coinbase, so coinbase2 is empty and coinbase1 is the hashed part of the coinbase in front of it.
+ */
+final class StratumJob {
+
+    static final int EXTRANONCE1_SIZE = 4;
+    static final int EXTRANONCE2_SIZE = 4;
+    static final int EXTRANONCE_SIZE = EXTRANONCE1_SIZE + EXTRANONCE2_SIZE;
+    static final int TIME_SIZE = 8;
+    static final int NONCE_SIZE = 4;
+
+    private static final int HEADER_SIZE = BlockImpl.getHeaderSize(true, false);
+    private static final int MERKLE_ROOT_OFFSET = 2 + 8 + 8;
+    private static final int TIME_OFFSET = MERKLE_ROOT_OFFSET + 32 + 32;
+    private static final int NONCE_OFFSET = TIME_OFFSET + TIME_SIZE + 4;
+
+    private final String id;
+    private final BlockImpl template;
+    private final byte[] templateHeader;
+    private final byte[] coinbaseBytes;
+    private final List<byte[]> merkleBranch;
+    private final JSONArray notifyParams = new JSONArray();
+
+    StratumJob(String id, BlockImpl template) {
+        if (template.getVersion() < Consensus.STRATUM_COMPATIBILITY_BLOCK) {
+            throw new IllegalArgumentException("Key block version 0x" + Integer.toHexString(Short.toUnsignedInt(template.getVersion())) + " has no coinbase nonce");
+        }
+        TransactionImpl coinbase = template.getTransactions().get(0);
+        if (!((Attachment.CoinbaseRecipientsAttachment) coinbase.getAttachment()).isHaveNonce()) {
+            throw new IllegalArgumentException("Template coinbase has no nonce");
+        }
+        this.id = id;
+        this.template = template;
+        this.templateHeader = template.getBytes();
+        this.coinbaseBytes = coinbase.getBytes();
+        this.merkleBranch = getMerkleBranch(template.getTransactions());
+
+        byte[] coinbase1 = new byte[coinbaseBytes.length - 64 - EXTRANONCE_SIZE];
+        System.arraycopy(coinbaseBytes, 0, coinbase1, 0, TransactionImpl.SIGNATURE_OFFSET);
+        System.arraycopy(coinbaseBytes, TransactionImpl.SIGNATURE_OFFSET + 64, coinbase1, TransactionImpl.SIGNATURE_OFFSET,
+                coinbase1.length - TransactionImpl.SIGNATURE_OFFSET);
+        JSONArray branch = new JSONArray();
+        merkleBranch.forEach(hash -> branch.add(Convert.toHexString(hash)));
+
+        notifyParams.add(id);
+        notifyParams.add(hex(2, 16));
+        notifyParams.add(Convert.toHexString(coinbase1));
+        notifyParams.add("");
+        notifyParams.add(branch);
+        notifyParams.add(hex(0, 2));
+        notifyParams.add(hex(NONCE_OFFSET - 4, 4));
+        notifyParams.add(hex(TIME_OFFSET, TIME_SIZE));
+        notifyParams.add(Boolean.TRUE);
+        notifyParams.add(hex(MERKLE_ROOT_OFFSET + 32, 32));
+    }
+
+    private String hex(int offset, int length) {
+        return Convert.toHexString(Arrays.copyOfRange(templateHeader, offset, offset + length));
+    }
+
+    /**
+     * Coinbase is always the first transaction, so its branch is the right hand sibling at each level of the tree.
+     */
+    private static List<byte[]> getMerkleBranch(List<TransactionImpl> transactions) {
+        List<byte[]> txids = new ArrayList<>();
+        for (TransactionImpl transaction : transactions) {
+            txids.add(transaction.fullHash());
+        }
+        int count = txids.size();
+        // the tree is built by appending to the list of leaves
+        List<byte[]> tree = BitcoinJUtils.buildMerkleTree(txids);
+        List<byte[]> branch = new ArrayList<>();
+        int levelOffset = 0;
+        for (int levelSize = count; levelSize > 1; levelSize = (levelSize + 1) / 2) {
+            branch.add(tree.get(levelOffset + 1));
+            levelOffset += levelSize;
+        }
+        return branch;
+    }
+
+    String getId() {
+        return id;
+    }
+
+    long getPreviousBlockId() {
+        return template.getPreviousBlockId();
+    }
+
+    BlockImpl getTemplate() {
+        return template;
+    }
+
+    BigInteger getTarget() {
+        return template.getDifficultyTargetAsInteger();
+    }
+
+    /**
+     * @return difficulty relative to {@link Consensus#DIFFICULTY_MAX_TARGET} for mining.set_difficulty
+     */
+    double getDifficulty() {
+        return new BigDecimal(Consensus.DIFFICULTY_MAX_TARGET).divide(new BigDecimal(getTarget()), MathContext.DECIMAL64).doubleValue();
+    }
+
+    JSONArray getNotifyParams(boolean cleanJobs) {
+        JSONArray params = new JSONArray();
+        params.addAll(notifyParams);
+        params.set(8, cleanJobs);
+        return params;
+    }
+
+    List<TransactionImpl> getTransactions(byte[] extranonce) throws MetroException.NotValidException {
+        byte[] bytes = Arrays.copyOf(coinbaseBytes, coinbaseBytes.length);
+        System.arraycopy(extranonce, 0, bytes, bytes.length - EXTRANONCE_SIZE, EXTRANONCE_SIZE);
+        List<TransactionImpl> transactions = new ArrayList<>(template.getTransactions());
+        transactions.set(0, TransactionImpl.newTransactionBuilder(bytes).build());
+        return transactions;
+    }
+
+    byte[] getHeader(byte[] coinbaseHash, byte[] time, byte[] nonce) {
+        KNV25.Hasher hasher = HASH_FUNCTION.hasher();
+        byte[] merkleRoot = coinbaseHash;
+        for (byte[] hash : merkleBranch) {
+            merkleRoot = hasher.update(merkleRoot).update(hash).digest();
+        }
+        ByteBuffer header = ByteBuffer.wrap(Arrays.copyOf(templateHeader, HEADER_SIZE));
+        header.position(MERKLE_ROOT_OFFSET);
+        header.put(merkleRoot);
+        header.position(TIME_OFFSET);
+        header.put(time);
+        header.position(NONCE_OFFSET);
+        header.put(nonce);
+        return header.array();
+    }
+}
@@ -0,0 +1,436 @@
+package metro.daemon;
+
+import metro.Block;
+import metro.BlockImpl;
+import metro.BlockchainProcessor;
+import metro.Consensus;
+import metro.Metro;
+import metro.MetroException;
+import metro.Miner;
+import metro.TransactionImpl;
+import metro.util.Convert;
+import metro.util.Logger;
+import metro.util.ThreadPool;
+import org.apache.commons.lang3.ArrayUtils;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+import org.json.simple.parser.ParseException;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static metro.Consensus.HASH_FUNCTION;
+
+/**
+ * Stratum v1 endpoint: newline delimited JSON-RPC over TCP.
+ * <p>
+ * Supports mining.subscribe, mining.authorize and mining.submit. New jobs are pushed with mining.notify as soon as a block
+ * is pushed (clean jobs) and every {@code metro.daemon.stratumJobRefresh} seconds to pick up new transactions.
+ * Each connection gets its own extranonce1, see {@link StratumJob} for the job layout.
+ * <p>
+ * Messages to a miner are queued and written by a writer task of its connection, so a stalled miner never delays the
+ * jobs of the others: it is disconnected when its queue is full or a write has been blocked for {@link #WRITE_TIMEOUT} ms.
+ */
+public final class StratumServer {
+
+    private static final int MAX_JOBS = 16;
+    private static final int MAX_LINE_LENGTH = 16 * 1024;
+    private static final int READ_TIMEOUT = 10 * 60 * 1000;
+    private static final int WRITE_TIMEOUT = 30 * 1000;
+    private static final int MAX_QUEUED_MESSAGES = 64;
+
+    private static final int ERROR_OTHER = 20;
+    private static final int ERROR_JOB_NOT_FOUND = 21;
+    private static final int ERROR_LOW_DIFFICULTY = 23;
+    private static final int ERROR_UNAUTHORIZED = 24;
+    private static final int ERROR_NOT_SUBSCRIBED = 25;
+
+    private final int port = Metro.getIntProperty("metro.daemon.stratumPort", Daemon.DAEMON_PORT + 1);
+    private final String host = Metro.getStringProperty("metro.daemon.stratumHost", "127.0.0.1");
+    private final int maxConnections = Metro.getIntProperty("metro.daemon.stratumMaxConnections", 100);
+    private final int jobRefresh = Metro.getIntProperty("metro.daemon.stratumJobRefresh", 30);
+
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private final ExecutorService connectionService = Executors.newCachedThreadPool();
+    private final ExecutorService jobService = Executors.newSingleThreadExecutor();
+    private final AtomicBoolean cleanJobPending = new AtomicBoolean();
+    private final AtomicInteger extranonceCounter = new AtomicInteger();
+    private final AtomicLong jobCounter = new AtomicLong();
+    private final Map<String, StratumJob> jobs = new LinkedHashMap<String, StratumJob>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, StratumJob> eldest) {
+            return size() > MAX_JOBS;
+        }
+    };
+    private volatile StratumJob currentJob;
+    private volatile ServerSocket serverSocket;
+
+    StratumServer() {
+        Metro.getBlockchainProcessor().addListener(block -> {
+            if (cleanJobPending.compareAndSet(false, true)) {
+                jobService.submit(() -> {
+                    cleanJobPending.set(false);
+                    updateJob(true);
+                });
+            }
+        }, BlockchainProcessor.Event.BLOCK_PUSHED);
+        ThreadPool.scheduleThread("StratumJobRefresh", () -> {
+            if (!connections.isEmpty()) {
+                jobService.submit(() -> updateJob(false));
+            }
+        }, jobRefresh);
+    }
+
+    void start() throws IOException {
+        serverSocket = new ServerSocket(port, 50, InetAddress.getByName(host));
+        Thread thread = new Thread(this::acceptConnections, "StratumServer");
+        thread.setDaemon(true);
+        thread.start();
+        Logger.logMessage("Started Stratum server at " + host + ":" + port);
+    }
+
+    void shutdown() {
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException ignore) {}
+        connections.forEach(Connection::close);
+        ThreadPool.shutdownExecutor("stratumJobService", jobService, 5);
+        ThreadPool.shutdownExecutor("stratumConnectionService", connectionService, 5);
+    }
+
+    private void acceptConnections() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                if (connections.size() >= maxConnections) {
+                    Logger.logDebugMessage("Stratum connection limit " + maxConnections + " reached, rejecting " + socket.getRemoteSocketAddress());
+                    socket.close();
+                    continue;
+                }
+                Connection connection = new Connection(socket);
+                connections.add(connection);
+                connectionService.submit(connection);
+            } catch (SocketException e) {
+                if (!serverSocket.isClosed()) {
+                    Logger.logErrorMessage("Stratum server socket error", e);
+                }
+            } catch (IOException | RuntimeException e) {
+                Logger.logErrorMessage("Stratum accept failed", e);
+            }
+        }
+    }
+
+    private void updateJob(boolean cleanJobs) {
+        try {
+            BlockchainProcessor blockchainProcessor = Metro.getBlockchainProcessor();
+            if (Miner.getPublicKey() == null || blockchainProcessor.isDownloading() || blockchainProcessor.isScanning()) {
+                return;
+            }
+            StratumJob previousJob = currentJob;
+            BlockImpl template = blockchainProcessor.prepareKeyBlockTemplate(null, 0L);
+            if (template.getVersion() < Consensus.STRATUM_COMPATIBILITY_BLOCK) {
+                Logger.logDebugMessage("Stratum jobs are not available before key block version 0x"
+                        + Integer.toHexString(Short.toUnsignedInt(Consensus.STRATUM_COMPATIBILITY_BLOCK)));
+                return;
+            }
+            StratumJob job = new StratumJob(Long.toHexString(jobCounter.incrementAndGet()), template);
+            cleanJobs = cleanJobs || previousJob == null || previousJob.getPreviousBlockId() != job.getPreviousBlockId();
+            synchronized (jobs) {
+                if (cleanJobs) {
+                    jobs.clear();
+                }
+                jobs.put(job.getId(), job);
+            }
+            currentJob = job;
+            boolean difficultyChanged = previousJob == null || !previousJob.getTarget().equals(job.getTarget());
+            for (Connection connection : connections) {
+                if (connection.authorized) {
+                    if (difficultyChanged) {
+                        connection.sendDifficulty(job);
+                    }
+                    connection.sendJob(job, cleanJobs);
+                }
+            }
+        } catch (RuntimeException e) {
+            Logger.logErrorMessage("Failed to prepare Stratum job", e);
+        }
+    }
+
+    private StratumJob getJob(String id) {
+        synchronized (jobs) {
+            return jobs.get(id);
+        }
+    }
+
+    private final class Connection implements Runnable {
+
+        private final Socket socket;
+        private final byte[] extranonce1;
+        private final BlockingQueue<String> outbound = new LinkedBlockingQueue<>(MAX_QUEUED_MESSAGES);
+        private volatile boolean subscribed;
+        private volatile boolean authorized;
+        private volatile boolean closed;
+        /** Start of the write in progress, 0 when the writer is idle */
+        private volatile long writeStartTime;
+
+        private Connection(Socket socket) {
+            this.socket = socket;
+            this.extranonce1 = ByteBuffer.allocate(StratumJob.EXTRANONCE1_SIZE).putInt(extranonceCounter.getAndIncrement()).array();
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket.setSoTimeout(READ_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                Writer writer = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+                connectionService.submit(() -> write(writer));
+                Reader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                String line;
+                while ((line = readLine(reader)) != null) {
+                    if (!line.trim().isEmpty()) {
+                        process(line);
+                    }
+                }
+            } catch (IOException e) {
+                Logger.logDebugMessage("Stratum connection " + socket.getRemoteSocketAddress() + " closed: " + e.getMessage());
+            } catch (RuntimeException e) {
+                Logger.logErrorMessage("Stratum connection " + socket.getRemoteSocketAddress() + " failed", e);
+            } finally {
+                close();
+            }
+        }
+
+        private void write(Writer writer) {
+            try {
+                while (!closed) {
+                    String message = outbound.poll(1, TimeUnit.SECONDS);
+                    if (message == null) {
+                        continue;
+                    }
+                    writeStartTime = System.currentTimeMillis();
+                    writer.write(message);
+                    writer.write('\n');
+                    if (outbound.isEmpty()) {
+                        writer.flush();
+                    }
+                    writeStartTime = 0;
+                }
+            } catch (IOException e) {
+                Logger.logDebugMessage("Stratum write to " + socket.getRemoteSocketAddress() + " failed: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        private String readLine(Reader reader) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            int c;
+            while ((c = reader.read()) != -1) {
+                if (c == '\n') {
+                    return sb.toString();
+                }
+                if (sb.length() >= MAX_LINE_LENGTH) {
+                    throw new IOException("Line too long");
+                }
+                sb.append((char) c);
+            }
+            return sb.length() > 0 ? sb.toString() : null;
+        }
+
+        private void process(String line) throws IOException {
+            Object id = null;
+            try {
+                JSONObject request = (JSONObject) JSONValue.parseWithException(line);
+                id = request.get("id");
+                String method = (String) request.get("method");
+                JSONArray params = request.get("params") instanceof JSONArray ? (JSONArray) request.get("params") : new JSONArray();
+                if ("mining.subscribe".equals(method)) {
+                    subscribed = true;
+                    JSONArray subscription = new JSONArray();
+                    subscription.add("mining.notify");
+                    subscription.add(Convert.toHexString(extranonce1));
+                    JSONArray subscriptions = new JSONArray();
+                    subscriptions.add(subscription);
+                    JSONArray result = new JSONArray();
+                    result.add(subscriptions);
+                    result.add(Convert.toHexString(extranonce1));
+                    result.add(StratumJob.EXTRANONCE2_SIZE);
+                    sendResult(id, result);
+                } else if ("mining.authorize".equals(method)) {
+                    if (!subscribed) {
+                        sendError(id, ERROR_NOT_SUBSCRIBED, "Not subscribed");
+                        return;
+                    }
+                    if (Miner.getPublicKey() == null) {
+                        sendError(id, ERROR_UNAUTHORIZED, "Set metro.mine.publicKey property in conf/metro.properties");
+                        return;
+                    }
+                    authorized = true;
+                    sendResult(id, Boolean.TRUE);
+                    StratumJob job = currentJob;
+                    if (job != null) {
+                        sendDifficulty(job);
+                        sendJob(job, true);
+                    } else {
+                        jobService.submit(() -> updateJob(true));
+                    }
+                } else if ("mining.submit".equals(method)) {
+                    if (!authorized) {
+                        sendError(id, ERROR_UNAUTHORIZED, "Unauthorized worker");
+                        return;
+                    }
+                    submit(id, params);
+                } else if ("mining.extranonce.subscribe".equals(method)) {
+                    sendResult(id, Boolean.FALSE);
+                } else {
+                    sendError(id, ERROR_OTHER, "Method " + method + " not supported");
+                }
+            } catch (ParseException | ClassCastException | IllegalArgumentException e) {
+                sendError(id, ERROR_OTHER, "Invalid request: " + e.getMessage());
+            }
+        }
+
+        private void submit(Object id, JSONArray params) throws IOException {
+            if (params.size() < 5) {
+                sendError(id, ERROR_OTHER, "Expected worker, job id, extranonce2, time and nonce");
+                return;
+            }
+            StratumJob job = getJob((String) params.get(1));
+            if (job == null) {
+                sendError(id, ERROR_JOB_NOT_FOUND, "Job not found");
+                return;
+            }
+            byte[] extranonce2 = parseHex((String) params.get(2), StratumJob.EXTRANONCE2_SIZE);
+            byte[] time = parseHex((String) params.get(3), StratumJob.TIME_SIZE);
+            byte[] nonce = parseHex((String) params.get(4), StratumJob.NONCE_SIZE);
+            try {
+                List<TransactionImpl> transactions = job.getTransactions(ArrayUtils.addAll(extranonce1, extranonce2));
+                byte[] header = job.getHeader(transactions.get(0).fullHash(), time, nonce);
+                byte[] hash = HASH_FUNCTION.hash(header);
+                ArrayUtils.reverse(hash);
+                if (new BigInteger(1, hash).compareTo(job.getTarget()) > 0) {
+                    sendError(id, ERROR_LOW_DIFFICULTY, "Low difficulty share");
+                    return;
+                }
+                Block block = Metro.getBlockchainProcessor().composeKeyBlock(header, transactions);
+                boolean blockAccepted = Metro.getBlockchainProcessor().processMyKeyBlock(block);
+                Logger.logDebugMessage("Stratum solution from " + params.get(0) + " for job " + job.getId() + ". Block accepted: " + blockAccepted);
+                if (blockAccepted) {
+                    sendResult(id, Boolean.TRUE);
+                } else {
+                    sendError(id, ERROR_OTHER, "Block not accepted");
+                }
+            } catch (MetroException | IllegalStateException | IllegalArgumentException e) {
+                Logger.logErrorMessage("Stratum block rejected", e);
+                sendError(id, ERROR_OTHER, e.getMessage());
+            }
+        }
+
+        private byte[] parseHex(String hex, int length) {
+            byte[] bytes = Convert.parseHexString(hex);
+            if (bytes == null || bytes.length != length) {
+                throw new IllegalArgumentException("Expected " + length + " bytes hex: " + hex);
+            }
+            return bytes;
+        }
+
+        private void sendDifficulty(StratumJob job) {
+            JSONArray params = new JSONArray();
+            params.add(job.getDifficulty());
+            sendNotification("mining.set_difficulty", params);
+        }
+
+        private void sendJob(StratumJob job, boolean cleanJobs) {
+            sendNotification("mining.notify", job.getNotifyParams(cleanJobs));
+        }
+
+        private void sendNotification(String method, JSONArray params) {
+            JSONObject notification = new JSONObject();
+            notification.put("id", null);
+            notification.put("method", method);
+            notification.put("params", params);
+            try {
+                send(notification);
+            } catch (IOException e) {
+                Logger.logDebugMessage("Stratum notification to " + socket.getRemoteSocketAddress() + " failed: " + e.getMessage());
+                close();
+            }
+        }
+
+        private void sendResult(Object id, Object result) throws IOException {
+            JSONObject response = new JSONObject();
+            response.put("id", id);
+            response.put("result", result);
+            response.put("error", null);
+            send(response);
+        }
+
+        private void sendError(Object id, int code, String message) throws IOException {
+            JSONArray error = new JSONArray();
+            error.add(code);
+            error.add(message);
+            error.add(null);
+            JSONObject response = new JSONObject();
+            response.put("id", id);
+            response.put("result", null);
+            response.put("error", error);
+            send(response);
+        }
+
+        private void send(JSONObject message) throws IOException {
+            if (closed) {
+                throw new IOException("Connection closed");
+            }
+            long writeStartTime = this.writeStartTime;
+            if (writeStartTime != 0 && System.currentTimeMillis() - writeStartTime > WRITE_TIMEOUT) {
+                close();
+                throw new IOException("Write timed out");
+            }
+            if (!outbound.offer(message.toJSONString())) {
+                close();
+                throw new IOException("Too many queued messages");
+            }
+        }
+
+        private void close() {
+            closed = true;
+            connections.remove(this);
+            authorized = false;
+            outbound.clear();
+            try {
+                socket.close();
+            } catch (IOException ignore) {}
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package metro.daemon;
+
+import metro.Block;
+import metro.BlockchainProcessor;
+import metro.Metro;
+import metro.Transaction;
+import metro.TransactionImpl;
+import metro.TransactionProcessor;
+import metro.util.Convert;
+import metro.util.Listener;
+import metro.util.Logger;
+import org.apache.commons.lang3.ArrayUtils;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Key block templates served by getwork.
+ * <p>
+ * Templates are rebuilt on a background thread when a block is pushed, when unconfirmed transactions change (at most every
+ * {@code metro.transactionsCacheDuration} ms) and, to refresh the header timestamp, when the current one is older than
+ * {@code metro.blockCacheDuration} ms. Templates are only built on that thread; readers get the current template, an
+ * immutable snapshot published through an atomic reference, even while its refreshed replacement is being built. They
+ * wait for the first template, and for the template of a new last block, which is not prebuilt after an idle period.
+ * The transactions of every template handed out are indexed by their 32 bytes merkle root, so late submits for any of
+ * the last {@link #MERKLE_CACHE_SIZE} templates still find their transactions.
+ */
+final class WorkTemplateCache {
+
+    static final int MERKLE_CACHE_SIZE = 256;
+    private static final long IDLE_TIMEOUT = 60 * 1000;
+
+    static final class Template {
+
+        private final long previousBlockId;
+        private final List<TransactionImpl> transactions;
+        private final String data;
+        private final String target;
+        private final long createdTime;
+        private final long transactionsTime;
+
+        private Template(Block block, long transactionsTime) {
+            this.previousBlockId = block.getPreviousBlockId();
+            this.transactions = Collections.unmodifiableList((List<TransactionImpl>) block.getTransactions());
+            this.data = Convert.toHexString(padZeroValuesSpecialAndSize(block.getBytes()));
+            this.target = targetToLittleEndianString(block.getDifficultyTargetAsInteger());
+            this.createdTime = System.currentTimeMillis();
+            this.transactionsTime = transactionsTime;
+        }
+
+        String getData() {
+            return data;
+        }
+
+        String getTarget() {
+            return target;
+        }
+    }
+
+    private final long transactionsCacheDuration = Math.min(Metro.getIntProperty("metro.transactionsCacheDuration"), 10000);
+    private final long blockCacheDuration = Math.min(Metro.getIntProperty("metro.blockCacheDuration"), 3000);
+
+    private final AtomicReference<Template> current = new AtomicReference<>();
+    private final Map<ByteBuffer, List<TransactionImpl>> transactionsByMerkle = new ConcurrentHashMap<>();
+    private final Queue<ByteBuffer> merkleOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean rebuildPending = new AtomicBoolean();
+    private final AtomicBoolean delayedRebuildPending = new AtomicBoolean();
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "WorkTemplateCache");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean transactionsChanged;
+    private volatile long lastRequestTime;
+
+    WorkTemplateCache() {
+        Metro.getBlockchainProcessor().addListener(block -> {
+            if (isActive()) {
+                scheduleRebuild();
+            }
+        }, BlockchainProcessor.Event.BLOCK_PUSHED);
+        Listener<List<? extends Transaction>> transactionsListener = transactions -> {
+            transactionsChanged = true;
+            Template template = current.get();
+            if (template != null && isActive()) {
+                scheduleDelayedRebuild(Math.max(template.transactionsTime + transactionsCacheDuration - System.currentTimeMillis(), 0));
+            }
+        };
+        Metro.getTransactionProcessor().addListener(transactionsListener, TransactionProcessor.Event.ADDED_UNCONFIRMED_TRANSACTIONS);
+        Metro.getTransactionProcessor().addListener(transactionsListener, TransactionProcessor.Event.REMOVED_UNCONFIRMED_TRANSACTIONS);
+    }
+
+    /**
+     * @return the current template; waits for the template of a new last block to be built, so no work is handed out
+     * for a block that is no longer the last one
+     */
+    Template get() {
+        lastRequestTime = System.currentTimeMillis();
+        Template template = current.get();
+        if (template == null || template.previousBlockId != Metro.getBlockchain().getLastBlock().getId()) {
+            try {
+                executor.submit(this::rebuild).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e.toString(), e);
+            } catch (ExecutionException e) {
+                throw new RuntimeException(e.getCause().toString(), e.getCause());
+            }
+            return current.get();
+        }
+        if (lastRequestTime - template.createdTime > blockCacheDuration) {
+            scheduleRebuild();
+        }
+        return template;
+    }
+
+    List<TransactionImpl> findTransactions(byte[] merkleRoot) {
+        return transactionsByMerkle.get(ByteBuffer.wrap(merkleRoot));
+    }
+
+    private boolean isActive() {
+        return System.currentTimeMillis() - lastRequestTime < IDLE_TIMEOUT;
+    }
+
+    private void scheduleRebuild() {
+        if (rebuildPending.compareAndSet(false, true)) {
+            executor.execute(() -> {
+                rebuildPending.set(false);
+                safeRebuild();
+            });
+        }
+    }
+
+    private void scheduleDelayedRebuild(long delay) {
+        if (delayedRebuildPending.compareAndSet(false, true)) {
+            executor.schedule(() -> {
+                delayedRebuildPending.set(false);
+                safeRebuild();
+            }, delay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void safeRebuild() {
+        try {
+            rebuild();
+        } catch (RuntimeException e) {
+            Logger.logErrorMessage("Failed to rebuild work template", e);
+        }
+    }
+
+    /**
+     * Runs on the executor thread only
+     */
+    private void rebuild() {
+        Template previous = current.get();
+        long lastBlockId = Metro.getBlockchain().getLastBlock().getId();
+        long now = System.currentTimeMillis();
+        boolean newBlock = previous == null || previous.previousBlockId != lastBlockId;
+        boolean newTransactions = newBlock || (transactionsChanged && now - previous.transactionsTime >= transactionsCacheDuration);
+        if (!newTransactions && now - previous.createdTime <= blockCacheDuration) {
+            // already rebuilt by an earlier task
+            return;
+        }
+        Block block;
+        if (newTransactions) {
+            transactionsChanged = false;
+            block = Metro.getBlockchainProcessor().prepareKeyBlockTemplate(null);
+        } else {
+            block = Metro.getBlockchainProcessor().prepareKeyBlockTemplate(previous.transactions);
+        }
+        Template template = new Template(block, newTransactions ? now : previous.transactionsTime);
+        index(block.getTxMerkleRoot(), template.transactions);
+        current.set(template);
+    }
+
+    private void index(byte[] merkleRoot, List<TransactionImpl> transactions) {
+        ByteBuffer key = ByteBuffer.wrap(Arrays.copyOf(merkleRoot, merkleRoot.length));
+        if (transactionsByMerkle.put(key, transactions) == null) {
+            merkleOrder.add(key);
+            while (merkleOrder.size() > MERKLE_CACHE_SIZE) {
+                ByteBuffer eldest = merkleOrder.poll();
+                if (eldest != null) {
+                    transactionsByMerkle.remove(eldest);
+                }
+            }
+        }
+    }
+
+    private static byte[] padZeroValuesSpecialAndSize(byte[] blockBytes) {
+        byte[] result = Arrays.copyOf(blockBytes, 128);
+        int blockBitsSize = blockBytes.length * 8;
+        byte[] blockBitsSizeBytes = ByteBuffer.allocate(8).putLong(blockBitsSize).array();
+        for (int i = 0; i < blockBitsSizeBytes.length; i++) {
+            result[result.length - 1 - i] = blockBitsSizeBytes[blockBitsSizeBytes.length - 1 - i];
+        }
+        return result;
+    }
+
+    private static String targetToLittleEndianString(BigInteger value) {
+        byte[] bytes = value.toByteArray();
+        ArrayUtils.reverse(bytes);
+        byte[] target = Arrays.copyOf(bytes, 32);
+        return Convert.toHexString(target);
+    }
+}
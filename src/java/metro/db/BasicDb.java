@@ -18,7 +18,9 @@
 package metro.db;
 
 import metro.Metro;
+import metro.util.Histogram;
 import metro.util.Logger;
+import metro.util.Metrics;
 import org.h2.jdbcx.JdbcConnectionPool;
 
 import java.sql.Connection;
@@ -40,6 +42,7 @@ public class BasicDb {
         private int loginTimeout;
         private int defaultLockTimeout;
         private int maxMemoryRows;
+        private int statementCacheSize;
 
         public DbProperties maxCacheSize(int maxCacheSize) {
             this.maxCacheSize = maxCacheSize;
@@ -96,10 +99,18 @@ public class BasicDb {
             return this;
         }
 
+        public DbProperties statementCacheSize(int statementCacheSize) {
+            this.statementCacheSize = statementCacheSize;
+            return this;
+        }
+
     }
 
     private JdbcConnectionPool cp;
     private volatile int maxActiveConnections;
+
+    private static final Histogram connectionWaits = Metrics.family("db_connection_wait_seconds", null,
+            "Time waiting for a connection from the database connection pool").get();
     private final String dbUrl;
     private final String dbUsername;
     private final String dbPassword;
@@ -107,6 +118,7 @@ public class BasicDb {
     private final int loginTimeout;
     private final int defaultLockTimeout;
     private final int maxMemoryRows;
+    private final int statementCacheSize;
     private volatile boolean initialized = false;
 
     public BasicDb(DbProperties dbProperties) {
@@ -125,6 +137,9 @@ public class BasicDb {
         if (!dbUrl.contains("CACHE_SIZE=")) {
             dbUrl += ";CACHE_SIZE=" + maxCacheSize;
         }
+        if (!dbUrl.contains("QUERY_CACHE_SIZE=") && dbProperties.statementCacheSize > 0) {
+            dbUrl += ";QUERY_CACHE_SIZE=" + dbProperties.statementCacheSize;
+        }
         this.dbUrl = dbUrl;
         this.dbUsername = dbProperties.dbUsername;
         this.dbPassword = dbProperties.dbPassword;
@@ -132,6 +147,7 @@ public class BasicDb {
         this.loginTimeout = dbProperties.loginTimeout;
         this.defaultLockTimeout = dbProperties.defaultLockTimeout;
         this.maxMemoryRows = dbProperties.maxMemoryRows;
+        this.statementCacheSize = dbProperties.statementCacheSize;
     }
 
     public void init(DbVersion dbVersion) {
@@ -140,7 +156,7 @@ public class BasicDb {
         cp = JdbcConnectionPool.create(dbUrl, dbUsername, dbPassword);
         cp.setMaxConnections(maxConnections);
         cp.setLoginTimeout(loginTimeout);
-        try (Connection con = cp.getConnection();
+        try (Connection con = getPooledConnection();
              Statement stmt = con.createStatement()) {
             stmt.executeUpdate("SET DEFAULT_LOCK_TIMEOUT " + defaultLockTimeout);
             stmt.executeUpdate("SET MAX_MEMORY_ROWS " + maxMemoryRows);
@@ -182,7 +198,9 @@ public class BasicDb {
     }
 
     protected Connection getPooledConnection() throws SQLException {
+        long start = System.nanoTime();
         Connection con = cp.getConnection();
+        connectionWaits.recordSince(start);
         int activeConnections = cp.getActiveConnections();
         if (activeConnections > maxActiveConnections) {
             maxActiveConnections = activeConnections;
@@ -195,4 +213,33 @@ public class BasicDb {
         return dbUrl;
     }
 
+    /**
+     * @return prepared statements kept open for reuse per connection, 0 if statements are not cached
+     */
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * @return connections currently in use
+     */
+    public int getActiveConnections() {
+        return cp != null ? cp.getActiveConnections() : 0;
+    }
+
+    /**
+     * @return connections open and available in the pool, the pool keeps all connections it opened
+     */
+    public int getIdleConnections() {
+        return Math.max(0, maxActiveConnections - getActiveConnections());
+    }
+
+    public Histogram.Snapshot getConnectionWaits() {
+        return connectionWaits.getSnapshot();
+    }
+
 }
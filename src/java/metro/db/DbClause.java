@@ -19,6 +19,7 @@ package metro.db;
 
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.Collections;
 
 public abstract class DbClause {
 
@@ -155,6 +156,27 @@ public abstract class DbClause {
         }
     }
 
+    public static final class LongsClause extends DbClause {
+
+        private final long[] values;
+
+        /**
+         * @param values at least one value
+         */
+        public LongsClause(String columnName, long[] values) {
+            super(" " + columnName + " IN (" + String.join(", ", Collections.nCopies(values.length, "?")) + ") ");
+            this.values = values;
+        }
+
+        @Override
+        protected int set(PreparedStatement pstmt, int index) throws SQLException {
+            for (long value : values) {
+                pstmt.setLong(index++, value);
+            }
+            return index;
+        }
+    }
+
     public static final class IntClause extends DbClause {
 
         private final int value;
@@ -65,6 +65,28 @@ public abstract class DerivedDbTable {
         //nothing to trim
     }
 
+    /**
+     * Trim a limited part of the rows a trim at the height would delete, in the current transaction
+     *
+     * @param height trim height
+     * @param limit maximum number of keys or rows to trim
+     * @return number of keys or rows trimmed
+     */
+    public int trimIncrementally(int height, int limit) {
+        return 0;
+    }
+
+    /**
+     * @param height trim height
+     * @return true if {@link #trimIncrementally} at the height may have something to trim
+     */
+    public boolean isTrimPending(int height) {
+        return false;
+    }
+
+    /**
+     * Create the full text search index of the table, its rows are indexed by {@link FullTextTrigger#reindex}
+     */
     public void createSearchIndex(Connection con) throws SQLException {
         //implemented in EntityDbTable only
     }
@@ -32,6 +32,8 @@ public abstract class EntityDbTable<T> extends DerivedDbTable {
     protected final DbKey.Factory<T> dbKeyFactory;
     private final String defaultSort;
     private final String fullTextSearchColumns;
+    /** Keys with superseded rows, null if the table is not multiversion */
+    final TrimQueue trimQueue;
 
     protected EntityDbTable(String table, DbKey.Factory<T> dbKeyFactory) {
         this(table, dbKeyFactory, false, null);
@@ -47,6 +49,7 @@ public abstract class EntityDbTable<T> extends DerivedDbTable {
         this.multiversion = multiversion;
         this.defaultSort = " ORDER BY " + (multiversion ? dbKeyFactory.getPKColumns() : " height DESC, db_id DESC ");
         this.fullTextSearchColumns = fullTextSearchColumns;
+        this.trimQueue = multiversion ? new TrimQueue(db, table, dbKeyFactory) : null;
     }
 
     protected abstract T load(Connection con, ResultSet rs, DbKey dbKey) throws SQLException;
@@ -61,6 +64,21 @@ public abstract class EntityDbTable<T> extends DerivedDbTable {
         db.clearCache(table);
     }
 
+    /**
+     * @return height to trim a multiversion table at when the derived tables are trimmed at the height, 0 to not
+     * trim it
+     */
+    protected int getTrimHeight(int height) {
+        return height;
+    }
+
+    /**
+     * @return lowest height of the rows trimmed from a multiversion table
+     */
+    protected int getTrimStartHeight() {
+        return 0;
+    }
+
     public void checkAvailable(int height) {
         if (multiversion) {
             int rollBackHeight = isPersistent() && Metro.getBlockchainProcessor().isScanning() ?
@@ -95,6 +113,10 @@ public abstract class EntityDbTable<T> extends DerivedDbTable {
     }
 
     public final T get(DbKey dbKey, boolean cache) {
+        int snapshotHeight = getSnapshotHeight();
+        if (snapshotHeight >= 0) {
+            return get(dbKey, snapshotHeight);
+        }
         if (cache && db.isInTransaction()) {
             T t = (T) db.getCache(table).get(dbKey);
             if (t != null) {
@@ -112,7 +134,8 @@ public abstract class EntityDbTable<T> extends DerivedDbTable {
     }
 
     public final T get(DbKey dbKey, int height) {
-        if (height < 0 || doesNotExceed(height)) {
+        height = getReadHeight(height);
+        if (height < 0) {
             return get(dbKey);
         }
         checkAvailable(height);
@@ -133,6 +156,10 @@ public abstract class EntityDbTable<T> extends DerivedDbTable {
     }
 
     public final T getBy(DbClause dbClause) {
+        int snapshotHeight = getSnapshotHeight();
+        if (snapshotHeight >= 0) {
+            return getBy(dbClause, snapshotHeight);
+        }
         try (Connection con = db.getConnection();
              PreparedStatement pstmt = con.prepareStatement("SELECT * FROM " + table
                      + " WHERE " + dbClause.getClause() + (multiversion ? " AND latest = TRUE LIMIT 1" : ""))) {
@@ -144,7 +171,8 @@ public abstract class EntityDbTable<T> extends DerivedDbTable {
     }
 
     public final T getBy(DbClause dbClause, int height) {
-        if (height < 0 || doesNotExceed(height)) {
+        height = getReadHeight(height);
+        if (height < 0) {
             return getBy(dbClause);
         }
         checkAvailable(height);
@@ -195,6 +223,10 @@ public abstract class EntityDbTable<T> extends DerivedDbTable {
     }
 
     public final DbIterator<T> getManyBy(DbClause dbClause, int from, int to, String sort) {
+        int snapshotHeight = getSnapshotHeight();
+        if (snapshotHeight >= 0) {
+            return getManyBy(dbClause, snapshotHeight, from, to, sort);
+        }
         Connection con = null;
         try {
             con = db.getConnection();
@@ -216,7 +248,8 @@ public abstract class EntityDbTable<T> extends DerivedDbTable {
     }
 
     public final DbIterator<T> getManyBy(DbClause dbClause, int height, int from, int to, String sort) {
-        if (height < 0 || doesNotExceed(height)) {
+        height = getReadHeight(height);
+        if (height < 0) {
             return getManyBy(dbClause, from, to, sort);
         }
         checkAvailable(height);
@@ -294,6 +327,10 @@ public abstract class EntityDbTable<T> extends DerivedDbTable {
     }
 
     public final DbIterator<T> getAll(int from, int to, String sort) {
+        int snapshotHeight = getSnapshotHeight();
+        if (snapshotHeight >= 0) {
+            return getAll(snapshotHeight, from, to, sort);
+        }
         Connection con = null;
         try {
             con = db.getConnection();
@@ -313,7 +350,8 @@ public abstract class EntityDbTable<T> extends DerivedDbTable {
     }
 
     public final DbIterator<T> getAll(int height, int from, int to, String sort) {
-        if (height < 0 || doesNotExceed(height)) {
+        height = getReadHeight(height);
+        if (height < 0) {
             return getAll(from, to, sort);
         }
         checkAvailable(height);
@@ -351,6 +389,10 @@ public abstract class EntityDbTable<T> extends DerivedDbTable {
     }
 
     public final int getCount(DbClause dbClause) {
+        int snapshotHeight = getSnapshotHeight();
+        if (snapshotHeight >= 0) {
+            return getCount(dbClause, snapshotHeight);
+        }
         try (Connection con = db.getConnection();
              PreparedStatement pstmt = con.prepareStatement("SELECT COUNT(*) FROM " + table
                      + " WHERE " + dbClause.getClause() + (multiversion ? " AND latest = TRUE" : ""))) {
@@ -362,7 +404,8 @@ public abstract class EntityDbTable<T> extends DerivedDbTable {
     }
 
     public final int getCount(DbClause dbClause, int height) {
-        if (height < 0 || doesNotExceed(height)) {
+        height = getReadHeight(height);
+        if (height < 0) {
             return getCount(dbClause);
         }
         checkAvailable(height);
@@ -421,13 +464,14 @@ public abstract class EntityDbTable<T> extends DerivedDbTable {
             throw new IllegalStateException("Different instance found in Db cache, perhaps trying to save an object "
                     + "that was read outside the current transaction");
         }
-        try (Connection con = db.getConnection()) {
+        try (Connection con = db.getBatchConnection(table, dbKey)) {
             if (multiversion) {
                 try (PreparedStatement pstmt = con.prepareStatement("UPDATE " + table
                         + " SET latest = FALSE " + dbKeyFactory.getPKClause() + " AND latest = TRUE LIMIT 1")) {
                     dbKey.setPK(pstmt);
                     pstmt.executeUpdate();
                 }
+                trimQueue.add(dbKey, false);
             }
             save(con, t);
         } catch (SQLException e) {
@@ -439,26 +483,79 @@ public abstract class EntityDbTable<T> extends DerivedDbTable {
     public void rollback(int height) {
         if (multiversion) {
             VersionedEntityDbTable.rollback(db, table, height, dbKeyFactory);
+            trimQueue.rollback(height);
         } else {
             super.rollback(height);
         }
     }
 
+    @Override
+    public void truncate() {
+        super.truncate();
+        if (multiversion) {
+            trimQueue.clear();
+        }
+    }
+
+    /**
+     * Trim a multiversion table, unless all its superseded rows are queued to be trimmed incrementally
+     */
     @Override
     public void trim(int height) {
         if (multiversion) {
-            VersionedEntityDbTable.trim(db, table, height, dbKeyFactory, 0);
+            int trimHeight = getTrimHeight(height);
+            if (trimHeight > 0 && !trimQueue.isComplete()) {
+                VersionedEntityDbTable.trim(db, table, trimHeight, dbKeyFactory, getTrimStartHeight());
+                trimQueue.fullTrim(trimHeight);
+            }
         } else {
             super.trim(height);
         }
     }
 
+    @Override
+    public int trimIncrementally(int height, int limit) {
+        if (multiversion) {
+            int trimHeight = getTrimHeight(height);
+            return trimHeight > 0 ? trimQueue.trim(trimHeight, getTrimStartHeight(), limit) : 0;
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean isTrimPending(int height) {
+        if (multiversion) {
+            int trimHeight = getTrimHeight(height);
+            return trimHeight > 0 && trimQueue.hasEntries(trimHeight);
+        }
+        return false;
+    }
+
     @Override
     public final void createSearchIndex(Connection con) throws SQLException {
         if (fullTextSearchColumns != null) {
             Logger.logDebugMessage("Creating search index on " + table + " (" + fullTextSearchColumns + ")");
-            FullTextTrigger.createIndex(con, "PUBLIC", table.toUpperCase(Locale.ROOT), fullTextSearchColumns.toUpperCase(Locale.ROOT));
+            FullTextTrigger.createIndex(con, "PUBLIC", table.toUpperCase(Locale.ROOT), fullTextSearchColumns.toUpperCase(Locale.ROOT), false);
+        }
+    }
+
+    /**
+     * @return height to read a multiversion table at for a thread reading a snapshot, when blocks have been committed
+     * after the one the snapshot is pinned to, or -1 to read the latest rows
+     */
+    private int getSnapshotHeight() {
+        return multiversion ? Metro.getBlockchain().getSnapshotHeight() : -1;
+    }
+
+    /**
+     * @return height to read at, or -1 to read the latest rows
+     */
+    private int getReadHeight(int height) {
+        int snapshotHeight = getSnapshotHeight();
+        if (snapshotHeight >= 0) {
+            return height < 0 ? snapshotHeight : Math.min(height, snapshotHeight);
         }
+        return height < 0 || doesNotExceed(height) ? -1 : height;
     }
 
     private boolean doesNotExceed(int height) {
@@ -25,6 +25,7 @@ import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.NClob;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLClientInfoException;
 import java.sql.SQLException;
 import java.sql.SQLWarning;
@@ -32,6 +33,8 @@ import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Struct;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Properties;
 import java.util.concurrent.Executor;
@@ -42,15 +45,27 @@ import java.util.concurrent.Executor;
  * The wrapper forwards all methods to the wrapped connection.  The supplied factory is
  * used to create wrappers for statements and prepared statements that are created for
  * this connection.
+ *
+ * If a statement cache size is specified, the prepared statements created by {@link #prepareStatement(String)}
+ * are kept open when closed, up to that number per connection, and returned again when the same SQL is prepared,
+ * instead of preparing the statement again. The cached statements are closed when the connection is closed.
  */
 public class FilteredConnection implements Connection {
 
     private final Connection con;
     private final FilteredFactory factory;
+    private final int statementCacheSize;
+    /** Statements not in use kept open for reuse, by SQL, least recently used first */
+    private Map<String, PreparedStatement> statementCache;
 
     public FilteredConnection(Connection con, FilteredFactory factory) {
+        this(con, factory, 0);
+    }
+
+    public FilteredConnection(Connection con, FilteredFactory factory, int statementCacheSize) {
         this.con = con;
         this.factory = factory;
+        this.statementCacheSize = statementCacheSize;
     }
 
     @Override
@@ -60,7 +75,100 @@ public class FilteredConnection implements Connection {
 
     @Override
     public PreparedStatement prepareStatement(String sql) throws SQLException {
-        return factory.createPreparedStatement(con.prepareStatement(sql), sql);
+        if (statementCacheSize <= 0) {
+            return factory.createPreparedStatement(con.prepareStatement(sql), sql);
+        }
+        PreparedStatement stmt = statementCache != null ? statementCache.remove(sql) : null;
+        if (stmt == null) {
+            stmt = factory.createPreparedStatement(con.prepareStatement(sql), sql);
+        }
+        return new CachedPreparedStatement(stmt, sql);
+    }
+
+    /**
+     * Keep the statement of a closed cached statement open for reuse
+     *
+     * @param sql SQL of the statement
+     * @param stmt statement no longer in use
+     * @return true if the statement was cached, false if it must be closed
+     */
+    private boolean releaseStatement(String sql, PreparedStatement stmt) throws SQLException {
+        if (stmt.isClosed() || con.isClosed()) {
+            return false;
+        }
+        if (statementCache == null) {
+            statementCache = new LinkedHashMap<>(statementCacheSize, 0.75f, true);
+        } else if (statementCache.containsKey(sql)) {
+            // the same SQL was prepared again while the statement was in use
+            return false;
+        }
+        ResultSet rs = stmt.getResultSet();
+        if (rs != null) {
+            rs.close();
+        }
+        stmt.clearParameters();
+        stmt.clearBatch();
+        statementCache.put(sql, stmt);
+        if (statementCache.size() > statementCacheSize) {
+            Iterator<PreparedStatement> iterator = statementCache.values().iterator();
+            PreparedStatement eldest = iterator.next();
+            iterator.remove();
+            eldest.close();
+        }
+        return true;
+    }
+
+    /**
+     * Close the statements kept open for reuse
+     */
+    private void closeStatementCache() throws SQLException {
+        if (statementCache == null) {
+            return;
+        }
+        try {
+            for (PreparedStatement stmt : statementCache.values()) {
+                stmt.close();
+            }
+        } finally {
+            statementCache.clear();
+        }
+    }
+
+    /**
+     * Statement returned by {@link #prepareStatement(String)} when statements are cached. A new one is returned on
+     * each call, so that closing it more than once, as {@link DbIterator} does, returns its statement to the cache
+     * only once, and never while the statement is in use again.
+     */
+    private final class CachedPreparedStatement extends FilteredPreparedStatement {
+
+        private final PreparedStatement stmt;
+        private boolean closed;
+
+        private CachedPreparedStatement(PreparedStatement stmt, String sql) {
+            super(stmt, sql);
+            this.stmt = stmt;
+        }
+
+        @Override
+        public void close() throws SQLException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            boolean cached = false;
+            try {
+                cached = releaseStatement(getSQL(), stmt);
+            } finally {
+                if (!cached) {
+                    stmt.close();
+                }
+            }
+        }
+
+        @Override
+        public boolean isClosed() throws SQLException {
+            return closed || stmt.isClosed();
+        }
     }
 
     @Override
@@ -95,7 +203,11 @@ public class FilteredConnection implements Connection {
 
     @Override
     public void close() throws SQLException {
-        con.close();
+        try {
+            closeStatementCache();
+        } finally {
+            con.close();
+        }
     }
 
     @Override
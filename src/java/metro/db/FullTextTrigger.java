@@ -27,18 +27,20 @@ import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.StringField;
 import org.apache.lucene.document.TextField;
-import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.queryparser.classic.ParseException;
 import org.apache.lucene.queryparser.classic.QueryParser;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PrefixQuery;
 import org.apache.lucene.search.Query;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherManager;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.RAMDirectory;
 import org.h2.api.Trigger;
 import org.h2.tools.SimpleResultSet;
 
@@ -53,11 +55,19 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
 import java.util.StringJoiner;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.stream.Stream;
 
 /**
@@ -117,11 +127,8 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
     /** Lucene directory */
     private static Directory directory;
 
-    /** Lucene index reader (thread-safe) */
-    private static DirectoryReader indexReader;
-
-    /** Lucene index searcher (thread-safe) */
-    private static IndexSearcher indexSearcher;
+    /** Lucene searcher manager, near-real-time searchers of the index writer (thread-safe) */
+    private static SearcherManager searcherManager;
 
     /** Lucene index writer (thread-safe) */
     private static IndexWriter indexWriter;
@@ -129,6 +136,21 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
     /** Lucene analyzer (thread-safe) */
     private static final Analyzer analyzer = new StandardAnalyzer();
 
+    /** Maximum number of committed row changes applied to the index before refreshing the searchers */
+    private static final int MAX_INDEX_BATCH = 1000;
+
+    /** Committed row changes waiting for the indexer thread */
+    private static final BlockingQueue<IndexUpdate> indexQueue = new LinkedBlockingQueue<>();
+
+    /** Indexer thread stop request, queued last */
+    private static final IndexUpdate STOP_INDEXER = new IndexUpdate(null, null, null);
+
+    /** Indexer thread */
+    private static Thread indexerThread;
+
+    /** Held by the indexer thread while applying row changes, and by an index rebuild to pause it */
+    private static final Object rebuildLock = new Object();
+
     /** Index trigger is enabled */
     private volatile boolean isEnabled = false;
 
@@ -162,7 +184,10 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
      */
     public static void setActive(boolean active) {
         isActive = active;
-        if (!active) {
+        if (active) {
+            startIndexer();
+        } else {
+            stopIndexer();
             indexTriggers.values().forEach((trigger) -> trigger.isEnabled = false);
             indexTriggers.clear();
             removeIndexAccess();
@@ -264,15 +289,11 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
         Logger.logInfoMessage("Rebuilding the Lucene search index");
         try {
             //
-            // Delete the current Lucene index
-            //
-            removeIndexFiles(conn);
-            //
-            // Reindex each table
+            // Rebuild each table and replace the current Lucene index.  The current index
+            // remains searchable until the new one is complete.
             //
-            for (FullTextTrigger trigger : indexTriggers.values()) {
-                trigger.reindexTable(conn);
-            }
+            getIndexAccess(conn);
+            rebuild(conn, new ArrayList<>(indexTriggers.values()), true);
         } catch (SQLException exc) {
             throw new SQLException("Unable to rebuild the Lucene index", exc);
         }
@@ -290,6 +311,24 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
      */
     public static void createIndex(Connection conn, String schema, String table, String columnList)
                                     throws SQLException {
+        createIndex(conn, schema, table, columnList, true);
+    }
+
+    /**
+     * Create the fulltext index for a table
+     *
+     * When creating the indexes of several tables, the table rows can be indexed afterwards
+     * by a single call to reindex(), which indexes the tables concurrently
+     *
+     * @param   conn                SQL connection
+     * @param   schema              Schema name
+     * @param   table               Table name
+     * @param   columnList          Indexed column names separated by commas
+     * @param   indexRows           TRUE to index the table rows
+     * @throws  SQLException        Unable to create fulltext index
+     */
+    public static void createIndex(Connection conn, String schema, String table, String columnList, boolean indexRows)
+                                    throws SQLException {
         String upperSchema = schema.toUpperCase(Locale.ROOT);
         String upperTable = table.toUpperCase(Locale.ROOT);
         String tableName = upperSchema + "." + upperTable;
@@ -316,9 +355,9 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
         FullTextTrigger trigger = indexTriggers.get(tableName);
         if (trigger == null) {
             Logger.logErrorMessage("MRS fulltext trigger for table " + tableName + " was not initialized");
-        } else {
+        } else if (indexRows) {
             try {
-                trigger.reindexTable(conn);
+                rebuild(conn, Collections.singletonList(trigger), false);
                 Logger.logInfoMessage("Lucene search index created for table " + tableName);
             } catch (SQLException exc) {
                 Logger.logErrorMessage("Unable to create Lucene search index for table " + tableName);
@@ -338,7 +377,7 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
     public static void dropIndex(Connection conn, String schema, String table) throws SQLException {
         String upperSchema = schema.toUpperCase(Locale.ROOT);
         String upperTable = table.toUpperCase(Locale.ROOT);
-        boolean reindex = false;
+        boolean removeDocuments = false;
         //
         // Drop an existing database trigger
         //
@@ -351,15 +390,27 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
                     stmt.execute("DROP TRIGGER IF EXISTS FTL_" + upperTable);
                     stmt.execute(String.format("DELETE FROM FTL.INDEXES WHERE SCHEMA = '%s' AND TABLE = '%s'",
                             upperSchema, upperTable));
-                    reindex = true;
+                    removeDocuments = true;
                 }
             }
         }
         //
-        // Rebuild the Lucene index
+        // Remove the table rows from the Lucene index
         //
-        if (reindex) {
-            reindex(conn);
+        if (removeDocuments) {
+            getIndexAccess(conn);
+            synchronized (rebuildLock) {
+                indexLock.readLock().lock();
+                try {
+                    indexWriter.deleteDocuments(new PrefixQuery(new Term("_QUERY", upperSchema + "." + upperTable + ";")));
+                } catch (IOException exc) {
+                    Logger.logErrorMessage("Unable to delete indexed rows", exc);
+                    throw new SQLException("Unable to delete indexed rows", exc);
+                } finally {
+                    indexLock.readLock().unlock();
+                }
+                commitIndex();
+            }
         }
     }
 
@@ -432,7 +483,9 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
         // The _MODIFIED field contains the row modification time (YYYYMMDDhhmmss) in GMT
         //
         indexLock.readLock().lock();
+        IndexSearcher indexSearcher = null;
         try {
+            indexSearcher = searcherManager.acquire();
             QueryParser parser = new QueryParser("_DATA", analyzer);
             parser.setDateResolution("_MODIFIED", DateTools.Resolution.SECOND);
             parser.setDefaultOperator(QueryParser.Operator.AND);
@@ -458,7 +511,15 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
             Logger.logErrorMessage("Unable to search Lucene index", exc);
             throw new SQLException("Unable to search Lucene index", exc);
         } finally {
-            indexLock.readLock().unlock();
+            try {
+                if (indexSearcher != null) {
+                    searcherManager.release(indexSearcher);
+                }
+            } catch (IOException exc) {
+                Logger.logErrorMessage("Unable to release Lucene index searcher", exc);
+            } finally {
+                indexLock.readLock().unlock();
+            }
         }
         return result;
     }
@@ -598,15 +659,10 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
             return;
         }
         //
-        // Commit the change immediately if we are not in a transaction
+        // Queue the change immediately if we are not in a transaction
         //
         if (!Db.db.isInTransaction()) {
-            try {
-                commitRow(oldRow, newRow);
-                commitIndex();
-            } catch (SQLException exc) {
-                Logger.logErrorMessage("Unable to update the Lucene index", exc);
-            }
+            indexQueue.add(new IndexUpdate(this, oldRow, newRow));
             return;
         }
         //
@@ -628,32 +684,20 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
     @Override
     public void commit() {
         Thread thread = Thread.currentThread();
-        try {
-            //
-            // Update the Lucene index.  Note that a database transaction is associated
-            // with a single thread.  So we will commit just those updates generated
-            // by the current thread.
-            //
-            boolean commit = false;
-            synchronized(tableUpdates) {
-                Iterator<TableUpdate> updateIt = tableUpdates.iterator();
-                while (updateIt.hasNext()) {
-                    TableUpdate update = updateIt.next();
-                    if (update.getThread() == thread) {
-                        commitRow(update.getOldRow(), update.getNewRow());
-                        updateIt.remove();
-                        commit = true;
-                    }
+        //
+        // Queue the updates for the indexer thread.  Note that a database transaction is
+        // associated with a single thread.  So we will queue just those updates generated
+        // by the current thread, in the order they were made.
+        //
+        synchronized(tableUpdates) {
+            Iterator<TableUpdate> updateIt = tableUpdates.iterator();
+            while (updateIt.hasNext()) {
+                TableUpdate update = updateIt.next();
+                if (update.getThread() == thread) {
+                    indexQueue.add(new IndexUpdate(this, update.getOldRow(), update.getNewRow()));
+                    updateIt.remove();
                 }
             }
-            //
-            // Commit the index updates
-            //
-            if (commit) {
-                commitIndex();
-            }
-        } catch (SQLException exc) {
-            Logger.logErrorMessage("Unable to update the Lucene index", exc);
         }
     }
 
@@ -694,14 +738,16 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
     }
 
     /**
-     * Reindex the table
+     * Index the table rows in a new in-memory index
      *
      * @param   conn                SQL connection
-     * @throws  SQLException        Unable to reindex table
+     * @return                      Index of the table
+     * @throws  SQLException        Unable to index table
      */
-    private void reindexTable(Connection conn) throws SQLException {
+    private Directory buildTable(Connection conn) throws SQLException {
+        Directory tableDirectory = new RAMDirectory();
         if (indexColumns.isEmpty()) {
-            return;
+            return tableDirectory;
         }
         //
         // Build the SELECT statement for just the indexed columns
@@ -716,7 +762,8 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
         //
         // Index each row in the table
         //
-        try (Statement qstmt = conn.createStatement();
+        try (IndexWriter tableWriter = new IndexWriter(tableDirectory, new IndexWriterConfig(analyzer));
+                Statement qstmt = conn.createStatement();
                 ResultSet rs = qstmt.executeQuery(sb.toString())) {
             while (rs.next()) {
                 row[dbColumn] = rs.getObject(1);
@@ -724,13 +771,88 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
                 for (int index : indexColumns) {
                     row[index] = rs.getObject(i++);
                 }
-                indexRow(row);
+                tableWriter.addDocument(newDocument(row));
             }
+        } catch (IOException exc) {
+            Logger.logErrorMessage("Unable to index table " + tableName, exc);
+            throw new SQLException("Unable to index table " + tableName, exc);
+        }
+        return tableDirectory;
+    }
+
+    /**
+     * Rebuild the index of tables and replace their rows in the Lucene index
+     *
+     * Tables are indexed concurrently using their own database connections, since the rows
+     * to index are committed when the index triggers are created.  The indexer thread is
+     * paused until the new rows replace the old ones, so the row changes committed meanwhile
+     * are applied after them.
+     *
+     * @param   conn                SQL connection, used when indexing a single table
+     * @param   triggers            Index triggers of the tables
+     * @param   all                 TRUE to replace the whole Lucene index
+     * @throws  SQLException        Unable to rebuild the index
+     */
+    private static void rebuild(Connection conn, Collection<FullTextTrigger> triggers, boolean all) throws SQLException {
+        synchronized (rebuildLock) {
+            List<Directory> tableDirectories = new ArrayList<>();
+            if (triggers.size() == 1) {
+                tableDirectories.add(triggers.iterator().next().buildTable(conn));
+            } else if (!triggers.isEmpty()) {
+                int threads = Math.min(triggers.size(), Runtime.getRuntime().availableProcessors());
+                ExecutorService executor = Executors.newFixedThreadPool(threads, runnable -> {
+                    Thread thread = new Thread(runnable, "FullTextRebuild");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                try {
+                    List<Future<Directory>> futures = new ArrayList<>();
+                    for (FullTextTrigger trigger : triggers) {
+                        futures.add(executor.submit(() -> {
+                            try (Connection tableConn = Db.db.getConnection()) {
+                                return trigger.buildTable(tableConn);
+                            }
+                        }));
+                    }
+                    for (Future<Directory> future : futures) {
+                        tableDirectories.add(future.get());
+                    }
+                } catch (InterruptedException exc) {
+                    Thread.currentThread().interrupt();
+                    throw new SQLException("Lucene index rebuild interrupted", exc);
+                } catch (ExecutionException exc) {
+                    throw new SQLException("Unable to rebuild the Lucene index", exc.getCause());
+                } finally {
+                    executor.shutdownNow();
+                }
+            }
+            //
+            // Replace the rows of the tables
+            //
+            indexLock.readLock().lock();
+            try {
+                if (all) {
+                    indexWriter.deleteAll();
+                    addControlDocument();
+                } else {
+                    for (FullTextTrigger trigger : triggers) {
+                        indexWriter.deleteDocuments(new PrefixQuery(new Term("_QUERY", trigger.tableName + ";")));
+                    }
+                }
+                indexWriter.addIndexes(tableDirectories.toArray(new Directory[0]));
+            } catch (IOException exc) {
+                Logger.logErrorMessage("Unable to replace Lucene index rows", exc);
+                throw new SQLException("Unable to replace Lucene index rows", exc);
+            } finally {
+                indexLock.readLock().unlock();
+                for (Directory tableDirectory : tableDirectories) {
+                    try {
+                        tableDirectory.close();
+                    } catch (IOException ignore) {}
+                }
+            }
+            commitIndex();
         }
-        //
-        // Commit the index updates
-        //
-        commitIndex();
     }
 
     /**
@@ -742,20 +864,8 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
     private void indexRow(Object[] row) throws SQLException {
         indexLock.readLock().lock();
         try {
-            String query = tableName + ";" + columnNames.get(dbColumn) + ";" + (Long)row[dbColumn];
-            Document document = new Document();
-            document.add(new StringField("_QUERY", query, Field.Store.YES));
-            long now = System.currentTimeMillis();
-            document.add(new TextField("_MODIFIED", DateTools.timeToString(now, DateTools.Resolution.SECOND), Field.Store.NO));
-            document.add(new TextField("_TABLE", tableName, Field.Store.NO));
-            StringJoiner sj = new StringJoiner(" ");
-            for (int index : indexColumns) {
-                String data = (row[index] != null ? (String)row[index] : "NULL");
-                document.add(new TextField(columnNames.get(index), data, Field.Store.NO));
-                sj.add(data);
-            }
-            document.add(new TextField("_DATA", sj.toString(), Field.Store.NO));
-            indexWriter.updateDocument(new Term("_QUERY", query), document);
+            Document document = newDocument(row);
+            indexWriter.updateDocument(new Term("_QUERY", document.get("_QUERY")), document);
         } catch (IOException exc) {
             Logger.logErrorMessage("Unable to index row", exc);
             throw new SQLException("Unable to index row", exc);
@@ -764,6 +874,29 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
         }
     }
 
+    /**
+     * Create the Lucene document of a row
+     *
+     * @param   row                 Row column data
+     * @return                      Document
+     */
+    private Document newDocument(Object[] row) {
+        String query = tableName + ";" + columnNames.get(dbColumn) + ";" + (Long)row[dbColumn];
+        Document document = new Document();
+        document.add(new StringField("_QUERY", query, Field.Store.YES));
+        long now = System.currentTimeMillis();
+        document.add(new TextField("_MODIFIED", DateTools.timeToString(now, DateTools.Resolution.SECOND), Field.Store.NO));
+        document.add(new TextField("_TABLE", tableName, Field.Store.NO));
+        StringJoiner sj = new StringJoiner(" ");
+        for (int index : indexColumns) {
+            String data = (row[index] != null ? (String)row[index] : "NULL");
+            document.add(new TextField(columnNames.get(index), data, Field.Store.NO));
+            sj.add(data);
+        }
+        document.add(new TextField("_DATA", sj.toString(), Field.Store.NO));
+        return document;
+    }
+
     /**
      * Delete an indexed row
      *
@@ -789,20 +922,91 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
      * @throws  SQLException        Unable to commit index updates
      */
     private static void commitIndex() throws SQLException {
-        indexLock.writeLock().lock();
+        indexLock.readLock().lock();
         try {
             indexWriter.commit();
-            DirectoryReader newReader = DirectoryReader.openIfChanged(indexReader);
-            if (newReader != null) {
-                indexReader.close();
-                indexReader = newReader;
-                indexSearcher = new IndexSearcher(indexReader);
-            }
+            searcherManager.maybeRefresh();
         } catch (IOException exc) {
             Logger.logErrorMessage("Unable to commit Lucene index updates", exc);
             throw new SQLException("Unable to commit Lucene index updates", exc);
         } finally {
-            indexLock.writeLock().unlock();
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Add the control document to a new index
+     *
+     * @throws  IOException         Unable to add the control document
+     */
+    private static void addControlDocument() throws IOException {
+        Document document = new Document();
+        document.add(new StringField("_QUERY", "_CONTROL_DOCUMENT_", Field.Store.YES));
+        indexWriter.updateDocument(new Term("_QUERY", "_CONTROL_DOCUMENT_"), document);
+    }
+
+    /**
+     * Start the indexer thread
+     */
+    private static synchronized void startIndexer() {
+        if (indexerThread != null) {
+            return;
+        }
+        indexerThread = new Thread(FullTextTrigger::runIndexer, "FullTextIndexer");
+        indexerThread.setDaemon(true);
+        indexerThread.start();
+    }
+
+    /**
+     * Stop the indexer thread once it has applied the queued row changes
+     */
+    private static synchronized void stopIndexer() {
+        if (indexerThread == null) {
+            return;
+        }
+        indexQueue.add(STOP_INDEXER);
+        try {
+            indexerThread.join();
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        }
+        indexerThread = null;
+    }
+
+    /**
+     * Apply the committed row changes to the Lucene index and refresh the searchers
+     */
+    private static void runIndexer() {
+        List<IndexUpdate> updates = new ArrayList<>();
+        try {
+            boolean stop = false;
+            while (!stop) {
+                updates.add(indexQueue.take());
+                indexQueue.drainTo(updates, MAX_INDEX_BATCH - 1);
+                stop = updates.remove(STOP_INDEXER);
+                try {
+                    synchronized (rebuildLock) {
+                        boolean commit = false;
+                        for (IndexUpdate update : updates) {
+                            if (update.trigger.isEnabled) {
+                                update.trigger.commitRow(update.oldRow, update.newRow);
+                                commit = true;
+                            }
+                        }
+                        if (commit) {
+                            commitIndex();
+                        }
+                    }
+                } catch (Exception exc) {
+                    Logger.logErrorMessage("Unable to update the Lucene index", exc);
+                }
+                updates.clear();
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+        } catch (Throwable t) {
+            Logger.logErrorMessage("CRITICAL ERROR. PLEASE REPORT TO THE DEVELOPERS.\n" + t.toString(), t);
+            System.exit(1);
         }
     }
 
@@ -862,12 +1066,9 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
                         IndexWriterConfig config = new IndexWriterConfig(analyzer);
                         config.setOpenMode(IndexWriterConfig.OpenMode.CREATE_OR_APPEND);
                         indexWriter = new IndexWriter(directory, config);
-                        Document document = new Document();
-                        document.add(new StringField("_QUERY", "_CONTROL_DOCUMENT_", Field.Store.YES));
-                        indexWriter.updateDocument(new Term("_QUERY", "_CONTROL_DOCUMENT_"), document);
+                        addControlDocument();
                         indexWriter.commit();
-                        indexReader = DirectoryReader.open(directory);
-                        indexSearcher = new IndexSearcher(indexReader);
+                        searcherManager = new SearcherManager(indexWriter, true, null);
                     }
                 } finally {
                     indexLock.writeLock().unlock();
@@ -889,12 +1090,9 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
     private static void removeIndexAccess() {
         indexLock.writeLock().lock();
         try {
-            if (indexSearcher != null) {
-                indexSearcher = null;
-            }
-            if (indexReader != null) {
-                indexReader.close();
-                indexReader = null;
+            if (searcherManager != null) {
+                searcherManager.close();
+                searcherManager = null;
             }
             if (indexWriter != null) {
                 indexWriter.close();
@@ -943,6 +1141,34 @@ public class FullTextTrigger implements Trigger, TransactionalDb.TransactionCall
         }
     }
 
+    /**
+     * Committed table update waiting for the indexer thread
+     */
+    private static class IndexUpdate {
+
+        /** Index trigger of the table */
+        private final FullTextTrigger trigger;
+
+        /** Old table row */
+        private final Object[] oldRow;
+
+        /** New table row */
+        private final Object[] newRow;
+
+        /**
+         * Create the index update
+         *
+         * @param   trigger         Index trigger of the table
+         * @param   oldRow          Old table row or null
+         * @param   newRow          New table row or null
+         */
+        private IndexUpdate(FullTextTrigger trigger, Object[] oldRow, Object[] newRow) {
+            this.trigger = trigger;
+            this.oldRow = oldRow;
+            this.newRow = newRow;
+        }
+    }
+
     /**
      * Table update
      */
@@ -0,0 +1,100 @@
+package metro.db;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The SQL statements with the slowest executions, with the time of the slowest execution of each.
+ * <p>
+ * Executions faster than the fastest statement kept are discarded without locking once the list is full, so the
+ * statements can be recorded on every execution.
+ */
+public final class SlowStatements {
+
+    public static final class Entry {
+
+        private final String sql;
+        private final long nanos;
+        private final long timestamp;
+
+        private Entry(String sql, long nanos, long timestamp) {
+            this.sql = sql;
+            this.nanos = nanos;
+            this.timestamp = timestamp;
+        }
+
+        public String getSql() {
+            return sql;
+        }
+
+        /**
+         * @return duration of the slowest execution, in nanoseconds
+         */
+        public long getNanos() {
+            return nanos;
+        }
+
+        /**
+         * @return time of the slowest execution, in milliseconds since the epoch
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+    }
+
+    private final int capacity;
+    private final Map<String, Entry> entries = new HashMap<>();
+    /** Duration of the fastest statement kept when the list is full, 0 otherwise */
+    private volatile long threshold;
+
+    SlowStatements(int capacity) {
+        this.capacity = capacity;
+    }
+
+    void record(String sql, long nanos) {
+        if (capacity <= 0 || nanos <= threshold) {
+            return;
+        }
+        synchronized (this) {
+            Entry entry = entries.get(sql);
+            if (entry != null && entry.nanos >= nanos) {
+                return;
+            }
+            entries.put(sql, new Entry(sql, nanos, System.currentTimeMillis()));
+            if (entries.size() > capacity) {
+                entries.remove(fastest().sql);
+            }
+            if (entries.size() == capacity) {
+                threshold = fastest().nanos;
+            }
+        }
+    }
+
+    /**
+     * @return the statements, slowest first
+     */
+    public synchronized List<Entry> getEntries() {
+        List<Entry> result = new ArrayList<>(entries.values());
+        result.sort(Comparator.comparingLong(Entry::getNanos).reversed());
+        return result;
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        threshold = 0;
+    }
+
+    private Entry fastest() {
+        Entry fastest = null;
+        for (Entry entry : entries.values()) {
+            if (fastest == null || entry.nanos < fastest.nanos) {
+                fastest = entry;
+            }
+        }
+        return fastest;
+    }
+
+}
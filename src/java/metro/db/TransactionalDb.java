@@ -20,6 +20,7 @@ package metro.db;
 import metro.Metro;
 import metro.util.Logger;
 
+import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -27,6 +28,8 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
 
@@ -36,6 +39,10 @@ public class TransactionalDb extends BasicDb {
     private static final long stmtThreshold;
     private static final long txThreshold;
     private static final long txInterval;
+    private static final boolean batchWrites = Metro.getBooleanProperty("metro.batchDerivedTableWrites", true);
+    /** Rows of a table written in batches before the batches are executed */
+    private static final int MAX_BATCH_ROWS = 1000;
+    private static final SlowStatements slowStatements = new SlowStatements(Metro.getIntProperty("metro.dbSlowStatements"));
     static {
         long temp;
         stmtThreshold = (temp= Metro.getIntProperty("metro.statementLogThreshold")) != 0 ? temp : 1000;
@@ -60,13 +67,44 @@ public class TransactionalDb extends BasicDb {
         if (con != null) {
             return con;
         }
-        return new DbConnection(super.getConnection());
+        return new DbConnection(super.getConnection(), 0);
     }
 
     public boolean isInTransaction() {
         return localConnection.get() != null;
     }
 
+    /**
+     * Return a connection of the current transaction deferring the INSERT, MERGE and UPDATE statements on a table,
+     * which are executed in JDBC batches instead. The batches are executed before any other statement of the
+     * transaction referring to the table is executed, whenever it was prepared, before any statement other than a
+     * SELECT, INSERT, MERGE or UPDATE, and at commit, so the transaction does not see that the writes were deferred.
+     * <p>
+     * The batches of a table are executed statement by statement, in the order the statements were first prepared.
+     * The writes of different keys must therefore not depend on each other, and the batches are executed first
+     * when a key which already has writes in them is written again. The deferred statements return an update
+     * count of 1.
+     *
+     * @param table table name
+     * @param dbKey key of the rows to write
+     * @return connection to use for the writes of the rows, its close method does nothing
+     */
+    public Connection getBatchConnection(String table, DbKey dbKey) throws SQLException {
+        DbConnection con = localConnection.get();
+        if (con == null) {
+            throw new IllegalStateException("Not in transaction");
+        }
+        if (!batchWrites) {
+            return con;
+        }
+        BatchConnection batchConnection = con.getBatchConnection(table);
+        if (!batchConnection.pendingKeys.add(dbKey)) {
+            batchConnection.executeBatches();
+            batchConnection.pendingKeys.add(dbKey);
+        }
+        return batchConnection;
+    }
+
     public Connection beginTransaction() {
         if (localConnection.get() != null) {
             throw new IllegalStateException("Transaction already in progress");
@@ -74,8 +112,9 @@ public class TransactionalDb extends BasicDb {
         try {
             Connection con = getPooledConnection();
             con.setAutoCommit(false);
-            con = new DbConnection(con);
+            con = new DbConnection(con, getStatementCacheSize());
             ((DbConnection)con).txStart = System.currentTimeMillis();
+            ((DbConnection)con).batching = batchWrites;
             localConnection.set((DbConnection)con);
             transactionCaches.set(new HashMap<>());
             return con;
@@ -90,6 +129,7 @@ public class TransactionalDb extends BasicDb {
             throw new IllegalStateException("Not in transaction");
         }
         try {
+            con.executeBatches();
             con.doCommit();
             Set<TransactionCallback> callbacks = transactionCallback.get();
             if (callbacks != null) {
@@ -107,6 +147,7 @@ public class TransactionalDb extends BasicDb {
             throw new IllegalStateException("Not in transaction");
         }
         try {
+            con.closeBatches();
             con.doRollback();
         } catch (SQLException e) {
             throw new RuntimeException(e.toString(), e);
@@ -127,6 +168,11 @@ public class TransactionalDb extends BasicDb {
         }
         localConnection.set(null);
         transactionCaches.set(null);
+        try {
+            ((DbConnection)con).closeBatches();
+        } catch (SQLException e) {
+            Logger.logErrorMessage("Failed to close batched statements", e);
+        }
         long now = System.currentTimeMillis();
         long elapsed = now - ((DbConnection)con).txStart;
         if (elapsed >= txThreshold) {
@@ -152,6 +198,13 @@ public class TransactionalDb extends BasicDb {
         DbUtils.close(con);
     }
 
+    /**
+     * @return the statements with the slowest executions
+     */
+    public SlowStatements getSlowStatements() {
+        return slowStatements;
+    }
+
     public void registerCallback(TransactionCallback callback) {
         Set<TransactionCallback> callbacks = transactionCallback.get();
         if (callbacks == null) {
@@ -191,6 +244,8 @@ public class TransactionalDb extends BasicDb {
         boolean firstLine = true;
         for (int i=3; i<stackTrace.length; i++) {
             String line = stackTrace[i].toString();
+            if (line.startsWith(TransactionalDb.class.getName()))
+                continue;
             if (!line.startsWith("metro."))
                 break;
             if (firstLine)
@@ -205,9 +260,124 @@ public class TransactionalDb extends BasicDb {
     private final class DbConnection extends FilteredConnection {
 
         long txStart = 0;
+        /** Whether the statements execute the pending batches, only in transactions using batch connections */
+        boolean batching;
 
-        private DbConnection(Connection con) {
-            super(con, factory);
+        /** Connections writing tables in batches, by lower case table name */
+        private final Map<String, BatchConnection> batchConnections = new LinkedHashMap<>();
+
+        private DbConnection(Connection con, int statementCacheSize) {
+            super(con, factory, statementCacheSize);
+        }
+
+        private BatchConnection getBatchConnection(String table) {
+            return batchConnections.computeIfAbsent(table.toLowerCase(Locale.ROOT), name -> new BatchConnection(this, name));
+        }
+
+        /**
+         * Execute the batches of the tables the statement could read or modify
+         */
+        private void executeBatches(String sql) throws SQLException {
+            if (batchConnections.isEmpty()) {
+                return;
+            }
+            String lowerSql = sql.trim().toLowerCase(Locale.ROOT);
+            executeBatches(lowerSql, isReadOrWrite(lowerSql));
+        }
+
+        private void executeBatches(String lowerSql, boolean readOrWrite) throws SQLException {
+            if (batchConnections.isEmpty()) {
+                return;
+            }
+            boolean all = !readOrWrite;
+            for (BatchConnection batchConnection : batchConnections.values()) {
+                if (batchConnection.rows > 0 && (all || refersTo(lowerSql, batchConnection.table))) {
+                    batchConnection.executeBatches();
+                }
+            }
+        }
+
+        private void executeBatches() throws SQLException {
+            for (BatchConnection batchConnection : batchConnections.values()) {
+                batchConnection.executeBatches();
+            }
+        }
+
+        private void closeBatches() throws SQLException {
+            try {
+                for (BatchConnection batchConnection : batchConnections.values()) {
+                    batchConnection.closeStatements();
+                }
+            } finally {
+                batchConnections.clear();
+            }
+        }
+
+        private PreparedStatement prepareBatchStatement(String sql) throws SQLException {
+            return super.prepareStatement(sql);
+        }
+
+        @Override
+        public Statement createStatement() throws SQLException {
+            return batching ? new TransactionStatement(super.createStatement()) : super.createStatement();
+        }
+
+        @Override
+        public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
+            return batching ? new TransactionStatement(super.createStatement(resultSetType, resultSetConcurrency)) : super.createStatement(resultSetType, resultSetConcurrency);
+        }
+
+        @Override
+        public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+            return batching ? new TransactionStatement(super.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability)) : super.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql) throws SQLException {
+            return batching ? new TransactionPreparedStatement(super.prepareStatement(sql), sql) : super.prepareStatement(sql);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+            return batching ? new TransactionPreparedStatement(super.prepareStatement(sql, resultSetType, resultSetConcurrency), sql) : super.prepareStatement(sql, resultSetType, resultSetConcurrency);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+            return batching ? new TransactionPreparedStatement(super.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability), sql) : super.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
+            return batching ? new TransactionPreparedStatement(super.prepareStatement(sql, autoGeneratedKeys), sql) : super.prepareStatement(sql, autoGeneratedKeys);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
+            return batching ? new TransactionPreparedStatement(super.prepareStatement(sql, columnIndexes), sql) : super.prepareStatement(sql, columnIndexes);
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
+            return batching ? new TransactionPreparedStatement(super.prepareStatement(sql, columnNames), sql) : super.prepareStatement(sql, columnNames);
+        }
+
+        @Override
+        public CallableStatement prepareCall(String sql) throws SQLException {
+            executeBatches();
+            return super.prepareCall(sql);
+        }
+
+        @Override
+        public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
+            executeBatches();
+            return super.prepareCall(sql, resultSetType, resultSetConcurrency);
+        }
+
+        @Override
+        public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
+            executeBatches();
+            return super.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
         }
 
         @Override
@@ -253,6 +423,331 @@ public class TransactionalDb extends BasicDb {
                 throw new IllegalStateException("Previous connection not committed");
             }
         }
+
+        /**
+         * Statement executing the batches its SQL could read or modify before each execution
+         */
+        private final class TransactionStatement extends FilteredStatement {
+
+            private TransactionStatement(Statement stmt) {
+                super(stmt);
+            }
+
+            @Override
+            public ResultSet executeQuery(String sql) throws SQLException {
+                executeBatches(sql);
+                return super.executeQuery(sql);
+            }
+
+            @Override
+            public int executeUpdate(String sql) throws SQLException {
+                executeBatches(sql);
+                return super.executeUpdate(sql);
+            }
+
+            @Override
+            public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+                executeBatches(sql);
+                return super.executeUpdate(sql, autoGeneratedKeys);
+            }
+
+            @Override
+            public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+                executeBatches(sql);
+                return super.executeUpdate(sql, columnIndexes);
+            }
+
+            @Override
+            public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+                executeBatches(sql);
+                return super.executeUpdate(sql, columnNames);
+            }
+
+            @Override
+            public boolean execute(String sql) throws SQLException {
+                executeBatches(sql);
+                return super.execute(sql);
+            }
+
+            @Override
+            public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+                executeBatches(sql);
+                return super.execute(sql, autoGeneratedKeys);
+            }
+
+            @Override
+            public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+                executeBatches(sql);
+                return super.execute(sql, columnIndexes);
+            }
+
+            @Override
+            public boolean execute(String sql, String[] columnNames) throws SQLException {
+                executeBatches(sql);
+                return super.execute(sql, columnNames);
+            }
+
+            @Override
+            public long executeLargeUpdate(String sql) throws SQLException {
+                executeBatches(sql);
+                return super.executeLargeUpdate(sql);
+            }
+
+            @Override
+            public long executeLargeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+                executeBatches(sql);
+                return super.executeLargeUpdate(sql, autoGeneratedKeys);
+            }
+
+            @Override
+            public long executeLargeUpdate(String sql, int[] columnIndexes) throws SQLException {
+                executeBatches(sql);
+                return super.executeLargeUpdate(sql, columnIndexes);
+            }
+
+            @Override
+            public long executeLargeUpdate(String sql, String[] columnNames) throws SQLException {
+                executeBatches(sql);
+                return super.executeLargeUpdate(sql, columnNames);
+            }
+
+            @Override
+            public int[] executeBatch() throws SQLException {
+                executeBatches();
+                return super.executeBatch();
+            }
+
+            @Override
+            public long[] executeLargeBatch() throws SQLException {
+                executeBatches();
+                return super.executeLargeBatch();
+            }
+        }
+
+        /**
+         * Prepared statement executing the batches its SQL could read or modify before each execution, so that a
+         * statement prepared before the writes were deferred still sees them
+         */
+        private final class TransactionPreparedStatement extends FilteredPreparedStatement {
+
+            private final String lowerSql;
+            private final boolean readOrWrite;
+
+            private TransactionPreparedStatement(PreparedStatement stmt, String sql) {
+                super(stmt, sql);
+                this.lowerSql = sql.trim().toLowerCase(Locale.ROOT);
+                this.readOrWrite = isReadOrWrite(lowerSql);
+            }
+
+            @Override
+            public ResultSet executeQuery() throws SQLException {
+                executeBatches(lowerSql, readOrWrite);
+                return super.executeQuery();
+            }
+
+            @Override
+            public int executeUpdate() throws SQLException {
+                executeBatches(lowerSql, readOrWrite);
+                return super.executeUpdate();
+            }
+
+            @Override
+            public boolean execute() throws SQLException {
+                executeBatches(lowerSql, readOrWrite);
+                return super.execute();
+            }
+
+            @Override
+            public long executeLargeUpdate() throws SQLException {
+                executeBatches(lowerSql, readOrWrite);
+                return super.executeLargeUpdate();
+            }
+
+            @Override
+            public int[] executeBatch() throws SQLException {
+                executeBatches(lowerSql, readOrWrite);
+                return super.executeBatch();
+            }
+
+            @Override
+            public long[] executeLargeBatch() throws SQLException {
+                executeBatches(lowerSql, readOrWrite);
+                return super.executeLargeBatch();
+            }
+        }
+    }
+
+    /**
+     * Connection deferring the writes of a table to batches
+     */
+    private final class BatchConnection extends FilteredConnection {
+
+        private final DbConnection con;
+        private final String table;
+        /** Batched statements, in the order they were first prepared */
+        private final Map<String, BatchStatement> statements = new LinkedHashMap<>();
+        /** Rows in the batches */
+        private int rows;
+        /** Keys written by the batches */
+        private final Set<DbKey> pendingKeys = new HashSet<>();
+
+        private BatchConnection(DbConnection con, String table) {
+            super(con, factory);
+            this.con = con;
+            this.table = table;
+        }
+
+        @Override
+        public PreparedStatement prepareStatement(String sql) throws SQLException {
+            if (!isBatchable(sql)) {
+                return con.prepareStatement(sql);
+            }
+            BatchStatement stmt = statements.get(sql);
+            if (stmt == null) {
+                stmt = new BatchStatement(con.prepareBatchStatement(sql), sql, this);
+                statements.put(sql, stmt);
+            }
+            return stmt;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private boolean isBatchable(String sql) {
+            String lowerSql = sql.trim().toLowerCase(Locale.ROOT);
+            String rest;
+            if (lowerSql.startsWith("insert into ")) {
+                rest = lowerSql.substring(12);
+            } else if (lowerSql.startsWith("merge into ")) {
+                rest = lowerSql.substring(11);
+            } else if (lowerSql.startsWith("update ")) {
+                rest = lowerSql.substring(7);
+            } else {
+                return false;
+            }
+            return rest.startsWith(table) && (rest.length() == table.length() || !isIdentifierChar(rest.charAt(table.length())));
+        }
+
+        private void added() throws SQLException {
+            if (++rows >= MAX_BATCH_ROWS) {
+                executeBatches();
+            }
+        }
+
+        private void executeBatches() throws SQLException {
+            pendingKeys.clear();
+            if (rows == 0) {
+                return;
+            }
+            rows = 0;
+            for (BatchStatement stmt : statements.values()) {
+                stmt.executePending();
+            }
+        }
+
+        private void closeStatements() throws SQLException {
+            rows = 0;
+            pendingKeys.clear();
+            try {
+                for (BatchStatement stmt : statements.values()) {
+                    stmt.closeStatement();
+                }
+            } finally {
+                statements.clear();
+            }
+        }
+    }
+
+    /**
+     * Prepared statement adding its executions to a batch
+     */
+    private static final class BatchStatement extends FilteredPreparedStatement {
+
+        private final BatchConnection con;
+        private boolean pending;
+
+        private BatchStatement(PreparedStatement stmt, String sql, BatchConnection con) {
+            super(stmt, sql);
+            this.con = con;
+        }
+
+        @Override
+        public int executeUpdate() throws SQLException {
+            addBatch();
+            pending = true;
+            con.added();
+            return 1;
+        }
+
+        @Override
+        public boolean execute() throws SQLException {
+            executeUpdate();
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        private void executePending() throws SQLException {
+            if (pending) {
+                pending = false;
+                executeBatch();
+            }
+        }
+
+        private void closeStatement() throws SQLException {
+            super.close();
+        }
+    }
+
+    /**
+     * Check if the SQL statement is a SELECT, INSERT, MERGE or UPDATE, which can only read or modify the tables it
+     * refers to
+     *
+     * @param lowerSql SQL statement in lower case
+     */
+    private static boolean isReadOrWrite(String lowerSql) {
+        return lowerSql.startsWith("select") || lowerSql.startsWith("insert")
+                || lowerSql.startsWith("merge") || lowerSql.startsWith("update");
+    }
+
+    /**
+     * Check if the SQL statement refers to the table
+     *
+     * @param lowerSql SQL statement in lower case
+     * @param table table name in lower case
+     */
+    private static boolean refersTo(String lowerSql, String table) {
+        int index = 0;
+        while ((index = lowerSql.indexOf(table, index)) >= 0) {
+            int end = index + table.length();
+            if ((index == 0 || !isIdentifierChar(lowerSql.charAt(index - 1)))
+                    && (end == lowerSql.length() || !isIdentifierChar(lowerSql.charAt(end)))) {
+                return true;
+            }
+            index = end;
+        }
+        return false;
+    }
+
+    private static boolean isIdentifierChar(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '_';
+    }
+
+    /**
+     * Record the execution time of a statement, and log it if above the threshold
+     *
+     * @param start start of the execution, from {@link System#nanoTime()}
+     * @param sql SQL statement
+     */
+    private static void executed(long start, String sql) {
+        long elapsed = System.nanoTime() - start;
+        slowStatements.record(sql, elapsed);
+        if (elapsed > stmtThreshold * 1000000)
+            logThreshold(String.format("SQL statement required %.3f seconds at height %d:\n%s",
+                                       (double)elapsed/1000000000.0, Metro.getBlockchain().getHeight(), sql));
     }
 
     private static final class DbStatement extends FilteredStatement {
@@ -263,34 +758,25 @@ public class TransactionalDb extends BasicDb {
 
         @Override
         public boolean execute(String sql) throws SQLException {
-            long start = System.currentTimeMillis();
+            long start = System.nanoTime();
             boolean b = super.execute(sql);
-            long elapsed = System.currentTimeMillis() - start;
-            if (elapsed > stmtThreshold)
-                logThreshold(String.format("SQL statement required %.3f seconds at height %d:\n%s",
-                                           (double)elapsed/1000.0, Metro.getBlockchain().getHeight(), sql));
+            executed(start, sql);
             return b;
         }
 
         @Override
         public ResultSet executeQuery(String sql) throws SQLException {
-            long start = System.currentTimeMillis();
+            long start = System.nanoTime();
             ResultSet r = super.executeQuery(sql);
-            long elapsed = System.currentTimeMillis() - start;
-            if (elapsed > stmtThreshold)
-                logThreshold(String.format("SQL statement required %.3f seconds at height %d:\n%s",
-                                           (double)elapsed/1000.0, Metro.getBlockchain().getHeight(), sql));
+            executed(start, sql);
             return r;
         }
 
         @Override
         public int executeUpdate(String sql) throws SQLException {
-            long start = System.currentTimeMillis();
+            long start = System.nanoTime();
             int c = super.executeUpdate(sql);
-            long elapsed = System.currentTimeMillis() - start;
-            if (elapsed > stmtThreshold)
-                logThreshold(String.format("SQL statement required %.3f seconds at height %d:\n%s",
-                                           (double)elapsed/1000.0, Metro.getBlockchain().getHeight(), sql));
+            executed(start, sql);
             return c;
         }
     }
@@ -302,34 +788,25 @@ public class TransactionalDb extends BasicDb {
 
         @Override
         public boolean execute() throws SQLException {
-            long start = System.currentTimeMillis();
+            long start = System.nanoTime();
             boolean b = super.execute();
-            long elapsed = System.currentTimeMillis() - start;
-            if (elapsed > stmtThreshold)
-                logThreshold(String.format("SQL statement required %.3f seconds at height %d:\n%s",
-                                           (double)elapsed/1000.0, Metro.getBlockchain().getHeight(), getSQL()));
+            executed(start, getSQL());
             return b;
         }
 
         @Override
         public ResultSet executeQuery() throws SQLException {
-            long start = System.currentTimeMillis();
+            long start = System.nanoTime();
             ResultSet r = super.executeQuery();
-            long elapsed = System.currentTimeMillis() - start;
-            if (elapsed > stmtThreshold)
-                logThreshold(String.format("SQL statement required %.3f seconds at height %d:\n%s",
-                                           (double)elapsed/1000.0, Metro.getBlockchain().getHeight(), getSQL()));
+            executed(start, getSQL());
             return r;
         }
 
         @Override
         public int executeUpdate() throws SQLException {
-            long start = System.currentTimeMillis();
+            long start = System.nanoTime();
             int c = super.executeUpdate();
-            long elapsed = System.currentTimeMillis() - start;
-            if (elapsed > stmtThreshold)
-                logThreshold(String.format("SQL statement required %.3f seconds at height %d:\n%s",
-                                           (double)elapsed/1000.0, Metro.getBlockchain().getHeight(), getSQL()));
+            executed(start, getSQL());
             return c;
         }
     }
@@ -0,0 +1,207 @@
+package metro.db;
+
+import metro.Metro;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Queue of the keys of a versioned table whose rows were superseded by a newer version, or deleted, at a height.
+ * Once that height is below the trim height, the rows of the key no longer latest and below the height are deleted,
+ * a few keys at a time, instead of searching the whole table for them when trimming.
+ * <p>
+ * Keys are queued when the transaction writing the new version commits. Rows superseded before the queue started
+ * recording, or while it was full, are only removed by a full trim of the table. Once a full trim covering them has
+ * run, the queue is complete and the full trim of the table is no longer needed.
+ */
+final class TrimQueue implements TransactionalDb.TransactionCallback {
+
+    private static final boolean enabled = Metro.getBooleanProperty("metro.trimDerivedTables")
+            && Metro.getBooleanProperty("metro.trimIncrementally");
+    private static final int maxSize = Metro.getIntProperty("metro.trimQueueSize");
+
+    private static final class Entry {
+
+        private final DbKey dbKey;
+        private final int height;
+        private final boolean deleted;
+
+        private Entry(DbKey dbKey, int height, boolean deleted) {
+            this.dbKey = dbKey;
+            this.height = height;
+            this.deleted = deleted;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Entry && dbKey.equals(((Entry) o).dbKey) && height == ((Entry) o).height
+                    && deleted == ((Entry) o).deleted;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(dbKey, height, deleted);
+        }
+    }
+
+    private final TransactionalDb db;
+    private final String table;
+    private final DbKey.Factory<?> dbKeyFactory;
+    /** Entries of committed transactions, by increasing height, guarded by this */
+    private final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    /** Entries of the transaction of the current thread */
+    private final ThreadLocal<Set<Entry>> pendingEntries = new ThreadLocal<>();
+    /** Lowest height of the superseded rows queued since the last overflow, -1 if nothing was queued yet */
+    private int queuedFromHeight = -1;
+    /** Highest height a full trim has run at since the queue started recording */
+    private int fullTrimHeight = -1;
+
+    TrimQueue(TransactionalDb db, String table, DbKey.Factory<?> dbKeyFactory) {
+        this.db = db;
+        this.table = table;
+        this.dbKeyFactory = dbKeyFactory;
+    }
+
+    /**
+     * Queue the key of rows superseded, or deleted if the new version is not latest, at the current height
+     */
+    void add(DbKey dbKey, boolean deleted) {
+        if (!enabled || maxSize <= 0) {
+            return;
+        }
+        Set<Entry> pending = pendingEntries.get();
+        if (pending == null) {
+            pending = new LinkedHashSet<>();
+            pendingEntries.set(pending);
+            db.registerCallback(this);
+        }
+        pending.add(new Entry(dbKey, Metro.getBlockchain().getHeight(), deleted));
+    }
+
+    @Override
+    public void commit() {
+        Set<Entry> pending = pendingEntries.get();
+        if (pending == null) {
+            return;
+        }
+        pendingEntries.remove();
+        synchronized (this) {
+            for (Entry entry : pending) {
+                if (queuedFromHeight < 0) {
+                    queuedFromHeight = entry.height;
+                }
+                if (entries.size() >= maxSize) {
+                    // rows superseded from now on are left to the full trim
+                    entries.clear();
+                    queuedFromHeight = Integer.MAX_VALUE;
+                } else if (queuedFromHeight != Integer.MAX_VALUE) {
+                    entries.add(entry);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void rollback() {
+        pendingEntries.remove();
+    }
+
+    /**
+     * Drop the keys superseded above the height, their rows were removed by the rollback
+     */
+    synchronized void rollback(int height) {
+        entries.removeIf(entry -> entry.height > height);
+        Set<Entry> pending = pendingEntries.get();
+        if (pending != null) {
+            pending.removeIf(entry -> entry.height > height);
+        }
+    }
+
+    synchronized void clear() {
+        entries.clear();
+        queuedFromHeight = -1;
+        fullTrimHeight = -1;
+    }
+
+    /**
+     * @return true if all superseded rows below the trim height not yet removed by a full trim are queued
+     */
+    synchronized boolean isComplete() {
+        return queuedFromHeight >= 0 && queuedFromHeight != Integer.MAX_VALUE && fullTrimHeight >= queuedFromHeight;
+    }
+
+    /**
+     * Record a full trim of the table
+     */
+    synchronized void fullTrim(int height) {
+        if (queuedFromHeight == Integer.MAX_VALUE) {
+            queuedFromHeight = Metro.getBlockchain().getHeight() + 1;
+        }
+        fullTrimHeight = Math.max(fullTrimHeight, height);
+    }
+
+    /**
+     * @return true if keys superseded below the trim height are queued
+     */
+    synchronized boolean hasEntries(int height) {
+        Entry first = entries.peekFirst();
+        return first != null && first.height < height;
+    }
+
+    /**
+     * Delete the superseded rows of the queued keys whose new version is below the trim height, in the current
+     * transaction
+     *
+     * @param height trim height
+     * @param trimStartHeight lowest height of the rows deleted
+     * @param maxKeys maximum number of keys to process
+     * @return number of keys processed
+     */
+    int trim(int height, int trimStartHeight, int maxKeys) {
+        List<Entry> batch = new ArrayList<>();
+        synchronized (this) {
+            Iterator<Entry> iterator = entries.iterator();
+            while (iterator.hasNext() && batch.size() < maxKeys) {
+                Entry entry = iterator.next();
+                if (entry.height >= height) {
+                    break;
+                }
+                batch.add(entry);
+                iterator.remove();
+            }
+        }
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        try (Connection con = db.getConnection();
+             PreparedStatement pstmtDelete = con.prepareStatement("DELETE FROM " + table + dbKeyFactory.getPKClause()
+                     + " AND height < ? AND height >= ? AND latest = FALSE");
+             PreparedStatement pstmtDeleteDeleted = con.prepareStatement("DELETE FROM " + table + dbKeyFactory.getPKClause()
+                     + " AND height <= ? AND height >= ? AND latest = FALSE")) {
+            for (Entry entry : batch) {
+                PreparedStatement pstmt = entry.deleted ? pstmtDeleteDeleted : pstmtDelete;
+                int i = entry.dbKey.setPK(pstmt);
+                pstmt.setInt(i++, entry.height);
+                pstmt.setInt(i, trimStartHeight);
+                pstmt.executeUpdate();
+            }
+        } catch (SQLException e) {
+            synchronized (this) {
+                for (int i = batch.size() - 1; i >= 0; i--) {
+                    entries.addFirst(batch.get(i));
+                }
+            }
+            throw new RuntimeException(e.toString(), e);
+        }
+        return batch.size();
+    }
+
+}
@@ -28,6 +28,8 @@ public abstract class ValuesDbTable<T,V> extends DerivedDbTable {
 
     private final boolean multiversion;
     protected final DbKey.Factory<T> dbKeyFactory;
+    /** Keys with superseded rows, null if the table is not multiversion */
+    private final TrimQueue trimQueue;
 
     protected ValuesDbTable(String table, DbKey.Factory<T> dbKeyFactory) {
         this(table, dbKeyFactory, false);
@@ -37,6 +39,7 @@ public abstract class ValuesDbTable<T,V> extends DerivedDbTable {
         super(table);
         this.dbKeyFactory = dbKeyFactory;
         this.multiversion = multiversion;
+        this.trimQueue = multiversion ? new TrimQueue(db, table, dbKeyFactory) : null;
     }
 
     protected abstract V load(Connection con, ResultSet rs) throws SQLException;
@@ -92,13 +95,14 @@ public abstract class ValuesDbTable<T,V> extends DerivedDbTable {
             throw new RuntimeException("DbKey not set");
         }
         db.getCache(table).put(dbKey, values);
-        try (Connection con = db.getConnection()) {
+        try (Connection con = db.getBatchConnection(table, dbKey)) {
             if (multiversion) {
                 try (PreparedStatement pstmt = con.prepareStatement("UPDATE " + table
                         + " SET latest = FALSE " + dbKeyFactory.getPKClause() + " AND latest = TRUE")) {
                     dbKey.setPK(pstmt);
                     pstmt.executeUpdate();
                 }
+                trimQueue.add(dbKey, false);
             }
             for (V v : values) {
                 save(con, t, v);
@@ -112,18 +116,40 @@ public abstract class ValuesDbTable<T,V> extends DerivedDbTable {
     public final void rollback(int height) {
         if (multiversion) {
             VersionedEntityDbTable.rollback(db, table, height, dbKeyFactory);
+            trimQueue.rollback(height);
         } else {
             super.rollback(height);
         }
     }
 
+    @Override
+    public void truncate() {
+        super.truncate();
+        if (multiversion) {
+            trimQueue.clear();
+        }
+    }
+
     @Override
     public final void trim(int height) {
         if (multiversion) {
-            VersionedEntityDbTable.trim(db, table, height, dbKeyFactory, 0);
+            if (!trimQueue.isComplete()) {
+                VersionedEntityDbTable.trim(db, table, height, dbKeyFactory, 0);
+                trimQueue.fullTrim(height);
+            }
         } else {
             super.trim(height);
         }
     }
 
+    @Override
+    public final int trimIncrementally(int height, int limit) {
+        return multiversion ? trimQueue.trim(height, 0, limit) : 0;
+    }
+
+    @Override
+    public final boolean isTrimPending(int height) {
+        return multiversion && trimQueue.hasEntries(height);
+    }
+
 }
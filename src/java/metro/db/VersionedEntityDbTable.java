@@ -64,6 +64,7 @@ public abstract class VersionedEntityDbTable<T> extends EntityDbTable<T> {
                         save(con, t);
                         pstmt.executeUpdate(); // delete after the save
                     }
+                    trimQueue.add(dbKey, true);
                     return true;
                 } else {
                     try (PreparedStatement pstmtDelete = con.prepareStatement("DELETE FROM " + table + dbKeyFactory.getPKClause())) {
@@ -98,6 +98,7 @@ public final class API {
     static final boolean disableAdminPassword;
     static final int maxRecords = Metro.getIntProperty("metro.maxAPIRecords");
     static final boolean enableAPIUPnP = Metro.getBooleanProperty("metro.enableAPIUPnP");
+    static final boolean apiSnapshotReads = Metro.getBooleanProperty("metro.apiSnapshotReads");
     public static final int apiServerIdleTimeout = Metro.getIntProperty("metro.apiServerIdleTimeout");
     public static final boolean apiServerCORS = Metro.getBooleanProperty("metro.apiServerCORS");
     private static final String forwardedForHeader = Metro.getStringProperty("metro.forwardedForHeader");
@@ -239,6 +240,7 @@ public final class API {
             }
 
             ServletHolder servletHolder = apiHandler.addServlet(APIServlet.class, "/metro");
+            servletHolder.setAsyncSupported(true);
 
             servletHolder.getRegistration().setMultipartConfig(new MultipartConfigElement(
                     null, Math.max(Metro.getIntProperty("metro.maxUploadFileSize"), Constants.MAX_MESSAGE_DATA_LENGTH), -1L, 0));
@@ -262,6 +264,8 @@ public final class API {
 
             apiHandler.addServlet(DbShellServlet.class, "/dbshell");
 
+            apiHandler.addServlet(MetricsServlet.class, "/metrics");
+
             if (apiServerCORS) {
                 FilterHolder filterHolder = apiHandler.addFilter(CrossOriginFilter.class, "/*", null);
                 filterHolder.setInitParameter("allowedHeaders", "*");
@@ -319,6 +323,7 @@ public final class API {
     public static void init() {}
 
     public static void shutdown() {
+        APITagExecutors.shutdown();
         if (apiServer != null) {
             try {
                 apiServer.stop();
@@ -84,6 +84,7 @@ public enum APIEnum {
     GET_BLOCKS("getBlocks", GetBlocks.instance),
     GET_BLOCKCHAIN_STATUS("getBlockchainStatus", GetBlockchainStatus.instance),
     GET_BLOCKCHAIN_TRANSACTIONS("getBlockchainTransactions", GetBlockchainTransactions.instance),
+    GET_CACHE_STATUS("getCacheStatus", GetCacheStatus.instance),
     GET_REFERENCING_TRANSACTIONS("getReferencingTransactions", GetReferencingTransactions.instance),
     GET_CONSTANTS("getConstants", GetConstants.instance),
     GET_GUARANTEED_BALANCE("getGuaranteedBalance", GetGuaranteedBalance.instance),
@@ -216,7 +217,10 @@ public enum APIEnum {
     GET_CIRCULATION_SUPPLY("getCirculationSupply", GetCirculationSupply.instance),
     GET_POW_DIFFICULTY("getPOWDifficulty", GetPOWDifficulty.instance),
     GET_POW_BLOCKS("getMinedBlocks", GetMinedBlocks.instance),
-    GET_BLOCKS_COUNT("getBlockCount", GetBlockCount.instance);
+    GET_BLOCKS_COUNT("getBlockCount", GetBlockCount.instance),
+    GET_METRICS("getMetrics", GetMetrics.instance),
+    GET_LOCK_STATUS("getLockStatus", GetLockStatus.instance),
+    GET_DATABASE_STATUS("getDatabaseStatus", GetDatabaseStatus.instance);
 
     private static final Map<String, APIEnum> apiByName = new HashMap<>();
 
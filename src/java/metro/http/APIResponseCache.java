@@ -0,0 +1,154 @@
+package metro.http;
+
+import metro.BlockchainProcessor;
+import metro.Metro;
+import metro.TransactionProcessor;
+import metro.util.BoundedCache;
+import metro.util.JSON;
+import metro.util.StreamingJSONObject;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Serialized responses of the API requests which handlers declare cacheable.
+ * <p>
+ * Entries are keyed by the last block id, the request type and the sorted request parameters. They are invalidated
+ * when a block is pushed or popped or the unconfirmed transactions change, and after the number of seconds the
+ * handler allows, whichever comes first.
+ */
+final class APIResponseCache {
+
+    private static final class CachedResponse implements JSONStreamAware {
+
+        private final String json;
+        private final long generation;
+        private final long expiration;
+
+        private CachedResponse(String json, long generation, long expiration) {
+            this.json = json;
+            this.generation = generation;
+            this.expiration = expiration;
+        }
+
+        /**
+         * Write the response with the processing time of the current request added
+         */
+        private JSONStreamAware withProcessingTime(long requestProcessingTime) {
+            return new JSONStreamAware() {
+                @Override
+                public void writeJSONString(Writer out) throws IOException {
+                    out.write(json, 0, json.length() - 1);
+                    out.write(json.length() > 2 ? ",\"requestProcessingTime\":" : "\"requestProcessingTime\":");
+                    out.write(Long.toString(requestProcessingTime));
+                    out.write('}');
+                }
+            };
+        }
+
+        @Override
+        public void writeJSONString(Writer out) throws IOException {
+            out.write(json);
+        }
+    }
+
+    private static final BoundedCache<String, CachedResponse> cache = new BoundedCache<>("apiResponses",
+            Metro.getIntProperty("metro.apiResponseCacheSize"));
+
+    /** Incremented on each change making the cached responses stale */
+    private static final AtomicLong generation = new AtomicLong();
+
+    static {
+        if (cache.getCapacity() > 0) {
+            Metro.getBlockchainProcessor().addListener(block -> invalidate(), BlockchainProcessor.Event.BLOCK_PUSHED);
+            Metro.getBlockchainProcessor().addListener(block -> invalidate(), BlockchainProcessor.Event.BLOCK_POPPED);
+            Metro.getTransactionProcessor().addListener(transactions -> invalidate(),
+                    TransactionProcessor.Event.ADDED_UNCONFIRMED_TRANSACTIONS);
+            Metro.getTransactionProcessor().addListener(transactions -> invalidate(),
+                    TransactionProcessor.Event.REMOVED_UNCONFIRMED_TRANSACTIONS);
+        }
+    }
+
+    /**
+     * @return cache key of the request, or null if its response is not to be cached
+     */
+    static String getKey(String requestType, APIServlet.APIRequestHandler handler, HttpServletRequest req) {
+        if (cache.getCapacity() == 0 || handler.getResponseCacheSeconds() <= 0 || req.getParameter("adminPassword") != null) {
+            return null;
+        }
+        StringBuilder key = new StringBuilder(64);
+        key.append(Long.toUnsignedString(Metro.getBlockchain().getLastBlock().getId())).append(' ').append(requestType);
+        Map<String, String[]> parameters = new TreeMap<>(req.getParameterMap());
+        for (Map.Entry<String, String[]> parameter : parameters.entrySet()) {
+            // random is added by clients to defeat browser caching, it does not change the response
+            if ("random".equals(parameter.getKey()) || "requestType".equals(parameter.getKey())) {
+                continue;
+            }
+            for (String value : parameter.getValue()) {
+                key.append('&').append(parameter.getKey()).append('=').append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    static long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * @return the cached response with the processing time of this request, or null if none
+     */
+    static JSONStreamAware get(String key, long requestProcessingTime) {
+        CachedResponse response = cache.get(key);
+        if (response == null) {
+            return null;
+        }
+        if (response.generation != generation.get() || response.expiration < System.currentTimeMillis()) {
+            cache.remove(key);
+            return null;
+        }
+        return response.withProcessingTime(requestProcessingTime);
+    }
+
+    /**
+     * Cache a successful response computed at the given generation
+     *
+     * @return the response to send, which is the cached copy if the response has been cached
+     */
+    static JSONStreamAware put(String key, APIServlet.APIRequestHandler handler, JSONStreamAware response,
+                               long responseGeneration, long requestProcessingTime) {
+        if (responseGeneration != generation.get()) {
+            return response;
+        }
+        String json;
+        if (response instanceof JSONObject && ((JSONObject) response).get("errorCode") == null) {
+            json = JSON.toJSONString((JSONObject) response);
+        } else if (response instanceof StreamingJSONObject) {
+            json = JSON.toString(response);
+        } else {
+            return response;
+        }
+        CachedResponse cachedResponse = new CachedResponse(json, responseGeneration,
+                System.currentTimeMillis() + handler.getResponseCacheSeconds() * 1000L);
+        cache.put(key, cachedResponse);
+        return cachedResponse.withProcessingTime(requestProcessingTime);
+    }
+
+    static BoundedCache<?, ?> getCache() {
+        return cache;
+    }
+
+    private static void invalidate() {
+        generation.incrementAndGet();
+        cache.clear();
+    }
+
+    private APIResponseCache() {}
+
+}
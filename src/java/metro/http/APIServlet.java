@@ -24,9 +24,12 @@ import metro.MetroException;
 import metro.addons.AddOns;
 import metro.util.JSON;
 import metro.util.Logger;
+import metro.util.Metrics;
+import metro.util.StreamingJSONObject;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -42,6 +45,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
 
 import static metro.http.JSONResponses.ERROR_DISABLED;
 import static metro.http.JSONResponses.ERROR_INCORRECT_REQUEST;
@@ -50,6 +55,7 @@ import static metro.http.JSONResponses.LIGHT_CLIENT_DISABLED_API;
 import static metro.http.JSONResponses.POST_REQUIRED;
 import static metro.http.JSONResponses.REQUIRED_BLOCK_NOT_FOUND;
 import static metro.http.JSONResponses.REQUIRED_LAST_BLOCK_NOT_FOUND;
+import static metro.http.JSONResponses.TOO_MANY_REQUESTS;
 
 public final class APIServlet extends HttpServlet {
 
@@ -120,9 +126,26 @@ public final class APIServlet extends HttpServlet {
             return false;
         }
 
+        /**
+         * @return number of seconds a response may be served from the response cache, 0 if it is not cacheable
+         */
+        protected int getResponseCacheSeconds() {
+            return 0;
+        }
+
+        /**
+         * @return true for handlers whose requests may scan large parts of the database, only their requests are
+         * limited by {@code metro.apiTagThreads}
+         */
+        protected boolean isExpensive() {
+            return false;
+        }
+
     }
 
     private static final boolean enforcePost = Metro.getBooleanProperty("metro.apiServerEnforcePOST");
+    private static final Metrics.Family requestTimes = Metrics.family("api_request_seconds", "requestType",
+            "Time to process and write API requests");
     static final Map<String,APIRequestHandler> apiRequestHandlers;
     static final Map<String,APIRequestHandler> disabledRequestHandlers;
 
@@ -175,12 +198,45 @@ public final class APIServlet extends HttpServlet {
 
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        process(req, resp);
+        dispatch(req, resp);
     }
 
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse resp) throws ServletException, IOException {
-        process(req, resp);
+        dispatch(req, resp);
+    }
+
+    /**
+     * Process the request on the server thread, or asynchronously on the executor of the API tag of its expensive handler
+     */
+    private void dispatch(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        String requestType = req.getParameter("requestType");
+        APIRequestHandler apiRequestHandler = requestType != null ? apiRequestHandlers.get(requestType) : null;
+        ExecutorService executor = apiRequestHandler != null ? APITagExecutors.getExecutor(apiRequestHandler) : null;
+        if (executor == null) {
+            process(req, resp);
+            return;
+        }
+        AsyncContext context = req.startAsync();
+        context.setTimeout(0);
+        try {
+            executor.execute(() -> {
+                try {
+                    process((HttpServletRequest) context.getRequest(), (HttpServletResponse) context.getResponse());
+                } catch (IOException | RuntimeException e) {
+                    Logger.logDebugMessage("Error sending API response", e);
+                } finally {
+                    context.complete();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            resp.setContentType("text/plain; charset=UTF-8");
+            try (Writer writer = resp.getWriter()) {
+                JSON.writeJSONString(TOO_MANY_REQUESTS, writer);
+            } finally {
+                context.complete();
+            }
+        }
     }
 
     private void process(HttpServletRequest req, HttpServletResponse resp) throws IOException {
@@ -192,6 +248,8 @@ public final class APIServlet extends HttpServlet {
 
         JSONStreamAware response = JSON.emptyJSON;
         long startTime = System.currentTimeMillis();
+        long startNanos = System.nanoTime();
+        String timedRequestType = null;
 
         try {
 
@@ -216,6 +274,8 @@ public final class APIServlet extends HttpServlet {
                 return;
             }
 
+            timedRequestType = requestType;
+
             if (Constants.isLightClient && apiRequestHandler.requireFullClient()) {
                 response = LIGHT_CLIENT_DISABLED_API;
                 return;
@@ -233,7 +293,15 @@ public final class APIServlet extends HttpServlet {
                     ParameterParser.getUnsignedLong(req, "requireBlock", false) : 0;
             final long requireLastBlockId = apiRequestHandler.allowRequiredBlockParameters() ?
                     ParameterParser.getUnsignedLong(req, "requireLastBlock", false) : 0;
-            if (requireBlockId != 0 || requireLastBlockId != 0) {
+            //
+            // Read only requests run against a snapshot of the blockchain as of the last committed block,
+            // so that they neither wait for nor delay the application of new blocks
+            //
+            final boolean snapshot = API.apiSnapshotReads && !apiRequestHandler.requirePost()
+                    && !apiRequestHandler.startDbTransaction();
+            if (snapshot) {
+                Metro.getBlockchain().beginSnapshot();
+            } else if (requireBlockId != 0 || requireLastBlockId != 0) {
                 Metro.getBlockchain().readLock();
             }
             try {
@@ -249,17 +317,47 @@ public final class APIServlet extends HttpServlet {
                         response = REQUIRED_LAST_BLOCK_NOT_FOUND;
                         return;
                     }
+                    final long cacheGeneration = APIResponseCache.getGeneration();
+                    final String cacheKey = APIResponseCache.getKey(requestType, apiRequestHandler, req);
+                    if (cacheKey != null) {
+                        JSONStreamAware cachedResponse = APIResponseCache.get(cacheKey, System.currentTimeMillis() - startTime);
+                        if (cachedResponse != null) {
+                            response = cachedResponse;
+                            return;
+                        }
+                    }
                     response = apiRequestHandler.processRequest(req, resp);
                     if (requireLastBlockId == 0 && requireBlockId != 0 && response instanceof JSONObject) {
                         ((JSONObject) response).put("lastBlock", Metro.getBlockchain().getLastBlock().getStringId());
                     }
+                    if (cacheKey != null) {
+                        response = APIResponseCache.put(cacheKey, apiRequestHandler, response, cacheGeneration,
+                                System.currentTimeMillis() - startTime);
+                    }
+                    if (response instanceof StreamingJSONObject) {
+                        // the rows are read while serializing, so serialize in the snapshot or under the lock they are
+                        // read with; in a snapshot or without a lock the response is written to the client directly,
+                        // under a lock or in a transaction it is spooled and written once they are released
+                        ((StreamingJSONObject) response).getMembers().put("requestProcessingTime", System.currentTimeMillis() - startTime);
+                        if (snapshot || (requireBlockId == 0 && requireLastBlockId == 0 && !apiRequestHandler.startDbTransaction())) {
+                            // not closed if writing fails, so that the partly written response is aborted
+                            Writer writer = resp.getWriter();
+                            JSON.writeJSONString(response, writer);
+                            writer.close();
+                            response = null;
+                        } else {
+                            response = ((StreamingJSONObject) response).prepare();
+                        }
+                    }
                 } finally {
                     if (apiRequestHandler.startDbTransaction()) {
                         Db.db.endTransaction();
                     }
                 }
             } finally {
-                if (requireBlockId != 0 || requireLastBlockId != 0) {
+                if (snapshot) {
+                    Metro.getBlockchain().endSnapshot();
+                } else if (requireBlockId != 0 || requireLastBlockId != 0) {
                     Metro.getBlockchain().readUnlock();
                 }
             }
@@ -277,17 +375,32 @@ public final class APIServlet extends HttpServlet {
             Logger.logErrorMessage("Error processing request", e);
             response = ERROR_INCORRECT_REQUEST;
         } finally {
-            // The response will be null if we created an asynchronous context
-            if (response != null) {
-                if (response instanceof JSONObject) {
-                    ((JSONObject) response).put("requestProcessingTime", System.currentTimeMillis() - startTime);
-                }
-                try (Writer writer = resp.getWriter()) {
-                    JSON.writeJSONString(response, writer);
-                }
+            // The response will be null if we created an asynchronous context or it has been written already
+            boolean partlyWritten = response != null && resp.isCommitted();
+            if (response != null && !partlyWritten) {
+                // discard what a failed handler or streamed response left in the buffer
+                resp.resetBuffer();
+                writeResponse(resp, response, startTime);
+            }
+            if (timedRequestType != null) {
+                requestTimes.get(timedRequestType).recordSince(startNanos);
+            }
+            if (partlyWritten) {
+                // the handler failed after writing part of its response, abort the connection rather than append
+                // the error response to it
+                throw new IOException("API request failed after its response was partly written");
             }
         }
 
     }
 
+    private static void writeResponse(HttpServletResponse resp, JSONStreamAware response, long startTime) throws IOException {
+        if (response instanceof JSONObject) {
+            ((JSONObject) response).put("requestProcessingTime", System.currentTimeMillis() - startTime);
+        }
+        try (Writer writer = resp.getWriter()) {
+            JSON.writeJSONString(response, writer);
+        }
+    }
+
 }
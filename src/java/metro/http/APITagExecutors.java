@@ -0,0 +1,106 @@
+package metro.http;
+
+import metro.Metro;
+import metro.util.Logger;
+import metro.util.ThreadPool;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors limiting the number of concurrent expensive requests of the API tags listed in {@code metro.apiTagThreads}.
+ * <p>
+ * A request whose handler is {@link APIServlet.APIRequestHandler#isExpensive() expensive} and has one of these tags is
+ * processed asynchronously on the executor of the first of its tags in the list, which runs at most the configured
+ * number of such requests at a time and queues the others, so that bursts of expensive requests do not occupy all the
+ * threads of the API server. All other requests, including the cheap requests of the listed tags, are processed on the
+ * server thread as before. On JVMs supporting them, the executor threads are virtual threads.
+ */
+final class APITagExecutors {
+
+    private static final Map<APITag, ExecutorService> executors;
+    private static final List<APITag> limitedTags;
+
+    static {
+        Map<APITag, ExecutorService> map = new EnumMap<>(APITag.class);
+        List<APITag> tags = new ArrayList<>();
+        int queueSize = Metro.getIntProperty("metro.apiTagQueueSize");
+        ThreadFactory virtualThreadFactory = getVirtualThreadFactory();
+        for (String tagLimit : Metro.getStringListProperty("metro.apiTagThreads")) {
+            int index = tagLimit.lastIndexOf(':');
+            if (index < 0) {
+                throw new RuntimeException("Invalid API tag limit in metro.apiTagThreads: " + tagLimit);
+            }
+            APITag apiTag = APITag.fromDisplayName(tagLimit.substring(0, index).trim());
+            int threads = Integer.parseInt(tagLimit.substring(index + 1).trim());
+            if (threads <= 0 || map.containsKey(apiTag)) {
+                continue;
+            }
+            ThreadFactory threadFactory = virtualThreadFactory != null ? virtualThreadFactory : new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "API " + apiTag.getDisplayName() + " " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            };
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(Math.max(queueSize, 1)), threadFactory);
+            executor.allowCoreThreadTimeOut(true);
+            map.put(apiTag, executor);
+            tags.add(apiTag);
+        }
+        if (!tags.isEmpty()) {
+            Logger.logInfoMessage("API tag thread limits: " + Metro.getStringListProperty("metro.apiTagThreads")
+                    + (virtualThreadFactory != null ? ", using virtual threads" : ""));
+        }
+        executors = map;
+        limitedTags = Collections.unmodifiableList(tags);
+    }
+
+    /**
+     * @return executor to process the requests of the handler on, or null to process them on the server thread
+     */
+    static ExecutorService getExecutor(APIServlet.APIRequestHandler handler) {
+        if (!handler.isExpensive()) {
+            return null;
+        }
+        for (APITag apiTag : limitedTags) {
+            if (handler.getAPITags().contains(apiTag)) {
+                return executors.get(apiTag);
+            }
+        }
+        return null;
+    }
+
+    static void shutdown() {
+        executors.forEach((apiTag, executor) -> ThreadPool.shutdownExecutor("API " + apiTag.getDisplayName(), executor, 5));
+    }
+
+    /**
+     * @return factory of virtual threads, or null if the JVM does not support them
+     */
+    private static ThreadFactory getVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private APITagExecutors() {}
+
+}
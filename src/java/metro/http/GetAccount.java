@@ -124,4 +124,9 @@ public final class GetAccount extends APIServlet.APIRequestHandler {
 
     }
 
+    @Override
+    protected int getResponseCacheSeconds() {
+        return Integer.MAX_VALUE;
+    }
+
 }
@@ -58,4 +58,9 @@ public final class GetAccountBlockIds extends APIServlet.APIRequestHandler {
         return response;
     }
 
+    @Override
+    protected boolean isExpensive() {
+        return true;
+    }
+
 }
@@ -60,4 +60,9 @@ public final class GetAccountBlocks extends APIServlet.APIRequestHandler {
         return response;
     }
 
+    @Override
+    protected boolean isExpensive() {
+        return true;
+    }
+
 }
@@ -24,7 +24,7 @@ import metro.AccountLedger.LedgerEvent;
 import metro.AccountLedger.LedgerHolding;
 import metro.MetroException;
 import metro.util.Convert;
-import org.json.simple.JSONArray;
+import metro.util.StreamingJSONObject;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
 
@@ -275,14 +275,15 @@ public class GetAccountLedger extends APIServlet.APIRequestHandler {
         //
         // Return the response
         //
-        JSONArray responseEntries = new JSONArray();
-        ledgerEntries.forEach((entry) -> {
+        return new StreamingJSONObject("entries", responseEntries -> ledgerEntries.forEach((entry) -> {
             JSONObject responseEntry = new JSONObject();
             JSONData.ledgerEntry(responseEntry, entry, includeTransactions, includeHoldingInfo);
-            responseEntries.add(responseEntry);
-        });
-        JSONObject response = new JSONObject();
-        response.put("entries", responseEntries);
-        return response;
+            responseEntries.accept(responseEntry);
+        }));
+    }
+
+    @Override
+    protected boolean isExpensive() {
+        return true;
     }
 }
@@ -42,4 +42,9 @@ public class GetAccountMinedBlocks extends APIServlet.APIRequestHandler {
 
         return response;
     }
+
+    @Override
+    protected boolean isExpensive() {
+        return true;
+    }
 }
@@ -58,4 +58,9 @@ public final class GetAliasesLike extends APIServlet.APIRequestHandler {
         return response;
     }
 
+    @Override
+    protected boolean isExpensive() {
+        return true;
+    }
+
 }
@@ -51,4 +51,9 @@ public final class GetAllAssets extends APIServlet.APIRequestHandler {
         return response;
     }
 
+    @Override
+    protected int getResponseCacheSeconds() {
+        return Integer.MAX_VALUE;
+    }
+
 }
@@ -56,4 +56,9 @@ public final class GetAllTrades extends APIServlet.APIRequestHandler {
         return response;
     }
 
+    @Override
+    protected int getResponseCacheSeconds() {
+        return Integer.MAX_VALUE;
+    }
+
 }
@@ -19,7 +19,6 @@ package metro.http;
 
 import metro.MetroException;
 import metro.Order;
-import metro.db.DbIterator;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
@@ -42,10 +41,8 @@ public final class GetAskOrderIds extends APIServlet.APIRequestHandler {
         int lastIndex = ParameterParser.getLastIndex(req);
 
         JSONArray orderIds = new JSONArray();
-        try (DbIterator<Order.Ask> askOrders = Order.Ask.getSortedOrders(assetId, firstIndex, lastIndex)) {
-            while (askOrders.hasNext()) {
-                orderIds.add(Long.toUnsignedString(askOrders.next().getId()));
-            }
+        for (Order.Ask order : Order.Ask.getOrderBook(assetId, firstIndex, lastIndex)) {
+            orderIds.add(Long.toUnsignedString(order.getId()));
         }
 
         JSONObject response = new JSONObject();
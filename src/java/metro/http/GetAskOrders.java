@@ -23,7 +23,6 @@ import metro.MetroException;
 import metro.Order;
 import metro.Transaction;
 import metro.TransactionType;
-import metro.db.DbIterator;
 import metro.util.Filter;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -62,15 +61,12 @@ public final class GetAskOrders extends APIServlet.APIRequestHandler {
         }
 
         JSONArray orders = new JSONArray();
-        try (DbIterator<Order.Ask> askOrders = Order.Ask.getSortedOrders(assetId, firstIndex, lastIndex)) {
-            while (askOrders.hasNext()) {
-                Order.Ask order = askOrders.next();
-                JSONObject orderJSON = JSONData.askOrder(order);
-                if (showExpectedCancellations && Arrays.binarySearch(cancellations, order.getId()) >= 0) {
-                    orderJSON.put("expectedCancellation", Boolean.TRUE);
-                }
-                orders.add(orderJSON);
+        for (Order.Ask order : Order.Ask.getOrderBook(assetId, firstIndex, lastIndex)) {
+            JSONObject orderJSON = JSONData.askOrder(order);
+            if (showExpectedCancellations && Arrays.binarySearch(cancellations, order.getId()) >= 0) {
+                orderJSON.put("expectedCancellation", Boolean.TRUE);
             }
+            orders.add(orderJSON);
         }
 
         JSONObject response = new JSONObject();
@@ -79,4 +75,9 @@ public final class GetAskOrders extends APIServlet.APIRequestHandler {
 
     }
 
+    @Override
+    protected int getResponseCacheSeconds() {
+        return Integer.MAX_VALUE;
+    }
+
 }
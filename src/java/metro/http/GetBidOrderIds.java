@@ -19,7 +19,6 @@ package metro.http;
 
 import metro.MetroException;
 import metro.Order;
-import metro.db.DbIterator;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
@@ -42,10 +41,8 @@ public final class GetBidOrderIds extends APIServlet.APIRequestHandler {
         int lastIndex = ParameterParser.getLastIndex(req);
 
         JSONArray orderIds = new JSONArray();
-        try (DbIterator<Order.Bid> bidOrders = Order.Bid.getSortedOrders(assetId, firstIndex, lastIndex)) {
-            while (bidOrders.hasNext()) {
-                orderIds.add(Long.toUnsignedString(bidOrders.next().getId()));
-            }
+        for (Order.Bid order : Order.Bid.getOrderBook(assetId, firstIndex, lastIndex)) {
+            orderIds.add(Long.toUnsignedString(order.getId()));
         }
         JSONObject response = new JSONObject();
         response.put("bidOrderIds", orderIds);
@@ -23,7 +23,6 @@ import metro.MetroException;
 import metro.Order;
 import metro.Transaction;
 import metro.TransactionType;
-import metro.db.DbIterator;
 import metro.util.Filter;
 import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
@@ -62,19 +61,21 @@ public final class GetBidOrders extends APIServlet.APIRequestHandler {
         }
 
         JSONArray orders = new JSONArray();
-        try (DbIterator<Order.Bid> bidOrders = Order.Bid.getSortedOrders(assetId, firstIndex, lastIndex)) {
-            while (bidOrders.hasNext()) {
-                Order.Bid order = bidOrders.next();
-                JSONObject orderJSON = JSONData.bidOrder(order);
-                if (showExpectedCancellations && Arrays.binarySearch(cancellations, order.getId()) >= 0) {
-                    orderJSON.put("expectedCancellation", Boolean.TRUE);
-                }
-                orders.add(orderJSON);
+        for (Order.Bid order : Order.Bid.getOrderBook(assetId, firstIndex, lastIndex)) {
+            JSONObject orderJSON = JSONData.bidOrder(order);
+            if (showExpectedCancellations && Arrays.binarySearch(cancellations, order.getId()) >= 0) {
+                orderJSON.put("expectedCancellation", Boolean.TRUE);
             }
+            orders.add(orderJSON);
         }
         JSONObject response = new JSONObject();
         response.put("bidOrders", orders);
         return response;
     }
 
+    @Override
+    protected int getResponseCacheSeconds() {
+        return Integer.MAX_VALUE;
+    }
+
 }
@@ -85,4 +85,9 @@ public final class GetBlock extends APIServlet.APIRequestHandler {
 
     }
 
-}
\ No newline at end of file
+    @Override
+    protected int getResponseCacheSeconds() {
+        return Integer.MAX_VALUE;
+    }
+
+}
@@ -85,4 +85,10 @@ public final class GetBlockchainStatus extends APIServlet.APIRequestHandler {
         return false;
     }
 
+    @Override
+    protected int getResponseCacheSeconds() {
+        // the status includes the current time and the download state
+        return 1;
+    }
+
 }
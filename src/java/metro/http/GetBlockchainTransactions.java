@@ -22,8 +22,7 @@ import metro.Metro;
 import metro.MetroException;
 import metro.Transaction;
 import metro.db.DbIterator;
-import org.json.simple.JSONArray;
-import org.json.simple.JSONObject;
+import metro.util.StreamingJSONObject;
 import org.json.simple.JSONStreamAware;
 
 import javax.servlet.http.HttpServletRequest;
@@ -68,20 +67,24 @@ public final class GetBlockchainTransactions extends APIServlet.APIRequestHandle
         int firstIndex = ParameterParser.getFirstIndex(req);
         int lastIndex = ParameterParser.getLastIndex(req);
 
-        JSONArray transactions = new JSONArray();
-        try (DbIterator<? extends Transaction> iterator = Metro.getBlockchain().getTransactions(accountId.getLeft(), numberOfConfirmations,
-                type, subtype, timestamp, withMessage, phasedOnly, nonPhasedOnly, firstIndex, lastIndex,
-                includeExpiredPrunable, executedOnly, excludeCoinbase)) {
-            while (iterator.hasNext()) {
-                Transaction transaction = iterator.next();
-                transactions.add(JSONData.transaction(transaction, includePhasingResult));
+        final byte transactionType = type;
+        final byte transactionSubtype = subtype;
+        return new StreamingJSONObject("transactions", transactions -> {
+            try (DbIterator<? extends Transaction> iterator = Metro.getBlockchain().getTransactions(accountId.getLeft(), numberOfConfirmations,
+                    transactionType, transactionSubtype, timestamp, withMessage, phasedOnly, nonPhasedOnly, firstIndex, lastIndex,
+                    includeExpiredPrunable, executedOnly, excludeCoinbase)) {
+                while (iterator.hasNext()) {
+                    Transaction transaction = iterator.next();
+                    transactions.accept(JSONData.transaction(transaction, includePhasingResult));
+                }
             }
-        }
+        });
 
-        JSONObject response = new JSONObject();
-        response.put("transactions", transactions);
-        return response;
+    }
 
+    @Override
+    protected boolean isExpensive() {
+        return true;
     }
 
 }
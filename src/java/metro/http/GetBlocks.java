@@ -23,7 +23,7 @@ import metro.Metro;
 import metro.MetroException;
 import metro.db.DbIterator;
 import metro.util.BitcoinJUtils;
-import org.json.simple.JSONArray;
+import metro.util.StreamingJSONObject;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
 
@@ -48,26 +48,27 @@ public final class GetBlocks extends APIServlet.APIRequestHandler {
         boolean includeTransactions = "true".equalsIgnoreCase(req.getParameter("includeTransactions"));
         boolean includeExecutedPhased = "true".equalsIgnoreCase(req.getParameter("includeExecutedPhased"));
 
-        JSONArray blocks = new JSONArray();
-        try (DbIterator<? extends Block> iterator = Metro.getBlockchain().getBlocks(firstIndex, lastIndex)) {
-            while (iterator.hasNext()) {
-                Block block = iterator.next();
-                if (block.getTimestamp() < timestamp) {
-                    break;
+        return new StreamingJSONObject("blocks", blocks -> {
+            try (DbIterator<? extends Block> iterator = Metro.getBlockchain().getBlocks(firstIndex, lastIndex)) {
+                while (iterator.hasNext()) {
+                    Block block = iterator.next();
+                    if (block.getTimestamp() < timestamp) {
+                        break;
+                    }
+                    JSONObject blockObject = JSONData.block(block, includeTransactions, includeExecutedPhased);
+                    if (block.isKeyBlock()) {
+                        blockObject.put("keyBlockDifficulty", new BigDecimal(Consensus.DIFFICULTY_MAX_TARGET).divide(new BigDecimal(BitcoinJUtils.decodeCompactBits((int) block.getBaseTarget())),
+                                3, RoundingMode.DOWN));
+                    }
+                    blocks.accept(blockObject);
                 }
-                JSONObject blockObject = JSONData.block(block, includeTransactions, includeExecutedPhased);
-                if (block.isKeyBlock()) {
-                    blockObject.put("keyBlockDifficulty", new BigDecimal(Consensus.DIFFICULTY_MAX_TARGET).divide(new BigDecimal(BitcoinJUtils.decodeCompactBits((int) block.getBaseTarget())),
-                            3, RoundingMode.DOWN));
-                }
-                blocks.add(blockObject);
             }
-        }
-
-        JSONObject response = new JSONObject();
-        response.put("blocks", blocks);
+        });
+    }
 
-        return response;
+    @Override
+    protected int getResponseCacheSeconds() {
+        return Integer.MAX_VALUE;
     }
 
 }
@@ -0,0 +1,45 @@
+package metro.http;
+
+import metro.BlockchainImpl;
+import metro.util.BoundedCache;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.List;
+
+public final class GetCacheStatus extends APIServlet.APIRequestHandler {
+
+    static final GetCacheStatus instance = new GetCacheStatus();
+
+    private GetCacheStatus() {
+        super(new APITag[] {APITag.INFO, APITag.DEBUG});
+    }
+
+    @Override
+    protected JSONStreamAware processRequest(HttpServletRequest req) {
+        JSONArray caches = new JSONArray();
+        List<BoundedCache<?, ?>> boundedCaches = new ArrayList<>(BlockchainImpl.getInstance().getCaches());
+        boundedCaches.add(APIResponseCache.getCache());
+        for (BoundedCache<?, ?> cache : boundedCaches) {
+            JSONObject json = new JSONObject();
+            json.put("name", cache.getName());
+            json.put("size", cache.size());
+            json.put("capacity", cache.getCapacity());
+            json.put("hits", cache.getHits());
+            json.put("misses", cache.getMisses());
+            caches.add(json);
+        }
+        JSONObject response = new JSONObject();
+        response.put("caches", caches);
+        return response;
+    }
+
+    @Override
+    protected boolean allowRequiredBlockParameters() {
+        return false;
+    }
+
+}
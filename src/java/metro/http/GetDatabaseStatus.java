@@ -0,0 +1,95 @@
+package metro.http;
+
+import metro.Db;
+import metro.db.SlowStatements;
+import metro.util.Histogram;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+
+import javax.servlet.http.HttpServletRequest;
+
+/**
+ * <p>The GetDatabaseStatus API returns the state of the database connection pool and the database statements with
+ * the slowest executions.</p>
+ *
+ * <p>Request parameters:</p>
+ * <ul>
+ * <li>reset - TRUE to clear the slowest statements after returning them (optional)</li>
+ * </ul>
+ *
+ * <p>Response parameters:</p>
+ * <ul>
+ * <li>maxConnections     - Maximum number of connections of the pool</li>
+ * <li>activeConnections  - Connections in use</li>
+ * <li>idleConnections    - Connections open and available in the pool</li>
+ * <li>connectionWaits    - Number of connections obtained from the pool</li>
+ * <li>connectionWaitMean - Mean time waiting for a connection, in milliseconds</li>
+ * <li>connectionWaitMax  - Longest time waiting for a connection, in milliseconds</li>
+ * <li>statementCacheSize - Prepared statements kept open for reuse per connection</li>
+ * <li>slowStatements     - An array of statement objects, slowest first</li>
+ * </ul>
+ *
+ * <p>Statement object:</p>
+ * <ul>
+ * <li>sql       - SQL statement</li>
+ * <li>millis    - Duration of the slowest execution, in milliseconds</li>
+ * <li>timestamp - Time of the slowest execution, in milliseconds since the epoch</li>
+ * </ul>
+ */
+public final class GetDatabaseStatus extends APIServlet.APIRequestHandler {
+
+    static final GetDatabaseStatus instance = new GetDatabaseStatus();
+
+    private GetDatabaseStatus() {
+        super(new APITag[] {APITag.DEBUG}, "reset");
+    }
+
+    @Override
+    protected JSONStreamAware processRequest(HttpServletRequest req) {
+        boolean reset = "true".equalsIgnoreCase(req.getParameter("reset"));
+        JSONObject response = new JSONObject();
+        response.put("maxConnections", Db.db.getMaxConnections());
+        response.put("activeConnections", Db.db.getActiveConnections());
+        response.put("idleConnections", Db.db.getIdleConnections());
+        Histogram.Snapshot waits = Db.db.getConnectionWaits();
+        response.put("connectionWaits", waits.getCount());
+        response.put("connectionWaitMean", toMillis(waits.getMean()));
+        response.put("connectionWaitMax", toMillis(waits.getMax()));
+        response.put("statementCacheSize", Db.db.getStatementCacheSize());
+        SlowStatements slowStatements = Db.db.getSlowStatements();
+        JSONArray statements = new JSONArray();
+        for (SlowStatements.Entry entry : slowStatements.getEntries()) {
+            JSONObject statement = new JSONObject();
+            statement.put("sql", entry.getSql());
+            statement.put("millis", toMillis(entry.getNanos()));
+            statement.put("timestamp", entry.getTimestamp());
+            statements.add(statement);
+        }
+        response.put("slowStatements", statements);
+        if (reset) {
+            slowStatements.clear();
+        }
+        return response;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1000 / 1000.0;
+    }
+
+    @Override
+    protected boolean requirePassword() {
+        return true;
+    }
+
+    @Override
+    protected boolean allowRequiredBlockParameters() {
+        return false;
+    }
+
+    @Override
+    protected boolean requireBlockchain() {
+        return false;
+    }
+
+}
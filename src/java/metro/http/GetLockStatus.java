@@ -0,0 +1,117 @@
+package metro.http;
+
+import metro.util.ReadWriteUpdateLock;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.List;
+
+/**
+ * <p>The GetLockStatus API returns the threads holding and waiting for the named locks of the node, like the
+ * blockchain lock, to diagnose lock contention.</p>
+ *
+ * <p>Request parameters:</p>
+ * <ul>
+ * <li>depth - Stack trace depth of the listed threads (defaults to no stack trace)</li>
+ * </ul>
+ *
+ * <p>Response parameters:</p>
+ * <ul>
+ * <li>locks - An array of lock objects</li>
+ * </ul>
+ *
+ * <p>Lock object:</p>
+ * <ul>
+ * <li>name             - Lock name</li>
+ * <li>writerPreference - TRUE if new readers wait for queued writers</li>
+ * <li>holders          - An array of thread objects holding the lock, with the time held</li>
+ * <li>waiters          - An array of thread objects waiting for the lock, longest waiting first, with the time
+ * waited</li>
+ * </ul>
+ *
+ * <p>Thread object:</p>
+ * <ul>
+ * <li>id       - Thread identifier</li>
+ * <li>name     - Thread name</li>
+ * <li>state    - Thread state</li>
+ * <li>mode     - Lock mode: read, update or write</li>
+ * <li>callSite - Class and method obtaining the lock, if metro.lockCallSiteMetrics is enabled</li>
+ * <li>trace    - Array of stack trace elements, if depth is specified</li>
+ * </ul>
+ */
+public final class GetLockStatus extends APIServlet.APIRequestHandler {
+
+    static final GetLockStatus instance = new GetLockStatus();
+
+    private GetLockStatus() {
+        super(new APITag[] {APITag.DEBUG}, "depth");
+    }
+
+    @Override
+    protected JSONStreamAware processRequest(HttpServletRequest req) throws ParameterException {
+        int depth = ParameterParser.getInt(req, "depth", 0, Integer.MAX_VALUE, false);
+        JSONArray locks = new JSONArray();
+        for (ReadWriteUpdateLock lock : ReadWriteUpdateLock.getNamedLocks()) {
+            JSONObject lockJSON = new JSONObject();
+            lockJSON.put("name", lock.getName());
+            lockJSON.put("writerPreference", lock.isWriterPreference());
+            lockJSON.put("holders", threadsJSON(lock.getHolders(), depth));
+            lockJSON.put("waiters", threadsJSON(lock.getWaiters(), depth));
+            locks.add(lockJSON);
+        }
+        JSONObject response = new JSONObject();
+        response.put("locks", locks);
+        return response;
+    }
+
+    private static JSONArray threadsJSON(List<ReadWriteUpdateLock.LockThread> lockThreads, int depth) {
+        JSONArray threads = new JSONArray();
+        for (ReadWriteUpdateLock.LockThread lockThread : lockThreads) {
+            Thread thread = lockThread.getThread();
+            JSONObject threadJSON = new JSONObject();
+            threadJSON.put("id", thread.getId());
+            threadJSON.put("name", thread.getName());
+            threadJSON.put("state", thread.getState().toString());
+            threadJSON.put("mode", lockThread.getMode());
+            if (lockThread.getCallSite() != null) {
+                threadJSON.put("callSite", lockThread.getCallSite());
+            }
+            long holdTime = lockThread.getHoldTime();
+            if (holdTime > 0) {
+                threadJSON.put("heldMillis", holdTime / 1000000);
+            } else {
+                threadJSON.put("waitingMillis", lockThread.getWaitTime() / 1000000);
+            }
+            if (depth > 0) {
+                JSONArray trace = new JSONArray();
+                for (StackTraceElement element : thread.getStackTrace()) {
+                    trace.add(element.toString());
+                    if (trace.size() == depth) {
+                        break;
+                    }
+                }
+                threadJSON.put("trace", trace);
+            }
+            threads.add(threadJSON);
+        }
+        return threads;
+    }
+
+    @Override
+    protected boolean requirePassword() {
+        return true;
+    }
+
+    @Override
+    protected boolean allowRequiredBlockParameters() {
+        return false;
+    }
+
+    @Override
+    protected boolean requireBlockchain() {
+        return false;
+    }
+
+}
@@ -0,0 +1,85 @@
+package metro.http;
+
+import metro.util.Histogram;
+import metro.util.Metrics;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Map;
+
+/**
+ * <p>The GetMetrics API returns the latency histograms of the node: API requests by request type, the phases of
+ * pushing a block, the waits for and holds of the blockchain lock, the waits for a database connection and the peer
+ * requests by request type. The same data is available in the Prometheus text format at /metrics.</p>
+ *
+ * <p>Response parameters:</p>
+ * <ul>
+ * <li>metrics - An array of metric families, each with the histograms by label value. Durations are in
+ * milliseconds.</li>
+ * </ul>
+ */
+public final class GetMetrics extends APIServlet.APIRequestHandler {
+
+    static final GetMetrics instance = new GetMetrics();
+
+    private GetMetrics() {
+        super(new APITag[] {APITag.DEBUG});
+    }
+
+    @Override
+    protected JSONStreamAware processRequest(HttpServletRequest req) {
+        JSONArray metrics = new JSONArray();
+        for (Metrics.Family family : Metrics.getFamilies()) {
+            JSONObject familyJSON = new JSONObject();
+            familyJSON.put("name", family.getName());
+            familyJSON.put("description", family.getHelp());
+            if (family.getLabelName() != null) {
+                familyJSON.put("label", family.getLabelName());
+            }
+            JSONArray histograms = new JSONArray();
+            for (Map.Entry<String, Histogram> entry : family.getHistograms().entrySet()) {
+                Histogram.Snapshot snapshot = entry.getValue().getSnapshot();
+                JSONObject histogram = new JSONObject();
+                if (family.getLabelName() != null) {
+                    histogram.put(family.getLabelName(), entry.getKey());
+                }
+                histogram.put("count", snapshot.getCount());
+                histogram.put("mean", toMillis(snapshot.getMean()));
+                histogram.put("p50", toMillis(snapshot.getValueAtPercentile(50)));
+                histogram.put("p90", toMillis(snapshot.getValueAtPercentile(90)));
+                histogram.put("p99", toMillis(snapshot.getValueAtPercentile(99)));
+                histogram.put("p999", toMillis(snapshot.getValueAtPercentile(99.9)));
+                histogram.put("max", toMillis(snapshot.getMax()));
+                histograms.add(histogram);
+            }
+            familyJSON.put("histograms", histograms);
+            metrics.add(familyJSON);
+        }
+        JSONObject response = new JSONObject();
+        response.put("enabled", Metrics.isEnabled());
+        response.put("metrics", metrics);
+        return response;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1000 / 1000.0;
+    }
+
+    @Override
+    protected boolean requirePassword() {
+        return true;
+    }
+
+    @Override
+    protected boolean allowRequiredBlockParameters() {
+        return false;
+    }
+
+    @Override
+    protected boolean requireBlockchain() {
+        return false;
+    }
+
+}
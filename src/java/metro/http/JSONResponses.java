@@ -165,6 +165,14 @@ public final class JSONResponses {
         ERROR_DISABLED = JSON.prepare(response);
     }
 
+    public static final JSONStreamAware TOO_MANY_REQUESTS;
+    static {
+        JSONObject response = new JSONObject();
+        response.put("errorCode", 23);
+        response.put("errorDescription", "Too many requests of this kind are waiting, try again later");
+        TOO_MANY_REQUESTS = JSON.prepare(response);
+    }
+
     public static final JSONStreamAware ERROR_INCORRECT_REQUEST;
     static {
         JSONObject response  = new JSONObject();
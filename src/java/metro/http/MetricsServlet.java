@@ -0,0 +1,72 @@
+package metro.http;
+
+import metro.util.Histogram;
+import metro.util.Metrics;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Latency histograms in the Prometheus text exposition format, as summaries with durations in seconds.
+ * <p>
+ * Access is restricted like the API, with the admin password passed as the adminPassword parameter.
+ */
+public final class MetricsServlet extends HttpServlet {
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse resp) throws IOException {
+        resp.setHeader("Cache-Control", "no-cache, no-store, must-revalidate, private");
+        resp.setHeader("Pragma", "no-cache");
+        resp.setDateHeader("Expires", 0);
+        if (!API.isAllowed(req.getRemoteHost())) {
+            resp.sendError(HttpServletResponse.SC_FORBIDDEN);
+            return;
+        }
+        try {
+            API.verifyPassword(req);
+        } catch (ParameterException e) {
+            resp.sendError(HttpServletResponse.SC_UNAUTHORIZED);
+            return;
+        }
+        resp.setContentType("text/plain; version=0.0.4; charset=UTF-8");
+        try (Writer writer = resp.getWriter()) {
+            StringBuilder sb = new StringBuilder(1024);
+            for (Metrics.Family family : Metrics.getFamilies()) {
+                sb.setLength(0);
+                String name = "metro_" + family.getName();
+                sb.append("# HELP ").append(name).append(' ').append(family.getHelp()).append('\n');
+                sb.append("# TYPE ").append(name).append(" summary\n");
+                for (Map.Entry<String, Histogram> entry : family.getHistograms().entrySet()) {
+                    Histogram.Snapshot snapshot = entry.getValue().getSnapshot();
+                    String label = family.getLabelName() == null ? "" :
+                            family.getLabelName() + "=\"" + escape(entry.getKey()) + "\"";
+                    for (double quantile : QUANTILES) {
+                        sb.append(name).append('{').append(label).append(label.isEmpty() ? "" : ",")
+                                .append("quantile=\"").append(quantile).append("\"} ")
+                                .append(toSeconds(snapshot.getValueAtPercentile(quantile * 100))).append('\n');
+                    }
+                    String labels = label.isEmpty() ? "" : "{" + label + "}";
+                    sb.append(name).append("_sum").append(labels).append(' ').append(toSeconds(snapshot.getSum())).append('\n');
+                    sb.append(name).append("_count").append(labels).append(' ').append(snapshot.getCount()).append('\n');
+                }
+                writer.write(sb.toString());
+            }
+        }
+    }
+
+    private static String toSeconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+
+    private static String escape(String labelValue) {
+        return labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+}
@@ -64,4 +64,9 @@ public final class SearchAccounts extends APIServlet.APIRequestHandler {
         return response;
     }
 
+    @Override
+    protected boolean isExpensive() {
+        return true;
+    }
+
 }
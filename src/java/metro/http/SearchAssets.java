@@ -55,4 +55,9 @@ public final class SearchAssets extends APIServlet.APIRequestHandler {
         return response;
     }
 
+    @Override
+    protected boolean isExpensive() {
+        return true;
+    }
+
 }
@@ -66,6 +66,8 @@ public class CpuMiner {
 
     public static final int NONCE_BYTE_SIZE = 4;
 
+    private final boolean useMidstate = Metro.getBooleanProperty("metro.mine.useMidstate", true);
+
     public static void main(String[] args) {
         CpuMiner cpuMiner = new CpuMiner();
         cpuMiner.mine();
@@ -140,9 +142,13 @@ public class CpuMiner {
         long startTime = System.currentTimeMillis();
         byte[] dataWithoutNonce = Arrays.copyOf(data,data.length - NONCE_BYTE_SIZE);
         List<Callable<Integer>> workersList = new ArrayList<>();
+        boolean isMidstate = useMidstate && MidstateHashSolver.isSupported(HASH_FUNCTION, dataWithoutNonce.length);
         for (int i = 0; i < threadPoolSize; i++) {
-            CpuMiner.HashSolver hashSolver = new CpuMiner.HashSolver(dataWithoutNonce, initialNonce + i, target, threadPoolSize);
-            workersList.add(hashSolver);
+            if (isMidstate) {
+                workersList.add(new MidstateHashSolver(HASH_FUNCTION, dataWithoutNonce, initialNonce + i, target, threadPoolSize));
+            } else {
+                workersList.add(new CpuMiner.HashSolver(dataWithoutNonce, initialNonce + i, target, threadPoolSize));
+            }
         }
         int solution = solve(executorService, workersList);
         JSONObject response;
@@ -316,7 +322,7 @@ public class CpuMiner {
 
         @Override
         public Integer call() {
-            int n = 0;
+            int n = nonce;
 
             while (!Thread.currentThread().isInterrupted()) {
                 ByteBuffer buffer = ByteBuffer.allocate(data.length + NONCE_BYTE_SIZE);
@@ -0,0 +1,156 @@
+package metro.mint;
+
+import metro.crypto.HashFunction;
+import metro.crypto.KNV25;
+import metro.util.Logger;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+
+/**
+ * Nonce search over a Keccak based {@link HashFunction} without per-nonce allocations.
+ * <p>
+ * The header without nonce is padded and absorbed once: every full rate block in front of the nonce is
+ * permuted into the midstate and the constant lanes of the last block are xor-ed on top of it.
+ * For every nonce only the lanes holding the nonce bytes are patched in a preallocated state
+ * before the last permutation, and the digest is compared with the target as unsigned longs.
+ */
+final class MidstateHashSolver implements Callable<Integer> {
+
+    private static final int RATE = KNV25.RATE_LANES * 8;
+    private static final int DIGEST_LANES = 4;
+    private static final long REPORT_INTERVAL = 1000000;
+
+    private final int nonce;
+    private final int poolSize;
+    private final int rounds;
+    private final long[] absorbed = new long[25];
+    private final long[] state = new long[25];
+    private final long[] target = new long[DIGEST_LANES];
+    private final int nonceLane;
+    private final int nonceShift;
+
+    static boolean isSupported(HashFunction hashFunction, int dataLength) {
+        if (getRounds(hashFunction) < 0) {
+            return false;
+        }
+        // the nonce must not straddle the last two rate blocks
+        int paddedLength = (dataLength + CpuMiner.NONCE_BYTE_SIZE) / RATE * RATE + RATE;
+        return dataLength >= paddedLength - RATE;
+    }
+
+    private static int getRounds(HashFunction hashFunction) {
+        switch (hashFunction) {
+            case SHA3:
+                return KNV25.KECCAK_ROUNDS;
+            case Keccak25:
+                return KNV25.ROUNDS;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * @param hashFunction Keccak based hash function, see {@link #isSupported(HashFunction, int)}
+     * @param data header without the trailing little endian nonce
+     * @param nonce first nonce tried by this solver
+     * @param target big endian target, the reversed digest must be below it
+     * @param poolSize nonce increment
+     */
+    MidstateHashSolver(HashFunction hashFunction, byte[] data, int nonce, byte[] target, int poolSize) {
+        if (!isSupported(hashFunction, data.length)) {
+            throw new IllegalArgumentException(String.format("%s midstate not supported for data length %d", hashFunction, data.length));
+        }
+        this.rounds = getRounds(hashFunction);
+        this.nonce = nonce;
+        this.poolSize = poolSize;
+
+        int length = data.length + CpuMiner.NONCE_BYTE_SIZE;
+        byte[] padded = Arrays.copyOf(data, length / RATE * RATE + RATE);
+        padded[length] ^= 0x01;
+        padded[padded.length - 1] ^= (byte) 0x80;
+        ByteBuffer buffer = ByteBuffer.wrap(padded);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        int lastBlock = padded.length - RATE;
+        for (int offset = 0; offset < padded.length; offset += RATE) {
+            for (int i = 0; i < KNV25.RATE_LANES; i++) {
+                absorbed[i] ^= buffer.getLong(offset + i * 8);
+            }
+            if (offset < lastBlock) {
+                KNV25.permute(absorbed, rounds);
+            }
+        }
+        int nonceOffset = data.length - lastBlock;
+        this.nonceLane = nonceOffset >> 3;
+        this.nonceShift = (nonceOffset & 7) << 3;
+
+        byte[] paddedTarget = new byte[DIGEST_LANES * 8];
+        int targetLength = Math.min(target.length, paddedTarget.length);
+        System.arraycopy(target, target.length - targetLength, paddedTarget, paddedTarget.length - targetLength, targetLength);
+        ByteBuffer targetBuffer = ByteBuffer.wrap(paddedTarget);
+        for (int i = DIGEST_LANES - 1; i >= 0; i--) {
+            this.target[i] = targetBuffer.getLong();
+        }
+    }
+
+    private void hash(int n) {
+        long[] state = this.state;
+        System.arraycopy(absorbed, 0, state, 0, state.length);
+        long value = n & 0xFFFFFFFFL;
+        state[nonceLane] ^= value << nonceShift;
+        if (nonceShift > 32) {
+            state[nonceLane + 1] ^= value >>> (64 - nonceShift);
+        }
+        KNV25.permute(state, rounds);
+    }
+
+    boolean meetsTarget(int n) {
+        hash(n);
+        for (int i = DIGEST_LANES - 1; i >= 0; i--) {
+            int cmp = Long.compareUnsigned(state[i], target[i]);
+            if (cmp != 0) {
+                return cmp < 0;
+            }
+        }
+        return false;
+    }
+
+    byte[] digest(int n) {
+        hash(n);
+        byte[] digest = new byte[DIGEST_LANES * 8];
+        for (int i = 0; i < digest.length; i++) {
+            digest[i] = (byte) (state[i >> 3] >> ((i & 7) << 3));
+        }
+        return digest;
+    }
+
+    @Override
+    public Integer call() {
+        long startTime = System.nanoTime();
+        long hashes = 0;
+        int n = nonce;
+        while (!Thread.currentThread().isInterrupted()) {
+            hashes++;
+            if (meetsTarget(n)) {
+                Logger.logDebugMessage("%s found solution nonce %d after %d hashes at %.2f [MH/s]",
+                        Thread.currentThread().getName(), n, hashes, getHashRate(hashes, startTime));
+                return n;
+            }
+            n += poolSize;
+            if (hashes % REPORT_INTERVAL == 0) {
+                Logger.logInfoMessage("%s computed %d [MH] at %.2f [MH/s]", Thread.currentThread().getName(),
+                        hashes / REPORT_INTERVAL, getHashRate(hashes, startTime));
+            }
+        }
+        Logger.logDebugMessage("%s stopped after %d hashes at %.2f [MH/s]", Thread.currentThread().getName(),
+                hashes, getHashRate(hashes, startTime));
+        return null;
+    }
+
+    private static double getHashRate(long hashes, long startTime) {
+        long elapsed = Math.max(System.nanoTime() - startTime, 1);
+        return hashes * 1000.0 / elapsed;
+    }
+}
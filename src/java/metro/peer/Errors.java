@@ -28,6 +28,7 @@ public final class Errors {
     public final static String SEQUENCE_ERROR = "Peer request received before 'getInfo' request";
     public final static String MAX_INBOUND_CONNECTIONS = "Maximum number of inbound connections exceeded";
     public final static String TOO_MANY_BLOCKS_REQUESTED = "Too many blocks requested";
+    public final static String TOO_MANY_TRANSACTIONS_REQUESTED = "Too many transactions requested";
     public final static String DOWNLOADING = "Blockchain download in progress";
     public final static String LIGHT_CLIENT = "Peer is in light mode";
 
@@ -0,0 +1,71 @@
+package metro.peer;
+
+import metro.Consensus;
+import metro.Metro;
+import metro.Transaction;
+import metro.TransactionImpl;
+import metro.util.JSON;
+import metro.util.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Get the transactions of a compact block which the requesting peer did not find in its unconfirmed pool
+ */
+final class GetCompactBlockTransactions extends PeerServlet.PeerRequestHandler {
+
+    static final GetCompactBlockTransactions instance = new GetCompactBlockTransactions();
+
+    private static final JSONStreamAware TOO_MANY_TRANSACTIONS_REQUESTED;
+    static {
+        JSONObject response = new JSONObject();
+        response.put("error", Errors.TOO_MANY_TRANSACTIONS_REQUESTED);
+        TOO_MANY_TRANSACTIONS_REQUESTED = JSON.prepare(response);
+    }
+
+    private GetCompactBlockTransactions() {}
+
+    @Override
+    JSONStreamAware processRequest(JSONObject request, Peer peer) {
+        JSONArray transactionIds = (JSONArray)request.get("transactionIds");
+        if (transactionIds == null) {
+            return PeerServlet.UNSUPPORTED_REQUEST_TYPE;
+        }
+        if (transactionIds.size() > Consensus.POSBLOCK_MAX_NUMBER_OF_TRANSACTIONS + 1) {
+            return TOO_MANY_TRANSACTIONS_REQUESTED;
+        }
+        //
+        // The block has just been relayed by us, its transactions are either already
+        // in the blockchain or still in the unconfirmed pool if the block was popped off
+        //
+        List<Transaction> transactions = new ArrayList<>(transactionIds.size());
+        try {
+            for (Object transactionId : transactionIds) {
+                long id = Long.parseUnsignedLong((String)transactionId);
+                Transaction transaction = Metro.getBlockchain().getTransaction(id);
+                if (transaction == null) {
+                    transaction = Metro.getTransactionProcessor().getUnconfirmedTransaction(id);
+                }
+                if (transaction != null) {
+                    transactions.add(transaction);
+                }
+            }
+        } catch (RuntimeException e) {
+            Logger.logDebugMessage(e.toString());
+            return PeerServlet.error(e);
+        }
+        JSONObject response = new JSONObject();
+        TransactionImpl.putTransactionBytes(response, transactions);
+        return response;
+    }
+
+    @Override
+    boolean rejectWhileDownloading() {
+        return true;
+    }
+
+}
@@ -21,7 +21,7 @@ import metro.Block;
 import metro.Metro;
 import metro.util.Convert;
 import metro.util.JSON;
-import org.json.simple.JSONArray;
+import metro.util.StreamingJSONObject;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
 
@@ -45,8 +45,6 @@ final class GetNextBlocks extends PeerServlet.PeerRequestHandler {
     @Override
     JSONStreamAware processRequest(JSONObject request, Peer peer) {
 
-        JSONObject response = new JSONObject();
-        JSONArray nextBlocksArray = new JSONArray();
         List<? extends Block> blocks;
         long blockId = Convert.parseUnsignedLong((String) request.get("blockId"));
         List<String> stringList = (List<String>)request.get("blockIds");
@@ -64,10 +62,11 @@ final class GetNextBlocks extends PeerServlet.PeerRequestHandler {
             }
             blocks = Metro.getBlockchain().getBlocksAfter(blockId, limit > 0 ? (int)limit : 36);
         }
-        blocks.forEach(block -> nextBlocksArray.add(block.getJSONObject()));
-        response.put("nextBlocks", nextBlocksArray);
-
-        return response;
+        // the blocks are loaded already, each one is converted to JSON only when it is written
+        if (Boolean.TRUE.equals(request.get("binary"))) {
+            return new StreamingJSONObject("nextBlocks", nextBlocks -> blocks.forEach(block -> nextBlocks.accept(block.getBinaryJSONObject())));
+        }
+        return new StreamingJSONObject("nextBlocks", nextBlocks -> blocks.forEach(block -> nextBlocks.accept(block.getJSONObject())));
     }
 
     @Override
@@ -31,6 +31,7 @@ import metro.util.CountingInputStream;
 import metro.util.CountingOutputWriter;
 import metro.util.JSON;
 import metro.util.Logger;
+import metro.util.Metrics;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
 import org.json.simple.JSONValue;
@@ -65,6 +66,9 @@ import java.util.zip.GZIPInputStream;
 
 final class PeerImpl implements Peer {
 
+    private static final Metrics.Family requestTimes = Metrics.family("peer_request_seconds", "requestType",
+            "Round trip time of requests sent to peers");
+
     private final String host;
     private final PeerWebSocket webSocket;
     private volatile PeerWebSocket inboundSocket;
@@ -94,6 +98,7 @@ final class PeerImpl implements Peer {
     private volatile int hallmarkBalanceHeight;
     private volatile long services;
     private volatile BlockchainState blockchainState;
+    private final PeerOutboundQueue outboundQueue = new PeerOutboundQueue(this);
 
     PeerImpl(String host, String announcedAddress) {
         this.host = host;
@@ -120,9 +125,15 @@ final class PeerImpl implements Peer {
         return state;
     }
 
+    PeerOutboundQueue getOutboundQueue() {
+        return outboundQueue;
+    }
+
     void setState(State state) {
-        if (state != State.CONNECTED)
+        if (state != State.CONNECTED) {
             webSocket.close();
+            outboundQueue.clear();
+        }
         if (this.state == state) {
             return;
         }
@@ -470,6 +481,7 @@ final class PeerImpl implements Peer {
         boolean showLog = false;
         HttpURLConnection connection = null;
         int communicationLoggingMask = Peers.communicationLoggingMask;
+        long start = System.nanoTime();
 
         try {
             //
@@ -603,6 +615,8 @@ final class PeerImpl implements Peer {
         if (showLog) {
             Logger.logMessage(log + "\n");
         }
+        String requestType = JSON.getRequestType(request);
+        requestTimes.get(requestType != null ? requestType : "other").recordSince(start);
 
         return response;
     }
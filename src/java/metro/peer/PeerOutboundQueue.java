@@ -0,0 +1,336 @@
+package metro.peer;
+
+import metro.Transaction;
+import metro.TransactionImpl;
+import metro.util.JSON;
+import metro.util.Logger;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Blocks and transactions waiting to be sent to one peer.
+ * <p>
+ * The queue is drained by a single task on the sending service at a time, blocks first. Pending transactions are
+ * coalesced into processTransactions batches, so a burst of broadcasts costs one request per batch rather than one
+ * per broadcast. The number of pending transactions is bounded: when a slow peer falls behind, its oldest pending
+ * transactions are dropped, without affecting the queues of the other peers.
+ */
+class PeerOutboundQueue {
+
+    /** Pending blocks are superseded by newer ones, peers which miss a block download it later */
+    private static final int MAX_PENDING_BLOCKS = 8;
+
+    /**
+     * Sending of a block or of transactions to some peers, driven by the completion callbacks of the peer queues.
+     * <p>
+     * It is queued for {@code metro.sendToPeersLimit} peers, and when all of them have completed with less than
+     * {@code metro.requiredSendPeerNumber} successful, for more peers until enough succeed or no peer is left.
+     */
+    static final class Broadcast {
+
+        private final int itemCount;
+        private final Set<PeerImpl> targets = new HashSet<>();
+        private final Map<PeerImpl, Integer> remainingItems = new HashMap<>();
+        private final Set<PeerImpl> failedPeers = new HashSet<>();
+        private Consumer<PeerImpl> sender;
+        private int successful;
+
+        /**
+         * @param itemCount number of blocks or transactions queued for each peer
+         */
+        Broadcast(int itemCount) {
+            this.itemCount = itemCount;
+        }
+
+        /**
+         * @param sender adds the items to the queue of a peer
+         */
+        void start(Consumer<PeerImpl> sender) {
+            synchronized (this) {
+                this.sender = sender;
+            }
+            sendToMorePeers(Peers.sendToPeersLimit);
+        }
+
+        private void sendToMorePeers(int count) {
+            List<PeerImpl> newTargets = new ArrayList<>();
+            Consumer<PeerImpl> sender;
+            synchronized (this) {
+                sender = this.sender;
+                for (PeerImpl peer : Peers.allPeers) {
+                    if (newTargets.size() >= count) {
+                        break;
+                    }
+                    if (!targets.contains(peer) && Peers.isBroadcastTarget(peer)) {
+                        targets.add(peer);
+                        remainingItems.put(peer, itemCount);
+                        newTargets.add(peer);
+                    }
+                }
+            }
+            newTargets.forEach(sender);
+        }
+
+        /**
+         * @param peer peer the items were queued for
+         * @param count number of items sent or dropped
+         * @param success whether the peer accepted them
+         */
+        void completed(PeerImpl peer, int count, boolean success) {
+            int morePeers = 0;
+            synchronized (this) {
+                Integer remaining = remainingItems.get(peer);
+                if (remaining == null) {
+                    return;
+                }
+                if (!success) {
+                    failedPeers.add(peer);
+                }
+                if (remaining > count) {
+                    remainingItems.put(peer, remaining - count);
+                    return;
+                }
+                remainingItems.remove(peer);
+                if (!failedPeers.contains(peer)) {
+                    successful++;
+                }
+                if (remainingItems.isEmpty() && successful < Peers.requiredSendPeerNumber) {
+                    morePeers = Peers.sendToPeersLimit - successful;
+                }
+            }
+            if (morePeers > 0) {
+                sendToMorePeers(morePeers);
+            }
+        }
+    }
+
+    /**
+     * Transaction broadcast to several peers, with its JSON computed once for all of them
+     */
+    static final class PendingTransaction {
+
+        private final Transaction transaction;
+        private final Broadcast broadcast;
+        private volatile JSONObject json;
+
+        PendingTransaction(Transaction transaction, Broadcast broadcast) {
+            this.transaction = transaction;
+            this.broadcast = broadcast;
+        }
+
+        private JSONObject getJSONObject() {
+            JSONObject json = this.json;
+            if (json == null) {
+                json = transaction.getJSONObject();
+                this.json = json;
+            }
+            return json;
+        }
+    }
+
+    private static final class PendingBlock {
+
+        private final JSONStreamAware request;
+        private final JSONStreamAware binaryRequest;
+        private final Broadcast broadcast;
+
+        private PendingBlock(JSONStreamAware request, JSONStreamAware binaryRequest, Broadcast broadcast) {
+            this.request = request;
+            this.binaryRequest = binaryRequest;
+            this.broadcast = broadcast;
+        }
+    }
+
+    private final PeerImpl peer;
+    private final Executor executor;
+    private final Deque<PendingBlock> blocks = new ArrayDeque<>();
+    /** Pending transactions by id, the same transaction broadcast again while pending is only sent once */
+    private final Map<Long, List<PendingTransaction>> transactions = new LinkedHashMap<>();
+    private boolean draining;
+    private long droppedTransactions;
+
+    PeerOutboundQueue(PeerImpl peer) {
+        this(peer, Peers.sendingService);
+    }
+
+    PeerOutboundQueue(PeerImpl peer, Executor executor) {
+        this.peer = peer;
+        this.executor = executor;
+    }
+
+    void addBlock(JSONStreamAware request, JSONStreamAware binaryRequest, Broadcast broadcast) {
+        PendingBlock superseded = null;
+        synchronized (this) {
+            if (blocks.size() >= MAX_PENDING_BLOCKS) {
+                superseded = blocks.removeFirst();
+            }
+            blocks.addLast(new PendingBlock(request, binaryRequest, broadcast));
+        }
+        if (superseded != null) {
+            superseded.broadcast.completed(peer, 1, false);
+        }
+        startDraining();
+    }
+
+    void addTransactions(List<PendingTransaction> pendingTransactions) {
+        List<PendingTransaction> dropped = new ArrayList<>();
+        long totalDropped;
+        synchronized (this) {
+            for (PendingTransaction pendingTransaction : pendingTransactions) {
+                transactions.computeIfAbsent(pendingTransaction.transaction.getId(), id -> new ArrayList<>(1)).add(pendingTransaction);
+            }
+            Iterator<List<PendingTransaction>> iterator = transactions.values().iterator();
+            while (transactions.size() > Peers.peerOutboundQueueSize) {
+                dropped.addAll(iterator.next());
+                iterator.remove();
+                droppedTransactions++;
+            }
+            totalDropped = droppedTransactions;
+        }
+        if (!dropped.isEmpty()) {
+            Logger.logDebugMessage("Peer " + peer.getHost() + " is not keeping up, dropped " + dropped.size()
+                    + " pending transactions, " + totalDropped + " in total");
+            completed(dropped, false);
+        }
+        startDraining();
+    }
+
+    /**
+     * Drop everything pending, e.g. when the peer is disconnected or blacklisted
+     */
+    void clear() {
+        List<PendingBlock> clearedBlocks;
+        List<PendingTransaction> clearedTransactions = new ArrayList<>();
+        synchronized (this) {
+            clearedBlocks = new ArrayList<>(blocks);
+            blocks.clear();
+            transactions.values().forEach(clearedTransactions::addAll);
+            transactions.clear();
+        }
+        clearedBlocks.forEach(block -> block.broadcast.completed(peer, 1, false));
+        completed(clearedTransactions, false);
+    }
+
+    private void startDraining() {
+        synchronized (this) {
+            if (draining) {
+                return;
+            }
+            draining = true;
+        }
+        executor.execute(this::drain);
+    }
+
+    private void drain() {
+        while (true) {
+            PendingBlock block;
+            List<PendingTransaction> batch = new ArrayList<>();
+            synchronized (this) {
+                block = blocks.pollFirst();
+                if (block == null) {
+                    Iterator<List<PendingTransaction>> iterator = transactions.values().iterator();
+                    for (int i = 0; i < Peers.sendTransactionsBatchSize && iterator.hasNext(); i++) {
+                        batch.addAll(iterator.next());
+                        iterator.remove();
+                    }
+                    if (batch.isEmpty()) {
+                        draining = false;
+                        return;
+                    }
+                }
+            }
+            if (!isBroadcastTarget()) {
+                if (block != null) {
+                    block.broadcast.completed(peer, 1, false);
+                } else {
+                    completed(batch, false);
+                }
+                clear();
+                continue;
+            }
+            try {
+                if (block != null) {
+                    block.broadcast.completed(peer, 1, send(peer.providesService(Peer.Service.BINARY) ? block.binaryRequest : block.request));
+                } else {
+                    completed(batch, send(getTransactionsRequest(batch)));
+                }
+            } catch (RuntimeException e) {
+                Logger.logDebugMessage("Error sending to peer " + peer.getHost(), e);
+                if (block != null) {
+                    block.broadcast.completed(peer, 1, false);
+                } else {
+                    completed(batch, false);
+                }
+            }
+        }
+    }
+
+    /**
+     * Package-private for tests, as is {@link #sendRequest}
+     */
+    boolean isBroadcastTarget() {
+        return Peers.isBroadcastTarget(peer);
+    }
+
+    JSONObject sendRequest(JSONStreamAware request) {
+        return peer.send(request);
+    }
+
+    private boolean send(JSONStreamAware request) {
+        JSONObject response = sendRequest(request);
+        if (response != null && response.get("error") == null) {
+            return true;
+        }
+        Logger.logDebugMessage("Error response from peer:" + peer + ", response:" + response);
+        return false;
+    }
+
+    private JSONStreamAware getTransactionsRequest(List<PendingTransaction> batch) {
+        JSONObject request = new JSONObject();
+        request.put("requestType", "processTransactions");
+        Set<Long> ids = new HashSet<>();
+        List<Transaction> batchTransactions = new ArrayList<>(batch.size());
+        for (PendingTransaction pendingTransaction : batch) {
+            if (ids.add(pendingTransaction.transaction.getId())) {
+                batchTransactions.add(pendingTransaction.transaction);
+            }
+        }
+        if (peer.providesService(Peer.Service.BINARY)) {
+            TransactionImpl.putTransactionBytes(request, batchTransactions);
+        } else {
+            JSONArray transactionsData = new JSONArray();
+            for (PendingTransaction pendingTransaction : batch) {
+                if (ids.remove(pendingTransaction.transaction.getId())) {
+                    transactionsData.add(pendingTransaction.getJSONObject());
+                }
+            }
+            request.put("transactions", transactionsData);
+        }
+        return JSON.prepareRequest(request);
+    }
+
+    /**
+     * Report the result to each broadcast with transactions in the batch
+     */
+    private void completed(List<PendingTransaction> batch, boolean success) {
+        Map<Broadcast, Integer> counts = new IdentityHashMap<>();
+        batch.forEach(pendingTransaction -> counts.merge(pendingTransaction.broadcast, 1, Integer::sum));
+        counts.forEach((broadcast, count) -> broadcast.completed(peer, count, success));
+    }
+
+}
@@ -58,6 +58,7 @@ public final class PeerServlet extends WebSocketServlet {
     static {
         Map<String,PeerRequestHandler> map = new HashMap<>();
         map.put("addPeers", AddPeers.instance);
+        map.put("getCompactBlockTransactions", GetCompactBlockTransactions.instance);
         map.put("getCumulativeDifficulty", GetCumulativeDifficulty.instance);
         map.put("getInfo", GetInfo.instance);
         map.put("getMilestoneBlockIds", GetMilestoneBlockIds.instance);
@@ -23,6 +23,7 @@ import metro.Constants;
 import metro.Db;
 import metro.Metro;
 import metro.Transaction;
+import metro.TransactionImpl;
 import metro.http.API;
 import metro.http.APIEnum;
 import metro.util.Convert;
@@ -70,7 +71,6 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
@@ -122,8 +122,9 @@ public final class Peers {
     private static final boolean enableHallmarkProtection;
     private static final int pushThreshold;
     private static final int pullThreshold;
-    private static final int sendToPeersLimit;
-    private static final int requiredSendPeerNumber;
+    static final int sendToPeersLimit;
+    static final int requiredSendPeerNumber;
+    static final int peerOutboundQueueSize;
     private static final boolean usePeersDb;
     private static final boolean savePeers;
     static final boolean ignorePeerAnnouncedAddress;
@@ -133,6 +134,7 @@ public final class Peers {
     static final int MAX_PLATFORM_LENGTH = 30;
     static final int MAX_ANNOUNCED_ADDRESS_LENGTH = 100;
     static final boolean hideErrorDetails = Metro.getBooleanProperty("metro.hideErrorDetails");
+    static final boolean enableBinaryProtocol = Metro.getBooleanProperty("metro.enableBinaryPeerProtocol");
 
     private static final JSONObject myPeerInfo;
     private static final List<Peer.Service> myServices;
@@ -148,7 +150,7 @@ public final class Peers {
     static final Collection<PeerImpl> allPeers = Collections.unmodifiableCollection(peers.values());
 
     static final ExecutorService peersService = new QueuedThreadPool(2, 15);
-    private static final ExecutorService sendingService = Executors.newFixedThreadPool(10);
+    static final ExecutorService sendingService;
 
     static {
 
@@ -266,6 +268,9 @@ public final class Peers {
         if (!Constants.ENABLE_PRUNING && Constants.INCLUDE_EXPIRED_PRUNABLE) {
             servicesList.add(Peer.Service.PRUNABLE);
         }
+        if (enableBinaryProtocol) {
+            servicesList.add(Peer.Service.BINARY);
+        }
         if (API.openAPIPort > 0) {
             json.put("apiPort", API.openAPIPort);
             servicesList.add(Peer.Service.API);
@@ -325,6 +330,8 @@ public final class Peers {
         maxNumberOfOutboundConnections = Metro.getIntProperty("metro.maxNumberOfOutboundConnections");
         maxNumberOfConnectedPublicPeers = Math.min(Metro.getIntProperty("metro.maxNumberOfConnectedPublicPeers"),
                 maxNumberOfOutboundConnections);
+        // one draining task per peer outbound queue, see PeerOutboundQueue
+        sendingService = new QueuedThreadPool(2, Math.max(maxNumberOfConnectedPublicPeers, 2));
         maxNumberOfKnownPeers = Metro.getIntProperty("metro.maxNumberOfKnownPeers");
         minNumberOfKnownPeers = Metro.getIntProperty("metro.minNumberOfKnownPeers");
         connectTimeout = Metro.getIntProperty("metro.connectTimeout");
@@ -339,6 +346,7 @@ public final class Peers {
         communicationLoggingMask = Metro.getIntProperty("metro.communicationLoggingMask");
         sendToPeersLimit = Metro.getIntProperty("metro.sendToPeersLimit");
         requiredSendPeerNumber = Metro.getIntProperty("metro.requiredSendPeerNumber");
+        peerOutboundQueueSize = Metro.getIntProperty("metro.peerOutboundQueueSize", 1000);
         usePeersDb = Metro.getBooleanProperty("metro.usePeersDb") && ! Constants.isOffline;
         savePeers = usePeersDb && Metro.getBooleanProperty("metro.savePeers");
         getMorePeers = Metro.getBooleanProperty("metro.getMorePeers");
@@ -1004,83 +1012,39 @@ public final class Peers {
     }
 
     public static void sendToSomePeers(Block block) {
-        JSONObject request = block.getJSONObject();
-        request.put("requestType", "processBlock");
-        sendToSomePeers(request);
+        sendingService.submit(() -> {
+            JSONObject request = block.getJSONObject();
+            request.put("requestType", "processBlock");
+            JSONObject binaryRequest = block.isKeyBlock() ? block.getBinaryJSONObject() : block.getCompactJSONObject();
+            binaryRequest.put("requestType", "processBlock");
+            JSONStreamAware jsonRequest = JSON.prepareRequest(request);
+            JSONStreamAware jsonBinaryRequest = JSON.prepareRequest(binaryRequest);
+            PeerOutboundQueue.Broadcast broadcast = new PeerOutboundQueue.Broadcast(1);
+            broadcast.start(peer -> peer.getOutboundQueue().addBlock(jsonRequest, jsonBinaryRequest, broadcast));
+        });
     }
 
-    private static final int sendTransactionsBatchSize = 10;
+    static final int sendTransactionsBatchSize = 10;
 
+    /**
+     * Queue the transactions for some peers, see {@link PeerOutboundQueue}
+     *
+     * @param transactions transactions to send
+     */
     public static void sendToSomePeers(List<? extends Transaction> transactions) {
-        int nextBatchStart = 0;
-        while (nextBatchStart < transactions.size()) {
-            JSONObject request = new JSONObject();
-            JSONArray transactionsData = new JSONArray();
-            for (int i = nextBatchStart; i < nextBatchStart + sendTransactionsBatchSize && i < transactions.size(); i++) {
-                transactionsData.add(transactions.get(i).getJSONObject());
-            }
-            request.put("requestType", "processTransactions");
-            request.put("transactions", transactionsData);
-            sendToSomePeers(request);
-            nextBatchStart += sendTransactionsBatchSize;
+        if (transactions.isEmpty()) {
+            return;
         }
+        PeerOutboundQueue.Broadcast broadcast = new PeerOutboundQueue.Broadcast(transactions.size());
+        List<PeerOutboundQueue.PendingTransaction> pendingTransactions = new ArrayList<>(transactions.size());
+        transactions.forEach(transaction -> pendingTransactions.add(new PeerOutboundQueue.PendingTransaction(transaction, broadcast)));
+        broadcast.start(peer -> peer.getOutboundQueue().addTransactions(pendingTransactions));
     }
 
-    private static void sendToSomePeers(final JSONObject request) {
-        sendingService.submit(() -> {
-            final JSONStreamAware jsonRequest = JSON.prepareRequest(request);
-
-            int successful = 0;
-            List<Future<JSONObject>> expectedResponses = new ArrayList<>();
-            Collection<PeerImpl> peerCollection = peers.values();
-            Map<Future, PeerImpl> peerMap = new HashMap<>();
-
-            while (successful < Peers.requiredSendPeerNumber) {
-                Collection<PeerImpl> resend = new ArrayList<>();
-                for (final PeerImpl peer : peerCollection) {
-                    if (Peers.enableHallmarkProtection && peer.getWeight() < Peers.pushThreshold) {
-                        continue;
-                    }
-
-                    if (!peer.isBlacklisted() && peer.getState() == Peer.State.CONNECTED && peer.getAnnouncedAddress() != null
-                            && peer.getBlockchainState() != Peer.BlockchainState.LIGHT_CLIENT) {
-                        Future<JSONObject> futureResponse = peersService.submit(() -> peer.send(jsonRequest));
-                        peerMap.put(futureResponse, peer);
-                        expectedResponses.add(futureResponse);
-                    }
-                    if (expectedResponses.size() >= Peers.sendToPeersLimit - successful) {
-                        successful += checkPeersAnswers(expectedResponses, peerMap, resend);
-                        expectedResponses.clear();
-                    }
-                    if (successful >= Peers.sendToPeersLimit) {
-                        return;
-                    }
-                }
-                successful += checkPeersAnswers(expectedResponses, peerMap, resend);
-                peerCollection = resend;
-            }
-        });
-    }
-
-    private static int checkPeersAnswers(List<Future<JSONObject>> expectedResponses, Map<Future, PeerImpl> peerMap, Collection<PeerImpl> resend) {
-        int successful = 0;
-        for (Future<JSONObject> future : expectedResponses) {
-            try {
-                JSONObject response = future.get();
-                if (response != null && response.get("error") == null) {
-                    successful += 1;
-                    //Logger.logDebugMessage("Success send to peer:" + peerMap.get(future));
-                } else {
-                    resend.add(peerMap.get(future));
-                    Logger.logDebugMessage("Error response from peer:" + peerMap.get(future) + ", response:" + response);
-                }
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-            } catch (ExecutionException e) {
-                Logger.logDebugMessage("Error in sendToSomePeers", e);
-            }
-        }
-        return successful;
+    static boolean isBroadcastTarget(PeerImpl peer) {
+        return !(Peers.enableHallmarkProtection && peer.getWeight() < Peers.pushThreshold)
+                && !peer.isBlacklisted() && peer.getState() == Peer.State.CONNECTED && peer.getAnnouncedAddress() != null
+                && peer.getBlockchainState() != Peer.BlockchainState.LIGHT_CLIENT;
     }
 
     public static Peer getAnyPeer(final Peer.State state, final boolean applyPullThreshold) {
@@ -19,9 +19,9 @@
 package metro.util;
 
 import metro.Consensus;
+import metro.crypto.KNV25;
 
 import java.math.BigInteger;
-import java.security.MessageDigest;
 import java.util.List;
 
 public class BitcoinJUtils {
@@ -172,7 +172,7 @@ public class BitcoinJUtils {
         //  / \   / \   / \
         // t1 t2 t3 t4 t5 t5
 
-        MessageDigest sha3 = Consensus.HASH_FUNCTION.messageDigest();
+        KNV25.Hasher sha3 = Consensus.HASH_FUNCTION.hasher();
         int levelOffset = 0; // Offset in the list where the currently processed level starts.
         // Step through each level, stopping when we reach the root (levelSize == 1).
         for (int levelSize = tree.size(); levelSize > 1; levelSize = (levelSize + 1) / 2) {
@@ -183,8 +183,7 @@ public class BitcoinJUtils {
                 int right = Math.min(left + 1, levelSize - 1);
                 byte[] leftBytes = tree.get(levelOffset + left);
                 byte[] rightBytes = tree.get(levelOffset + right);
-                sha3.update(leftBytes);
-                sha3.update(rightBytes);
+                sha3.update(leftBytes).update(rightBytes);
                 tree.add(sha3.digest());
             }
             // Move to the next level.
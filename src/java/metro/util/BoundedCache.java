@@ -0,0 +1,117 @@
+package metro.util;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Size bounded cache safe for concurrent use, with approximate LRU (second chance) eviction.
+ * <p>
+ * Lookups are lock free, they only mark the entry as recently used. When the capacity is exceeded, entries are
+ * examined in insertion order and the first one not used since it was last examined is evicted.
+ *
+ * @param <K> key type
+ * @param <V> value type
+ */
+public final class BoundedCache<K, V> {
+
+    private static final class Entry<V> {
+
+        private final V value;
+        private volatile boolean referenced;
+
+        private Entry(V value) {
+            this.value = value;
+        }
+    }
+
+    private final String name;
+    private final int capacity;
+    private final Map<K, Entry<V>> entries = new ConcurrentHashMap<>();
+    private final Queue<K> clock = new ConcurrentLinkedQueue<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param name     name reported in the statistics
+     * @param capacity maximum number of entries, 0 or negative disables the cache
+     */
+    public BoundedCache(String name, int capacity) {
+        this.name = name;
+        this.capacity = Math.max(capacity, 0);
+    }
+
+    public V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        entry.referenced = true;
+        hits.increment();
+        return entry.value;
+    }
+
+    public void put(K key, V value) {
+        if (capacity == 0) {
+            return;
+        }
+        if (entries.put(key, new Entry<>(value)) == null) {
+            clock.add(key);
+            while (entries.size() > capacity) {
+                K eldest = clock.poll();
+                if (eldest == null) {
+                    break;
+                }
+                Entry<V> entry = entries.get(eldest);
+                if (entry != null && entry.referenced) {
+                    entry.referenced = false;
+                    clock.add(eldest);
+                } else if (entry != null) {
+                    entries.remove(eldest, entry);
+                }
+            }
+        }
+    }
+
+    public void remove(K key) {
+        if (entries.remove(key) != null) {
+            clock.remove(key);
+        }
+    }
+
+    /**
+     * Apply the action to the cached values, values added or removed concurrently may or may not be included
+     */
+    public void forEachValue(Consumer<V> action) {
+        entries.values().forEach(entry -> action.accept(entry.value));
+    }
+
+    public void clear() {
+        entries.clear();
+        clock.clear();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+}
@@ -38,18 +38,36 @@ public final class JSON {
     public final static JSONStreamAware emptyJSON = prepare(new JSONObject());
 
     public static JSONStreamAware prepare(final JSONObject json) {
-        return new JSONStreamAware() {
-            private final char[] jsonChars = JSON.toJSONString(json).toCharArray();
-            @Override
-            public void writeJSONString(Writer out) throws IOException {
-                out.write(jsonChars);
-            }
-        };
+        return new PreparedJSON(json, null);
     }
 
     public static JSONStreamAware prepareRequest(final JSONObject json) {
         json.put("protocol", 1);
-        return prepare(json);
+        Object requestType = json.get("requestType");
+        return new PreparedJSON(json, requestType instanceof String ? (String) requestType : null);
+    }
+
+    /**
+     * @return request type of a request prepared by {@link #prepareRequest}, or null
+     */
+    public static String getRequestType(JSONStreamAware request) {
+        return request instanceof PreparedJSON ? ((PreparedJSON) request).requestType : null;
+    }
+
+    private static final class PreparedJSON implements JSONStreamAware {
+
+        private final char[] jsonChars;
+        private final String requestType;
+
+        private PreparedJSON(JSONObject json, String requestType) {
+            this.jsonChars = JSON.toJSONString(json).toCharArray();
+            this.requestType = requestType;
+        }
+
+        @Override
+        public void writeJSONString(Writer out) throws IOException {
+            out.write(jsonChars);
+        }
     }
 
     public static String toString(JSONStreamAware jsonStreamAware) {
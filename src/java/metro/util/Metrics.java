@@ -0,0 +1,94 @@
+package metro.util;
+
+import metro.Metro;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Registry of the latency histograms of the node, reported by the getMetrics API and the Prometheus endpoint.
+ * <p>
+ * Histograms are grouped in families of the same measurement, and a family has one histogram for each value of its
+ * label, e.g. the API request type. Label values must come from a small set, as histograms are never removed.
+ */
+public final class Metrics {
+
+    static final boolean enabled = Metro.getBooleanProperty("metro.enableMetrics", true);
+
+    private static final Map<String, Family> families = new ConcurrentSkipListMap<>();
+
+    public static final class Family {
+
+        private final String name;
+        private final String labelName;
+        private final String help;
+        private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+
+        private Family(String name, String labelName, String help) {
+            this.name = name;
+            this.labelName = labelName;
+            this.help = help;
+        }
+
+        /**
+         * @return histogram of the family without label
+         */
+        public Histogram get() {
+            return get("");
+        }
+
+        public Histogram get(String labelValue) {
+            Histogram histogram = histograms.get(labelValue);
+            if (histogram == null) {
+                histogram = histograms.computeIfAbsent(labelValue, value -> new Histogram());
+            }
+            return histogram;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return name of the label, null if the family has a single histogram
+         */
+        public String getLabelName() {
+            return labelName;
+        }
+
+        public String getHelp() {
+            return help;
+        }
+
+        /**
+         * @return histograms by label value, sorted
+         */
+        public Map<String, Histogram> getHistograms() {
+            return Collections.unmodifiableMap(histograms);
+        }
+    }
+
+    /**
+     * Get or create a family of histograms
+     *
+     * @param name      metric name, the durations are reported in seconds
+     * @param labelName name of the label distinguishing the histograms, null for a single histogram
+     * @param help      description of the measurement
+     */
+    public static Family family(String name, String labelName, String help) {
+        return families.computeIfAbsent(name, key -> new Family(name, labelName, help));
+    }
+
+    public static Collection<Family> getFamilies() {
+        return Collections.unmodifiableCollection(families.values());
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    private Metrics() {}
+
+}
@@ -17,6 +17,16 @@
 
 package metro.util;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -39,9 +49,21 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * will cause the thread to be suspended until the blocking lock is released.
  * An attempt to obtain the write lock while holding the read lock will result in an exception.</li>
  * </ul>
+ * <p>
+ * With writer preference, a thread obtaining the read lock while not holding the read, update or write
+ * lock is also suspended while another thread waits for the write lock, so that a continuous stream of
+ * readers cannot starve the writer.
+ * </p>
+ * <p>
+ * A named lock records the times threads wait for and hold it, optionally by call site, and keeps
+ * track of the threads holding or waiting for it.  Named locks are listed by {@link #getNamedLocks()}.
+ * </p>
  */
 public class ReadWriteUpdateLock {
 
+    /** Named locks */
+    private static final Map<String, ReadWriteUpdateLock> namedLocks = new ConcurrentSkipListMap<>();
+
     /** Lock shared by the read and write locks */
     private final ReentrantReadWriteLock sharedLock = new ReentrantReadWriteLock();
 
@@ -60,6 +82,92 @@ public class ReadWriteUpdateLock {
     /** Write lock */
     private final WriteLock writeLock = new WriteLock();
 
+    /** Lock name, null if the lock is not instrumented */
+    private final String name;
+
+    /** Readers wait for queued writers */
+    private final boolean writerPreference;
+
+    /** Number of threads waiting for the write lock, with writer preference */
+    private final AtomicInteger queuedWriters = new AtomicInteger();
+
+    /** Monitor readers wait on while writers are queued, with writer preference */
+    private final Object writerGate = new Object();
+
+    /** Threads holding the read lock, when named */
+    private final Map<Thread, LockThread> readHolders = new ConcurrentHashMap<>();
+
+    /** Threads waiting for a lock, when named */
+    private final Map<Thread, LockThread> waiters = new ConcurrentHashMap<>();
+
+    /** Threads holding the update and write locks, when named */
+    private volatile LockThread updateHolder, writeHolder;
+
+    /** Lock wait and hold times, null if the lock is not named */
+    private final Histogram readWait, readHold, updateWait, updateHold, writeWait, writeHold;
+
+    /** Lock wait and hold times by call site, null if not recorded */
+    private final Metrics.Family siteWaits, siteHolds;
+
+    /**
+     * Create a lock whose wait and hold times are not recorded
+     */
+    public ReadWriteUpdateLock() {
+        this(null, false, false);
+    }
+
+    /**
+     * Create a lock recording the times threads wait for and hold it in the lock_wait_seconds and
+     * lock_hold_seconds metrics, reentrant acquisitions excluded
+     *
+     * @param   name                Lock name used as label of the metrics, or null
+     */
+    public ReadWriteUpdateLock(String name) {
+        this(name, false, false);
+    }
+
+    /**
+     * Create a lock
+     *
+     * @param   name                Lock name used as label of the metrics, or null
+     * @param   writerPreference    TRUE if readers wait for queued writers
+     * @param   callSiteMetrics     TRUE to also record the wait and hold times of a named lock by call site,
+     *                              in the lock_site_wait_seconds and lock_site_hold_seconds metrics
+     */
+    public ReadWriteUpdateLock(String name, boolean writerPreference, boolean callSiteMetrics) {
+        this.name = name;
+        this.writerPreference = writerPreference;
+        if (name != null) {
+            Metrics.Family waits = Metrics.family("lock_wait_seconds", "lock", "Time waiting for a lock");
+            Metrics.Family holds = Metrics.family("lock_hold_seconds", "lock", "Time holding a lock");
+            readWait = waits.get(name + "_read");
+            readHold = holds.get(name + "_read");
+            updateWait = waits.get(name + "_update");
+            updateHold = holds.get(name + "_update");
+            writeWait = waits.get(name + "_write");
+            writeHold = holds.get(name + "_write");
+            if (callSiteMetrics && Metrics.isEnabled()) {
+                siteWaits = Metrics.family("lock_site_wait_seconds", "site", "Time waiting for a lock by call site");
+                siteHolds = Metrics.family("lock_site_hold_seconds", "site", "Time holding a lock by call site");
+            } else {
+                siteWaits = siteHolds = null;
+            }
+            namedLocks.put(name, this);
+        } else {
+            readWait = readHold = updateWait = updateHold = writeWait = writeHold = null;
+            siteWaits = siteHolds = null;
+        }
+    }
+
+    /**
+     * Return the named locks
+     *
+     * @return                      Named locks sorted by name
+     */
+    public static Collection<ReadWriteUpdateLock> getNamedLocks() {
+        return Collections.unmodifiableCollection(namedLocks.values());
+    }
+
     /**
      * Return the read lock
      *
@@ -87,6 +195,56 @@ public class ReadWriteUpdateLock {
         return writeLock;
     }
 
+    /**
+     * Return the lock name
+     *
+     * @return                      Lock name or null
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Check if readers wait for queued writers
+     *
+     * @return                      TRUE if the lock has writer preference
+     */
+    public boolean isWriterPreference() {
+        return writerPreference;
+    }
+
+    /**
+     * Return the threads holding a named lock, a thread holding several locks is listed once for each
+     *
+     * @return                      Lock holders, the write and update lock holders first
+     */
+    public List<LockThread> getHolders() {
+        List<LockThread> holders = new ArrayList<>();
+        LockThread holder = writeHolder;
+        if (holder != null) {
+            holders.add(holder);
+        }
+        holder = updateHolder;
+        if (holder != null) {
+            holders.add(holder);
+        }
+        List<LockThread> readers = new ArrayList<>(readHolders.values());
+        readers.sort(Comparator.comparingLong(LockThread::getObtainedTime));
+        holders.addAll(readers);
+        return holders;
+    }
+
+    /**
+     * Return the threads waiting for a named lock
+     *
+     * @return                      Waiting threads, longest waiting first
+     */
+    public List<LockThread> getWaiters() {
+        List<LockThread> list = new ArrayList<>(waiters.values());
+        list.sort(Comparator.comparingLong(LockThread::getWaitStart));
+        return list;
+    }
+
     /**
      * Lock interface
      */
@@ -110,6 +268,78 @@ public class ReadWriteUpdateLock {
         boolean hasLock();
     }
 
+    /**
+     * Thread holding or waiting for a named lock
+     */
+    public static final class LockThread {
+
+        /** Thread */
+        private final Thread thread;
+
+        /** Lock mode: read, update or write */
+        private final String mode;
+
+        /** Call site obtaining the lock, null if not recorded */
+        private final String callSite;
+
+        /** Time the thread started waiting */
+        private final long waitStart;
+
+        /** Time the thread obtained the lock, 0 while waiting */
+        private volatile long obtainedTime;
+
+        private LockThread(String mode, String callSite) {
+            this.thread = Thread.currentThread();
+            this.mode = mode;
+            this.callSite = callSite;
+            this.waitStart = System.nanoTime();
+        }
+
+        public Thread getThread() {
+            return thread;
+        }
+
+        public String getMode() {
+            return mode;
+        }
+
+        /**
+         * Return the call site
+         *
+         * @return                  Class and method obtaining the lock, or null if not recorded
+         */
+        public String getCallSite() {
+            return callSite;
+        }
+
+        private long getWaitStart() {
+            return waitStart;
+        }
+
+        private long getObtainedTime() {
+            return obtainedTime;
+        }
+
+        /**
+         * Return the time the thread has been waiting for the lock
+         *
+         * @return                  Wait time in nanoseconds, 0 if the lock was obtained
+         */
+        public long getWaitTime() {
+            return obtainedTime == 0 ? System.nanoTime() - waitStart : 0;
+        }
+
+        /**
+         * Return the time the thread has been holding the lock
+         *
+         * @return                  Hold time in nanoseconds, 0 if the thread is waiting
+         */
+        public long getHoldTime() {
+            long obtained = obtainedTime;
+            return obtained == 0 ? 0 : System.nanoTime() - obtained;
+        }
+    }
+
     /**
      * Read lock
      */
@@ -120,8 +350,22 @@ public class ReadWriteUpdateLock {
          */
         @Override
         public void lock() {
-            sharedLock.readLock().lock();
-            lockCount.get().readCount++;
+            LockCount counts = lockCount.get();
+            if (counts.readCount == 0) {
+                LockThread thread = name != null ? new LockThread("read", getCallSite()) : null;
+                if (writerPreference && counts.updateCount == 0) {
+                    awaitQueuedWriters(thread);
+                }
+                obtain(sharedLock.readLock(), thread);
+                if (thread != null) {
+                    obtained(thread, readWait);
+                    readHolders.put(thread.thread, thread);
+                    counts.readHolder = thread;
+                }
+            } else {
+                sharedLock.readLock().lock();
+            }
+            counts.readCount++;
         }
 
         /**
@@ -130,7 +374,12 @@ public class ReadWriteUpdateLock {
         @Override
         public void unlock() {
             sharedLock.readLock().unlock();
-            lockCount.get().readCount--;
+            LockCount counts = lockCount.get();
+            if (--counts.readCount == 0 && counts.readHolder != null) {
+                readHolders.remove(counts.readHolder.thread);
+                released(counts.readHolder, readHold);
+                counts.readHolder = null;
+            }
         }
 
         /**
@@ -163,7 +412,17 @@ public class ReadWriteUpdateLock {
             if (counts.writeCount != 0) {
                 throw new IllegalStateException("Update lock cannot be obtained while holding the write lock");
             }
-            mutexLock.lock();
+            if (counts.updateCount == 0) {
+                LockThread thread = name != null ? new LockThread("update", getCallSite()) : null;
+                obtain(mutexLock, thread);
+                if (thread != null) {
+                    obtained(thread, updateWait);
+                    updateHolder = thread;
+                    counts.updateHolder = thread;
+                }
+            } else {
+                mutexLock.lock();
+            }
             counts.updateCount++;
         }
 
@@ -172,8 +431,15 @@ public class ReadWriteUpdateLock {
          */
         @Override
         public void unlock() {
+            LockCount counts = lockCount.get();
+            if (counts.updateCount == 1 && counts.updateHolder != null) {
+                updateHolder = null;
+            }
             mutexLock.unlock();
-            lockCount.get().updateCount--;
+            if (--counts.updateCount == 0 && counts.updateHolder != null) {
+                released(counts.updateHolder, updateHold);
+                counts.updateHolder = null;
+            }
         }
 
         /**
@@ -204,12 +470,30 @@ public class ReadWriteUpdateLock {
                 throw new IllegalStateException("Write lock cannot be obtained while holding the read lock");
             }
             boolean lockObtained = false;
+            LockThread thread = counts.writeCount == 0 && name != null ? new LockThread("write", getCallSite()) : null;
             try {
-                mutexLock.lock();
+                obtain(mutexLock, thread);
                 counts.updateCount++;
                 lockObtained = true;
-                sharedLock.writeLock().lock();
-                counts.writeCount++;
+                if (writerPreference && counts.writeCount == 0) {
+                    queuedWriters.incrementAndGet();
+                    try {
+                        obtain(sharedLock.writeLock(), thread);
+                    } finally {
+                        if (queuedWriters.decrementAndGet() == 0) {
+                            synchronized (writerGate) {
+                                writerGate.notifyAll();
+                            }
+                        }
+                    }
+                } else {
+                    obtain(sharedLock.writeLock(), thread);
+                }
+                if (counts.writeCount++ == 0 && thread != null) {
+                    obtained(thread, writeWait);
+                    writeHolder = thread;
+                    counts.writeHolder = thread;
+                }
             } catch (Exception exc) {
                 if (lockObtained) {
                     mutexLock.unlock();
@@ -225,10 +509,22 @@ public class ReadWriteUpdateLock {
         @Override
         public void unlock() {
             LockCount counts = lockCount.get();
+            if (counts.writeCount == 1 && counts.writeHolder != null) {
+                writeHolder = null;
+            }
             sharedLock.writeLock().unlock();
-            counts.writeCount--;
+            if (--counts.writeCount == 0 && counts.writeHolder != null) {
+                released(counts.writeHolder, writeHold);
+                counts.writeHolder = null;
+            }
+            if (counts.updateCount == 1 && counts.updateHolder != null) {
+                updateHolder = null;
+            }
             mutexLock.unlock();
-            counts.updateCount--;
+            if (--counts.updateCount == 0 && counts.updateHolder != null) {
+                released(counts.updateHolder, updateHold);
+                counts.updateHolder = null;
+            }
         }
 
         /**
@@ -242,6 +538,112 @@ public class ReadWriteUpdateLock {
         }
     }
 
+    /**
+     * Obtain a lock, listing the thread as waiting while it cannot be obtained immediately
+     *
+     * @param   lock                Lock to obtain
+     * @param   thread              Thread to list, or null if the lock is not named
+     */
+    private void obtain(java.util.concurrent.locks.Lock lock, LockThread thread) {
+        if (thread == null) {
+            lock.lock();
+            return;
+        }
+        boolean interrupted = false;
+        try {
+            // a timed tryLock, unlike tryLock(), does not barge ahead of queued writers
+            if (lock.tryLock(0, TimeUnit.NANOSECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            interrupted = true;
+        }
+        waiters.put(thread.thread, thread);
+        try {
+            lock.lock();
+        } finally {
+            waiters.remove(thread.thread);
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Wait until no thread is waiting for the write lock
+     *
+     * @param   thread              Thread to list as waiting, or null if the lock is not named
+     */
+    private void awaitQueuedWriters(LockThread thread) {
+        if (queuedWriters.get() == 0) {
+            return;
+        }
+        if (thread != null) {
+            waiters.put(thread.thread, thread);
+        }
+        boolean interrupted = false;
+        try {
+            synchronized (writerGate) {
+                while (queuedWriters.get() != 0) {
+                    try {
+                        writerGate.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        } finally {
+            if (thread != null) {
+                waiters.remove(thread.thread);
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Record the wait of a thread which obtained the lock
+     */
+    private void obtained(LockThread thread, Histogram wait) {
+        long now = System.nanoTime();
+        thread.obtainedTime = now;
+        wait.record(now - thread.waitStart);
+        if (thread.callSite != null) {
+            siteWaits.get(name + "_" + thread.mode + "@" + thread.callSite).record(now - thread.waitStart);
+        }
+    }
+
+    /**
+     * Record the hold of a thread which released the lock
+     */
+    private void released(LockThread thread, Histogram hold) {
+        long holdTime = System.nanoTime() - thread.obtainedTime;
+        hold.record(holdTime);
+        if (thread.callSite != null) {
+            siteHolds.get(name + "_" + thread.mode + "@" + thread.callSite).record(holdTime);
+        }
+    }
+
+    /**
+     * Return the call site obtaining the lock: the first caller which is not a method of this class and
+     * whose name does not end with Lock, so that lock wrappers like Blockchain.readLock() are skipped
+     *
+     * @return                      Simple class name and method name, or null if call sites are not recorded
+     */
+    private String getCallSite() {
+        if (siteWaits == null) {
+            return null;
+        }
+        for (StackTraceElement element : new Throwable().getStackTrace()) {
+            String className = element.getClassName();
+            if (!className.startsWith(ReadWriteUpdateLock.class.getName()) && !element.getMethodName().endsWith("Lock")) {
+                return className.substring(className.lastIndexOf('.') + 1) + "." + element.getMethodName();
+            }
+        }
+        return "unknown";
+    }
+
     /**
      * Lock counts
      */
@@ -255,5 +657,8 @@ public class ReadWriteUpdateLock {
 
         /** Write lock count */
         private int writeCount;
+
+        /** Lock holders, when the lock is named */
+        private LockThread readHolder, updateHolder, writeHolder;
     }
 }
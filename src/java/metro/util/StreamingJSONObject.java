@@ -0,0 +1,177 @@
+package metro.util;
+
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * JSON object with an array member whose elements are produced while the object is serialized, e.g. from a
+ * {@link metro.db.DbIterator}, so that only one element at a time is held as JSON objects instead of the whole
+ * response.
+ * <p>
+ * The other members, kept in a {@link JSONObject}, are written before the array. The elements are produced each time
+ * the object is written or prepared.
+ */
+public final class StreamingJSONObject implements JSONStreamAware {
+
+    @FunctionalInterface
+    public interface ElementSource {
+
+        /**
+         * Pass each element of the array, a JSON value, to the action
+         */
+        void forEachElement(Consumer<Object> action);
+    }
+
+    static final int SPOOL_MEMORY_CHARS = 1024 * 1024;
+
+    private final JSONObject members = new JSONObject();
+    private final String arrayName;
+    private final ElementSource elements;
+
+    public StreamingJSONObject(String arrayName, ElementSource elements) {
+        this.arrayName = arrayName;
+        this.elements = elements;
+    }
+
+    /**
+     * @return members other than the array, which may be added to until the object is written
+     */
+    public JSONObject getMembers() {
+        return members;
+    }
+
+    /**
+     * Produce the elements now, under the lock they are read with, rather than while the response is sent to a possibly
+     * slow client. The serialized object is kept in memory up to {@link #SPOOL_MEMORY_CHARS} characters and spooled
+     * to a temporary file beyond, so that a large response is not held in memory either.
+     *
+     * @return the serialized object, which can be written once
+     */
+    public JSONStreamAware prepare() throws IOException {
+        SpoolWriter spool = new SpoolWriter();
+        try {
+            writeJSONString(spool);
+        } catch (IOException | RuntimeException e) {
+            spool.delete();
+            throw e;
+        }
+        return spool;
+    }
+
+    @Override
+    public void writeJSONString(Writer out) throws IOException {
+        StringBuilder sb = new StringBuilder(1024);
+        JSON.encodeObject(members, sb);
+        sb.setLength(sb.length() - 1);
+        if (!members.isEmpty()) {
+            sb.append(',');
+        }
+        JSON.encodeValue(arrayName, sb);
+        sb.append(":[");
+        out.write(sb.toString());
+        boolean[] firstElement = {true};
+        try {
+            elements.forEachElement(element -> {
+                sb.setLength(0);
+                if (firstElement[0]) {
+                    firstElement[0] = false;
+                } else {
+                    sb.append(',');
+                }
+                JSON.encodeValue(element, sb);
+                try {
+                    out.write(sb.toString());
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        out.write("]}");
+    }
+
+    private static final class SpoolWriter extends Writer implements JSONStreamAware {
+
+        private final StringBuilder buffer = new StringBuilder(1024);
+        private Path file;
+        private Writer fileWriter;
+
+        @Override
+        public void write(char[] chars, int offset, int length) throws IOException {
+            if (spill(length)) {
+                fileWriter.write(chars, offset, length);
+            } else {
+                buffer.append(chars, offset, length);
+            }
+        }
+
+        @Override
+        public void write(String string, int offset, int length) throws IOException {
+            if (spill(length)) {
+                fileWriter.write(string, offset, length);
+            } else {
+                buffer.append(string, offset, offset + length);
+            }
+        }
+
+        /**
+         * @return true if the characters have to be written to the file, which is created once the buffer is full
+         */
+        private boolean spill(int length) throws IOException {
+            if (fileWriter == null && buffer.length() + length > SPOOL_MEMORY_CHARS) {
+                file = Files.createTempFile("metro.response.", ".json");
+                fileWriter = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+                fileWriter.append(buffer);
+                buffer.setLength(0);
+                buffer.trimToSize();
+            }
+            return fileWriter != null;
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void writeJSONString(Writer out) throws IOException {
+            if (fileWriter == null) {
+                out.append(buffer);
+                return;
+            }
+            try {
+                fileWriter.close();
+                try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    char[] chars = new char[8192];
+                    int count;
+                    while ((count = reader.read(chars)) > 0) {
+                        out.write(chars, 0, count);
+                    }
+                }
+            } finally {
+                delete();
+            }
+        }
+
+        private void delete() throws IOException {
+            if (fileWriter != null) {
+                fileWriter.close();
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+}
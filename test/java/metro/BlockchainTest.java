@@ -120,6 +120,10 @@ public abstract class BlockchainTest extends AbstractBlockchainTest {
         }
     }
 
+    protected static void setTime(Time time) {
+        Metro.setTime(time);
+    }
+
     public static void generateBlocks(int howMany) {
         for (int i = 0; i < howMany; i++) {
             generateBlock();
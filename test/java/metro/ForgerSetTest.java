@@ -0,0 +1,169 @@
+package metro;
+
+import metro.util.BitcoinJUtils;
+import metro.util.Convert;
+import org.apache.commons.lang3.tuple.ImmutablePair;
+import org.apache.commons.lang3.tuple.Pair;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static metro.Consensus.GUARANTEED_BALANCE_KEYBLOCK_CONFIRMATIONS;
+import static metro.Consensus.HASH_FUNCTION;
+import static metro.util.Convert.HASH_SIZE;
+
+public class ForgerSetTest extends BlockchainTest {
+
+    @Test
+    public void testPushAndPopOff() throws Exception {
+        checkForgers();
+        // ESAU forges once and is left unchanged afterwards, the effective balance of ESAU changes as the payment to ESAU
+        // leaves the guaranteed balance window, and as DAVE leases to ESAU and the lease expires
+        generateBlockBy(ESAU);
+        sendMoney(ALICE, ESAU, 5000);
+        int popOffHeight = 0;
+        for (int i = 0; i <= 2 * GUARANTEED_BALANCE_KEYBLOCK_CONFIRMATIONS; i++) {
+            sendMoney(ALICE, FORGY, 1000 + i);
+            if (i == 2) {
+                lease(DAVE, ESAU, 12);
+            }
+            generateBlock();
+            checkForgers();
+            if (i == GUARANTEED_BALANCE_KEYBLOCK_CONFIRMATIONS) {
+                popOffHeight = blockchain.getHeight();
+            }
+        }
+
+        // pop off to a key block, and to a block in between key blocks
+        blockchainProcessor.popOffTo(popOffHeight);
+        Assert.assertTrue(blockchain.getLastBlock().isKeyBlock());
+        Assert.assertArrayEquals(selectMerkleBranches(), getMerkleBranches());
+        sendMoney(ALICE, BOB, 5000);
+        generateBlock();
+        blockchainProcessor.popOffTo(blockchain.getHeight() - 1);
+        generateBlockBy(ALICE);
+        for (int i = 0; i < 3; i++) {
+            sendMoney(ALICE, BOB, 100);
+            generateBlock();
+            checkForgers();
+        }
+    }
+
+    /**
+     * Mine a key block and compare the forgers and merkle branches maintained by the blockchain processor with
+     * those of all forgers selected again, and with the voters and branches of the consensus query
+     */
+    private static void checkForgers() throws Exception {
+        Assert.assertNotNull(mineBlock());
+        String message = "at height " + blockchain.getHeight();
+        ForgerSet expected = new ForgerSet();
+        byte[] expectedBranches = expected.getMerkleBranches(blockchain.getHeight());
+        Assert.assertArrayEquals(message, expectedBranches, getMerkleBranches());
+        Assert.assertEquals(getForgers(expected), getForgers(getForgerSet()));
+
+        Assert.assertEquals(message, blockchainProcessor.getCurrentForgers(), getVoters(getForgerSet()));
+        Assert.assertArrayEquals(message, computeMerkleBranches(), getMerkleBranches());
+    }
+
+    /**
+     * Compute the merkle branches as the blockchain processor did before the forgers were kept in memory: chain the
+     * voters in the order of {@link BlockchainProcessorImpl#SELECT_FORGERS_SQL}, and build the outfeeders tree of them
+     */
+    private static byte[] computeMerkleBranches() throws SQLException {
+        MessageDigest mdg = HASH_FUNCTION.messageDigest();
+        byte[] forgersMerkle = new byte[HASH_SIZE * 2];
+        byte[] votersBranch = new byte[0];
+        List<byte[]> outfeeders = new ArrayList<>();
+        int height = blockchain.getHeight();
+        try (Connection con = Db.db.getConnection();
+             PreparedStatement pstmt = con.prepareStatement(BlockchainProcessorImpl.SELECT_FORGERS_SQL)) {
+            pstmt.setInt(1, blockchain.getGuaranteedBalanceHeight(height));
+            pstmt.setInt(2, height);
+            pstmt.setInt(3, Math.max(0, height - Consensus.FORGER_ACTIVITY_SNAPSHOT_INTERVAL));
+            pstmt.setInt(4, height);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                while (rs.next()) {
+                    int amountMTR = (int) (rs.getLong("effective") / Constants.ONE_MTR);
+                    if (amountMTR >= Consensus.MIN_FORKVOTING_AMOUNT_MTR) {
+                        byte[] publicKey = rs.getBytes("public_key");
+                        mdg.update(votersBranch);
+                        mdg.update(publicKey);
+                        votersBranch = mdg.digest(new byte[] {
+                                (byte) (amountMTR >> 24),
+                                (byte) (amountMTR >> 16),
+                                (byte) (amountMTR >> 8),
+                                (byte) amountMTR,
+                        });
+                        outfeeders.add(publicKey);
+                    }
+                }
+            }
+        }
+        if (votersBranch.length > 0) {
+            List<byte[]> tree = BitcoinJUtils.buildMerkleTree(outfeeders);
+            System.arraycopy(votersBranch, 0, forgersMerkle, 0, HASH_SIZE);
+            System.arraycopy(tree.get(tree.size() - 1), 0, forgersMerkle, HASH_SIZE, HASH_SIZE);
+        }
+        return forgersMerkle;
+    }
+
+    /**
+     * @return public key and amount of the voters of the forger set, in the order they are chained in
+     */
+    private static List<Pair<String, Integer>> getVoters(ForgerSet forgerSet) throws ReflectiveOperationException {
+        List<Pair<String, Integer>> voters = new ArrayList<>();
+        for (Object voter : (List<?>) getField(ForgerSet.class, forgerSet, "voters")) {
+            byte[] publicKey = (byte[]) getField(voter.getClass(), voter, "publicKey");
+            long effective = (long) getField(voter.getClass(), voter, "effective");
+            voters.add(new ImmutablePair<>(Convert.toHexString(publicKey), (int) (effective / Constants.ONE_MTR)));
+        }
+        return voters;
+    }
+
+    private static byte[] selectMerkleBranches() {
+        return new ForgerSet().getMerkleBranches(blockchain.getHeight());
+    }
+
+    private static byte[] getMerkleBranches() throws ReflectiveOperationException {
+        return (byte[]) getField(BlockchainProcessorImpl.class, blockchainProcessor, "lastKeyBlockForgersMerkleBranches");
+    }
+
+    private static ForgerSet getForgerSet() throws ReflectiveOperationException {
+        return (ForgerSet) getField(BlockchainProcessorImpl.class, blockchainProcessor, "forgerSet");
+    }
+
+    private static Map<?, ?> getForgers(ForgerSet forgerSet) throws ReflectiveOperationException {
+        return (Map<?, ?>) getField(ForgerSet.class, forgerSet, "forgers");
+    }
+
+    private static Object getField(Class<?> declaringClass, Object object, String name) throws ReflectiveOperationException {
+        Field field = declaringClass.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(object);
+    }
+
+    private static void sendMoney(Tester sender, Tester recipient, long amountMTR) throws MetroException {
+        broadcast(sender, recipient, amountMTR * Constants.ONE_MTR, Attachment.ORDINARY_PAYMENT);
+    }
+
+    private static void lease(Tester lessor, Tester lessee, int period) throws MetroException {
+        broadcast(lessor, lessee, 0, new Attachment.AccountControlEffectiveBalanceLeasing(period));
+    }
+
+    private static void broadcast(Tester sender, Tester recipient, long amountMQT, Attachment attachment) throws MetroException {
+        Transaction transaction = Metro.newTransactionBuilder(sender.getPublicKey(), amountMQT, Constants.ONE_MTR,
+                (short) 1440, attachment)
+                .recipientFullId(recipient.getFullId())
+                .build(sender.getSecretPhrase());
+        Metro.getTransactionProcessor().broadcast(transaction);
+    }
+}
@@ -0,0 +1,100 @@
+package metro;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import static metro.Consensus.GUARANTEED_BALANCE_KEYBLOCK_CONFIRMATIONS;
+
+public class GuaranteedBalanceIndexTest extends BlockchainTest {
+
+    @Test
+    public void testPushAndPopOff() throws MetroException {
+        // load the accounts into the index, so that it is updated by the pushed blocks
+        checkAdditions();
+        for (int i = 0; i < 3; i++) {
+            sendMoney(ALICE, BOB, 1000);
+            generateBlock();
+            checkAdditions();
+            Assert.assertNotNull(mineBlock());
+            checkAdditions();
+        }
+        int height = blockchain.getHeight();
+        blockchainProcessor.popOffTo(height - 3);
+        checkAdditions();
+        sendMoney(BOB, ALICE, 100);
+        generateBlock();
+        Assert.assertNotNull(mineBlock());
+        checkAdditions();
+        blockchainProcessor.popOffTo(baseHeight);
+        checkAdditions();
+    }
+
+    @Test
+    public void testTrim() throws MetroException {
+        checkAdditions();
+        for (int i = 0; i <= GUARANTEED_BALANCE_KEYBLOCK_CONFIRMATIONS; i++) {
+            sendMoney(ALICE, BOB, 1000);
+            generateBlock();
+            Assert.assertNotNull(mineBlock());
+        }
+        checkAdditions();
+        Assert.assertTrue(blockchain.getGuaranteedBalanceHeight(blockchain.getHeight()) > 0);
+        blockchainProcessor.trimDerivedTables();
+        checkAdditions();
+        sendMoney(ALICE, BOB, 1000);
+        generateBlock();
+        Assert.assertNotNull(mineBlock());
+        checkAdditions();
+        // below the trimmed height, the blockchain is deleted and the genesis block added again
+        blockchainProcessor.popOffTo(baseHeight);
+        checkAdditions();
+    }
+
+    private static void sendMoney(Tester sender, Tester recipient, long amountMTR) throws MetroException {
+        Transaction transaction = Metro.newTransactionBuilder(sender.getPublicKey(), amountMTR * Constants.ONE_MTR,
+                Constants.ONE_MTR, (short) 1440, Attachment.ORDINARY_PAYMENT)
+                .recipientFullId(recipient.getFullId())
+                .build(sender.getSecretPhrase());
+        Metro.getTransactionProcessor().broadcast(transaction);
+    }
+
+    /**
+     * Compare the additions of the index with the SQL sums for every range of heights
+     */
+    private static void checkAdditions() {
+        int height = blockchain.getHeight();
+        for (Tester tester : new Tester[] {ALICE, BOB, FORGY}) {
+            for (boolean coinbase : new boolean[] {false, true}) {
+                for (int from = Math.max(height - 30, -1); from <= height; from++) {
+                    for (int to = from + 1; to <= height; to++) {
+                        Assert.assertEquals("account " + tester.getStrId() + " coinbase " + coinbase + " from " + from + " to " + to,
+                                getAdditions(tester.getFullId().getLeft(), coinbase, from, to),
+                                GuaranteedBalanceIndex.getAdditions(tester.getFullId().getLeft(), coinbase, from, to));
+                    }
+                }
+            }
+        }
+    }
+
+    private static long getAdditions(long accountId, boolean coinbase, int fromHeight, int toHeight) {
+        try (Connection con = Db.db.getConnection();
+             PreparedStatement pstmt = con.prepareStatement("SELECT SUM(additions) AS additions FROM account_guaranteed_balance "
+                     + "WHERE account_id = ? AND coinbase = ? AND height > ? AND height <= ?")) {
+            pstmt.setLong(1, accountId);
+            pstmt.setBoolean(2, coinbase);
+            pstmt.setInt(3, fromHeight);
+            pstmt.setInt(4, toHeight);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                rs.next();
+                return rs.getLong("additions");
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e.toString(), e);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package metro;
+
+import metro.db.DbIterator;
+import metro.util.BoundedCache;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class OrderBookTest extends BlockchainTest {
+
+    private long assetId;
+
+    @Before
+    public void issueAsset() throws MetroException {
+        Transaction issuance = broadcast(ALICE, 1000 * Constants.ONE_MTR,
+                new Attachment.ColoredCoinsAssetIssuance("orderBook", "order book test", 1_000_000, (byte) 0));
+        generateBlock();
+        assetId = issuance.getId();
+        Assert.assertNotNull(Asset.getAsset(assetId));
+        // send some of the asset to BOB, so that both sides have asks and bids
+        broadcast(ALICE, Constants.ONE_MTR, new Attachment.ColoredCoinsAssetTransfer(assetId, 100_000), BOB);
+        generateBlock();
+    }
+
+    @Test
+    public void testPutAndRemove() throws MetroException {
+        checkOrderBooks();
+        List<Long> asks = new ArrayList<>();
+        // same prices in one block and in following blocks, ordered by height and transaction index
+        asks.add(placeAsk(ALICE, 100, 10));
+        asks.add(placeAsk(BOB, 100, 12));
+        asks.add(placeAsk(ALICE, 100, 10));
+        placeBid(BOB, 100, 5);
+        placeBid(ALICE, 100, 7);
+        placeBid(BOB, 100, 5);
+        generateBlock();
+        checkOrderBooks();
+        asks.add(placeAsk(BOB, 100, 10));
+        placeAsk(ALICE, 100, 11);
+        placeBid(ALICE, 100, 7);
+        generateBlock();
+        checkOrderBooks();
+
+        broadcast(ALICE, Constants.ONE_MTR, new Attachment.ColoredCoinsAskOrderCancellation(asks.get(0)));
+        broadcast(BOB, Constants.ONE_MTR, new Attachment.ColoredCoinsAskOrderCancellation(asks.get(3)));
+        generateBlock();
+        checkOrderBooks();
+        Assert.assertNull(Order.Ask.getAskOrder(asks.get(0)));
+        Assert.assertNotNull(Order.Ask.getAskOrder(asks.get(2)));
+    }
+
+    @Test
+    public void testUpdateQuantity() throws MetroException {
+        placeAsk(ALICE, 100, 10);
+        placeAsk(ALICE, 100, 11);
+        placeAsk(BOB, 50, 10);
+        placeBid(BOB, 100, 5);
+        generateBlock();
+        checkOrderBooks();
+
+        // partly fills the first ask
+        long bidId = placeBid(BOB, 30, 10);
+        generateBlock();
+        checkOrderBooks();
+        Assert.assertNull(Order.Bid.getBidOrder(bidId));
+
+        // fills the rest of the asks at 10 and part of the ask at 11
+        bidId = placeBid(BOB, 200, 11);
+        generateBlock();
+        checkOrderBooks();
+        Assert.assertNull(Order.Bid.getBidOrder(bidId));
+
+        // partly fills the best bid
+        placeAsk(ALICE, 20, 5);
+        placeAsk(ALICE, 500, 6);
+        generateBlock();
+        checkOrderBooks();
+    }
+
+    @Test
+    public void testRollback() throws MetroException {
+        placeAsk(ALICE, 100, 10);
+        placeBid(BOB, 100, 5);
+        generateBlock();
+        int height = blockchain.getHeight();
+        checkOrderBooks();
+        placeAsk(BOB, 100, 9);
+        placeBid(ALICE, 50, 9);
+        placeBid(BOB, 100, 6);
+        generateBlock();
+        checkOrderBooks();
+        placeAsk(ALICE, 40, 6);
+        generateBlock();
+        checkOrderBooks();
+
+        blockchainProcessor.popOffTo(height);
+        checkOrderBooks();
+        placeAsk(BOB, 10, 5);
+        generateBlock();
+        checkOrderBooks();
+        blockchainProcessor.popOffTo(baseHeight);
+        checkOrderBooks();
+    }
+
+    @Test
+    public void testEviction() throws MetroException {
+        placeAsk(ALICE, 100, 10);
+        placeBid(BOB, 100, 5);
+        generateBlock();
+        checkOrderBooks();
+
+        // changes of evicted books are only made in the table, the books are loaded again on next use
+        clearCaches();
+        placeAsk(BOB, 100, 9);
+        placeBid(ALICE, 30, 9);
+        generateBlock();
+        clearCaches();
+        checkOrderBooks();
+
+        // books cached again by the checks, then evicted before a rollback
+        placeBid(ALICE, 100, 6);
+        placeAsk(BOB, 80, 6);
+        generateBlock();
+        checkOrderBooks();
+        for (BoundedCache<?, ?> cache : Order.getCaches()) {
+            Assert.assertTrue(cache.size() > 0);
+        }
+        clearCaches();
+        blockchainProcessor.popOffTo(blockchain.getHeight() - 1);
+        checkOrderBooks();
+    }
+
+    private long placeAsk(Tester sender, long quantityQNT, long priceMTR) throws MetroException {
+        return broadcast(sender, Constants.ONE_MTR,
+                new Attachment.ColoredCoinsAskOrderPlacement(assetId, quantityQNT, priceMTR * Constants.ONE_MTR)).getId();
+    }
+
+    private long placeBid(Tester sender, long quantityQNT, long priceMTR) throws MetroException {
+        return broadcast(sender, Constants.ONE_MTR,
+                new Attachment.ColoredCoinsBidOrderPlacement(assetId, quantityQNT, priceMTR * Constants.ONE_MTR)).getId();
+    }
+
+    private static Transaction broadcast(Tester sender, long feeMQT, Attachment attachment) throws MetroException {
+        return broadcast(sender, feeMQT, attachment, null);
+    }
+
+    private static Transaction broadcast(Tester sender, long feeMQT, Attachment attachment, Tester recipient) throws MetroException {
+        Transaction.Builder builder = Metro.newTransactionBuilder(sender.getPublicKey(), 0, feeMQT, (short) 1440, attachment);
+        if (recipient != null) {
+            builder.recipientFullId(recipient.getFullId());
+        }
+        Transaction transaction = builder.build(sender.getSecretPhrase());
+        Metro.getTransactionProcessor().broadcast(transaction);
+        return transaction;
+    }
+
+    private static void clearCaches() {
+        Order.getCaches().forEach(BoundedCache::clear);
+    }
+
+    /**
+     * Compare the order books with the sorted order queries, whole and paged
+     */
+    private void checkOrderBooks() {
+        List<Order.Ask> asks = new ArrayList<>();
+        try (DbIterator<Order.Ask> iterator = Order.Ask.getSortedOrders(assetId, 0, -1)) {
+            iterator.forEach(asks::add);
+        }
+        List<Order.Bid> bids = new ArrayList<>();
+        try (DbIterator<Order.Bid> iterator = Order.Bid.getSortedOrders(assetId, 0, -1)) {
+            iterator.forEach(bids::add);
+        }
+        checkOrders(asks, Order.Ask.getOrderBook(assetId, 0, -1));
+        checkOrders(bids, Order.Bid.getOrderBook(assetId, 0, -1));
+        for (int from = 0; from <= asks.size(); from++) {
+            checkOrders(asks.subList(from, Math.min(from + 2, asks.size())), Order.Ask.getOrderBook(assetId, from, from + 1));
+        }
+        for (int from = 0; from <= bids.size(); from++) {
+            checkOrders(bids.subList(from, Math.min(from + 2, bids.size())), Order.Bid.getOrderBook(assetId, from, from + 1));
+        }
+    }
+
+    private static void checkOrders(List<? extends Order> expected, List<? extends Order> actual) {
+        Assert.assertEquals(toString(expected), toString(actual));
+    }
+
+    private static List<String> toString(List<? extends Order> orders) {
+        List<String> result = new ArrayList<>();
+        orders.forEach(order -> result.add(order.toString()));
+        return result;
+    }
+}
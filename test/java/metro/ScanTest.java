@@ -0,0 +1,88 @@
+package metro;
+
+import metro.util.Listener;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+public class ScanTest extends BlockchainTest {
+
+    @Test
+    public void testDowngradedScanIsScheduledAsFullScan() throws MetroException {
+        generateBlocks(3);
+        int[] scheduled = {0, -1};
+        Listener<Block> listener = block -> {
+            scheduled[0] = getScanColumn("rescan");
+            scheduled[1] = getScanColumn("height");
+        };
+        blockchainProcessor.addListener(listener, BlockchainProcessor.Event.RESCAN_BEGIN);
+        try {
+            blockchainProcessor.scan(-1, false);
+        } finally {
+            blockchainProcessor.removeListener(listener, BlockchainProcessor.Event.RESCAN_BEGIN);
+        }
+        Assert.assertEquals(1, scheduled[0]);
+        Assert.assertEquals(0, scheduled[1]);
+    }
+
+    @Test
+    public void testResumeInterruptedFullScan() throws MetroException {
+        for (int i = 0; i < 3; i++) {
+            generateBlocks(2);
+            Assert.assertNotNull(mineBlock());
+        }
+        int height = blockchain.getHeight();
+        int searchIndexes = countSearchIndexes();
+        Assert.assertTrue(searchIndexes > 0);
+        Listener<Block> interrupt = block -> {
+            if (block.isKeyBlock() && block.getHeight() > baseHeight + 3) {
+                throw new RuntimeException("Scan interrupted");
+            }
+        };
+        blockchainProcessor.addListener(interrupt, BlockchainProcessor.Event.BLOCK_SCANNED);
+        try {
+            blockchainProcessor.scan(-1, false);
+            Assert.fail("Scan not interrupted");
+        } catch (RuntimeException e) {
+            Assert.assertEquals("Scan interrupted", e.getMessage());
+        } finally {
+            blockchainProcessor.removeListener(interrupt, BlockchainProcessor.Event.BLOCK_SCANNED);
+        }
+        Assert.assertEquals(1, getScanColumn("rescan"));
+        Assert.assertEquals(0, getScanColumn("height"));
+        Assert.assertTrue(getScanColumn("checkpoint") > baseHeight + 3);
+        Assert.assertTrue(blockchain.getHeight() < height);
+
+        blockchainProcessor.resumeScan();
+        Assert.assertEquals(height, blockchain.getHeight());
+        Assert.assertEquals(0, getScanColumn("rescan"));
+        Assert.assertEquals(searchIndexes, countSearchIndexes());
+    }
+
+    private static int getScanColumn(String column) {
+        try (Connection con = Db.db.getConnection();
+             Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT CAST(" + column + " AS INT) FROM scan")) {
+            rs.next();
+            return rs.getInt(1);
+        } catch (SQLException e) {
+            throw new RuntimeException(e.toString(), e);
+        }
+    }
+
+    private static int countSearchIndexes() {
+        try (Connection con = Db.db.getConnection();
+             Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM FTL.INDEXES")) {
+            rs.next();
+            return rs.getInt(1);
+        } catch (SQLException e) {
+            throw new RuntimeException(e.toString(), e);
+        }
+    }
+
+}
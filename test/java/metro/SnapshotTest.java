@@ -0,0 +1,109 @@
+package metro;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class SnapshotTest extends BlockchainTest {
+
+    /** Thread reading a snapshot, while the test thread pushes and pops off blocks */
+    private ExecutorService reader;
+
+    @Before
+    public void startReader() {
+        reader = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void stopReader() throws Exception {
+        read(() -> {
+            blockchain.endSnapshot();
+            return null;
+        });
+        reader.shutdown();
+    }
+
+    @Test
+    public void testDisabledByDefault() {
+        Assert.assertFalse(Metro.getBooleanProperty("metro.apiSnapshotReads"));
+    }
+
+    @Test
+    public void testPinnedToCommittedBlock() throws Exception {
+        Block keyBlock = mineBlock();
+        Assert.assertNotNull(keyBlock);
+        sendMoney(ALICE, BOB, 1000);
+        generateBlock();
+        Block pinned = blockchain.getLastBlock();
+        long balance = getBalance(BOB);
+        read(() -> {
+            blockchain.beginSnapshot();
+            return null;
+        });
+        Assert.assertEquals(-1, (int) read(blockchain::getSnapshotHeight));
+
+        sendMoney(ALICE, BOB, 1000);
+        generateBlock();
+        Assert.assertNotNull(mineBlock());
+        Block last = blockchain.getLastBlock();
+        Assert.assertEquals(balance + 1000 * Constants.ONE_MTR, getBalance(BOB));
+
+        Assert.assertTrue(read(blockchain::isSnapshot));
+        Assert.assertEquals(pinned.getHeight(), (int) read(blockchain::getSnapshotHeight));
+        Assert.assertEquals(pinned.getHeight(), (int) read(blockchain::getHeight));
+        Assert.assertEquals(pinned.getId(), (long) read(() -> blockchain.getLastBlock().getId()));
+        Assert.assertTrue(read(() -> blockchain.hasBlock(pinned.getId())));
+        Assert.assertFalse(read(() -> blockchain.hasBlock(last.getId())));
+        Assert.assertEquals(keyBlock.getId(), (long) read(() -> blockchain.getLastKeyBlock().getId()));
+        Assert.assertEquals(balance, (long) read(() -> getBalance(BOB)));
+
+        read(() -> {
+            blockchain.endSnapshot();
+            return null;
+        });
+        Assert.assertFalse(read(blockchain::isSnapshot));
+        Assert.assertEquals(last.getHeight(), (int) read(blockchain::getHeight));
+        Assert.assertEquals(balance + 1000 * Constants.ONE_MTR, (long) read(() -> getBalance(BOB)));
+    }
+
+    @Test
+    public void testNewSnapshot() throws Exception {
+        generateBlock();
+        read(() -> {
+            blockchain.beginSnapshot();
+            return null;
+        });
+        sendMoney(ALICE, BOB, 1000);
+        generateBlock();
+        // a snapshot begun after the block is pinned to it
+        read(() -> {
+            blockchain.endSnapshot();
+            blockchain.beginSnapshot();
+            return null;
+        });
+        Assert.assertEquals(blockchain.getHeight(), (int) read(blockchain::getHeight));
+        Assert.assertEquals(-1, (int) read(blockchain::getSnapshotHeight));
+        Assert.assertEquals(getBalance(BOB), (long) read(() -> getBalance(BOB)));
+    }
+
+    private <T> T read(Callable<T> callable) throws Exception {
+        return reader.submit(callable).get();
+    }
+
+    private static long getBalance(Tester tester) {
+        return Account.getAccount(tester.getFullId()).getBalanceMQT();
+    }
+
+    private static void sendMoney(Tester sender, Tester recipient, long amountMTR) throws MetroException {
+        Transaction transaction = Metro.newTransactionBuilder(sender.getPublicKey(), amountMTR * Constants.ONE_MTR,
+                Constants.ONE_MTR, (short) 1440, Attachment.ORDINARY_PAYMENT)
+                .recipientFullId(recipient.getFullId())
+                .build(sender.getSecretPhrase());
+        Metro.getTransactionProcessor().broadcast(transaction);
+    }
+}
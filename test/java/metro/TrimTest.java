@@ -0,0 +1,166 @@
+package metro;
+
+import metro.db.DbKey;
+import metro.db.DerivedDbTable;
+import metro.db.EntityDbTable;
+import metro.db.ValuesDbTable;
+import metro.db.VersionedEntityDbTable;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import static metro.Consensus.GUARANTEED_BALANCE_KEYBLOCK_CONFIRMATIONS;
+
+public class TrimTest extends BlockchainTest {
+
+    private static final String COPY_SUFFIX = "_trim_test";
+
+    @Test
+    public void testIncrementalTrimSameAsFullTrim() throws Exception {
+        // stop the trimming thread, the test trims the tables itself
+        setTrimming(true);
+        try {
+            trim();
+        } finally {
+            setTrimming(false);
+        }
+    }
+
+    private void trim() throws Exception {
+        // the account table is trimmed once the guaranteed balance height is itself past the first cluster
+        for (int i = 0; i <= 2 * GUARANTEED_BALANCE_KEYBLOCK_CONFIRMATIONS + 2; i++) {
+            sendMoney(ALICE, BOB, 1000);
+            sendMoney(BOB, FORGY, 10);
+            generateBlock();
+            Assert.assertNotNull(mineBlock());
+        }
+        int height = blockchain.getGuaranteedBalanceHeight(blockchain.getHeight());
+        Assert.assertTrue(height > 0);
+
+        BlockchainProcessorImpl blockchainProcessor = BlockchainProcessorImpl.getInstance();
+        List<DerivedDbTable> tables = new ArrayList<>();
+        for (DerivedDbTable table : blockchainProcessor.getDerivedTables()) {
+            if (isMultiversion(table)) {
+                tables.add(table);
+            }
+        }
+        Assert.assertTrue(tables.stream().anyMatch(table -> table.isTrimPending(height)));
+        int rowCount = count("account");
+        try {
+            // the expected rows, from a full trim of copies of the tables
+            for (DerivedDbTable table : tables) {
+                execute("CREATE TABLE " + table + COPY_SUFFIX + " AS SELECT * FROM " + table);
+            }
+            Db.db.beginTransaction();
+            try {
+                for (DerivedDbTable table : tables) {
+                    fullTrim(table, height);
+                }
+                Db.db.commitTransaction();
+            } finally {
+                Db.db.endTransaction();
+            }
+
+            for (DerivedDbTable table : tables) {
+                while (table.isTrimPending(height)) {
+                    Assert.assertTrue(blockchainProcessor.trimIncrementally(table) > 0);
+                }
+                Assert.assertEquals(0, blockchainProcessor.trimIncrementally(table));
+            }
+
+            for (DerivedDbTable table : tables) {
+                Assert.assertEquals(table.toString(), 0, count("(SELECT * FROM " + table + " EXCEPT SELECT * FROM " + table + COPY_SUFFIX + ")"));
+                Assert.assertEquals(table.toString(), 0, count("(SELECT * FROM " + table + COPY_SUFFIX + " EXCEPT SELECT * FROM " + table + ")"));
+            }
+            Assert.assertTrue(count("account") < rowCount);
+        } finally {
+            for (DerivedDbTable table : tables) {
+                execute("DROP TABLE IF EXISTS " + table + COPY_SUFFIX);
+            }
+        }
+
+        // rows superseded afterwards are queued again
+        sendMoney(ALICE, BOB, 1000);
+        generateBlock();
+        Assert.assertNotNull(mineBlock());
+        int newHeight = blockchain.getGuaranteedBalanceHeight(blockchain.getHeight());
+        Assert.assertTrue(newHeight > height);
+        Assert.assertTrue(tables.stream().anyMatch(table -> table.isTrimPending(newHeight)));
+    }
+
+    private static void setTrimming(boolean trimming) throws ReflectiveOperationException {
+        Field field = BlockchainProcessorImpl.class.getDeclaredField("isTrimming");
+        field.setAccessible(true);
+        field.set(BlockchainProcessorImpl.getInstance(), trimming);
+    }
+
+    /**
+     * Trim the copy of a table as {@link DerivedDbTable#trim} does when the superseded rows are not all queued
+     */
+    private static void fullTrim(DerivedDbTable table, int height) throws ReflectiveOperationException {
+        Class<?> tableClass = table instanceof EntityDbTable ? EntityDbTable.class : ValuesDbTable.class;
+        DbKey.Factory<?> dbKeyFactory = (DbKey.Factory<?>) getField(tableClass, table, "dbKeyFactory");
+        int trimHeight = height;
+        int trimStartHeight = 0;
+        if (table instanceof EntityDbTable) {
+            trimHeight = invoke(table, "getTrimHeight", height);
+            trimStartHeight = invoke(table, "getTrimStartHeight");
+        }
+        if (trimHeight > 0) {
+            VersionedEntityDbTable.trim(Db.db, table + COPY_SUFFIX, trimHeight, dbKeyFactory, trimStartHeight);
+        }
+    }
+
+    private static boolean isMultiversion(DerivedDbTable table) throws ReflectiveOperationException {
+        if (table instanceof EntityDbTable) {
+            return (boolean) getField(EntityDbTable.class, table, "multiversion");
+        }
+        if (table instanceof ValuesDbTable) {
+            return (boolean) getField(ValuesDbTable.class, table, "multiversion");
+        }
+        return false;
+    }
+
+    private static Object getField(Class<?> declaringClass, Object object, String name) throws ReflectiveOperationException {
+        Field field = declaringClass.getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(object);
+    }
+
+    private static int invoke(DerivedDbTable table, String name, int... args) throws ReflectiveOperationException {
+        Method method = args.length == 0 ? EntityDbTable.class.getDeclaredMethod(name)
+                : EntityDbTable.class.getDeclaredMethod(name, int.class);
+        method.setAccessible(true);
+        return (int) (args.length == 0 ? method.invoke(table) : method.invoke(table, args[0]));
+    }
+
+    private static void execute(String sql) throws SQLException {
+        try (Connection con = Db.db.getConnection(); Statement stmt = con.createStatement()) {
+            stmt.execute(sql);
+        }
+    }
+
+    private static int count(String table) throws SQLException {
+        try (Connection con = Db.db.getConnection(); Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM " + table)) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    private static void sendMoney(Tester sender, Tester recipient, long amountMTR) throws MetroException {
+        Transaction transaction = Metro.newTransactionBuilder(sender.getPublicKey(), amountMTR * Constants.ONE_MTR,
+                Constants.ONE_MTR, (short) 1440, Attachment.ORDINARY_PAYMENT)
+                .recipientFullId(recipient.getFullId())
+                .build(sender.getSecretPhrase());
+        Metro.getTransactionProcessor().broadcast(transaction);
+    }
+}
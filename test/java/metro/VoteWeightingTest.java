@@ -0,0 +1,145 @@
+package metro;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class VoteWeightingTest extends BlockchainTest {
+
+    private static final long MISSING_ACCOUNT = 0x123456789abcdefL;
+
+    private long assetId;
+    private final List<Integer> heights = new ArrayList<>();
+
+    @Before
+    public void setUp() throws MetroException {
+        Transaction issuance = broadcast(ALICE, 1000 * Constants.ONE_MTR,
+                new Attachment.ColoredCoinsAssetIssuance("weights", "vote weighting test", 1_000_000, (byte) 0), null);
+        generateBlock();
+        assetId = issuance.getId();
+        broadcast(ALICE, Constants.ONE_MTR, new Attachment.ColoredCoinsAssetTransfer(assetId, 1000), BOB);
+        broadcast(ALICE, Constants.ONE_MTR, Attachment.ORDINARY_PAYMENT, BOB);
+        generateBlock();
+        heights.add(blockchain.getHeight());
+        broadcast(ALICE, Constants.ONE_MTR, new Attachment.ColoredCoinsAssetTransfer(assetId, 2000), FORGY);
+        broadcast(BOB, Constants.ONE_MTR, new Attachment.ColoredCoinsAssetTransfer(assetId, 500), FORGY);
+        broadcast(BOB, Constants.ONE_MTR, Attachment.ORDINARY_PAYMENT, ALICE);
+        generateBlock();
+        heights.add(blockchain.getHeight());
+    }
+
+    @Test
+    public void testDuplicateVoters() {
+        checkWeights(new long[] {id(ALICE), id(BOB), id(ALICE), id(FORGY), id(BOB), id(ALICE)}, true);
+    }
+
+    @Test
+    public void testManyVoters() {
+        // more voters than selected with one query, the same accounts in several queries
+        long[] voterIds = new long[2500];
+        Tester[] testers = {ALICE, BOB, FORGY};
+        for (int i = 0; i < voterIds.length; i++) {
+            voterIds[i] = id(testers[i % testers.length]);
+        }
+        checkWeights(voterIds, true);
+        // and in the last query only
+        voterIds[voterIds.length - 1] = MISSING_ACCOUNT;
+        for (int i = 0; i < 2000; i++) {
+            voterIds[i] = id(ALICE);
+        }
+        voterIds[2001] = id(BOB);
+        checkWeights(voterIds, false);
+    }
+
+    @Test
+    public void testMissingAccounts() {
+        long[] voterIds = {MISSING_ACCOUNT, id(ALICE), MISSING_ACCOUNT + 1, id(BOB), MISSING_ACCOUNT};
+        checkWeights(voterIds, false);
+        for (int height : heights) {
+            long[] balances = Account.getBalancesMQT(voterIds, height);
+            Assert.assertEquals(-1, balances[0]);
+            Assert.assertEquals(Account.getAccount(id(ALICE), height).getBalanceMQT(), balances[1]);
+            Assert.assertEquals(-1, balances[2]);
+            Assert.assertEquals(Account.getAccount(id(BOB), height).getBalanceMQT(), balances[3]);
+            Assert.assertEquals(-1, balances[4]);
+
+            balances = Account.getAssetBalancesQNT(voterIds, assetId, height);
+            Assert.assertEquals(0, balances[0]);
+            Assert.assertEquals(Account.getAssetBalanceQNT(id(ALICE), assetId, height), balances[1]);
+            Assert.assertEquals(0, balances[4]);
+        }
+        // the balance models fail for missing accounts as for each voter alone
+        VoteWeighting voteWeighting = new VoteWeighting(VoteWeighting.VotingModel.MQT.getCode(), 0, 0,
+                VoteWeighting.MinBalanceModel.MQT.getCode());
+        try {
+            VoteWeighting.VotingModel.MQT.calcWeights(voteWeighting, voterIds, heights.get(0));
+            Assert.fail("Missing account weighed");
+        } catch (NullPointerException expected) {
+        }
+    }
+
+    @Test
+    public void testNoVoters() {
+        checkWeights(new long[0], true);
+    }
+
+    /**
+     * Compare the weights and balances of all voters at once with those of each voter, at the heights of the changes of
+     * the balances, for the balance based models with and without minimum balance
+     */
+    private void checkWeights(long[] voterIds, boolean accountsExist) {
+        List<VoteWeighting> voteWeightings = new ArrayList<>();
+        for (long minBalance : new long[] {0, 1, 1500, 1_000_000 * Constants.ONE_MTR}) {
+            if (accountsExist) {
+                voteWeightings.add(new VoteWeighting(VoteWeighting.VotingModel.MQT.getCode(), 0, minBalance,
+                        VoteWeighting.MinBalanceModel.MQT.getCode()));
+                voteWeightings.add(new VoteWeighting(VoteWeighting.VotingModel.ACCOUNT.getCode(), 0, minBalance,
+                        VoteWeighting.MinBalanceModel.MQT.getCode()));
+            }
+            voteWeightings.add(new VoteWeighting(VoteWeighting.VotingModel.ASSET.getCode(), assetId, minBalance,
+                    VoteWeighting.MinBalanceModel.ASSET.getCode()));
+            voteWeightings.add(new VoteWeighting(VoteWeighting.VotingModel.ACCOUNT.getCode(), assetId, minBalance,
+                    VoteWeighting.MinBalanceModel.ASSET.getCode()));
+        }
+        voteWeightings.add(new VoteWeighting(VoteWeighting.VotingModel.ACCOUNT.getCode(), 0, 0,
+                VoteWeighting.MinBalanceModel.NONE.getCode()));
+        for (int height : heights) {
+            for (VoteWeighting voteWeighting : voteWeightings) {
+                VoteWeighting.VotingModel votingModel = voteWeighting.getVotingModel();
+                long[] weights = votingModel.calcWeights(voteWeighting, voterIds, height);
+                Assert.assertEquals(voterIds.length, weights.length);
+                for (int i = 0; i < voterIds.length; i++) {
+                    Assert.assertEquals(votingModel + " min balance " + voteWeighting.getMinBalance() + " voter " + i,
+                            votingModel.calcWeight(voteWeighting, voterIds[i], height), weights[i]);
+                }
+                VoteWeighting.MinBalanceModel minBalanceModel = voteWeighting.getMinBalanceModel();
+                if (minBalanceModel == VoteWeighting.MinBalanceModel.NONE) {
+                    continue;
+                }
+                long[] balances = minBalanceModel.getBalances(voteWeighting, voterIds, height);
+                for (int i = 0; i < voterIds.length; i++) {
+                    Assert.assertEquals(minBalanceModel + " voter " + i,
+                            minBalanceModel.getBalance(voteWeighting, voterIds[i], height), balances[i]);
+                }
+            }
+        }
+    }
+
+    private static long id(Tester tester) {
+        return tester.getFullId().getLeft();
+    }
+
+    private static Transaction broadcast(Tester sender, long feeMQT, Attachment attachment, Tester recipient) throws MetroException {
+        Transaction.Builder builder = Metro.newTransactionBuilder(sender.getPublicKey(),
+                attachment == Attachment.ORDINARY_PAYMENT ? 1000 * Constants.ONE_MTR : 0, feeMQT, (short) 1440, attachment);
+        if (recipient != null) {
+            builder.recipientFullId(recipient.getFullId());
+        }
+        Transaction transaction = builder.build(sender.getSecretPhrase());
+        Metro.getTransactionProcessor().broadcast(transaction);
+        return transaction;
+    }
+}
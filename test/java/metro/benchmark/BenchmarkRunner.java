@@ -0,0 +1,259 @@
+package metro.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+/**
+ * Minimal benchmark harness in the spirit of JMH, using only the JDK.
+ * <p>
+ * Each benchmark is run in {@code -f} freshly started JVMs (forks), so that JIT profiles and static state of one
+ * benchmark do not affect another. In each fork the workload is set up once, run for {@code -wi} warmup iterations
+ * and then for {@code -i} measured iterations of {@code -t} milliseconds. The average time per operation of all
+ * measured iterations of all forks is reported with its 99% confidence interval.
+ * <p>
+ * Usage: {@code BenchmarkRunner [-f forks] [-wi warmupIterations] [-i iterations] [-t iterationMillis]
+ * [-jvmArgs "args"] [-l] [regex...]}, with {@code -f 0} running all benchmarks in the current JVM.
+ */
+public final class BenchmarkRunner {
+
+    private static final String RESULT_PREFIX = "#benchmark-iteration ";
+
+    private static volatile int sink;
+
+    private int forks = 2;
+    private int warmupIterations = 5;
+    private int iterations = 10;
+    private long iterationMillis = 1000;
+    private String jvmArgs = "";
+    private boolean list;
+    private String child;
+    private final List<Pattern> filters = new ArrayList<>();
+
+    public static void main(String[] args) throws Exception {
+        BenchmarkRunner runner = new BenchmarkRunner();
+        runner.parse(args);
+        if (runner.child != null) {
+            // the node started by some benchmarks leaves non daemon threads running
+            try {
+                runner.runFork(runner.child);
+            } catch (Throwable t) {
+                t.printStackTrace();
+                System.exit(1);
+            }
+            System.exit(0);
+        }
+        runner.runAll();
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-f":
+                    forks = Integer.parseInt(args[++i]);
+                    break;
+                case "-wi":
+                    warmupIterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-i":
+                    iterations = Integer.parseInt(args[++i]);
+                    break;
+                case "-t":
+                    iterationMillis = Long.parseLong(args[++i]);
+                    break;
+                case "-jvmArgs":
+                    jvmArgs = args[++i];
+                    break;
+                case "-l":
+                    list = true;
+                    break;
+                case "-child":
+                    child = args[++i];
+                    break;
+                default:
+                    filters.add(Pattern.compile(args[i]));
+            }
+        }
+        if (iterations < 1 || iterationMillis < 1) {
+            throw new IllegalArgumentException("At least one measured iteration of at least 1 ms is needed");
+        }
+    }
+
+    private void runAll() throws Exception {
+        List<String> names = new ArrayList<>();
+        for (String name : MetroBenchmarks.BENCHMARKS.keySet()) {
+            if (filters.isEmpty() || filters.stream().anyMatch(filter -> filter.matcher(name).find())) {
+                names.add(name);
+            }
+        }
+        if (list) {
+            names.forEach(System.out::println);
+            return;
+        }
+        List<String> report = new ArrayList<>();
+        report.add(String.format(Locale.ROOT, "%-40s %5s %14s %12s %14s %14s  %s", "Benchmark", "Cnt", "Score", "Error", "Min", "Max", "Units"));
+        for (String name : names) {
+            System.out.println("# Benchmark: " + name);
+            List<Double> samples = new ArrayList<>();
+            try {
+                if (forks == 0) {
+                    samples.addAll(measure(name));
+                } else {
+                    for (int fork = 1; fork <= forks; fork++) {
+                        System.out.println("# Fork: " + fork + " of " + forks);
+                        samples.addAll(fork(name));
+                    }
+                }
+                report.add(new Statistics(samples).format(name));
+            } catch (Exception e) {
+                System.out.println("# " + name + " failed: " + e);
+                report.add(String.format(Locale.ROOT, "%-40s %s", name, "FAILED: " + e.getMessage()));
+            }
+        }
+        System.out.println();
+        report.forEach(System.out::println);
+    }
+
+    private List<Double> fork(String name) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        if (!jvmArgs.trim().isEmpty()) {
+            command.addAll(Arrays.asList(jvmArgs.trim().split("\\s+")));
+        }
+        command.addAll(Arrays.asList("-classpath", System.getProperty("java.class.path"), BenchmarkRunner.class.getName(),
+                "-child", name, "-wi", String.valueOf(warmupIterations), "-i", String.valueOf(iterations),
+                "-t", String.valueOf(iterationMillis)));
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        List<Double> samples = new ArrayList<>();
+        Deque<String> output = new ArrayDeque<>();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.startsWith(RESULT_PREFIX)) {
+                    samples.add(Double.parseDouble(line.substring(RESULT_PREFIX.length())));
+                } else if (line.startsWith("#")) {
+                    System.out.println(line);
+                } else {
+                    output.addLast(line);
+                    if (output.size() > 20) {
+                        output.removeFirst();
+                    }
+                }
+            }
+        }
+        int exitCode = process.waitFor();
+        if (exitCode != 0 || samples.size() != iterations) {
+            output.forEach(System.out::println);
+            throw new IllegalStateException("Fork exited with code " + exitCode + " after " + samples.size() + " iterations");
+        }
+        return samples;
+    }
+
+    private void runFork(String name) throws Exception {
+        for (double sample : measure(name)) {
+            System.out.println(RESULT_PREFIX + sample);
+        }
+        System.out.flush();
+    }
+
+    private List<Double> measure(String name) throws Exception {
+        Callable<Workload> setUp = MetroBenchmarks.BENCHMARKS.get(name);
+        if (setUp == null) {
+            throw new IllegalArgumentException("Unknown benchmark " + name);
+        }
+        Workload workload = setUp.call();
+        for (int i = 1; i <= warmupIterations; i++) {
+            System.out.println(String.format(Locale.ROOT, "# Warmup iteration %d: %.3f ns/op", i, iteration(workload)));
+        }
+        List<Double> samples = new ArrayList<>();
+        for (int i = 1; i <= iterations; i++) {
+            double sample = iteration(workload);
+            System.out.println(String.format(Locale.ROOT, "# Iteration %d: %.3f ns/op", i, sample));
+            samples.add(sample);
+        }
+        return samples;
+    }
+
+    /**
+     * @return average nanoseconds per operation
+     */
+    private double iteration(Workload workload) throws Exception {
+        long deadline = iterationMillis * 1000000;
+        long operations = 0;
+        int hash = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            Object result = workload.run();
+            hash += System.identityHashCode(result);
+            operations++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < deadline);
+        sink += hash;
+        return (double) elapsed / operations;
+    }
+
+    static final class Statistics {
+
+        /** Two-sided 99% quantiles of the Student t distribution for 1 to 9 degrees of freedom */
+        private static final double[] T_99 = {63.657, 9.925, 5.841, 4.604, 4.032, 3.707, 3.499, 3.355, 3.250};
+        private static final double Z_99 = 2.5758293035489;
+
+        private final int count;
+        private final double mean;
+        private final double error;
+        private final double min;
+        private final double max;
+
+        Statistics(List<Double> samples) {
+            count = samples.size();
+            double sum = 0;
+            double minimum = Double.MAX_VALUE;
+            double maximum = 0;
+            for (double sample : samples) {
+                sum += sample;
+                minimum = Math.min(minimum, sample);
+                maximum = Math.max(maximum, sample);
+            }
+            mean = sum / count;
+            min = minimum;
+            max = maximum;
+            if (count > 1) {
+                double squares = 0;
+                for (double sample : samples) {
+                    squares += (sample - mean) * (sample - mean);
+                }
+                error = quantile(count - 1) * Math.sqrt(squares / (count - 1)) / Math.sqrt(count);
+            } else {
+                error = Double.NaN;
+            }
+        }
+
+        /**
+         * Cornish-Fisher expansion of the t quantile, accurate to 0.1% from 10 degrees of freedom on
+         */
+        static double quantile(int degreesOfFreedom) {
+            if (degreesOfFreedom <= T_99.length) {
+                return T_99[degreesOfFreedom - 1];
+            }
+            double z = Z_99;
+            double df = degreesOfFreedom;
+            return z + (z * z * z + z) / (4 * df) + (5 * Math.pow(z, 5) + 16 * z * z * z + 3 * z) / (96 * df * df);
+        }
+
+        String format(String name) {
+            return String.format(Locale.ROOT, "%-40s %5d %14.3f +- %10.3f %14.3f %14.3f  ns/op", name, count, mean, error, min, max);
+        }
+    }
+}
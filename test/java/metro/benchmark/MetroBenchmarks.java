@@ -0,0 +1,233 @@
+package metro.benchmark;
+
+import metro.Account;
+import metro.Attachment;
+import metro.BlockchainProcessorImpl;
+import metro.Metro;
+import metro.Transaction;
+import metro.crypto.Crypto;
+import metro.crypto.HashFunction;
+import metro.crypto.KNV25;
+import metro.util.BitcoinJUtils;
+import metro.util.Convert;
+import metro.util.Time;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONValue;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+/**
+ * Benchmarks run by {@link BenchmarkRunner}, by name. Each entry sets up its state and returns the measured workload.
+ */
+final class MetroBenchmarks {
+
+    private static final String SECRET_PHRASE = "hope peace happen touch easy pretend worthless talk them indeed wheel state";
+    private static final String FORGER_SECRET_PHRASE = "aSykrgKGZNlSVOMDxkZZgbTvQqJPGtsBggb";
+    private static final int BLOCK_TRANSACTIONS = 100;
+
+    static final Map<String, Callable<Workload>> BENCHMARKS;
+
+    static {
+        Map<String, Callable<Workload>> benchmarks = new LinkedHashMap<>();
+        benchmarks.put("hash.KNV25", () -> {
+            byte[] header = randomBytes(128);
+            return () -> KNV25.hash(header);
+        });
+        for (HashFunction hashFunction : HashFunction.values()) {
+            benchmarks.put("hash." + hashFunction.name(), () -> {
+                byte[] header = randomBytes(128);
+                return () -> hashFunction.hash(header);
+            });
+        }
+        benchmarks.put("hash.Keccak25.1KB", () -> {
+            byte[] data = randomBytes(1024);
+            return () -> HashFunction.Keccak25.hash(data);
+        });
+
+        benchmarks.put("crypto.sign", () -> {
+            byte[] message = randomBytes(200);
+            return () -> Crypto.sign(message, SECRET_PHRASE);
+        });
+        benchmarks.put("crypto.verify", () -> {
+            byte[] message = randomBytes(200);
+            byte[] signature = Crypto.sign(message, SECRET_PHRASE);
+            byte[] publicKey = Crypto.getPublicKey(SECRET_PHRASE);
+            return () -> Crypto.verify(signature, message, publicKey);
+        });
+        benchmarks.put("curve25519.keygen", () -> {
+            byte[] keySeed = Crypto.getKeySeed(SECRET_PHRASE);
+            return () -> Crypto.getPublicKey(keySeed);
+        });
+        benchmarks.put("curve25519.curve", () -> {
+            byte[] privateKey = Crypto.getPrivateKey(SECRET_PHRASE);
+            byte[] publicKey = Crypto.getPublicKey(FORGER_SECRET_PHRASE);
+            return () -> {
+                byte[] sharedKey = new byte[32];
+                Crypto.curve(sharedKey, privateKey, publicKey);
+                return sharedKey;
+            };
+        });
+
+        benchmarks.put("transaction.parseJSON", () -> {
+            String json = newPayment(0).getJSONObject().toJSONString();
+            return () -> Metro.newTransactionBuilder((JSONObject) JSONValue.parse(json)).build();
+        });
+        benchmarks.put("transaction.parseBytes", () -> {
+            byte[] bytes = newPayment(0).getBytes();
+            return () -> Metro.newTransactionBuilder(bytes).build();
+        });
+        benchmarks.put("transaction.getBytes", () -> {
+            String json = newPayment(0).getJSONObject().toJSONString();
+            return () -> Metro.newTransactionBuilder((JSONObject) JSONValue.parse(json)).build().getBytes();
+        });
+
+        benchmarks.put("block.parseJSON", () -> {
+            Method parseBlock = parseBlockMethod();
+            String json = newBlockJSON().toJSONString();
+            return () -> parseBlock.invoke(null, JSONValue.parse(json), true, false);
+        });
+        benchmarks.put("block.parseJSON.getBytes", () -> {
+            Method parseBlock = parseBlockMethod();
+            String json = newBlockJSON().toJSONString();
+            return () -> ((metro.Block) parseBlock.invoke(null, JSONValue.parse(json), true, false)).getBytes();
+        });
+
+        benchmarks.put("reedSolomon.encode", () -> {
+            Account.FullId id = Account.FullId.fromPublicKey(Crypto.getPublicKey(SECRET_PHRASE));
+            return () -> Crypto.rsEncode(id);
+        });
+        benchmarks.put("reedSolomon.decode", () -> {
+            String rs = Crypto.rsEncode(Account.FullId.fromPublicKey(Crypto.getPublicKey(SECRET_PHRASE)));
+            return () -> Crypto.rsDecode(rs);
+        });
+
+        benchmarks.put("blockchain.pushBlock", MetroBenchmarks::setUpBlockchain);
+        BENCHMARKS = Collections.unmodifiableMap(benchmarks);
+    }
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static Transaction newPayment(int index) throws Exception {
+        Transaction.Builder builder = Metro.newTransactionBuilder(Crypto.getPublicKey(SECRET_PHRASE), 100000000L + index,
+                100000000L, (short) 1440, Attachment.ORDINARY_PAYMENT)
+                .recipientFullId(Account.FullId.fromPublicKey(Crypto.getPublicKey(FORGER_SECRET_PHRASE)))
+                .timestamp(2330920106L + index)
+                .ecBlockHeight(0)
+                .ecBlockId(0);
+        return builder.build(SECRET_PHRASE);
+    }
+
+    private static Transaction newCoinbase(List<Transaction> transactions) throws Exception {
+        byte[] publicKey = Crypto.getPublicKey(FORGER_SECRET_PHRASE);
+        long fees = transactions.stream().mapToLong(Transaction::getFeeMQT).sum();
+        Account.FullId generatorId = Account.FullId.fromPublicKey(publicKey);
+        return Metro.newTransactionBuilder(publicKey, 0, 0, (short) 1,
+                new Attachment.CoinbaseRecipientsAttachment(Collections.singletonMap(generatorId, fees), null))
+                .recipientFullId(generatorId)
+                .timestamp(2330920107L)
+                .ecBlockHeight(0)
+                .ecBlockId(0)
+                .build();
+    }
+
+    /**
+     * @return unsigned fast block with a coinbase and {@link #BLOCK_TRANSACTIONS} signed payments
+     */
+    @SuppressWarnings("unchecked")
+    private static JSONObject newBlockJSON() throws Exception {
+        List<Transaction> payments = new ArrayList<>();
+        for (int i = 0; i < BLOCK_TRANSACTIONS; i++) {
+            payments.add(newPayment(i));
+        }
+        List<Transaction> blockTransactions = new ArrayList<>();
+        blockTransactions.add(newCoinbase(payments));
+        blockTransactions.addAll(payments);
+        JSONArray transactions = new JSONArray();
+        List<byte[]> txids = new ArrayList<>();
+        int payloadLength = 0;
+        for (Transaction transaction : blockTransactions) {
+            transactions.add(transaction.getJSONObject());
+            txids.add(Convert.parseHexString(transaction.getFullHash()));
+            payloadLength += transaction.getFullSize();
+        }
+        byte[] previousBlockHash = randomBytes(32);
+        JSONObject block = new JSONObject();
+        block.put("version", (long) 3);
+        block.put("timestamp", 2330920108L);
+        block.put("previousBlock", Long.toUnsignedString(Convert.fullHashToId(previousBlockHash)));
+        block.put("previousBlockHash", Convert.toHexString(previousBlockHash));
+        block.put("payloadLength", (long) payloadLength);
+        block.put("generatorPublicKey", Convert.toHexString(Crypto.getPublicKey(FORGER_SECRET_PHRASE)));
+        block.put("generationSequence", Convert.toHexString(randomBytes(32)));
+        List<byte[]> tree = BitcoinJUtils.buildMerkleTree(txids);
+        block.put("txMerkleRoot", Convert.toHexString(tree.get(tree.size() - 1)));
+        block.put("transactions", transactions);
+        return block;
+    }
+
+    private static Method parseBlockMethod() throws Exception {
+        Method parseBlock = Class.forName("metro.BlockImpl").getDeclaredMethod("parseBlock", JSONObject.class, boolean.class, boolean.class);
+        parseBlock.setAccessible(true);
+        return parseBlock;
+    }
+
+    /**
+     * Starts an offline testnet node on a new database in a temporary directory
+     *
+     * @return generating and pushing the next fast block
+     */
+    private static Workload setUpBlockchain() throws Exception {
+        Path dbDir = Files.createTempDirectory("metro-benchmark");
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> delete(dbDir)));
+        Properties properties = new Properties();
+        properties.setProperty("metro.isTestnet", "true");
+        properties.setProperty("metro.isOffline", "true");
+        properties.setProperty("metro.testDbDir", dbDir.resolve("metro").toString());
+        properties.setProperty("metro.shareMyAddress", "false");
+        properties.setProperty("metro.savePeers", "false");
+        properties.setProperty("metro.enableAPIServer", "false");
+        properties.setProperty("metro.disableGenerateBlocksThread", "true");
+        properties.setProperty("metro.disableProcessTransactionsThread", "true");
+        properties.setProperty("metro.enableFakeForging", "true");
+        properties.setProperty("metro.fakeForgingAccounts", "{\"rs\":[\""
+                + Account.FullId.fromPublicKey(Crypto.getPublicKey(FORGER_SECRET_PHRASE)).toRS() + "\"]}");
+        properties.setProperty("metro.timeMultiplier", "1");
+        Metro.init(properties);
+        Method setTime = Metro.class.getDeclaredMethod("setTime", Time.class);
+        setTime.setAccessible(true);
+        setTime.invoke(null, new Time.CounterTime(Metro.getEpochTime()));
+        BlockchainProcessorImpl blockchainProcessor = BlockchainProcessorImpl.getInstance();
+        blockchainProcessor.setGetMoreBlocks(false);
+        Method generateBlock = BlockchainProcessorImpl.class.getDeclaredMethod("generateBlock", String.class, long.class);
+        generateBlock.setAccessible(true);
+        return () -> {
+            generateBlock.invoke(blockchainProcessor, FORGER_SECRET_PHRASE, Metro.getEpochTime());
+            return Metro.getBlockchain().getHeight();
+        };
+    }
+
+    private static void delete(Path path) {
+        try {
+            Files.walk(path).sorted(Collections.reverseOrder()).forEach(file -> file.toFile().delete());
+        } catch (IOException ignore) {}
+    }
+
+    private MetroBenchmarks() {}
+
+}
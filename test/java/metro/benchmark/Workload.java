@@ -0,0 +1,14 @@
+package metro.benchmark;
+
+/**
+ * Operation measured by {@link BenchmarkRunner}
+ */
+@FunctionalInterface
+public interface Workload {
+
+    /**
+     * @return result of the operation, consumed by the runner so that computing it cannot be optimized away
+     */
+    Object run() throws Exception;
+
+}
@@ -1,7 +1,11 @@
 package metro.crypto;
 
+import org.junit.Assert;
 import org.junit.Test;
 
+import java.util.Arrays;
+import java.util.Random;
+
 public class KeccakTest {
 
     private final static char[] hexArray = "0123456789ABCDEF".toCharArray();
@@ -23,6 +27,70 @@ public class KeccakTest {
         System.out.println(bytesToHex(hash1));
     }
 
+    @Test
+    public void testHasherMatchesSha3() {
+        Random random = new Random(3);
+        KNV25.Hasher hasher = HashFunction.SHA3.hasher();
+        for (int length = 0; length < 600; length += 7) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            byte[] expected = Crypto.sha3().digest(data);
+            Assert.assertArrayEquals(expected, HashFunction.SHA3.hash(data));
+            int split = random.nextInt(length + 1);
+            hasher.update(data, 0, split);
+            for (int i = split; i < length; i++) {
+                hasher.update(data, i, 1);
+            }
+            Assert.assertArrayEquals(expected, hasher.digest());
+        }
+    }
+
+    @Test
+    public void testKNV25() {
+        Random random = new Random(25);
+        for (int length = 0; length < 400; length += 8) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            byte[] expected = KNV25.hash(data);
+            Assert.assertArrayEquals(expected, HashFunction.Keccak25.hash(data));
+            Assert.assertArrayEquals(expected, HashFunction.Keccak25.hasher().update(data, 0, length / 3).update(data, length / 3, length - length / 3).digest());
+        }
+        // arbitrary input length is accepted
+        Assert.assertEquals(KNV25.DIGEST_LENGTH, KNV25.hash(new byte[13]).length);
+    }
+
+    @Test
+    public void testSnapshotRestore() {
+        byte[] prefix = new byte[300];
+        new Random(1).nextBytes(prefix);
+        KNV25.Hasher hasher = HashFunction.SHA3.hasher();
+        KNV25.Hasher snapshot = hasher.update(prefix).snapshot();
+        byte[] out = new byte[40];
+        for (byte suffix = 0; suffix < 5; suffix++) {
+            hasher.restore(snapshot).update(new byte[]{suffix}, 0, 1).digestInto(out, 8);
+            byte[] message = Arrays.copyOf(prefix, prefix.length + 1);
+            message[prefix.length] = suffix;
+            Assert.assertArrayEquals(Crypto.sha3().digest(message), Arrays.copyOfRange(out, 8, 40));
+        }
+    }
+
+    @Test
+    public void testHasherReused() {
+        KNV25.Hasher hasher = HashFunction.SHA3.hasher().update(new byte[100]);
+        Assert.assertSame(hasher, HashFunction.SHA3.hasher());
+        Assert.assertArrayEquals(Crypto.sha3().digest(new byte[0]), hasher.digest());
+        Assert.assertNotSame(hasher, HashFunction.Keccak25.hasher());
+        // hash() does not disturb a hasher in use
+        hasher.update(new byte[] {1});
+        HashFunction.SHA3.hash(new byte[] {2});
+        Assert.assertArrayEquals(Crypto.sha3().digest(new byte[] {1}), hasher.digest());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRestoreRoundsMismatch() {
+        HashFunction.SHA3.hasher().restore(HashFunction.Keccak25.hasher());
+    }
+
     public static String bytesToHex(byte[] bytes) {
         char[] hexChars = new char[bytes.length * 2];
         for ( int j = 0; j < bytes.length; j++ ) {
@@ -0,0 +1,158 @@
+package metro.daemon;
+
+import metro.Block;
+import metro.BlockImpl;
+import metro.BlockchainTest;
+import metro.Consensus;
+import metro.Metro;
+import metro.MetroException;
+import metro.TransactionImpl;
+import metro.util.Convert;
+import metro.util.Time;
+import org.apache.commons.lang3.ArrayUtils;
+import org.json.simple.JSONArray;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static metro.Consensus.HASH_FUNCTION;
+
+public class StratumJobTest extends BlockchainTest {
+
+    private static final int HEADER_SIZE = BlockImpl.getHeaderSize(true, false);
+
+    @Before
+    public void setUp() throws MetroException {
+        // the previous key block id is part of the Stratum header
+        Assert.assertNotNull(mineBlock());
+        setTime(new Time.ConstantTime(Metro.getEpochTime()));
+    }
+
+    @After
+    public void restoreTime() {
+        setTime(new Time.CounterTime(Metro.getEpochTime()));
+    }
+
+    @Test
+    public void testCoinbaseOnly() throws MetroException {
+        checkJob(0);
+    }
+
+    @Test
+    public void testMerkleBranch() throws MetroException {
+        for (int count = 1; count <= 5; count++) {
+            checkJob(count);
+        }
+    }
+
+    private void checkJob(int transactionCount) throws MetroException {
+        List<TransactionImpl> transactions = getTransactions(transactionCount);
+        StratumJob job = new StratumJob("1", prepareTemplate(transactions, 0L));
+        Assert.assertEquals(countLevels(transactionCount + 1), ((JSONArray) job.getNotifyParams(true).get(4)).size());
+
+        for (long coinbaseNonce : new long[] {0L, 1L, 0x0102030405060708L, -1L}) {
+            BlockImpl expected = prepareTemplate(transactions, coinbaseNonce);
+            byte[] extranonce = ByteBuffer.allocate(StratumJob.EXTRANONCE_SIZE).order(ByteOrder.LITTLE_ENDIAN).putLong(coinbaseNonce).array();
+
+            List<TransactionImpl> jobTransactions = job.getTransactions(extranonce);
+            Assert.assertEquals(expected.getTransactions().size(), jobTransactions.size());
+            for (int i = 0; i < jobTransactions.size(); i++) {
+                Assert.assertArrayEquals(expected.getTransactions().get(i).getBytes(), jobTransactions.get(i).getBytes());
+            }
+
+            byte[] coinbaseHash = minerCoinbaseHash(job, extranonce);
+            Assert.assertArrayEquals(expected.getTransactions().get(0).fullHash(), coinbaseHash);
+
+            byte[] time = Arrays.copyOfRange(expected.getBytes(), HEADER_SIZE - 16, HEADER_SIZE - 8);
+            byte[] nonce = Arrays.copyOfRange(expected.getBytes(), HEADER_SIZE - 4, HEADER_SIZE);
+            byte[] header = job.getHeader(coinbaseHash, time, nonce);
+            Assert.assertArrayEquals(expected.getBytes(), header);
+            Assert.assertArrayEquals(header, minerHeader(job, coinbaseHash, time, nonce));
+
+            Block composed = Metro.getBlockchainProcessor().composeKeyBlock(header, jobTransactions);
+            Assert.assertArrayEquals(expected.getTxMerkleRoot(), composed.getTxMerkleRoot());
+            Assert.assertArrayEquals(expected.getBytes(), composed.getBytes());
+        }
+    }
+
+    /**
+     * Coinbases of other templates, any transactions with distinct hashes make up the merkle tree
+     */
+    private static List<TransactionImpl> getTransactions(int count) {
+        List<TransactionImpl> transactions = new ArrayList<>();
+        transactions.add(null);
+        for (int i = 0; i < count; i++) {
+            transactions.add(Metro.getBlockchainProcessor().prepareKeyBlockTemplate(null, 1000L + i).getTransactions().get(0));
+        }
+        return transactions;
+    }
+
+    private static int countLevels(int leaves) {
+        int levels = 0;
+        for (int size = leaves; size > 1; size = (size + 1) / 2) {
+            levels++;
+        }
+        return levels;
+    }
+
+    /**
+     * Template of {@link metro.BlockchainProcessor#prepareKeyBlockTemplate} with the header in the Stratum layout, the test
+     * chain is below the height of {@link Consensus#STRATUM_COMPATIBILITY_BLOCK}
+     */
+    private static BlockImpl prepareTemplate(List<TransactionImpl> transactions, long coinbaseNonce) {
+        BlockImpl template = Metro.getBlockchainProcessor().prepareKeyBlockTemplate(transactions.size() > 1 ? transactions : null, coinbaseNonce);
+        ByteBuffer buffer = ByteBuffer.wrap(template.getBytes());
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.getShort();
+        long timestamp = buffer.getLong();
+        byte[] txMerkleRoot = new byte[32];
+        buffer.get(txMerkleRoot);
+        long previousBlockId = buffer.getLong();
+        long previousKeyBlockId = buffer.getLong();
+        byte[] forgersMerkleRoot = new byte[32];
+        buffer.get(forgersMerkleRoot);
+        int bits = buffer.getInt();
+        int nonce = buffer.getInt();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putShort(Consensus.STRATUM_COMPATIBILITY_BLOCK);
+        header.putLong(previousBlockId);
+        header.putLong(previousKeyBlockId);
+        header.put(txMerkleRoot);
+        header.put(forgersMerkleRoot);
+        header.putLong(timestamp);
+        header.putInt(bits);
+        header.putInt(nonce);
+        return (BlockImpl) Metro.getBlockchainProcessor().composeKeyBlock(header.array(), template.getTransactions());
+    }
+
+    /**
+     * Coinbase hash as computed by a miner from mining.notify
+     */
+    private static byte[] minerCoinbaseHash(StratumJob job, byte[] extranonce) {
+        JSONArray params = job.getNotifyParams(true);
+        byte[] coinbase = Convert.parseHexString((String) params.get(2) + Convert.toHexString(extranonce) + params.get(3));
+        return HASH_FUNCTION.hash(coinbase);
+    }
+
+    /**
+     * Header as assembled by a miner from mining.notify
+     */
+    private static byte[] minerHeader(StratumJob job, byte[] coinbaseHash, byte[] time, byte[] nonce) {
+        JSONArray params = job.getNotifyParams(true);
+        byte[] merkleRoot = coinbaseHash;
+        for (Object hash : (JSONArray) params.get(4)) {
+            merkleRoot = HASH_FUNCTION.hash(ArrayUtils.addAll(merkleRoot, Convert.parseHexString((String) hash)));
+        }
+        return Convert.parseHexString(params.get(5) + (String) params.get(1) + Convert.toHexString(merkleRoot)
+                + params.get(9) + Convert.toHexString(time) + params.get(6) + Convert.toHexString(nonce));
+    }
+}
@@ -0,0 +1,134 @@
+package metro.db;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+public class FilteredConnectionTest {
+
+    private static final String QUERY = "SELECT id FROM test WHERE id >= ? ORDER BY id";
+
+    /** Statements prepared on the database connection */
+    private final List<PreparedStatement> prepared = new ArrayList<>();
+
+    private final FilteredFactory factory = new FilteredFactory() {
+        @Override
+        public Statement createStatement(Statement stmt) {
+            return stmt;
+        }
+
+        @Override
+        public PreparedStatement createPreparedStatement(PreparedStatement stmt, String sql) {
+            prepared.add(stmt);
+            return stmt;
+        }
+    };
+
+    private Connection dbConnection;
+
+    @Before
+    public void setUp() throws SQLException {
+        dbConnection = DriverManager.getConnection("jdbc:h2:mem:filteredConnectionTest", "sa", "sa");
+        try (Statement stmt = dbConnection.createStatement()) {
+            stmt.executeUpdate("CREATE TABLE test (id INT)");
+            stmt.executeUpdate("INSERT INTO test VALUES (1), (2), (3)");
+        }
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        dbConnection.close();
+    }
+
+    @Test
+    public void testReusesClosedStatement() throws SQLException {
+        FilteredConnection con = new FilteredConnection(dbConnection, factory, 10);
+        for (int i = 1; i <= 3; i++) {
+            try (PreparedStatement pstmt = con.prepareStatement(QUERY)) {
+                pstmt.setInt(1, i);
+                Assert.assertEquals(4 - i, count(pstmt));
+            }
+        }
+        Assert.assertEquals(1, prepared.size());
+        con.close();
+        Assert.assertTrue(prepared.get(0).isClosed());
+    }
+
+    @Test
+    public void testCloseTwice() throws SQLException {
+        FilteredConnection con = new FilteredConnection(dbConnection, factory, 10);
+        PreparedStatement pstmt = con.prepareStatement(QUERY);
+        pstmt.setInt(1, 1);
+        Assert.assertEquals(3, count(pstmt));
+        pstmt.close();
+        pstmt.close();
+        Assert.assertTrue(pstmt.isClosed());
+        Assert.assertFalse(prepared.get(0).isClosed());
+        PreparedStatement reused = con.prepareStatement(QUERY);
+        reused.setInt(1, 2);
+        ResultSet rs = reused.executeQuery();
+        // a late close of the previous use must not affect the statement in use again
+        pstmt.close();
+        Assert.assertTrue(rs.next());
+        Assert.assertEquals(2, rs.getInt(1));
+        reused.close();
+        Assert.assertEquals(1, prepared.size());
+        con.close();
+    }
+
+    @Test
+    public void testNestedUse() throws SQLException {
+        FilteredConnection con = new FilteredConnection(dbConnection, factory, 10);
+        PreparedStatement outer = con.prepareStatement(QUERY);
+        outer.setInt(1, 1);
+        ResultSet rs = outer.executeQuery();
+        int rows = 0;
+        while (rs.next()) {
+            try (PreparedStatement inner = con.prepareStatement(QUERY)) {
+                inner.setInt(1, rs.getInt(1));
+                Assert.assertEquals(3 - rows, count(inner));
+            }
+            rows++;
+        }
+        Assert.assertEquals(3, rows);
+        outer.close();
+        Assert.assertEquals(2, prepared.size());
+        // the outer statement is closed as the inner one was cached meanwhile
+        Assert.assertTrue(prepared.get(0).isClosed());
+        Assert.assertFalse(prepared.get(1).isClosed());
+        con.close();
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws SQLException {
+        FilteredConnection con = new FilteredConnection(dbConnection, factory, 2);
+        for (int i = 1; i <= 3; i++) {
+            con.prepareStatement("SELECT " + i).close();
+        }
+        Assert.assertTrue(prepared.get(0).isClosed());
+        Assert.assertFalse(prepared.get(1).isClosed());
+        Assert.assertFalse(prepared.get(2).isClosed());
+        con.close();
+    }
+
+    private static int count(PreparedStatement pstmt) throws SQLException {
+        int count = 0;
+        try (ResultSet rs = pstmt.executeQuery()) {
+            while (rs.next()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
@@ -0,0 +1,163 @@
+package metro.db;
+
+import metro.BlockchainTest;
+import metro.Db;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class FullTextTriggerTest extends BlockchainTest {
+
+    private static final String TABLE = "SEARCH_TEST";
+    private static final String OTHER_TABLE = "SEARCH_TEST_2";
+    private static final int ROWS = 20000;
+    private static final long TIMEOUT = 30000;
+
+    @Before
+    public void createTables() throws SQLException {
+        try (Connection con = Db.db.getConnection(); Statement stmt = con.createStatement()) {
+            for (String table : new String[] {TABLE, OTHER_TABLE}) {
+                stmt.execute("CREATE TABLE " + table + " (db_id IDENTITY, name VARCHAR(100) NOT NULL)");
+                try (PreparedStatement pstmt = con.prepareStatement("INSERT INTO " + table + " (name) VALUES (?)")) {
+                    for (int i = 1; i <= ROWS; i++) {
+                        pstmt.setString(1, "row" + i + " common");
+                        pstmt.addBatch();
+                    }
+                    pstmt.executeBatch();
+                }
+                FullTextTrigger.createIndex(con, "PUBLIC", table, "NAME");
+            }
+        }
+    }
+
+    @After
+    public void dropTables() throws SQLException {
+        try (Connection con = Db.db.getConnection(); Statement stmt = con.createStatement()) {
+            for (String table : new String[] {TABLE, OTHER_TABLE}) {
+                FullTextTrigger.dropIndex(con, "PUBLIC", table);
+                stmt.execute("DROP TABLE IF EXISTS " + table);
+            }
+        }
+    }
+
+    @Test
+    public void testCreateIndex() throws Exception {
+        Assert.assertEquals(1, search(TABLE, "row1").size());
+        Assert.assertEquals(1, search(OTHER_TABLE, "row" + ROWS).size());
+        Assert.assertEquals(ROWS, search(TABLE, "common").size());
+    }
+
+    @Test
+    public void testChangesDuringRebuild() throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread rebuild = new Thread(() -> {
+            try (Connection con = Db.db.getConnection()) {
+                FullTextTrigger.reindex(con);
+            } catch (Throwable t) {
+                failure.set(t);
+            }
+        });
+        List<Long> added = new ArrayList<>();
+        int changes = 0;
+        rebuild.start();
+        do {
+            changes++;
+            Db.db.beginTransaction();
+            try {
+                Connection con = Db.db.getConnection();
+                try (Statement stmt = con.createStatement()) {
+                    stmt.executeUpdate("UPDATE " + TABLE + " SET name = 'changed" + changes + "' WHERE db_id = " + changes);
+                    stmt.executeUpdate("DELETE FROM " + TABLE + " WHERE db_id = " + (ROWS - changes + 1));
+                    stmt.executeUpdate("INSERT INTO " + TABLE + " (name) VALUES ('added" + changes + "')");
+                }
+                try (Statement stmt = con.createStatement();
+                     ResultSet rs = stmt.executeQuery("SELECT MAX(db_id) FROM " + TABLE)) {
+                    rs.next();
+                    added.add(rs.getLong(1));
+                }
+                Db.db.commitTransaction();
+            } finally {
+                Db.db.endTransaction();
+            }
+        } while (rebuild.isAlive() && changes < ROWS / 2);
+        rebuild.join();
+        Assert.assertNull(failure.get());
+        awaitIndexed(TABLE);
+
+        for (int i = 1; i <= changes; i++) {
+            Assert.assertEquals("change " + i, list((long) i), search(TABLE, "changed" + i));
+            Assert.assertEquals("change " + i, list(), search(TABLE, "row" + i));
+            Assert.assertEquals("change " + i, list(), search(TABLE, "row" + (ROWS - i + 1)));
+            Assert.assertEquals("change " + i, list(added.get(i - 1)), search(TABLE, "added" + i));
+        }
+        Assert.assertEquals(ROWS - 2 * changes, search(TABLE, "common").size());
+        Assert.assertEquals(ROWS, search(OTHER_TABLE, "common").size());
+    }
+
+    @Test
+    public void testDropIndex() throws Exception {
+        try (Connection con = Db.db.getConnection()) {
+            FullTextTrigger.dropIndex(con, "PUBLIC", TABLE);
+        }
+        Assert.assertEquals(list(), search(TABLE, "common"));
+        Assert.assertEquals(ROWS, search(OTHER_TABLE, "common").size());
+        // rows of the table are no longer indexed
+        try (Connection con = Db.db.getConnection(); Statement stmt = con.createStatement()) {
+            stmt.executeUpdate("INSERT INTO " + TABLE + " (name) VALUES ('dropped')");
+        }
+        awaitIndexed(OTHER_TABLE);
+        Assert.assertEquals(list(), search(TABLE, "dropped"));
+        Assert.assertEquals(ROWS, search(OTHER_TABLE, "common").size());
+    }
+
+    /**
+     * Wait until the changes committed so far are indexed, the changes are indexed in the order they are committed
+     */
+    private static void awaitIndexed(String table) throws SQLException, InterruptedException {
+        long markerId;
+        try (Connection con = Db.db.getConnection(); Statement stmt = con.createStatement()) {
+            stmt.executeUpdate("INSERT INTO " + table + " (name) VALUES ('marker')");
+            try (ResultSet rs = stmt.executeQuery("SELECT MAX(db_id) FROM " + table)) {
+                rs.next();
+                markerId = rs.getLong(1);
+            }
+        }
+        long start = System.currentTimeMillis();
+        while (!search(table, "marker").equals(list(markerId))) {
+            Assert.assertTrue("Changes not indexed", System.currentTimeMillis() - start < TIMEOUT);
+            Thread.sleep(10);
+        }
+        try (Connection con = Db.db.getConnection(); Statement stmt = con.createStatement()) {
+            stmt.executeUpdate("DELETE FROM " + table + " WHERE db_id = " + markerId);
+        }
+    }
+
+    private static List<Long> search(String table, String query) throws SQLException {
+        List<Long> ids = new ArrayList<>();
+        try (Connection con = Db.db.getConnection();
+             ResultSet rs = FullTextTrigger.search(con, "PUBLIC", table, query, 2 * ROWS, 0)) {
+            while (rs.next()) {
+                ids.add((Long) ((Object[]) rs.getObject("KEYS"))[0]);
+            }
+        }
+        return ids;
+    }
+
+    private static List<Long> list(Long... ids) {
+        List<Long> list = new ArrayList<>();
+        for (Long id : ids) {
+            list.add(id);
+        }
+        return list;
+    }
+}
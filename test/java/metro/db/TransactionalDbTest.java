@@ -0,0 +1,174 @@
+package metro.db;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+public class TransactionalDbTest {
+
+    private static final String SELECT = "SELECT value FROM test WHERE id = ?";
+
+    private static final DbKey.LongKeyFactory<Object> keyFactory = new DbKey.LongKeyFactory<Object>("id") {
+        @Override
+        public DbKey newKey(Object o) {
+            throw new UnsupportedOperationException();
+        }
+    };
+
+    private static TransactionalDb db;
+
+    @BeforeClass
+    public static void init() {
+        db = new TransactionalDb(new BasicDb.DbProperties()
+                .dbUrl("jdbc:h2:mem:transactionalDbTest")
+                .dbUsername("sa")
+                .dbPassword("sa")
+                .maxConnections(4)
+                .loginTimeout(10)
+                .defaultLockTimeout(1000)
+                .maxMemoryRows(1000)
+                .statementCacheSize(10));
+        db.init(new DbVersion() {
+            @Override
+            protected void update(int nextUpdate) {
+                if (nextUpdate == 1) {
+                    apply("CREATE TABLE test (id BIGINT NOT NULL PRIMARY KEY, value INT NOT NULL)");
+                }
+            }
+        });
+    }
+
+    @AfterClass
+    public static void shutdown() {
+        db.shutdown();
+    }
+
+    @After
+    public void tearDown() throws SQLException {
+        if (db.isInTransaction()) {
+            db.rollbackTransaction();
+            db.endTransaction();
+        }
+        try (Connection con = db.getConnection(); Statement stmt = con.createStatement()) {
+            stmt.executeUpdate("DELETE FROM test");
+        }
+    }
+
+    @Test
+    public void testStatementPreparedBeforeWrite() throws SQLException {
+        Connection con = db.beginTransaction();
+        try (PreparedStatement pstmt = con.prepareStatement(SELECT)) {
+            write(1, 10);
+            Assert.assertEquals(10, read(pstmt, 1));
+            write(1, 11);
+            Assert.assertEquals(11, read(pstmt, 1));
+        }
+    }
+
+    @Test
+    public void testStatementCreatedBeforeWrite() throws SQLException {
+        Connection con = db.beginTransaction();
+        try (Statement stmt = con.createStatement()) {
+            write(1, 10);
+            try (ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM test")) {
+                rs.next();
+                Assert.assertEquals(1, rs.getInt(1));
+            }
+        }
+    }
+
+    @Test
+    public void testWritesInOrder() throws SQLException {
+        db.beginTransaction();
+        // insert then update of the same key, the update must not be executed before the insert
+        write(1, 10);
+        update(1, 20);
+        write(2, 30);
+        update(2, 40);
+        update(1, 50);
+        Assert.assertEquals(50, read(1));
+        Assert.assertEquals(40, read(2));
+    }
+
+    @Test
+    public void testUnrelatedStatementDoesNotSeeOtherTable() throws SQLException {
+        Connection con = db.beginTransaction();
+        write(1, 10);
+        try (PreparedStatement pstmt = con.prepareStatement("SELECT next_update FROM version");
+             ResultSet rs = pstmt.executeQuery()) {
+            Assert.assertTrue(rs.next());
+        }
+        // the write is still visible to statements on its table
+        Assert.assertEquals(10, read(1));
+    }
+
+    @Test
+    public void testCommit() throws SQLException {
+        db.beginTransaction();
+        for (int i = 1; i <= 1500; i++) {
+            write(i, i);
+        }
+        db.commitTransaction();
+        db.endTransaction();
+        try (Connection con = db.getConnection(); Statement stmt = con.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*), SUM(value) FROM test")) {
+            rs.next();
+            Assert.assertEquals(1500, rs.getInt(1));
+            Assert.assertEquals(1500 * 1501 / 2, rs.getInt(2));
+        }
+    }
+
+    @Test
+    public void testRollback() throws SQLException {
+        db.beginTransaction();
+        write(1, 10);
+        db.rollbackTransaction();
+        db.endTransaction();
+        try (Connection con = db.getConnection(); PreparedStatement pstmt = con.prepareStatement(SELECT)) {
+            pstmt.setLong(1, 1);
+            try (ResultSet rs = pstmt.executeQuery()) {
+                Assert.assertFalse(rs.next());
+            }
+        }
+    }
+
+    private static void write(long id, int value) throws SQLException {
+        try (Connection con = db.getBatchConnection("test", keyFactory.newKey(id));
+             PreparedStatement pstmt = con.prepareStatement("MERGE INTO test (id, value) KEY (id) VALUES (?, ?)")) {
+            pstmt.setLong(1, id);
+            pstmt.setInt(2, value);
+            pstmt.executeUpdate();
+        }
+    }
+
+    private static void update(long id, int value) throws SQLException {
+        try (Connection con = db.getBatchConnection("test", keyFactory.newKey(id));
+             PreparedStatement pstmt = con.prepareStatement("UPDATE test SET value = ? WHERE id = ?")) {
+            pstmt.setInt(1, value);
+            pstmt.setLong(2, id);
+            pstmt.executeUpdate();
+        }
+    }
+
+    private static int read(long id) throws SQLException {
+        try (Connection con = db.getConnection(); PreparedStatement pstmt = con.prepareStatement(SELECT)) {
+            return read(pstmt, id);
+        }
+    }
+
+    private static int read(PreparedStatement pstmt, long id) throws SQLException {
+        pstmt.setLong(1, id);
+        try (ResultSet rs = pstmt.executeQuery()) {
+            Assert.assertTrue(rs.next());
+            return rs.getInt(1);
+        }
+    }
+}
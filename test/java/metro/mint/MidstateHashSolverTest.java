@@ -0,0 +1,81 @@
+package metro.mint;
+
+import metro.crypto.HashFunction;
+import org.apache.commons.lang3.ArrayUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+public class MidstateHashSolverTest {
+
+    private final Random random = new Random(25);
+
+    @Test
+    public void testKeyBlockHeader() {
+        // key block header without nonce
+        assertSameDigest(HashFunction.SHA3, 94);
+    }
+
+    @Test
+    public void testMultipleBlocks() {
+        for (int length : new int[]{0, 1, 7, 130, 131, 200, 400}) {
+            assertSameDigest(HashFunction.SHA3, length);
+        }
+    }
+
+    @Test
+    public void testKeccak25() {
+        assertSameDigest(HashFunction.Keccak25, 92);
+        assertSameDigest(HashFunction.Keccak25, 300);
+    }
+
+    @Test
+    public void testNotSupported() {
+        Assert.assertFalse(MidstateHashSolver.isSupported(HashFunction.SHA256, 94));
+        // nonce straddles the rate block boundary
+        Assert.assertFalse(MidstateHashSolver.isSupported(HashFunction.SHA3, 134));
+        Assert.assertFalse(MidstateHashSolver.isSupported(HashFunction.SHA3, 132));
+    }
+
+    @Test
+    public void testTarget() {
+        byte[] data = randomBytes(94);
+        byte[] target = new byte[32];
+        target[3] = (byte) 0xff;
+        target[4] = (byte) 0xfe;
+        MidstateHashSolver solver = new MidstateHashSolver(HashFunction.SHA3, data, 0, target, 1);
+        BigInteger targetValue = new BigInteger(1, target);
+        for (int nonce = 0; nonce < 200000; nonce++) {
+            byte[] hash = HashFunction.SHA3.hash(withNonce(data, nonce));
+            ArrayUtils.reverse(hash);
+            Assert.assertEquals(new BigInteger(1, hash).compareTo(targetValue) < 0, solver.meetsTarget(nonce));
+        }
+    }
+
+    private void assertSameDigest(HashFunction hashFunction, int length) {
+        byte[] data = randomBytes(length);
+        MidstateHashSolver solver = new MidstateHashSolver(hashFunction, data, 0, new byte[32], 1);
+        for (int nonce : new int[]{0, 1, -1, 0x7f00ff01, random.nextInt()}) {
+            Assert.assertArrayEquals("length " + length + " nonce " + nonce,
+                    hashFunction.hash(withNonce(data, nonce)), solver.digest(nonce));
+        }
+    }
+
+    private byte[] randomBytes(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static byte[] withNonce(byte[] data, int nonce) {
+        ByteBuffer buffer = ByteBuffer.wrap(Arrays.copyOf(data, data.length + CpuMiner.NONCE_BYTE_SIZE));
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(data.length, nonce);
+        return buffer.array();
+    }
+}
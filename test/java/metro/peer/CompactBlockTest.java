@@ -0,0 +1,173 @@
+package metro.peer;
+
+import metro.Attachment;
+import metro.Block;
+import metro.BlockchainTest;
+import metro.Constants;
+import metro.Metro;
+import metro.MetroException;
+import metro.Tester;
+import metro.Transaction;
+import metro.TransactionImpl;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+import org.json.simple.JSONValue;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class CompactBlockTest extends BlockchainTest {
+
+    /** Transaction ids requested from the peer */
+    private final List<List<Long>> requests = new ArrayList<>();
+    /** Transactions the peer returns, or null if it does not respond */
+    private List<Transaction> peerTransactions;
+    private Peer peer;
+
+    @Before
+    public void setUp() {
+        requests.clear();
+        peerTransactions = Collections.emptyList();
+        peer = (Peer) Proxy.newProxyInstance(Peer.class.getClassLoader(), new Class<?>[] {Peer.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "send":
+                            return send((JSONStreamAware) args[0]);
+                        case "getHost":
+                            return "127.0.0.1";
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    @Test
+    public void testGetTransactions() throws MetroException {
+        Transaction confirmed = sendMoney(ALICE, BOB, 1000);
+        generateBlock();
+        Transaction unconfirmed = sendMoney(BOB, CHUCK, 10);
+        JSONObject response = getCompactBlockTransactions(Long.toUnsignedString(confirmed.getId()),
+                Long.toUnsignedString(unconfirmed.getId()), "1");
+        Assert.assertNull(response.get("error"));
+        Assert.assertEquals(2, ((JSONArray) response.get("transactionBytes")).size());
+    }
+
+    @Test
+    public void testInvalidTransactionIds() {
+        Assert.assertNotNull(getCompactBlockTransactions("abc").get("error"));
+        Assert.assertNotNull(getCompactBlockTransactions("-1").get("error"));
+        Assert.assertNotNull(getCompactBlockTransactions("18446744073709551616").get("error"));
+        Assert.assertNotNull(getCompactBlockTransactions(1L).get("error"));
+        Assert.assertNotNull(getCompactBlockTransactions((Object) null).get("error"));
+    }
+
+    @Test
+    public void testMissingTransactions() throws MetroException {
+        Transaction pooled = sendMoney(ALICE, BOB, 1000);
+        Transaction missing = sendMoney(BOB, CHUCK, 10);
+        Block block = popOffNextBlock();
+        Metro.getTransactionProcessor().broadcast(pooled);
+        peerTransactions = Arrays.asList(pooled, missing);
+
+        Metro.getBlockchainProcessor().processPeerBlock(block.getCompactJSONObject(), peer);
+        Assert.assertEquals(block.getId(), blockchain.getLastBlock().getId());
+        Assert.assertEquals(Collections.singletonList(Collections.singletonList(missing.getId())), requests);
+    }
+
+    @Test
+    public void testPeerWithoutTransactions() throws MetroException {
+        Transaction missing = sendMoney(ALICE, BOB, 1000);
+        Block block = popOffNextBlock();
+        int height = blockchain.getHeight();
+
+        peerTransactions = null;
+        Metro.getBlockchainProcessor().processPeerBlock(block.getCompactJSONObject(), peer);
+        Assert.assertEquals(height, blockchain.getHeight());
+
+        // the peer returns other transactions only
+        peerTransactions = Collections.singletonList(sendMoney(BOB, CHUCK, 10));
+        Metro.getBlockchainProcessor().processPeerBlock(block.getCompactJSONObject(), peer);
+        Assert.assertEquals(height, blockchain.getHeight());
+        Assert.assertEquals(2, requests.size());
+        Assert.assertEquals(Collections.singletonList(missing.getId()), requests.get(1));
+    }
+
+    @Test
+    public void testIgnoredBlock() throws MetroException {
+        sendMoney(ALICE, BOB, 1000);
+        Block block = popOffNextBlock();
+        generateBlock();
+        generateBlock();
+        long lastBlockId = blockchain.getLastBlock().getId();
+
+        // a block which neither continues the blockchain nor replaces the last block is not worth a request
+        Metro.getBlockchainProcessor().processPeerBlock(block.getCompactJSONObject(), peer);
+        Assert.assertEquals(lastBlockId, blockchain.getLastBlock().getId());
+        Assert.assertEquals(Collections.emptyList(), requests);
+    }
+
+    /**
+     * Generate a block, pop it off and clear the unconfirmed pool, its transactions are then missing
+     */
+    private static Block popOffNextBlock() {
+        generateBlock();
+        Block block = blockchain.getLastBlock();
+        Assert.assertFalse(block.isKeyBlock());
+        blockchainProcessor.popOffTo(block.getHeight() - 1);
+        Metro.getTransactionProcessor().clearUnconfirmedTransactions();
+        return block;
+    }
+
+    private JSONObject send(JSONStreamAware request) {
+        JSONObject json = parse(request);
+        Assert.assertEquals("getCompactBlockTransactions", json.get("requestType"));
+        List<Long> ids = new ArrayList<>();
+        for (Object id : (JSONArray) json.get("transactionIds")) {
+            ids.add(Long.parseUnsignedLong((String) id));
+        }
+        requests.add(ids);
+        if (peerTransactions == null) {
+            return null;
+        }
+        JSONObject response = new JSONObject();
+        TransactionImpl.putTransactionBytes(response, peerTransactions);
+        return parse(response);
+    }
+
+    private static JSONObject getCompactBlockTransactions(Object... transactionIds) {
+        JSONObject request = new JSONObject();
+        JSONArray ids = new JSONArray();
+        ids.addAll(Arrays.asList(transactionIds));
+        request.put("transactionIds", ids);
+        return parse(GetCompactBlockTransactions.instance.processRequest(request, null));
+    }
+
+    private static JSONObject parse(JSONStreamAware json) {
+        StringWriter writer = new StringWriter();
+        try {
+            json.writeJSONString(writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return (JSONObject) JSONValue.parse(writer.toString());
+    }
+
+    private static Transaction sendMoney(Tester sender, Tester recipient, long amountMTR) throws MetroException {
+        Transaction transaction = Metro.newTransactionBuilder(sender.getPublicKey(), amountMTR * Constants.ONE_MTR,
+                Constants.ONE_MTR, (short) 1440, Attachment.ORDINARY_PAYMENT)
+                .recipientFullId(recipient.getFullId())
+                .build(sender.getSecretPhrase());
+        Metro.getTransactionProcessor().broadcast(transaction);
+        return transaction;
+    }
+}
@@ -0,0 +1,195 @@
+package metro.peer;
+
+import metro.Transaction;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+import org.json.simple.JSONValue;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+
+public class PeerOutboundQueueTest {
+
+    private final Queue<Runnable> tasks = new ArrayDeque<>();
+    private final List<List<Long>> sentTransactions = new ArrayList<>();
+    private final List<String> sentBlocks = new ArrayList<>();
+    private boolean broadcastTarget;
+    private PeerOutboundQueue queue;
+
+    @Before
+    public void setUp() {
+        broadcastTarget = true;
+        queue = new PeerOutboundQueue(new PeerImpl("127.0.0.1", null), tasks::add) {
+            @Override
+            boolean isBroadcastTarget() {
+                return broadcastTarget;
+            }
+
+            @Override
+            JSONObject sendRequest(JSONStreamAware request) {
+                JSONObject json = parse(request);
+                if ("processBlock".equals(json.get("requestType"))) {
+                    sentBlocks.add((String) json.get("block"));
+                } else {
+                    List<Long> ids = new ArrayList<>();
+                    for (Object transaction : (JSONArray) json.get("transactions")) {
+                        ids.add((Long) ((JSONObject) transaction).get("id"));
+                    }
+                    sentTransactions.add(ids);
+                }
+                return new JSONObject();
+            }
+        };
+    }
+
+    @Test
+    public void testBlocksBeforeTransactions() {
+        addTransactions(1, 25);
+        addBlock("a");
+        addTransactions(26, 30);
+        addBlock("b");
+        runTasks();
+        Assert.assertEquals(Arrays.asList("a", "b"), sentBlocks);
+        Assert.assertEquals(3, sentTransactions.size());
+        Assert.assertEquals(range(1, 10), sentTransactions.get(0));
+        Assert.assertEquals(range(11, 20), sentTransactions.get(1));
+        Assert.assertEquals(range(21, 30), sentTransactions.get(2));
+    }
+
+    @Test
+    public void testDuplicateTransactionSentOnce() {
+        addTransactions(1, 5);
+        addTransactions(3, 7);
+        runTasks();
+        Assert.assertEquals(Collections.singletonList(range(1, 7)), sentTransactions);
+    }
+
+    @Test
+    public void testDropsOldestTransactions() {
+        addTransactions(1, Peers.peerOutboundQueueSize + 5);
+        runTasks();
+        List<Long> sent = new ArrayList<>();
+        sentTransactions.forEach(sent::addAll);
+        Assert.assertEquals(range(6, Peers.peerOutboundQueueSize + 5), sent);
+    }
+
+    @Test
+    public void testSupersedesOldestBlocks() {
+        for (int i = 0; i < 10; i++) {
+            addBlock(Integer.toString(i));
+        }
+        runTasks();
+        Assert.assertEquals(Arrays.asList("2", "3", "4", "5", "6", "7", "8", "9"), sentBlocks);
+    }
+
+    @Test
+    public void testSingleDrainingTask() {
+        addBlock("a");
+        addTransactions(1, 5);
+        addBlock("b");
+        Assert.assertEquals(1, tasks.size());
+        runTasks();
+        Assert.assertEquals(2, sentBlocks.size());
+        Assert.assertEquals(1, sentTransactions.size());
+
+        // a drained queue is drained again by a new task
+        addTransactions(6, 8);
+        Assert.assertEquals(1, tasks.size());
+        runTasks();
+        Assert.assertEquals(range(6, 8), sentTransactions.get(1));
+    }
+
+    @Test
+    public void testClear() {
+        addBlock("a");
+        addTransactions(1, 5);
+        queue.clear();
+        runTasks();
+        Assert.assertTrue(sentBlocks.isEmpty());
+        Assert.assertTrue(sentTransactions.isEmpty());
+    }
+
+    @Test
+    public void testNotBroadcastTarget() {
+        addBlock("a");
+        addTransactions(1, 5);
+        broadcastTarget = false;
+        runTasks();
+        Assert.assertTrue(sentBlocks.isEmpty());
+        Assert.assertTrue(sentTransactions.isEmpty());
+
+        broadcastTarget = true;
+        addTransactions(6, 6);
+        runTasks();
+        Assert.assertEquals(Collections.singletonList(range(6, 6)), sentTransactions);
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            task.run();
+        }
+    }
+
+    private void addBlock(String block) {
+        JSONObject request = new JSONObject();
+        request.put("requestType", "processBlock");
+        request.put("block", block);
+        queue.addBlock(request, request, new PeerOutboundQueue.Broadcast(1));
+    }
+
+    private void addTransactions(long from, long to) {
+        PeerOutboundQueue.Broadcast broadcast = new PeerOutboundQueue.Broadcast((int) (to - from + 1));
+        List<PeerOutboundQueue.PendingTransaction> pendingTransactions = new ArrayList<>();
+        for (long id = from; id <= to; id++) {
+            pendingTransactions.add(new PeerOutboundQueue.PendingTransaction(newTransaction(id), broadcast));
+        }
+        queue.addTransactions(pendingTransactions);
+    }
+
+    private static Transaction newTransaction(long id) {
+        return (Transaction) Proxy.newProxyInstance(Transaction.class.getClassLoader(), new Class<?>[] {Transaction.class},
+                (proxy, method, args) -> {
+                    switch (method.getName()) {
+                        case "getId":
+                            return id;
+                        case "getJSONObject":
+                            JSONObject json = new JSONObject();
+                            json.put("id", id);
+                            return json;
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static List<Long> range(long from, long to) {
+        List<Long> result = new ArrayList<>();
+        for (long id = from; id <= to; id++) {
+            result.add(id);
+        }
+        return result;
+    }
+
+    private static JSONObject parse(JSONStreamAware request) {
+        StringWriter writer = new StringWriter();
+        try {
+            request.writeJSONString(writer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return (JSONObject) JSONValue.parse(writer.toString());
+    }
+}
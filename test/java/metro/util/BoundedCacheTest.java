@@ -0,0 +1,42 @@
+package metro.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BoundedCacheTest {
+
+    @Test
+    public void testHitsAndMisses() {
+        BoundedCache<Long, String> cache = new BoundedCache<>("test", 10);
+        cache.put(1L, "one");
+        Assert.assertEquals("one", cache.get(1L));
+        Assert.assertNull(cache.get(2L));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+        cache.remove(1L);
+        Assert.assertNull(cache.get(1L));
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        BoundedCache<Integer, Integer> cache = new BoundedCache<>("test", 3);
+        cache.put(1, 1);
+        cache.put(2, 2);
+        cache.put(3, 3);
+        cache.get(1);
+        cache.put(4, 4);
+        Assert.assertEquals(3, cache.size());
+        Assert.assertEquals(Integer.valueOf(1), cache.get(1));
+        Assert.assertNull(cache.get(2));
+        Assert.assertEquals(Integer.valueOf(4), cache.get(4));
+    }
+
+    @Test
+    public void testDisabled() {
+        BoundedCache<Integer, Integer> cache = new BoundedCache<>("test", 0);
+        cache.put(1, 1);
+        Assert.assertNull(cache.get(1));
+        Assert.assertEquals(0, cache.size());
+    }
+}
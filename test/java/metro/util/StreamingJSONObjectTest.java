@@ -0,0 +1,99 @@
+package metro.util;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.json.simple.JSONStreamAware;
+import org.json.simple.JSONValue;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+
+public class StreamingJSONObjectTest {
+
+    @Test
+    public void testWrite() {
+        assertJSONEquals(expected(3), JSON.toString(newObject(3)));
+        assertJSONEquals(expected(0), JSON.toString(newObject(0)));
+    }
+
+    @Test
+    public void testPrepareInMemory() throws IOException {
+        int count = spooledFiles();
+        JSONStreamAware prepared = newObject(100).prepare();
+        Assert.assertEquals(count, spooledFiles());
+        assertJSONEquals(expected(100), write(prepared));
+    }
+
+    @Test
+    public void testPrepareSpooled() throws IOException {
+        int count = spooledFiles();
+        int elements = StreamingJSONObject.SPOOL_MEMORY_CHARS / 20;
+        JSONStreamAware prepared = newObject(elements).prepare();
+        Assert.assertEquals(count + 1, spooledFiles());
+        assertJSONEquals(expected(elements), write(prepared));
+        Assert.assertEquals(count, spooledFiles());
+    }
+
+    @Test
+    public void testPrepareFailure() {
+        int count = spooledFiles();
+        StreamingJSONObject object = new StreamingJSONObject("elements", elements -> {
+            for (int i = 0; i < StreamingJSONObject.SPOOL_MEMORY_CHARS / 20; i++) {
+                elements.accept(element(i));
+            }
+            throw new IllegalStateException("failed");
+        });
+        try {
+            object.prepare();
+            Assert.fail("Failure not thrown");
+        } catch (IllegalStateException | IOException expected) {
+        }
+        Assert.assertEquals(count, spooledFiles());
+    }
+
+    private static StreamingJSONObject newObject(int count) {
+        StreamingJSONObject object = new StreamingJSONObject("elements", elements -> {
+            for (int i = 0; i < count; i++) {
+                elements.accept(element(i));
+            }
+        });
+        object.getMembers().put("count", count);
+        return object;
+    }
+
+    private static void assertJSONEquals(String expected, String actual) {
+        Assert.assertTrue("JSON differs", JSONValue.parse(expected).equals(JSONValue.parse(actual)));
+    }
+
+    private static String expected(int count) {
+        JSONObject object = new JSONObject();
+        object.put("count", count);
+        JSONArray elements = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            elements.add(element(i));
+        }
+        object.put("elements", elements);
+        return JSON.toString(object);
+    }
+
+    private static JSONObject element(int i) {
+        JSONObject element = new JSONObject();
+        element.put("id", i);
+        element.put("name", "element \"" + i + "\"");
+        return element;
+    }
+
+    private static String write(JSONStreamAware json) throws IOException {
+        StringWriter writer = new StringWriter();
+        json.writeJSONString(writer);
+        return writer.toString();
+    }
+
+    private static int spooledFiles() {
+        File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles((dir, name) -> name.startsWith("metro.response."));
+        return files == null ? 0 : files.length;
+    }
+}
@@ -24,6 +24,7 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
         APISetTest.class,
+        BoundedCacheTest.class,
         CountingStreamsTest.class,
         EpochTimeTest.class,
         JsonMessageTest.class